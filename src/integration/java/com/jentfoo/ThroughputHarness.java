@@ -0,0 +1,317 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.threadly.util.Clock;
+
+/**
+ * End to end throughput harness.  A folder of synthetic sources is converted by a real run of
+ * {@link MediaConverter}, with {@code fake-encoder.sh} standing in for avconv, avprobe and
+ * mencoder, so scheduling changes can be measured on any Linux box without media or encoders.
+ * Each run is its own JVM, like a cron run.  Reported are the makespan of converting everything,
+ * how busy each lane was, and the cost of a run which only has to reconcile (once a tenth of the
+ * sources have been removed).
+ * 
+ * How the fake encoders behave can be changed with the system properties below, each source
+ * records its own behaviour in its first line so it is the same however it is run.
+ */
+public class ThroughputHarness {
+  public static final String SPEED_PROPERTY = "harness.speed";
+  public static final String DURATION_PROPERTY = "harness.durationSeconds";
+  public static final String FAIL_PERCENT_PROPERTY = "harness.failPercent";
+  public static final String OUTPUT_SIZE_PROPERTY = "harness.outputSize";
+  public static final String STABLE_TIME_PROPERTY = "harness.stableTimeSeconds";
+  private static final int DEFAULT_FILE_COUNT = 2000;
+  private static final short DEFAULT_ENCODE_PARALLEL_COUNT = 4;
+  private static final String FAKE_ENCODER_RESOURCE = "fake-encoder.sh";
+  private static final String[] FAKE_ENCODER_NAMES = { "avconv", "avprobe", "mencoder" };
+  private static final int SOURCE_SIZE = 1024 * 1024;
+  private static final int REMOVED_RATIO = 10;
+  private static final long RANDOM_SEED = 1;
+  private static final Pattern LANE_PATTERN = 
+      Pattern.compile("\\{\"name\": \"(\\w+)\", \"queued\": \\d+, \"running\": \\d+, " + 
+                        "\"maxConcurrency\": (\\d+), \"busySeconds\": ([\\d.]+), \"utilization\": ([\\d.]+)\\}");
+  private static final Pattern COUNTER_PATTERN = 
+      Pattern.compile("\\{\"name\": \"(\\w+)\", \"jobType\": \"(\\w+)\", \"value\": (\\d+)\\}");
+  private static final Pattern STAGE_PATTERN = 
+      Pattern.compile("\\{\"stage\": \"(\\w+)\", \"jobType\": \"(\\w+)\", \"count\": (\\d+), \"sumSeconds\": ([\\d.]+)");
+  
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 1 || args.length > 4) {
+      System.err.println("Usage: ");
+      System.err.println("java -cp <classpath> " + ThroughputHarness.class.getName() + 
+                           " <work folder> [file count] [mencoder|libav] [encode parallel count]");
+      System.exit(1);
+    }
+    
+    File workFolder = new File(args[0]).getAbsoluteFile();
+    int fileCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_FILE_COUNT;
+    MediaConverter.ConverterType converterType = 
+        args.length > 2 ? MediaConverter.ConverterType.parse(args[2]) : MediaConverter.ConverterType.Libav;
+    int encodeParallelCount = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ENCODE_PARALLEL_COUNT;
+    
+    new ThroughputHarness(workFolder, fileCount, converterType, encodeParallelCount).run();
+  }
+  
+  private final File workFolder;
+  private final File binFolder;
+  private final File sourceFolder;
+  private final File destFolder;
+  private final File stateFolder;
+  private final int fileCount;
+  private final MediaConverter.ConverterType converterType;
+  private final int encodeParallelCount;
+  private final double speed;
+  private final double durationSeconds;
+  private final double failPercent;
+  private final long outputSize;
+  private final String stableTimeSeconds;
+  
+  public ThroughputHarness(File workFolder, int fileCount, 
+                           MediaConverter.ConverterType converterType, int encodeParallelCount) {
+    this.workFolder = workFolder;
+    this.binFolder = new File(workFolder, "bin");
+    this.sourceFolder = new File(workFolder, "source");
+    this.destFolder = new File(workFolder, "dest");
+    this.stateFolder = new File(workFolder, "state");
+    this.fileCount = fileCount;
+    this.converterType = converterType;
+    this.encodeParallelCount = encodeParallelCount;
+    // by default a 10 minute source encodes in under a second
+    this.speed = Double.parseDouble(System.getProperty(SPEED_PROPERTY, "1000"));
+    this.durationSeconds = Double.parseDouble(System.getProperty(DURATION_PROPERTY, "600"));
+    this.failPercent = Double.parseDouble(System.getProperty(FAIL_PERCENT_PROPERTY, "0"));
+    this.outputSize = Long.parseLong(System.getProperty(OUTPUT_SIZE_PROPERTY, Integer.toString(SOURCE_SIZE)));
+    // sources are not being written, so there is no need to wait long for them
+    this.stableTimeSeconds = System.getProperty(STABLE_TIME_PROPERTY, "1");
+  }
+  
+  public void run() throws IOException, InterruptedException {
+    if (workFolder.exists()) {
+      deleteRecursively(workFolder);
+    }
+    installFakeEncoders();
+    long startTime = Clock.accurateForwardProgressingMillis();
+    makeSources();
+    System.out.println("Made " + fileCount + " sources in " + 
+                         RunProgress.formatMillis(Clock.accurateForwardProgressingMillis() - startTime));
+    
+    RunResult convertRun = runConverter("convert");
+    System.out.println();
+    System.out.println("Convert run:");
+    convertRun.print(fileCount);
+    
+    int removedCount = removeSources();
+    RunResult reconcileRun = runConverter("reconcile");
+    System.out.println();
+    System.out.println("Reconcile run, " + removedCount + " sources removed:");
+    reconcileRun.print(fileCount);
+  }
+  
+  private void installFakeEncoders() throws IOException {
+    if (! binFolder.mkdirs()) {
+      throw new IOException("Could not make folder: " + binFolder.getAbsolutePath());
+    }
+    for (int i = 0; i < FAKE_ENCODER_NAMES.length; i++) {
+      File executable = new File(binFolder, FAKE_ENCODER_NAMES[i]);
+      InputStream in = ThroughputHarness.class.getResourceAsStream("/" + FAKE_ENCODER_RESOURCE);
+      if (in == null) {
+        throw new IOException("Could not find resource: " + FAKE_ENCODER_RESOURCE);
+      }
+      try {
+        Files.copy(in, executable.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        in.close();
+      }
+      if (! executable.setExecutable(true)) {
+        throw new IOException("Could not make executable: " + executable.getAbsolutePath());
+      }
+    }
+  }
+  
+  /**
+   * Makes the sources, as sparse files whose first line tells the fake encoders how to treat
+   * them.  For libav the mix is 40% copies, 20% remuxes, 20% audio encodes and 20% full
+   * encodes, for mencoder 40% copies and 60% encodes.
+   */
+  private void makeSources() throws IOException {
+    if (! sourceFolder.mkdirs() || ! destFolder.mkdirs() || ! stateFolder.mkdirs()) {
+      throw new IOException("Could not make folders in: " + workFolder.getAbsolutePath());
+    }
+    Random random = new Random(RANDOM_SEED);
+    // well before the stable time, as they would be for a cron run
+    long modifiedTime = System.currentTimeMillis() - 1000 * 60 * 60;
+    for (int i = 0; i < fileCount; i++) {
+      String extension;
+      String vcodec;
+      String acodec;
+      int kind = i % 10;
+      if (kind < 4) {
+        extension = converterType == MediaConverter.ConverterType.Libav ? ".mp4" : ".avi";
+        vcodec = "h264";
+        acodec = "ac3";
+      } else if (kind < 6) {
+        extension = ".mkv";
+        vcodec = "h264";
+        acodec = "ac3";
+      } else if (kind < 8) {
+        extension = ".mp4";
+        vcodec = "h264";
+        acodec = "mp3";
+      } else {
+        extension = ".avi";
+        vcodec = "mpeg4";
+        acodec = "mp3";
+      }
+      // durations vary so jobs are not all the same length
+      double duration = durationSeconds * (.5 + random.nextDouble());
+      int exitCode = random.nextDouble() * 100 < failPercent ? 1 : 0;
+      String header = String.format("FAKE duration=%.1f vcodec=%s acodec=%s width=1280 height=720 " + 
+                                      "speed=%s exit=%d size=%d\n", 
+                                    duration, vcodec, acodec, Double.toString(speed), exitCode, outputSize);
+      
+      File sourceFile = new File(sourceFolder, String.format("video-%05d%s", i, extension));
+      RandomAccessFile raf = new RandomAccessFile(sourceFile, "rw");
+      try {
+        raf.write(header.getBytes(StandardCharsets.US_ASCII));
+        raf.setLength(SOURCE_SIZE);
+      } finally {
+        raf.close();
+      }
+      if (! sourceFile.setLastModified(modifiedTime)) {
+        throw new IOException("Could not set modified time: " + sourceFile.getAbsolutePath());
+      }
+    }
+  }
+  
+  // returns how many were removed
+  private int removeSources() throws IOException {
+    File[] sourceFiles = sourceFolder.listFiles();
+    if (sourceFiles == null) {
+      throw new IOException("Could not list: " + sourceFolder.getAbsolutePath());
+    }
+    int removedCount = 0;
+    for (int i = 0; i < sourceFiles.length; i += REMOVED_RATIO) {
+      Files.delete(sourceFiles[i].toPath());
+      removedCount++;
+    }
+    
+    return removedCount;
+  }
+  
+  private RunResult runConverter(String name) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+    // keep flags like --add-opens, which threadly may need on newer JVMs
+    Iterator<String> it = ManagementFactory.getRuntimeMXBean().getInputArguments().iterator();
+    while (it.hasNext()) {
+      String arg = it.next();
+      if (arg.startsWith("--add-opens") || arg.startsWith("-Xmx")) {
+        command.add(arg);
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("-D" + MediaConverter.STATE_FOLDER_PROPERTY + '=' + stateFolder.getAbsolutePath());
+    command.add("-D" + LibavConverter.AVCONV_PROPERTY + '=' + new File(binFolder, "avconv").getAbsolutePath());
+    command.add("-D" + LibavConverter.AVPROBE_PROPERTY + '=' + new File(binFolder, "avprobe").getAbsolutePath());
+    command.add("-D" + MencoderConverter.MENCODER_PROPERTY + '=' + new File(binFolder, "mencoder").getAbsolutePath());
+    command.add("-D" + StabilityTracker.STABLE_TIME_PROPERTY + '=' + stableTimeSeconds);
+    command.add(MediaConverter.class.getName());
+    command.add(sourceFolder.getAbsolutePath());
+    command.add(destFolder.getAbsolutePath());
+    command.add(converterType.name().toLowerCase());
+    command.add(Integer.toString(encodeParallelCount));
+    
+    File logFile = new File(workFolder, name + ".log");
+    System.out.println("Starting " + name + " run, output in: " + logFile.getAbsolutePath());
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(logFile);
+    long startTime = Clock.accurateForwardProgressingMillis();
+    int exitCode = pb.start().waitFor();
+    long wallMillis = Clock.accurateForwardProgressingMillis() - startTime;
+    if (exitCode != 0) {
+      throw new IllegalStateException("Run exited with " + exitCode + ", see: " + logFile.getAbsolutePath());
+    }
+    
+    File reportFile = new File(stateFolder, "runReport.json");
+    String report = new String(Files.readAllBytes(reportFile.toPath()), StandardCharsets.UTF_8);
+    File renamedReport = new File(workFolder, name + "Report.json");
+    Files.move(reportFile.toPath(), renamedReport.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    
+    return new RunResult(wallMillis, report);
+  }
+  
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        deleteRecursively(children[i]);
+      }
+    }
+    if (! file.delete() && file.exists()) {
+      System.err.println("Could not delete: " + file.getAbsolutePath());
+    }
+  }
+  
+  /**
+   * What a single run took, from its wall time and run report.
+   */
+  private static class RunResult {
+    private final long wallMillis;
+    private final String report;
+    
+    private RunResult(long wallMillis, String report) {
+      this.wallMillis = wallMillis;
+      this.report = report;
+    }
+    
+    private void print(int fileCount) {
+      System.out.println(String.format("  Makespan: %.2fs (%.1f sources per second, including JVM start)", 
+                                       wallMillis / 1000d, fileCount / (wallMillis / 1000d)));
+      
+      Matcher m = LANE_PATTERN.matcher(report);
+      while (m.find()) {
+        System.out.println(String.format("  Lane %-8s slots: %2s, busy: %9ss, utilization: %5.1f%%", 
+                                         m.group(1), m.group(2), m.group(3), 
+                                         Double.parseDouble(m.group(4)) * 100));
+      }
+      
+      long succeeded = 0;
+      long failed = 0;
+      long timedOut = 0;
+      m = COUNTER_PATTERN.matcher(report);
+      while (m.find()) {
+        long value = Long.parseLong(m.group(3));
+        if (m.group(1).equals("jobs_succeeded")) {
+          succeeded += value;
+        } else if (m.group(1).equals("jobs_failed")) {
+          failed += value;
+        } else if (m.group(1).equals("timeouts")) {
+          timedOut += value;
+        }
+      }
+      System.out.println("  Jobs succeeded: " + succeeded + ", failed: " + failed + ", timed out: " + timedOut);
+      
+      m = STAGE_PATTERN.matcher(report);
+      while (m.find()) {
+        System.out.println(String.format("  Stage %-13s %-11s count: %6s, total: %9ss", 
+                                         m.group(1), m.group(2), m.group(3), m.group(4)));
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+#!/bin/bash
+# Stand in for avconv, avprobe and mencoder, so whole runs can be timed without real media.
+# What it does depends on the name it is run as (copy or link it to each name).
+#
+# Sources made by the throughput harness start with a line like:
+#   FAKE duration=600 vcodec=mpeg4 acodec=mp3 width=1280 height=720 speed=100 exit=0 size=1048576
+# which sets how that source probes and encodes, anything not set there comes from the
+# environment (FAKE_DURATION, FAKE_VCODEC, FAKE_ACODEC, FAKE_WIDTH, FAKE_HEIGHT, FAKE_SPEED,
+# FAKE_REMUX_FACTOR, FAKE_EXIT, FAKE_PROBE_EXIT, FAKE_OUTPUT_SIZE).  If FAKE_LOG is set each
+# output written is appended to it, so tests can check how often each file was encoded.
+#
+#   duration    play time of the source in seconds
+#   speed       seconds of media encoded per second, so an encode runs for duration / speed
+#   exit        exit code of encodes, ie 1 to make the source fail
+#   probeexit   exit code of avprobe
+#   size        bytes written to each output (as a sparse file)
+#   failsegment index of the segment which, once split, fails 30 times faster than the others
+
+duration=${FAKE_DURATION:-600}
+vcodec=${FAKE_VCODEC:-mpeg4}
+acodec=${FAKE_ACODEC:-mp3}
+width=${FAKE_WIDTH:-1280}
+height=${FAKE_HEIGHT:-720}
+speed=${FAKE_SPEED:-100}
+remuxfactor=${FAKE_REMUX_FACTOR:-20}
+exitcode=${FAKE_EXIT:-0}
+probeexit=${FAKE_PROBE_EXIT:-0}
+size=${FAKE_OUTPUT_SIZE:-1048576}
+failsegment=-1
+
+# sets the variables from the header of a source, if it has one
+read_header() {
+  local line
+  if [ -f "$1" ]; then
+    line=$(head -c 512 "$1" | head -n 1)
+  fi
+  case "$line" in
+    "FAKE "*)
+      local pair
+      for pair in ${line#FAKE }; do
+        case "$pair" in
+          duration=*) duration=${pair#*=} ;;
+          vcodec=*) vcodec=${pair#*=} ;;
+          acodec=*) acodec=${pair#*=} ;;
+          width=*) width=${pair#*=} ;;
+          height=*) height=${pair#*=} ;;
+          speed=*) speed=${pair#*=} ;;
+          exit=*) exitcode=${pair#*=} ;;
+          probeexit=*) probeexit=${pair#*=} ;;
+          size=*) size=${pair#*=} ;;
+          failsegment=*) failsegment=${pair#*=} ;;
+        esac
+      done
+      ;;
+  esac
+}
+
+header_line() {
+  echo "FAKE duration=$1 vcodec=$vcodec acodec=$acodec width=$width height=$height speed=$speed exit=$exitcode size=$2"
+}
+
+# writes a sparse output with a header, so it probes like the source it came from
+write_output() {
+  header_line "$2" "$3" > "$1" && truncate -s "$3" "$1"
+  if [ -n "$FAKE_LOG" ]; then
+    echo "$1" >> "$FAKE_LOG"
+  fi
+}
+
+format_clock() {
+  awk -v t="$1" 'BEGIN { printf "%02d:%02d:%05.2f", t / 3600, (t % 3600) / 60, t - int(t / 60) * 60 }'
+}
+
+# sleeps for the run time in steps, printing a status line for each in the style given
+run_with_progress() {
+  local runtime=$1 style=$2
+  local steps=$(awk -v r="$runtime" 'BEGIN { s = int(r / .5); print (s < 1 ? 1 : (s > 40 ? 40 : s)) }')
+  local stepsleep=$(awk -v r="$runtime" -v s="$steps" 'BEGIN { printf "%.3f", r / s }')
+  local fps=$(awk -v sp="$speed" 'BEGIN { printf "%.1f", sp * 25 }')
+  local i
+  for ((i = 1; i <= steps; i++)); do
+    sleep "$stepsleep"
+    local position=$(awk -v d="$duration" -v i="$i" -v s="$steps" 'BEGIN { printf "%.2f", d * i / s }')
+    local frame=$(awk -v p="$position" 'BEGIN { printf "%d", p * 25 }')
+    if [ "$style" = "mencoder" ]; then
+      echo "Pos: ${position}s ${frame}f ($((i * 100 / steps))%) ${fps}fps Trem: 0min 0mb A-V:0.000 [0:0]"
+    else
+      echo "frame= $frame fps= $fps q=28.0 size= 0kB time=$(format_clock "$position") bitrate=0.0kbits/s" >&2
+    fi
+  done
+}
+
+fake_avprobe() {
+  local source="${@: -1}"
+  read_header "$source"
+  if [ "$probeexit" != "0" ]; then
+    exit "$probeexit"
+  fi
+  local container="${source##*.}"
+  cat <<JSON
+{
+  "streams": [
+    { "index": 0, "codec_type": "video", "codec_name": "$vcodec", "width": $width, "height": $height },
+    { "index": 1, "codec_type": "audio", "codec_name": "$acodec", "channels": 2 }
+  ],
+  "format": { "format_name": "$container", "duration": "$duration", "bit_rate": "2000000" }
+}
+JSON
+}
+
+fake_avconv() {
+  local input="" limit="" segmenttime="" remux=0 previous=""
+  local outputs=()
+  while [ $# -gt 0 ]; do
+    case "$1" in
+      -i) input=$2; shift ;;
+      -t) limit=$2; shift ;;
+      -segment_time) segmenttime=$2; shift ;;
+      copy) if [ "$previous" = "-c" ]; then remux=2; fi
+            if [ "$previous" = "-vcodec" ]; then remux=$((remux + 1)); fi
+            if [ "$previous" = "-acodec" ]; then remux=$((remux + 1)); fi ;;
+      /*) outputs+=("$1") ;;
+    esac
+    previous=$1
+    shift
+  done
+
+  case "$input" in
+    concat:*)
+      # joining segments, which together are as long as their durations added up
+      local total=0 part
+      IFS='|' read -ra parts <<< "${input#concat:}"
+      for part in "${parts[@]}"; do
+        read_header "$part"
+        total=$(awk -v a="$total" -v b="$duration" 'BEGIN { print a + b }')
+      done
+      duration=$total
+      remux=2
+      ;;
+    *)
+      read_header "$input"
+      ;;
+  esac
+  if [ -n "$limit" ]; then
+    duration=$limit
+  fi
+
+  if [ ${#outputs[@]} -eq 0 ]; then
+    echo "Input #0, ${input##*.}, from '$input':" >&2
+    echo "  Duration: $(format_clock "$duration"), start: 0.000000, bitrate: 2000 kb/s" >&2
+    echo "    Stream #0.0: Video: $vcodec, yuv420p, ${width}x${height}, 25 fps" >&2
+    echo "    Stream #0.1: Audio: $acodec, 48000 Hz, stereo" >&2
+    echo "At least one output file must be specified" >&2
+    exit 1
+  fi
+
+  local runtime
+  if [ $remux -ge 2 ]; then
+    runtime=$(awk -v d="$duration" -v s="$speed" -v f="$remuxfactor" 'BEGIN { print d / s / f }')
+  else
+    runtime=$(awk -v d="$duration" -v s="$speed" 'BEGIN { print d / s }')
+  fi
+  run_with_progress "$runtime" avconv
+  if [ "$exitcode" != "0" ]; then
+    echo "Fake encode failed" >&2
+    exit "$exitcode"
+  fi
+
+  local output
+  for output in "${outputs[@]}"; do
+    case "$output" in
+      *%*)
+        # splitting into segments
+        local count=$(awk -v d="$duration" -v s="$segmenttime" 'BEGIN { c = int(d / s); if (c * s < d) c++; print (c < 1 ? 1 : c) }')
+        local i
+        for ((i = 0; i < count; i++)); do
+          if [ "$i" = "$failsegment" ]; then
+            ( speed=$((speed * 30)); exitcode=1
+              write_output "$(printf "$output" "$i")" "$segmenttime" $((size / count)) )
+          else
+            write_output "$(printf "$output" "$i")" "$segmenttime" $((size / count))
+          fi
+        done
+        ;;
+      *)
+        write_output "$output" "$duration" "$size"
+        ;;
+    esac
+  done
+}
+
+fake_mencoder() {
+  local source=$1 output=""
+  shift
+  while [ $# -gt 0 ]; do
+    if [ "$1" = "-o" ]; then
+      output=$2
+      shift
+    fi
+    shift
+  done
+
+  read_header "$source"
+  run_with_progress "$(awk -v d="$duration" -v s="$speed" 'BEGIN { print d / s }')" mencoder
+  if [ "$exitcode" != "0" ]; then
+    echo "Fake encode failed" >&2
+    exit "$exitcode"
+  fi
+  write_output "$output" "$duration" "$size"
+}
+
+case "$(basename "$0")" in
+  avprobe*) fake_avprobe "$@" ;;
+  avconv*) fake_avconv "$@" ;;
+  mencoder*) fake_mencoder "$@" ;;
+  *) echo "Run as avconv, avprobe, or mencoder, not: $(basename "$0")" >&2; exit 2 ;;
+esac
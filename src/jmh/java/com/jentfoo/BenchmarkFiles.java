@@ -0,0 +1,71 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * Generates the synthetic files and folders used by the benchmarks.
+ */
+public class BenchmarkFiles {
+  private BenchmarkFiles() {
+    // don't construct
+  }
+  
+  public static File makeTempFolder(String prefix) throws IOException {
+    return Files.createTempDirectory(prefix).toFile();
+  }
+  
+  public static String makeName(int index, String extension) {
+    return "video-" + index + extension;
+  }
+  
+  /**
+   * Fills the folder with empty files named by {@link #makeName(int, String)} for indexes 
+   * {@code startIndex} (inclusive) to {@code endIndex} (exclusive).
+   */
+  public static File[] makeFiles(File folder, int startIndex, int endIndex, 
+                                 String extension) throws IOException {
+    if (! folder.exists() && ! folder.mkdirs()) {
+      throw new IOException("Could not make folder: " + folder.getAbsolutePath());
+    }
+    File[] result = new File[endIndex - startIndex];
+    for (int i = startIndex; i < endIndex; i++) {
+      File file = new File(folder, makeName(i, extension));
+      if (! file.createNewFile() && ! file.exists()) {
+        throw new IOException("Could not make file: " + file.getAbsolutePath());
+      }
+      result[i - startIndex] = file;
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Makes a sparse file of the given size, so large files can be produced without actually 
+   * writing (or needing the disk space for) the data.
+   */
+  public static File makeSparseFile(File file, long size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+    } finally {
+      raf.close();
+    }
+    
+    return file;
+  }
+  
+  public static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        deleteRecursively(children[i]);
+      }
+    }
+    if (! file.delete() && file.exists()) {
+      System.err.println("Could not delete: " + file.getAbsolutePath());
+    }
+  }
+}
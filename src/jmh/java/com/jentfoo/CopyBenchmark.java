@@ -0,0 +1,65 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copy time for each copy strategy.  The source is a sparse file, so this measures the overhead 
+ * of the copy path (system calls, buffers and the writes) rather than how fast the disk can read.
+ * Divide the file size by the score to get the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CopyBenchmark {
+  @Param({"HardLink", "TransferTo", "DirectBuffer"})
+  public StandardCopyStrategy strategy;
+  @Param({"268435456"})  // 256MB
+  public long fileSize;
+  
+  private File folder;
+  private File sourceFile;
+  private File destFile;
+  private CopyStrategy[] strategies;
+  
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    folder = BenchmarkFiles.makeTempFolder("copyBenchmark");
+    sourceFile = BenchmarkFiles.makeSparseFile(new File(folder, "source.mkv"), fileSize);
+    destFile = new File(folder, "dest.mkv");
+    strategies = new CopyStrategy[] { strategy };
+  }
+  
+  @TearDown(Level.Invocation)
+  public void deleteCopy() {
+    destFile.delete();
+  }
+  
+  @TearDown(Level.Trial)
+  public void cleanup() {
+    BenchmarkFiles.deleteRecursively(folder);
+  }
+  
+  @Benchmark
+  public FileUtils.CopyResult copyFile() throws IOException {
+    return FileUtils.copyFile(sourceFile, destFile, strategies);
+  }
+}
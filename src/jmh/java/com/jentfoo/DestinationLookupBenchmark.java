@@ -0,0 +1,107 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Checking if a source already has a converted file in the destination, comparing the original 
+ * scan of the destination listing ({@link #fileInArray(File[], File)}) with the 
+ * {@link DirectoryIndex}.  Misses are the common case, since they are checked for every new file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class DestinationLookupBenchmark {
+  private static final String PRODUCED_EXTENSION = ".mp4";
+  
+  @Param({"1000", "10000", "100000"})
+  public int fileCount;
+  
+  private File folder;
+  private File destFolder;
+  private File[] destFileArray;
+  private DirectoryIndex destIndex;
+  private File hitFile;
+  private File missFile;
+  
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    folder = BenchmarkFiles.makeTempFolder("lookupBenchmark");
+    destFolder = new File(folder, "dest");
+    BenchmarkFiles.makeFiles(destFolder, 0, fileCount, PRODUCED_EXTENSION);
+    destFileArray = destFolder.listFiles();
+    destIndex = DirectoryIndex.build(destFolder, PRODUCED_EXTENSION, destFileArray, null);
+    hitFile = new File(destFolder, BenchmarkFiles.makeName(fileCount / 2, PRODUCED_EXTENSION));
+    missFile = new File(destFolder, BenchmarkFiles.makeName(fileCount, PRODUCED_EXTENSION));
+  }
+  
+  @TearDown(Level.Trial)
+  public void cleanup() {
+    BenchmarkFiles.deleteRecursively(folder);
+  }
+  
+  @Benchmark
+  public boolean fileInArrayHit() {
+    return fileInArray(destFileArray, hitFile);
+  }
+  
+  @Benchmark
+  public boolean fileInArrayMiss() {
+    return fileInArray(destFileArray, missFile);
+  }
+  
+  @Benchmark
+  public boolean directoryIndexHit() {
+    return destIndex.containsDestFile(hitFile);
+  }
+  
+  @Benchmark
+  public boolean directoryIndexMiss() {
+    return destIndex.containsDestFile(missFile);
+  }
+  
+  @Benchmark
+  public DirectoryIndex directoryIndexBuild() {
+    return DirectoryIndex.build(destFolder, PRODUCED_EXTENSION, destFolder.listFiles(), null);
+  }
+  
+  /**
+   * The scan of the destination listing which was used before there was a {@link DirectoryIndex}.
+   */
+  private static boolean fileInArray(File[] fileArray, File searchFile) {
+    for (int i = 0; i < fileArray.length; i++) {
+      try {
+        if (fileArray[i].getCanonicalPath().equals(searchFile.getCanonicalPath())) {
+          return true;
+        }
+      } catch (IOException e) {
+        ExceptionUtils.handleException(e);
+        
+        if (fileArray[i].getAbsolutePath().equals(searchFile.getAbsolutePath())) {
+          return true;
+        }
+      }
+    }
+    
+    return false;
+  }
+}
@@ -0,0 +1,38 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Producing destination names, which is done for every source file on every scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileNameBenchmark {
+  private final File destFolder = new File("/tmp/dest");
+  private final File sourceFile = new File("/tmp/source/Some.Show.S01E01.720p.mkv");
+  
+  @Benchmark
+  public String maybeReplaceExt() {
+    return FileUtils.maybeReplaceExt(sourceFile.getName(), "mp4");
+  }
+  
+  @Benchmark
+  public File makeNewFile() {
+    return FileUtils.makeNewFile(destFolder, sourceFile, ".mp4");
+  }
+}
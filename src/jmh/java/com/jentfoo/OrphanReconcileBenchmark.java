@@ -0,0 +1,83 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the destination files whose source was removed, as done by 
+ * {@link MediaConverter#deleteRemovedFiles(DirectoryIndex, RunMetrics)} before deleting them.  
+ * One in ten destination files is orphaned.  The deletes themselves are not included, those 
+ * would only be measuring the filesystem.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class OrphanReconcileBenchmark {
+  private static final String PRODUCED_EXTENSION = ".mp4";
+  private static final int ORPHAN_RATIO = 10;
+  
+  @Param({"1000", "10000", "100000"})
+  public int fileCount;
+  
+  private File folder;
+  private File sourceFolder;
+  private File destFolder;
+  private DirectoryIndex destIndex;
+  
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    folder = BenchmarkFiles.makeTempFolder("reconcileBenchmark");
+    sourceFolder = new File(folder, "source");
+    destFolder = new File(folder, "dest");
+    int orphanCount = fileCount / ORPHAN_RATIO;
+    BenchmarkFiles.makeFiles(sourceFolder, orphanCount, fileCount, ".mkv");
+    BenchmarkFiles.makeFiles(destFolder, 0, fileCount, PRODUCED_EXTENSION);
+    destIndex = DirectoryIndex.build(destFolder, PRODUCED_EXTENSION, 
+                                     destFolder.listFiles(), sourceFolder.listFiles());
+    
+    int foundCount = destIndex.getOrphanedDestFiles().size();
+    if (foundCount != orphanCount) {
+      throw new IllegalStateException("Expected " + orphanCount + " orphans, found: " + foundCount);
+    }
+  }
+  
+  @TearDown(Level.Trial)
+  public void cleanup() {
+    BenchmarkFiles.deleteRecursively(folder);
+  }
+  
+  @Benchmark
+  public List<File> findOrphans() {
+    return destIndex.getOrphanedDestFiles();
+  }
+  
+  /**
+   * Same as the periodic reconcile, which lists the source folder again before looking for 
+   * orphans.
+   */
+  @Benchmark
+  public List<File> rescanAndFindOrphans() {
+    destIndex.setSourceFiles(sourceFolder.listFiles());
+    
+    return destIndex.getOrphanedDestFiles();
+  }
+}
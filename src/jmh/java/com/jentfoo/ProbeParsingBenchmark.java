@@ -0,0 +1,110 @@
+package com.jentfoo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the {@code avconv -i} and {@code avprobe} output used to plan a job, and of the 
+ * progress output read while encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ProbeParsingBenchmark {
+  private static final String PROBE_OUTPUT = 
+      "avconv version 9.20-6:9.20-0ubuntu0.14.04.1, Copyright (c) 2000-2014 the Libav developers\n" + 
+      "  built on Aug 10 2016 20:45:07 with gcc 4.8 (Ubuntu 4.8.4-2ubuntu1~14.04.3)\n" + 
+      "Input #0, matroska,webm, from 'video.mkv':\n" + 
+      "  Metadata:\n" + 
+      "    ENCODER         : libebml v1.3.0 + libmatroska v1.4.1\n" + 
+      "    creation_time   : 2014-01-01 00:00:00\n" + 
+      "  Duration: 01:42:17.28, start: 0.000000, bitrate: 11853 kb/s\n" + 
+      "    Chapter #0.0: start 0.000000, end 612.069000\n" + 
+      "    Stream #0.0(eng): Video: h264 (High), yuv420p, 1920x800, PAR 1:1 DAR 12:5, 23.98 fps, 1k tbn, 47.95 tbc (default)\n" + 
+      "    Stream #0.1(eng): Audio: dca, 48000 Hz, 5.1(side), s16, 1536 kb/s (default)\n" + 
+      "    Stream #0.2(eng): Subtitle: subrip\n" + 
+      "At least one output file must be specified\n";
+  private static final String PROBE_JSON = 
+      "{\n" + 
+      "    \"streams\": [\n" + 
+      "        {\n" + 
+      "            \"index\": 0,\n" + 
+      "            \"codec_name\": \"h264\",\n" + 
+      "            \"profile\": \"High\",\n" + 
+      "            \"codec_type\": \"video\",\n" + 
+      "            \"width\": 1920,\n" + 
+      "            \"height\": 800,\n" + 
+      "            \"r_frame_rate\": \"24000/1001\",\n" + 
+      "            \"disposition\": { \"default\": 1, \"forced\": 0 },\n" + 
+      "            \"tags\": { \"language\": \"eng\" }\n" + 
+      "        },\n" + 
+      "        {\n" + 
+      "            \"index\": 1,\n" + 
+      "            \"codec_name\": \"dca\",\n" + 
+      "            \"codec_type\": \"audio\",\n" + 
+      "            \"sample_rate\": \"48000\",\n" + 
+      "            \"channels\": 6,\n" + 
+      "            \"bit_rate\": \"1536000\",\n" + 
+      "            \"tags\": { \"language\": \"eng\" }\n" + 
+      "        },\n" + 
+      "        {\n" + 
+      "            \"index\": 2,\n" + 
+      "            \"codec_name\": \"subrip\",\n" + 
+      "            \"codec_type\": \"subtitle\"\n" + 
+      "        }\n" + 
+      "    ],\n" + 
+      "    \"format\": {\n" + 
+      "        \"filename\": \"video.mkv\",\n" + 
+      "        \"nb_streams\": 3,\n" + 
+      "        \"format_name\": \"matroska,webm\",\n" + 
+      "        \"duration\": \"6137.280000\",\n" + 
+      "        \"bit_rate\": \"11853000\"\n" + 
+      "    }\n" + 
+      "}\n";
+  private static final byte[] PROGRESS_OUTPUT = 
+      ("frame= 1200 fps= 48 q=28.0 size=    8192kB time=50.04 bitrate=1341.2kbits/s    \r" + 
+       "frame= 1248 fps= 48 q=28.0 size=    8448kB time=52.05 bitrate=1329.7kbits/s    \r" + 
+       "frame= 1296 fps= 48 q=28.0 size=    8704kB time=54.05 bitrate=1319.2kbits/s    \r" + 
+       "frame= 1344 fps= 48 q=28.0 size=    9216kB time=56.06 bitrate=1346.7kbits/s    \r")
+        .getBytes(StandardCharsets.US_ASCII);
+  
+  private final ProgressParser progressParser = new ProgressParser(new JobProgress(6137.28));
+  
+  private final MediaInfo mediaInfo = MediaInfoParser.parseText(PROBE_OUTPUT);
+  
+  @Benchmark
+  public MediaInfo parseText() {
+    return MediaInfoParser.parseText(PROBE_OUTPUT);
+  }
+  
+  @Benchmark
+  public MediaInfo parseJson() {
+    return MediaInfoParser.parseJson(PROBE_JSON);
+  }
+  
+  @Benchmark
+  public boolean checkCodecs() {
+    return LibavConverter.isDesiredVideoCodec(mediaInfo) & 
+             LibavConverter.isDesiredAudioCodec(mediaInfo);
+  }
+  
+  @Benchmark
+  public ProgressParser parseProgress() {
+    progressParser.consume(PROGRESS_OUTPUT, 0, PROGRESS_OUTPUT.length);
+    
+    return progressParser;
+  }
+}
@@ -0,0 +1,760 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.threadly.concurrent.future.FutureCallback;
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.concurrent.future.SettableListenableFuture;
+import org.threadly.util.Clock;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Handles the job submission and accounting shared by all converters.  Implementations only need
+ * to provide how a single stable source file is turned into the new file.
+ */
+public abstract class AbstractConverter implements ConverterInterface {
+  private static final boolean VERBOSE = true;
+  // how long to watch a recently modified source for, to see if it is actually growing
+  private static final int GROWTH_CHECK_DELAY_IN_MILLIS = 1000;
+  
+  @Override
+  public Map<File, JobHandle> submitJobs(JobContext context,
+                                         List<File> sourceFileList,
+                                         DirectoryIndex destIndex) {
+    return submitJobs(context, sourceFileList, 
+                      Collections.singletonList(new ConversionTarget(this, destIndex)));
+  }
+  
+  /**
+   * Submit a job for each source which is not yet converted for every target.  A source is one 
+   * job however many targets it has, so it is only waited on and probed once, and the new files 
+   * of targets which share a converter are produced together (from a single decode if the 
+   * converter supports it).
+   */
+  public static Map<File, JobHandle> submitJobs(JobContext context, 
+                                                List<File> sourceFileList, 
+                                                List<ConversionTarget> targets) {
+    Map<File, JobHandle> result = new HashMap<File, JobHandle>();
+    RunProgress runProgress = context.getRunProgress();
+    JobJournal journal = context.getJournal();
+    
+    Iterator<File> it = sourceFileList.iterator();
+    while (it.hasNext()) {
+      File sourceFile = it.next();
+      
+      if (sourceFile.isDirectory()) {  // don't try and recursively copy/encode directories
+        continue;
+      }
+      
+      List<Output> outputs = new ArrayList<Output>(targets.size());
+      Iterator<ConversionTarget> targetIt = targets.iterator();
+      while (targetIt.hasNext()) {
+        ConversionTarget target = targetIt.next();
+        File newFile = target.destIndex.makeDestFile(sourceFile);
+        if (! target.destIndex.containsDestFile(newFile)) {
+          outputs.add(new Output(target, newFile));
+        }
+      }
+      
+      if (outputs.isEmpty()) {
+        // skip file, already converted
+        continue;
+      } else if (journal.shouldSkip(sourceFile)) {
+        if (VERBOSE) {
+          System.out.println("Skipping file which has repeatedly failed: " + sourceFile.getAbsolutePath());
+        }
+        continue;
+      }
+      
+      try {
+        // blocks while the pipeline is full, so sources are only taken as fast as they can be handled
+        context.acquirePendingJob();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      journal.record(sourceFile, JobJournal.JobState.Queued);
+      
+      // until probed assume the worst case of a full encode
+      runProgress.jobSubmitted(sourceFile, 
+                               new ConversionPlan(sourceFile, outputs.get(0).newFile, 
+                                                  JobType.FullEncode).getEstimatedCost());
+      ConverterWorker worker = new ConverterWorker(sourceFile, outputs);
+      result.put(sourceFile, worker.submit(context));
+    }
+    
+    return result;
+  }
+  
+  @Override
+  public ConversionPlan planJob(JobContext context, 
+                                File sourceFile, File newFile) throws IOException, InterruptedException {
+    FingerprintIndex fingerprintIndex = context.getFingerprintIndex();
+    if (fingerprintIndex != null) {
+      File existingFile = fingerprintIndex.findExisting(ContentFingerprint.compute(sourceFile), newFile);
+      if (existingFile != null) {
+        return ConversionPlan.makeDuplicate(sourceFile, newFile, existingFile);
+      }
+    }
+    
+    return makePlan(context, sourceFile, newFile);
+  }
+  
+  /**
+   * Decide how the source file should be converted.  This is invoked from the probe lane once the 
+   * source file has stopped changing, but before the job is admitted to a conversion lane, so it 
+   * should be relatively quick (ie probing the file).
+   */
+  protected abstract ConversionPlan makePlan(JobContext context, 
+                                             File sourceFile, File newFile) throws IOException, 
+                                                                                   InterruptedException;
+  
+  /**
+   * Returns {@code true} if the source may only need copying, so could be copied while it is 
+   * still being written.  {@link #makePlan(JobContext, File, File)} is still used to decide, 
+   * and may fail as the source is incomplete, in which case the source waits to be stable.
+   */
+  protected boolean mayFollowCopy(File sourceFile) {
+    return false;
+  }
+  
+  /**
+   * Produce the new file as described by the plan.  This is invoked while holding one of the 
+   * permits of the lane for the plan's job type.  Processes must be started from the provided 
+   * launcher, so they are killed if the job is cancelled or times out.
+   */
+  protected abstract void convert(JobContext context, ConversionPlan plan, 
+                                  ProcessLauncher launcher) throws IOException, InterruptedException;
+  
+  /**
+   * A new file the job for a source produces, for one of the targets.
+   */
+  private static class Output {
+    private final ConversionTarget target;
+    private final File newFile;
+    private volatile ConversionPlan plan;
+    
+    private Output(ConversionTarget target, File newFile) {
+      this.target = target;
+      this.newFile = newFile;
+      this.plan = null;
+    }
+  }
+  
+  private static class ConverterWorker implements Runnable {
+    private final File sourceFile;
+    private final List<Output> allOutputs;
+    private final AtomicBoolean pending;
+    private volatile JobContext context;
+    private volatile JobHandle handle;
+    private volatile List<Output> outputs;
+    private volatile ConversionPlan plan;
+    private volatile ContentFingerprint fingerprint;
+    private volatile long laneSubmitTime;
+    private volatile boolean following;
+    private volatile boolean restartWhenStable;
+    private volatile boolean converted;
+    
+    private ConverterWorker(File sourceFile, List<Output> outputs) {
+      this.sourceFile = sourceFile;
+      this.allOutputs = outputs;
+      this.pending = new AtomicBoolean(true);
+      this.context = null;
+      this.handle = null;
+      this.outputs = outputs;
+      this.plan = null;
+      this.fingerprint = null;
+      this.laneSubmitTime = -1;
+      this.following = false;
+      this.restartWhenStable = false;
+      this.converted = false;
+    }
+    
+    /**
+     * Waits for the source to be stable, then plans the job in the probe lane, and only then 
+     * submits to the lane for the job type, so that no conversion permit is held while waiting or 
+     * probing.  Once converted the new files are published from the publish lane.  A source which 
+     * is still being written, and only needs copying, is instead copied as it is written.
+     */
+    private JobHandle submit(final JobContext context) {
+      this.context = context;
+      final SettableListenableFuture<Object> result = new SettableListenableFuture<Object>(false);
+      handle = new JobHandle(sourceFile, result);
+      // however the job ends it no longer holds a place in the pipeline
+      result.listener(new Runnable() {
+        @Override
+        public void run() {
+          releasePending();
+          LeaseManager leaseManager = context.getLeaseManager();
+          if (leaseManager != null) {
+            Iterator<Output> it = allOutputs.iterator();
+            while (it.hasNext()) {
+              leaseManager.release(it.next().newFile);
+            }
+          }
+        }
+      });
+      Output output = outputs.get(0);
+      // a busy follow lane means the source just waits to be stable, rather than queue for it
+      if (outputs.size() == 1 && output.target.converter.mayFollowCopy(sourceFile) && 
+          context.hasFollowRoom() && isRecentlyModified() && 
+          FollowCopy.isWorthwhile(sourceFile, output.newFile)) {
+        followIfGrowing(result);
+      } else {
+        awaitStableAndSubmit(result);
+      }
+      
+      return handle;
+    }
+    
+    private boolean isRecentlyModified() {
+      long lastModified = sourceFile.lastModified();
+      
+      return lastModified > 0 && 
+               System.currentTimeMillis() - lastModified < context.getStabilityTracker().getStableTimeMillis();
+    }
+    
+    /**
+     * Only follows the source if its size grows, a source which is modified without growing (ie 
+     * preallocated by a torrent client) may rewrite what was already copied, so it waits to be 
+     * stable instead.
+     */
+    private void followIfGrowing(final SettableListenableFuture<Object> result) {
+      final long size = sourceFile.length();
+      context.getScheduler().schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (sourceFile.length() <= size) {
+              awaitStableAndSubmit(result);
+              return;
+            }
+            context.getProbeLane().submit(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  planFollowCopy(result);
+                } catch (Throwable t) {
+                  result.setFailure(t);
+                }
+              }
+            }, 0).callback(new FailureForwarder(result));
+          } catch (Throwable t) {
+            result.setFailure(t);
+          }
+        }
+      }, GROWTH_CHECK_DELAY_IN_MILLIS);
+    }
+    
+    private void awaitStableAndSubmit(final SettableListenableFuture<Object> result) {
+      final RunMetrics metrics = context.getRunMetrics();
+      final long stabilityStartTime = Clock.accurateForwardProgressingMillis();
+      ListenableFuture<Boolean> stableFuture = context.getStabilityTracker().awaitStable(sourceFile);
+      stableFuture.callback(new FutureCallback<Boolean>() {
+        @Override
+        public void handleResult(Boolean stable) {
+          metrics.recordStage(RunMetrics.Stage.StabilityWait, null, 
+                              Clock.accurateForwardProgressingMillis() - stabilityStartTime);
+          if (stable) {
+            context.getProbeLane().submit(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  probeAndSubmit(result);
+                } catch (Throwable t) {
+                  result.setFailure(t);
+                }
+              }
+            }, 0).callback(new FailureForwarder(result));
+          } else {
+            context.getRunProgress().jobRemoved(sourceFile);
+            
+            result.setResult(null);
+          }
+        }
+        
+        @Override
+        public void handleFailure(Throwable t) {
+          result.setFailure(t);
+        }
+      });
+    }
+    
+    private void releasePending() {
+      if (pending.compareAndSet(true, false)) {
+        context.releasePendingJob();
+      }
+    }
+    
+    private void probeAndSubmit(final SettableListenableFuture<Object> result) throws IOException, 
+                                                                                   InterruptedException {
+      if (handle.isCancelled()) {
+        context.getRunProgress().jobRemoved(sourceFile);
+        return;
+      }
+      context.getJournal().record(sourceFile, JobJournal.JobState.Probing);
+      long probeStartTime = Clock.accurateForwardProgressingMillis();
+      Iterator<Output> it = outputs.iterator();
+      while (it.hasNext()) {
+        Output output = it.next();
+        output.plan = makeDuplicatePlan(context.getFingerprintIndex(), output.newFile);
+        if (output.plan == null) {
+          output.plan = output.target.converter.makePlan(context, sourceFile, output.newFile);
+          if (output.target.profile != null && output.plan.jobType.isCpuIntensive()) {
+            output.plan.setEncodingProfile(output.target.profile);
+          }
+        }
+      }
+      submitPlan(result, probeStartTime);
+    }
+    
+    /**
+     * Plans a source which is still being written.  If it only needs copying it is submitted to 
+     * be copied as it grows, otherwise it waits to be stable like any other source.
+     */
+    private void planFollowCopy(SettableListenableFuture<Object> result) throws InterruptedException {
+      if (handle.isCancelled()) {
+        context.getRunProgress().jobRemoved(sourceFile);
+        return;
+      }
+      context.getJournal().record(sourceFile, JobJournal.JobState.Probing);
+      long probeStartTime = Clock.accurateForwardProgressingMillis();
+      Output output = outputs.get(0);
+      ConversionPlan followPlan;
+      try {
+        followPlan = output.target.converter.makePlan(context, sourceFile, output.newFile);
+      } catch (IOException e) {
+        followPlan = null;  // may not be readable until it is complete
+      }
+      if (followPlan == null || followPlan.jobType != JobType.Copy) {
+        awaitStableAndSubmit(result);
+        return;
+      }
+      
+      if (VERBOSE) {
+        System.out.println("Copying " + sourceFile.getName() + " while it is still being written");
+      }
+      following = true;
+      output.plan = followPlan;
+      submitPlan(result, probeStartTime);
+    }
+    
+    /**
+     * Returns the plan which decides the lane and progress of the job, the most expensive of 
+     * the outputs with encodes preferred over copies.
+     */
+    private static ConversionPlan pickLeadPlan(List<Output> outputs) {
+      ConversionPlan lead = null;
+      Iterator<Output> it = outputs.iterator();
+      while (it.hasNext()) {
+        ConversionPlan p = it.next().plan;
+        if (lead == null || 
+            (p.jobType.isCpuIntensive() && ! lead.jobType.isCpuIntensive()) || 
+            (p.jobType.isCpuIntensive() == lead.jobType.isCpuIntensive() && 
+               p.getEstimatedCost() > lead.getEstimatedCost())) {
+          lead = p;
+        }
+      }
+      
+      return lead;
+    }
+    
+    private void submitPlan(final SettableListenableFuture<Object> result, long probeStartTime) {
+      RunMetrics metrics = context.getRunMetrics();
+      plan = pickLeadPlan(outputs);
+      double cost = 0;
+      Iterator<Output> it = outputs.iterator();
+      while (it.hasNext()) {
+        cost += it.next().plan.getEstimatedCost();
+      }
+      laneSubmitTime = Clock.accurateForwardProgressingMillis();
+      metrics.recordStage(RunMetrics.Stage.Probe, plan.jobType, 
+                          laneSubmitTime - probeStartTime);
+      context.getRunProgress().jobPlanned(plan);
+      PriorityLane lane = following ? context.getFollowLane() : context.getLane(plan.jobType);
+      lane.submit(ConverterWorker.this, cost).callback(new FutureCallback<Object>() {
+        @Override
+        public void handleResult(Object ignored) {
+          if (restartWhenStable) {
+            // the source was rewritten while following it, so copy it once it is complete
+            restartWhenStable = false;
+            following = false;
+            context.getJournal().record(sourceFile, JobJournal.JobState.Queued);
+            awaitStableAndSubmit(result);
+          } else if (! converted) {
+            // interrupted or cancelled, left for the next run to retry
+            result.setResult(null);
+          } else if (handle.isCancelled()) {
+            // cancelled after converting, the new files are not published
+            failed(handle.isTimedOut());
+            context.getRunProgress().jobRemoved(sourceFile);
+            result.setResult(null);
+          } else {
+            context.getPublishLane().submit(new Runnable() {
+              @Override
+              public void run() {
+                publish();
+              }
+            }, 0).callback(result);
+          }
+        }
+        
+        @Override
+        public void handleFailure(Throwable t) {
+          result.setFailure(t);
+        }
+      });
+    }
+    
+    /**
+     * Fingerprints the source, returning a plan to reuse an existing new file if the content has 
+     * already been converted, or {@code null} if it needs to be converted.
+     */
+    private ConversionPlan makeDuplicatePlan(FingerprintIndex fingerprintIndex, 
+                                             File newFile) throws IOException {
+      if (fingerprintIndex == null) {
+        return null;
+      }
+      
+      if (fingerprint == null) {
+        fingerprint = ContentFingerprint.compute(sourceFile);
+      }
+      File existingFile = fingerprintIndex.findExisting(fingerprint, newFile);
+      if (existingFile == null) {
+        return null;
+      }
+      if (VERBOSE) {
+        System.out.println("Source " + sourceFile.getName() + 
+                             " is a duplicate of the source for: " + existingFile.getAbsolutePath());
+      }
+      
+      return ConversionPlan.makeDuplicate(sourceFile, newFile, existingFile);
+    }
+    
+    /**
+     * Converts the source into the temp file of each output, run from the lane for the job type.
+     */
+    @Override
+    public void run() {
+      releasePending();
+      RunMetrics metrics = context.getRunMetrics();
+      long startTime = Clock.accurateForwardProgressingMillis();
+      metrics.recordStage(RunMetrics.Stage.QueueWait, plan.jobType, startTime - laneSubmitTime);
+      if (handle.isCancelled()) {
+        context.getRunProgress().jobRemoved(sourceFile);
+        return;
+      } else if (! claimLeases()) {
+        return;
+      }
+      
+      context.getJobWatchdog().watch(handle);
+      JobJournal journal = context.getJournal();
+      journal.record(sourceFile, JobJournal.JobState.Encoding);
+      boolean interrupted = false;
+      try {
+        Map<AbstractConverter, ConversionPlan> primaryPlans = 
+            new LinkedHashMap<AbstractConverter, ConversionPlan>();
+        Iterator<Output> it = outputs.iterator();
+        while (it.hasNext()) {
+          Output output = it.next();
+          // may be left from a run which was killed
+          Files.deleteIfExists(output.plan.tempFile.toPath());
+          // when mirroring a source tree the folder may not exist yet
+          Files.createDirectories(output.plan.tempFile.getParentFile().toPath());
+          
+          if (following || output.plan.duplicateOf != null) {
+            continue;
+          }
+          // outputs of the same converter are produced together
+          ConversionPlan primaryPlan = primaryPlans.get(output.target.converter);
+          if (primaryPlan == null) {
+            primaryPlans.put(output.target.converter, output.plan);
+          } else {
+            primaryPlan.addExtraOutput(output.plan);
+          }
+        }
+        
+        if (following) {
+          ConversionPlan followPlan = outputs.get(0).plan;
+          handle.runStarted(followPlan);
+          followPlan.progress.started();
+          CopyStrategy[] copyStrategies = new CopyStrategy[] { 
+            new FollowCopy(context.getStabilityTracker().getStableTimeMillis(), 
+                           context.getBandwidthGovernor(), followPlan.progress) 
+          };
+          FileUtils.CopyResult copyResult;
+          try {
+            copyResult = FileUtils.copyFile(sourceFile, followPlan.tempFile, copyStrategies);
+          } catch (FollowCopy.SourceRewrittenException e) {
+            if (VERBOSE) {
+              System.out.println(e.getMessage() + ", will copy it once it is complete");
+            }
+            Files.deleteIfExists(followPlan.tempFile.toPath());
+            restartWhenStable = true;
+            return;
+          }
+          if (VERBOSE) {
+            System.out.println(sourceFile.getName() + " " + copyResult + ", waited " + 
+                                 RunProgress.formatMillis(followPlan.progress.getSourceWaitMillis()) + 
+                                 " for it to be written");
+          }
+          if (context.getFingerprintIndex() != null) {
+            // only now is the source complete
+            fingerprint = ContentFingerprint.compute(sourceFile);
+          }
+        } else {
+          it = outputs.iterator();
+          while (it.hasNext()) {
+            ConversionPlan p = it.next().plan;
+            if (p.duplicateOf != null) {
+              handle.runStarted(p);
+              p.progress.started();
+              copyFile(p.duplicateOf, p);
+              metrics.recordDuplicate(sourceFile.length());
+            }
+          }
+          Iterator<Map.Entry<AbstractConverter, ConversionPlan>> primaryIt = primaryPlans.entrySet().iterator();
+          while (primaryIt.hasNext()) {
+            Map.Entry<AbstractConverter, ConversionPlan> e = primaryIt.next();
+            convert(e.getKey(), e.getValue());
+          }
+        }
+        converted = true;
+      } catch (IOException e) {
+        throw ExceptionUtils.makeRuntime(e);
+      } catch (InterruptedException e) {
+        interrupted = true;
+        ExceptionUtils.handleException(e);
+      } finally {
+        context.getJobWatchdog().unwatch(handle);
+        handle.runFinished();
+        if (! converted && ! restartWhenStable) {
+          // interrupted or cancelled jobs are left as encoding, so they are retried without 
+          // counting a failure, a job which timed out is counted as failed
+          failed(handle.isCancelled() ? handle.isTimedOut() : ! interrupted);
+          if (handle.isCancelled()) {
+            context.getRunProgress().jobRemoved(sourceFile);
+          }
+        }
+        metrics.recordStage(RunMetrics.Stage.forJobType(plan.jobType), plan.jobType, 
+                            Clock.accurateForwardProgressingMillis() - startTime);
+        long childCpuMillis = 0;
+        long throttledMillis = 0;
+        Iterator<Output> it = outputs.iterator();
+        while (it.hasNext()) {
+          ConversionPlan p = it.next().plan;
+          childCpuMillis += p.progress.getChildCpuMillis();
+          throttledMillis += p.progress.getThrottledMillis();
+        }
+        metrics.recordChildCpuMillis(plan.jobType, childCpuMillis);
+        metrics.recordThrottledMillis(plan.jobType, throttledMillis);
+        if (VERBOSE && throttledMillis > 0) {
+          System.out.println(sourceFile.getName() + " was throttled for " + 
+                               (throttledMillis / 1000) + " seconds to keep within bandwidth limits");
+        }
+      }
+    }
+    
+    /**
+     * Converts the primary plan of a converter, then produces any extra outputs the converter 
+     * did not write from its temp file, since they have the same content.
+     */
+    private void convert(AbstractConverter converter, 
+                         ConversionPlan primaryPlan) throws IOException, InterruptedException {
+      handle.runStarted(primaryPlan);
+      long startTime = Clock.accurateForwardProgressingMillis();
+      primaryPlan.progress.started();
+      converter.convert(context, primaryPlan, context.getProcessLauncher().forOwner(handle));
+      long convertMillis = Clock.accurateForwardProgressingMillis() - startTime;
+      
+      boolean sharedEncode = false;
+      Iterator<ConversionPlan> it = primaryPlan.getExtraOutputs().iterator();
+      while (it.hasNext()) {
+        ConversionPlan extraPlan = it.next();
+        if (extraPlan.tempFile.exists()) {
+          sharedEncode = true;
+        } else {
+          extraPlan.progress.started();
+          copyFile(primaryPlan.tempFile, extraPlan);
+        }
+      }
+      ThroughputHistory throughputHistory = context.getThroughputHistory();
+      // encoding several outputs at once would make this kind of job look slower than it is
+      if (throughputHistory != null && ! sharedEncode) {
+        throughputHistory.record(primaryPlan, convertMillis - primaryPlan.progress.getThrottledMillis());
+      }
+    }
+    
+    private void copyFile(File fromFile, ConversionPlan toPlan) throws IOException {
+      CopyStrategy[] copyStrategies = context.getBandwidthGovernor().makeCopyStrategies(toPlan.progress);
+      FileUtils.CopyResult copyResult = FileUtils.copyFile(fromFile, toPlan.tempFile, copyStrategies);
+      if (VERBOSE) {
+        System.out.println(toPlan.newFile.getName() + " " + copyResult);
+      }
+    }
+    
+    /**
+     * Claims the new files so no other worker converts them at the same time, returning 
+     * {@code false} if the job should be skipped.  Claimed only once a lane permit is held, so 
+     * files are not held by a worker which is not yet ready to convert them.  Outputs which 
+     * could not be claimed are left out of the job.
+     */
+    private boolean claimLeases() {
+      LeaseManager leaseManager = context.getLeaseManager();
+      if (leaseManager == null) {
+        return true;
+      }
+      
+      List<Output> claimedOutputs = new ArrayList<Output>(outputs.size());
+      try {
+        Iterator<Output> it = outputs.iterator();
+        while (it.hasNext()) {
+          Output output = it.next();
+          if (leaseManager.tryAcquire(output.newFile, handle)) {
+            if (! output.newFile.exists()) {
+              claimedOutputs.add(output);
+              continue;
+            }
+            // another worker finished it since we listed the destination
+            leaseManager.release(output.newFile);
+            output.target.destIndex.addDestFile(output.newFile);
+          } else if (VERBOSE) {
+            System.out.println("Skipping file being converted by another worker: " + 
+                                 output.newFile.getAbsolutePath());
+          }
+        }
+      } catch (IOException e) {
+        throw ExceptionUtils.makeRuntime(e);
+      }
+      
+      if (! claimedOutputs.isEmpty()) {
+        if (claimedOutputs.size() < outputs.size()) {
+          outputs = claimedOutputs;
+          plan = pickLeadPlan(claimedOutputs);
+        }
+        return true;
+      }
+      
+      // not interrupted, so the partial file (which is another worker's) is not removed on restart
+      context.getJournal().record(sourceFile, JobJournal.JobState.Queued);
+      context.getRunProgress().jobRemoved(sourceFile);
+      
+      return false;
+    }
+    
+    /**
+     * Moves the converted files into place and records them, run from the publish lane.
+     */
+    private void publish() {
+      if (handle.isCancelled()) {
+        // cancelled while waiting to be published (ie the lease was lost)
+        failed(handle.isTimedOut());
+        context.getRunProgress().jobRemoved(sourceFile);
+        return;
+      }
+      RunMetrics metrics = context.getRunMetrics();
+      long startTime = Clock.accurateForwardProgressingMillis();
+      LeaseManager leaseManager = context.getLeaseManager();
+      List<Output> publishedOutputs = new ArrayList<Output>(outputs.size());
+      boolean success = false;
+      try {
+        Iterator<Output> it = outputs.iterator();
+        while (it.hasNext()) {
+          Output output = it.next();
+          if (leaseManager != null && ! leaseManager.isHeld(output.newFile)) {
+            // reclaimed by another worker since the last heartbeat, the file is theirs now
+            System.err.println("Lost lease, not publishing: " + output.newFile.getAbsolutePath());
+            Files.deleteIfExists(output.plan.tempFile.toPath());
+            continue;
+          }
+          // only now does the new file appear, so a partial file is never mistaken as converted
+          Files.move(output.plan.tempFile.toPath(), output.newFile.toPath(), 
+                     StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          publishedOutputs.add(output);
+        }
+        success = true;
+      } catch (IOException e) {
+        throw ExceptionUtils.makeRuntime(e);
+      } finally {
+        if (! success) {
+          failed(true);
+        }
+      }
+      outputs = publishedOutputs;
+      if (publishedOutputs.isEmpty()) {
+        // the worker which took over will finish it, so it is not a failure
+        context.getJournal().record(sourceFile, JobJournal.JobState.Queued);
+        context.getRunProgress().jobRemoved(sourceFile);
+        return;
+      }
+      
+      Iterator<Output> it = outputs.iterator();
+      while (it.hasNext()) {
+        Output output = it.next();
+        output.plan.progress.finished();
+        metrics.recordBytes(output.plan.jobType, sourceFile.length(), output.newFile.length());
+        output.target.destIndex.addDestFile(output.newFile);
+        if (fingerprint != null) {
+          context.getFingerprintIndex().put(fingerprint, output.newFile);
+        }
+      }
+      context.getJournal().record(sourceFile, JobJournal.JobState.Done);
+      metrics.recordStage(RunMetrics.Stage.Publish, plan.jobType, 
+                          Clock.accurateForwardProgressingMillis() - startTime);
+      metrics.recordJobResult(plan.jobType, true);
+      
+      RunProgress runProgress = context.getRunProgress();
+      runProgress.jobFinished(sourceFile);
+      
+      if (VERBOSE) {
+        System.out.println(runProgress + "\n");
+      }
+    }
+    
+    private void failed(boolean recordFailure) {
+      Iterator<Output> it = outputs.iterator();
+      while (it.hasNext()) {
+        File tempFile = it.next().plan.tempFile;
+        if (! tempFile.delete() && tempFile.exists()) {
+          System.err.println("Failed to delete partial file: " + tempFile.getAbsolutePath());
+        }
+      }
+      if (recordFailure) {
+        context.getJournal().record(sourceFile, JobJournal.JobState.Failed);
+        context.getRunMetrics().recordJobResult(plan.jobType, false);
+      }
+    }
+  }
+  
+  /**
+   * Fails the provided future if the future this is added to fails.
+   */
+  private static class FailureForwarder implements FutureCallback<Object> {
+    private final SettableListenableFuture<Object> future;
+    
+    private FailureForwarder(SettableListenableFuture<Object> future) {
+      this.future = future;
+    }
+    
+    @Override
+    public void handleResult(Object result) {
+      // ignored, only failures are forwarded
+    }
+    
+    @Override
+    public void handleFailure(Throwable t) {
+      future.setFailure(t);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package com.jentfoo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Sizes the encode lane and the threads given to each encode process based off the cores
+ * available on the machine.  Load from other processes is taken from {@code /proc/stat} and
+ * {@code /proc/loadavg}, so if the box is busy with something else fewer encodes will be run.
+ * The lane concurrency will never be set above the configured ceiling.
+ */
+public class AdaptiveConcurrencyController {
+  private static final boolean VERBOSE = true;
+  private static final File PROC_STAT = new File("/proc/stat");
+  private static final File PROC_LOADAVG = new File("/proc/loadavg");
+  private static final int SAMPLE_INTERVAL_IN_MILLIS = 1000 * 30;
+  // x264 scales well to a few threads, but we would rather run more processes than go below this
+  private static final int MIN_THREADS_PER_ENCODE = 2;
+  private static final int MAX_THREADS_PER_ENCODE = 16;
+  public static final int DEFAULT_THREADS_PER_ENCODE = 2;
+  
+  private final PriorityLane encodeLane;
+  private final int concurrencyCeiling;
+  private final int coreCount;
+  private volatile int threadsPerEncode;
+  private long lastTotalTicks;
+  private long lastIdleTicks;
+  
+  public AdaptiveConcurrencyController(PriorityLane encodeLane, int concurrencyCeiling) {
+    this(encodeLane, concurrencyCeiling, Runtime.getRuntime().availableProcessors());
+  }
+  
+  public AdaptiveConcurrencyController(PriorityLane encodeLane,
+                                       int concurrencyCeiling, int coreCount) {
+    if (concurrencyCeiling < 1) {
+      throw new IllegalArgumentException("Concurrency ceiling must be at least 1");
+    }
+    
+    this.encodeLane = encodeLane;
+    this.concurrencyCeiling = concurrencyCeiling;
+    this.coreCount = coreCount;
+    // start assuming the machine is otherwise idle
+    int initialConcurrency = Math.max(1, Math.min(concurrencyCeiling,
+                                                  coreCount / MIN_THREADS_PER_ENCODE));
+    this.threadsPerEncode = Math.max(1, Math.min(MAX_THREADS_PER_ENCODE,
+                                                 coreCount / initialConcurrency));
+    encodeLane.setMaxConcurrency(initialConcurrency);
+    this.lastTotalTicks = -1;
+    this.lastIdleTicks = -1;
+  }
+  
+  /**
+   * Returns {@code true} if the system load can be read on this platform.
+   */
+  public static boolean isSupported() {
+    return PROC_STAT.canRead() && PROC_LOADAVG.canRead();
+  }
+  
+  public int getConcurrencyCeiling() {
+    return concurrencyCeiling;
+  }
+  
+  /**
+   * Returns the number of threads a newly started encode process should be told to use.
+   */
+  public int getThreadsPerEncode() {
+    return threadsPerEncode;
+  }
+  
+  /**
+   * Start periodically sampling the load and adjusting the encode lane.
+   */
+  public void start(SubmitterScheduler scheduler) {
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          adjust();
+        } catch (IOException e) {
+          ExceptionUtils.handleException(e);
+        }
+      }
+    }, 0, SAMPLE_INTERVAL_IN_MILLIS);
+  }
+  
+  protected void adjust() throws IOException {
+    double busyCores = sampleBusyCores();
+    if (busyCores < 0) {
+      return; // first sample, we need two to know the utilization
+    }
+    double loadAverage = Math.min(readLoadAverage(), coreCount);
+    
+    // subtract out what we are currently using so we only react to outside load
+    double ourUsage = encodeLane.getRunningCount() * (double)threadsPerEncode;
+    double externalLoad = Math.max(0, ((busyCores + loadAverage) / 2) - ourUsage);
+    int availableCores = (int)Math.max(1, Math.round(coreCount - externalLoad));
+    
+    int targetConcurrency = Math.max(1, Math.min(concurrencyCeiling,
+                                                 availableCores / MIN_THREADS_PER_ENCODE));
+    int currentConcurrency = encodeLane.getMaxConcurrency();
+    // only step by one at a time so one noisy sample does not swing us too far
+    int newConcurrency;
+    if (targetConcurrency > currentConcurrency) {
+      newConcurrency = currentConcurrency + 1;
+    } else if (targetConcurrency < currentConcurrency) {
+      newConcurrency = currentConcurrency - 1;
+    } else {
+      newConcurrency = currentConcurrency;
+    }
+    newConcurrency = Math.min(newConcurrency, concurrencyCeiling);
+    int newThreadsPerEncode = Math.max(1, Math.min(MAX_THREADS_PER_ENCODE,
+                                                   availableCores / newConcurrency));
+    
+    if (newConcurrency != currentConcurrency || newThreadsPerEncode != threadsPerEncode) {
+      if (VERBOSE) {
+        System.out.println("Adjusting encodes to " + newConcurrency + " with " +
+                             newThreadsPerEncode + " threads each (available cores: " +
+                             availableCores + "/" + coreCount + ")");
+      }
+      
+      threadsPerEncode = newThreadsPerEncode;
+      encodeLane.setMaxConcurrency(newConcurrency);
+    }
+  }
+  
+  // returns number of cores busy since the last sample, or -1 if this is the first sample
+  private double sampleBusyCores() throws IOException {
+    String cpuLine = readFirstLine(PROC_STAT);
+    if (cpuLine == null || ! cpuLine.startsWith("cpu ")) {
+      throw new IOException("Unexpected format in " + PROC_STAT);
+    }
+    
+    // cpu  user nice system idle iowait irq softirq steal ...
+    String[] fields = cpuLine.trim().split("\\s+");
+    long totalTicks = 0;
+    for (int i = 1; i < fields.length && i <= 8; i++) {
+      totalTicks += Long.parseLong(fields[i]);
+    }
+    long idleTicks = Long.parseLong(fields[4]);
+    if (fields.length > 5) {
+      idleTicks += Long.parseLong(fields[5]);  // iowait
+    }
+    
+    double result;
+    if (lastTotalTicks < 0 || totalTicks <= lastTotalTicks) {
+      result = -1;
+    } else {
+      double busyFraction = 1 - ((idleTicks - lastIdleTicks) / (double)(totalTicks - lastTotalTicks));
+      result = Math.max(0, busyFraction) * coreCount;
+    }
+    lastTotalTicks = totalTicks;
+    lastIdleTicks = idleTicks;
+    
+    return result;
+  }
+  
+  private static double readLoadAverage() throws IOException {
+    String line = readFirstLine(PROC_LOADAVG);
+    if (line == null) {
+      throw new IOException("Unexpected format in " + PROC_LOADAVG);
+    }
+    
+    return Double.parseDouble(line.substring(0, line.indexOf(' ')));
+  }
+  
+  private static String readFirstLine(File file) throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      return reader.readLine();
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,433 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.Clock;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Limits how fast copies and encoders read and write, so the disks still have room to serve
+ * playback.  Reads and writes each have a token bucket shared by every job.  Copies take tokens
+ * before each chunk they move.  Encoders can not be slowed directly, so the bytes they have read
+ * and written are polled from {@code /proc}, and an encoder which has put the buckets in debt is
+ * paused (SIGSTOP) until the debt is paid off.  Limits can be different during time of day
+ * windows (ie lower in the evening when the media is being watched).
+ * 
+ * Limits are configured with system properties, rates are bytes per second and may use a K, M,
+ * or G suffix, a rate of 0 is unlimited:
+ *   xboxMediaProcessor.readLimit=200M
+ *   xboxMediaProcessor.writeLimit=100M
+ *   xboxMediaProcessor.limitWindows=18:00-23:30=40M/20M,23:30-07:00=0/0
+ * Each window is start-end=read/write, and the first matching window is used.
+ */
+public class BandwidthGovernor {
+  private static final boolean VERBOSE = true;
+  public static final String READ_LIMIT_PROPERTY = "xboxMediaProcessor.readLimit";
+  public static final String WRITE_LIMIT_PROPERTY = "xboxMediaProcessor.writeLimit";
+  public static final String LIMIT_WINDOWS_PROPERTY = "xboxMediaProcessor.limitWindows";
+  private static final int POLL_INTERVAL_IN_MILLIS = 250;
+  private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+  
+  /**
+   * Construct a governor from the system properties, it will not limit anything if none are set.
+   * 
+   * @throws IllegalArgumentException If a property can not be parsed
+   */
+  public static BandwidthGovernor fromSystemProperties() {
+    return new BandwidthGovernor(parseRate(System.getProperty(READ_LIMIT_PROPERTY, "0")), 
+                                 parseRate(System.getProperty(WRITE_LIMIT_PROPERTY, "0")), 
+                                 parseWindows(System.getProperty(LIMIT_WINDOWS_PROPERTY, "")));
+  }
+  
+  /**
+   * Parses a rate like "20M" into bytes per second.
+   */
+  public static long parseRate(String rate) {
+    rate = rate.trim();
+    if (rate.isEmpty()) {
+      throw new IllegalArgumentException("Empty rate");
+    }
+    long multiplier = 1;
+    char suffix = Character.toUpperCase(rate.charAt(rate.length() - 1));
+    if (suffix == 'K') {
+      multiplier = 1024;
+    } else if (suffix == 'M') {
+      multiplier = 1024 * 1024;
+    } else if (suffix == 'G') {
+      multiplier = 1024 * 1024 * 1024;
+    }
+    if (multiplier != 1) {
+      rate = rate.substring(0, rate.length() - 1);
+    }
+    
+    return (long)(Double.parseDouble(rate) * multiplier);
+  }
+  
+  protected static List<LimitWindow> parseWindows(String windows) {
+    List<LimitWindow> result = new ArrayList<LimitWindow>();
+    String[] windowStrs = windows.split(",");
+    for (int i = 0; i < windowStrs.length; i++) {
+      String windowStr = windowStrs[i].trim();
+      if (windowStr.isEmpty()) {
+        continue;
+      }
+      int equalsIndex = windowStr.indexOf('=');
+      int dashIndex = windowStr.indexOf('-');
+      int slashIndex = windowStr.indexOf('/', equalsIndex);
+      if (dashIndex < 0 || equalsIndex < dashIndex || slashIndex < 0) {
+        throw new IllegalArgumentException("Invalid limit window, expected start-end=read/write: " + windowStr);
+      }
+      result.add(new LimitWindow(parseMinuteOfDay(windowStr.substring(0, dashIndex)), 
+                                 parseMinuteOfDay(windowStr.substring(dashIndex + 1, equalsIndex)), 
+                                 parseRate(windowStr.substring(equalsIndex + 1, slashIndex)), 
+                                 parseRate(windowStr.substring(slashIndex + 1))));
+    }
+    
+    return result;
+  }
+  
+  private static int parseMinuteOfDay(String time) {
+    String[] parts = time.trim().split(":");
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Invalid time, expected HH:MM: " + time);
+    }
+    
+    return Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+  }
+  
+  private final long defaultReadRate;
+  private final long defaultWriteRate;
+  private final List<LimitWindow> windows;
+  private final TokenBucket readBucket;
+  private final TokenBucket writeBucket;
+  private final Map<ProcessLauncher.RunningProcess, ProcessState> processStates;
+  private volatile LimitWindow currentWindow;
+  
+  /**
+   * Construct a governor which does not limit anything.
+   */
+  public BandwidthGovernor() {
+    this(0, 0, Collections.<LimitWindow>emptyList());
+  }
+  
+  /**
+   * Construct a new governor.
+   * 
+   * @param readRate Bytes per second which may be read outside of any window, 0 for unlimited
+   * @param writeRate Bytes per second which may be written outside of any window, 0 for unlimited
+   * @param windows Times of the day which have different limits
+   */
+  public BandwidthGovernor(long readRate, long writeRate, List<LimitWindow> windows) {
+    this.defaultReadRate = readRate;
+    this.defaultWriteRate = writeRate;
+    this.windows = Collections.unmodifiableList(new ArrayList<LimitWindow>(windows));
+    this.readBucket = new TokenBucket(readRate);
+    this.writeBucket = new TokenBucket(writeRate);
+    this.processStates = new ConcurrentHashMap<ProcessLauncher.RunningProcess, ProcessState>();
+    this.currentWindow = null;
+  }
+  
+  /**
+   * Returns {@code true} if any limit is configured, at any time of day.
+   */
+  public boolean isConfigured() {
+    return defaultReadRate > 0 || defaultWriteRate > 0 || ! windows.isEmpty();
+  }
+  
+  public long getReadRate() {
+    return readBucket.getRate();
+  }
+  
+  public long getWriteRate() {
+    return writeBucket.getRate();
+  }
+  
+  /**
+   * Starts polling the processes of the launcher, pausing any which read or write faster than
+   * allowed.  Does nothing if no limits are configured.
+   */
+  public void start(final SubmitterScheduler scheduler, final ProcessLauncher launcher) {
+    if (! isConfigured()) {
+      return;
+    }
+    updateRates();
+    
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          updateRates();
+          pollProcesses(launcher);
+        } catch (Throwable t) {
+          ExceptionUtils.handleException(t);
+        } finally {
+          scheduler.schedule(this, POLL_INTERVAL_IN_MILLIS);
+        }
+      }
+    }, POLL_INTERVAL_IN_MILLIS);
+  }
+  
+  // applies the limits of the window we are in now
+  private void updateRates() {
+    Calendar now = Calendar.getInstance();
+    int minuteOfDay = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+    LimitWindow window = null;
+    Iterator<LimitWindow> it = windows.iterator();
+    while (it.hasNext()) {
+      LimitWindow w = it.next();
+      if (w.contains(minuteOfDay)) {
+        window = w;
+        break;
+      }
+    }
+    
+    if (window != currentWindow) {
+      currentWindow = window;
+      long readRate = window == null ? defaultReadRate : window.readRate;
+      long writeRate = window == null ? defaultWriteRate : window.writeRate;
+      readBucket.setRate(readRate);
+      writeBucket.setRate(writeRate);
+      if (VERBOSE) {
+        System.out.println("Bandwidth limits now - read: " + formatRate(readRate) + 
+                             ", write: " + formatRate(writeRate));
+      }
+    }
+  }
+  
+  private static String formatRate(long rate) {
+    if (rate <= 0) {
+      return "unlimited";
+    }
+    
+    return String.format("%.1f MB/s", rate / (1024d * 1024));
+  }
+  
+  private void pollProcesses(ProcessLauncher launcher) {
+    long now = Clock.accurateForwardProgressingMillis();
+    boolean unlimited = readBucket.getRate() <= 0 && writeBucket.getRate() <= 0;
+    List<ProcessLauncher.RunningProcess> running = launcher.getRunningProcesses();
+    // signals are sent together after the poll, so there is at most one kill for each
+    List<ProcessLauncher.RunningProcess> toResume = new ArrayList<ProcessLauncher.RunningProcess>();
+    List<ProcessLauncher.RunningProcess> toPause = new ArrayList<ProcessLauncher.RunningProcess>();
+    Iterator<ProcessLauncher.RunningProcess> it = running.iterator();
+    while (it.hasNext()) {
+      ProcessLauncher.RunningProcess rp = it.next();
+      ProcessState state = processStates.get(rp);
+      if (state == null) {
+        state = new ProcessState();
+        processStates.put(rp, state);
+      }
+      
+      if (rp.isPaused()) {
+        if (now >= state.resumeTime || unlimited) {
+          toResume.add(rp);
+        }
+        continue;  // can not have done any io while paused
+      }
+      
+      long[] ioBytes = ProcessUtils.readIoBytes(rp.getPid());
+      if (ioBytes == null) {
+        continue;
+      }
+      long waitNanos = 0;
+      if (state.lastIoBytes != null) {
+        waitNanos = Math.max(readBucket.reserve(ioBytes[0] - state.lastIoBytes[0]), 
+                             writeBucket.reserve(ioBytes[1] - state.lastIoBytes[1]));
+      }
+      state.lastIoBytes = ioBytes;
+      
+      // short waits are left to even out, only pause when clearly over the limit
+      long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+      if (waitMillis > POLL_INTERVAL_IN_MILLIS) {
+        state.resumeTime = now + waitMillis;
+        toPause.add(rp);
+      }
+    }
+    ProcessLauncher.resumeAll(toResume);
+    ProcessLauncher.pauseAll(toPause);
+    
+    // forget processes which have ended
+    processStates.keySet().retainAll(running);
+  }
+  
+  /**
+   * Returns the strategies copies should use, which will keep to the limits if any are
+   * configured.  Hard links move no data so are never limited.
+   * 
+   * @param progress Progress of the job copying, the time spent waiting is added to it
+   */
+  public CopyStrategy[] makeCopyStrategies(JobProgress progress) {
+    if (! isConfigured()) {
+      return StandardCopyStrategy.DEFAULT_ORDER;
+    }
+    
+    return new CopyStrategy[] { StandardCopyStrategy.HardLink, new LimitedCopyStrategy(progress) };
+  }
+  
+  /**
+   * Wait until the bytes can be read and written without going over the limits.
+   * 
+   * @return Milliseconds spent waiting
+   */
+  public long awaitBandwidth(long readBytes, long writeBytes) throws InterruptedException {
+    long waitNanos = Math.max(readBucket.reserve(readBytes), writeBucket.reserve(writeBytes));
+    if (waitNanos <= 0) {
+      return 0;
+    }
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+    
+    return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+  }
+  
+  /**
+   * A time of day (which may wrap past midnight) with its own limits.
+   */
+  public static class LimitWindow {
+    public final int startMinute;
+    public final int endMinute;
+    public final long readRate;
+    public final long writeRate;
+    
+    public LimitWindow(int startMinute, int endMinute, long readRate, long writeRate) {
+      this.startMinute = startMinute;
+      this.endMinute = endMinute;
+      this.readRate = readRate;
+      this.writeRate = writeRate;
+    }
+    
+    public boolean contains(int minuteOfDay) {
+      if (startMinute <= endMinute) {
+        return minuteOfDay >= startMinute && minuteOfDay < endMinute;
+      } else {
+        return minuteOfDay >= startMinute || minuteOfDay < endMinute;
+      }
+    }
+  }
+  
+  /**
+   * Bucket which holds up to one second of tokens.  Reservations are always granted, leaving the
+   * bucket in debt, and the caller is told how long to wait for the debt to be paid.  This way
+   * a large request can not be starved by smaller ones.
+   */
+  private static class TokenBucket {
+    private long rate;  // guarded by this, <= 0 for unlimited
+    private double tokens;  // guarded by this
+    private long lastRefillNanos;  // guarded by this
+    
+    private TokenBucket(long rate) {
+      this.rate = rate;
+      this.tokens = Math.max(0, rate);
+      this.lastRefillNanos = System.nanoTime();
+    }
+    
+    private synchronized long getRate() {
+      return rate;
+    }
+    
+    private synchronized void setRate(long rate) {
+      refill();
+      this.rate = rate;
+      if (rate <= 0) {
+        tokens = 0;
+      } else {
+        tokens = Math.min(tokens, rate);
+      }
+    }
+    
+    private void refill() {
+      long now = System.nanoTime();
+      if (rate > 0) {
+        tokens = Math.min(rate, tokens + ((now - lastRefillNanos) / 1000000000d) * rate);
+      }
+      lastRefillNanos = now;
+    }
+    
+    /**
+     * Takes the tokens, returning how many nanoseconds until the bucket is out of debt.
+     */
+    private synchronized long reserve(long bytes) {
+      if (rate <= 0 || bytes <= 0) {
+        return 0;
+      }
+      refill();
+      tokens -= bytes;
+      
+      return tokens >= 0 ? 0 : (long)((-tokens / rate) * 1000000000d);
+    }
+  }
+  
+  private static class ProcessState {
+    private long[] lastIoBytes = null;
+    private long resumeTime = -1;
+  }
+  
+  /**
+   * Copies in chunks, waiting for bandwidth before each one.
+   */
+  private class LimitedCopyStrategy implements CopyStrategy {
+    private final JobProgress progress;
+    
+    private LimitedCopyStrategy(JobProgress progress) {
+      this.progress = progress;
+    }
+    
+    @Override
+    public boolean copy(File sourceFile, File destFile) throws IOException {
+      // destination may be a link to the source, never truncate it in place
+      Files.deleteIfExists(destFile.toPath());
+      FileInputStream in = new FileInputStream(sourceFile);
+      try {
+        FileOutputStream out = new FileOutputStream(destFile);
+        try {
+          FileChannel inChannel = in.getChannel();
+          FileChannel outChannel = out.getChannel();
+          long size = inChannel.size();
+          long position = 0;
+          while (position < size) {
+            long chunkSize = Math.min(COPY_CHUNK_SIZE, size - position);
+            try {
+              progress.addThrottledMillis(awaitBandwidth(chunkSize, chunkSize));
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new IOException("Interrupted copying: " + sourceFile.getAbsolutePath(), e);
+            }
+            long transfered = inChannel.transferTo(position, chunkSize, outChannel);
+            if (transfered <= 0) {
+              // source may have been truncated, verify before we spin forever
+              if (position >= inChannel.size()) {
+                break;
+              }
+              throw new IOException("Unable to make progress copying: " + sourceFile.getAbsolutePath());
+            }
+            position += transfered;
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      
+      return true;
+    }
+    
+    @Override
+    public String toString() {
+      return "LimitedCopy";
+    }
+  }
+}
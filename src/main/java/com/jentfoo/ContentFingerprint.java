@@ -0,0 +1,133 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Cheap fingerprint of a file's content, made from its size and a hash of a block from the start,
+ * middle, and end of the file.  Only a few blocks are read no matter how large the file is, so
+ * this is quick enough to do for every source, while still telling apart any two videos which
+ * are not actually the same file under different names.
+ */
+public class ContentFingerprint {
+  public static final int BLOCK_SIZE = 1024 * 64;
+  private static final String HASH_ALGORITHM = "SHA-1";
+  
+  /**
+   * Reads the sampled blocks of the file and returns its fingerprint.
+   */
+  public static ContentFingerprint compute(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);  // every jvm must provide SHA-1
+    }
+    
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+      // positional reads, so the blocks can be read without any seeking of a shared position
+      byte[] headHash = hashBlock(channel, buffer, digest, 0);
+      byte[] middleHash = hashBlock(channel, buffer, digest, Math.max(0, size / 2 - BLOCK_SIZE / 2));
+      byte[] tailHash = hashBlock(channel, buffer, digest, Math.max(0, size - BLOCK_SIZE));
+      
+      return new ContentFingerprint(size, headHash, middleHash, tailHash);
+    } finally {
+      channel.close();
+    }
+  }
+  
+  private static byte[] hashBlock(FileChannel channel, ByteBuffer buffer, 
+                                  MessageDigest digest, long position) throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      int c = channel.read(buffer, position + buffer.position());
+      if (c < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    digest.update(buffer);
+    
+    return digest.digest();
+  }
+  
+  public final long size;
+  private final byte[] headHash;
+  private final byte[] middleHash;
+  private final byte[] tailHash;
+  
+  public ContentFingerprint(long size, byte[] headHash, byte[] middleHash, byte[] tailHash) {
+    this.size = size;
+    this.headHash = headHash;
+    this.middleHash = middleHash;
+    this.tailHash = tailHash;
+  }
+  
+  /**
+   * Parses a fingerprint in the form produced by {@link #toString()}.
+   */
+  public static ContentFingerprint parse(String str) {
+    String[] parts = str.split(":");
+    if (parts.length != 4) {
+      throw new IllegalArgumentException("Invalid fingerprint: " + str);
+    }
+    
+    return new ContentFingerprint(Long.parseLong(parts[0]), 
+                                  fromHex(parts[1]), fromHex(parts[2]), fromHex(parts[3]));
+  }
+  
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (int i = 0; i < bytes.length; i++) {
+      sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16))
+        .append(Character.forDigit(bytes[i] & 0xF, 16));
+    }
+    
+    return sb.toString();
+  }
+  
+  private static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Invalid hex: " + hex);
+    }
+    byte[] result = new byte[hex.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    
+    return result;
+  }
+  
+  @Override
+  public int hashCode() {
+    return (int)(size ^ (size >>> 32)) ^ Arrays.hashCode(headHash) ^ 
+             Arrays.hashCode(middleHash) ^ Arrays.hashCode(tailHash);
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    } else if (o instanceof ContentFingerprint) {
+      ContentFingerprint cf = (ContentFingerprint)o;
+      return size == cf.size && Arrays.equals(headHash, cf.headHash) && 
+               Arrays.equals(middleHash, cf.middleHash) && Arrays.equals(tailHash, cf.tailHash);
+    } else {
+      return false;
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return size + ":" + toHex(headHash) + ':' + toHex(middleHash) + ':' + toHex(tailHash);
+  }
+}
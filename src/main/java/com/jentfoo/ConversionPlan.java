@@ -0,0 +1,144 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The decision of how a source file will be turned into its new file, made before the job is 
+ * admitted to a lane.
+ */
+public class ConversionPlan {
+  // rough rates only used so that jobs within a lane can be ordered by expected cost
+  private static final double COPY_BYTES_PER_SECOND = 100 * 1024 * 1024;
+  private static final double ASSUMED_BYTES_PER_PLAY_SECOND = 1024 * 1024;
+  private static final double AUDIO_ENCODE_SPEED_FACTOR = 20;
+  private static final double VIDEO_ENCODE_SPEED_FACTOR = 1;
+  
+  public final File sourceFile;
+  public final File newFile;
+  public final File tempFile;
+  public final JobType jobType;
+  public final double durationSeconds;
+  public final JobProgress progress;
+  public final File duplicateOf;
+  public final MediaInfo mediaInfo;
+  private volatile EncodingProfile encodingProfile;
+  private volatile int segmentCount;
+  private final List<ConversionPlan> extraOutputs;
+  
+  public ConversionPlan(File sourceFile, File newFile, JobType jobType) {
+    this(sourceFile, newFile, jobType, -1);
+  }
+  
+  /**
+   * Construct a plan for a source whose content has already been converted, so the existing new 
+   * file only needs to be linked or copied.
+   * 
+   * @param existingFile New file previously produced from a source with the same content
+   */
+  public static ConversionPlan makeDuplicate(File sourceFile, File newFile, File existingFile) {
+    return new ConversionPlan(sourceFile, newFile, JobType.Copy, -1, existingFile, null);
+  }
+  
+  /**
+   * Construct a new plan.  The converter should write to {@link #tempFile}, which is moved to 
+   * {@link #newFile} once the conversion succeeds.
+   * 
+   * @param durationSeconds Play time of the source, or a negative number if not known
+   */
+  public ConversionPlan(File sourceFile, File newFile, JobType jobType, double durationSeconds) {
+    this(sourceFile, newFile, jobType, durationSeconds, null, null);
+  }
+  
+  /**
+   * Construct a plan for a probed source.
+   * 
+   * @param mediaInfo What probing found out about the source
+   */
+  public ConversionPlan(File sourceFile, File newFile, JobType jobType, MediaInfo mediaInfo) {
+    this(sourceFile, newFile, jobType, mediaInfo.durationSeconds, null, mediaInfo);
+  }
+  
+  private ConversionPlan(File sourceFile, File newFile, JobType jobType, 
+                         double durationSeconds, File duplicateOf, MediaInfo mediaInfo) {
+    this.sourceFile = sourceFile;
+    this.newFile = newFile;
+    this.tempFile = FileUtils.makePartialFile(newFile);
+    this.jobType = jobType;
+    this.durationSeconds = durationSeconds;
+    this.progress = new JobProgress(durationSeconds);
+    this.duplicateOf = duplicateOf;
+    this.mediaInfo = mediaInfo;
+    this.encodingProfile = null;
+    this.segmentCount = 1;
+    this.extraOutputs = new ArrayList<ConversionPlan>(0);
+  }
+  
+  /**
+   * Returns the profile the job is encoded with, or {@code null} if not encoded with a profile.
+   */
+  public EncodingProfile getEncodingProfile() {
+    return encodingProfile;
+  }
+  
+  public void setEncodingProfile(EncodingProfile encodingProfile) {
+    this.encodingProfile = encodingProfile;
+  }
+  
+  /**
+   * Returns how many segments the job was encoded in at once, {@code 1} unless segmented.
+   */
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+  
+  public void setSegmentCount(int segmentCount) {
+    this.segmentCount = segmentCount;
+  }
+  
+  /**
+   * Add the plan for another new file from the same source.  The converter may also write its 
+   * temp file while producing this one (ie from a single decode), any it does not is produced 
+   * from this plan's temp file.  Must be added before the plan is converted.
+   */
+  public void addExtraOutput(ConversionPlan plan) {
+    extraOutputs.add(plan);
+  }
+  
+  public List<ConversionPlan> getExtraOutputs() {
+    return Collections.unmodifiableList(extraOutputs);
+  }
+  
+  /**
+   * Returns a rough estimate of how many seconds this job will take to run.
+   */
+  public double getEstimatedCost() {
+    long size = sourceFile.length();
+    double copyTime = size / COPY_BYTES_PER_SECOND;
+    if (! jobType.isCpuIntensive()) {
+      return copyTime;
+    }
+    
+    double playTime = durationSeconds;
+    if (playTime <= 0) {
+      // without a known duration the size is the best guess we have
+      playTime = size / ASSUMED_BYTES_PER_PLAY_SECOND;
+    }
+    if (jobType == JobType.AudioEncode) {
+      return Math.max(copyTime, playTime / AUDIO_ENCODE_SPEED_FACTOR);
+    } else {
+      return playTime / VIDEO_ENCODE_SPEED_FACTOR;
+    }
+  }
+  
+  @Override
+  public String toString() {
+    if (duplicateOf != null) {
+      return "Duplicate: " + sourceFile.getName() + " -> " + newFile.getAbsolutePath() + 
+               " (from " + duplicateOf.getAbsolutePath() + ")";
+    }
+    return jobType + ": " + sourceFile.getName() + " -> " + newFile.getAbsolutePath();
+  }
+}
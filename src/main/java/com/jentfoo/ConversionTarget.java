@@ -0,0 +1,33 @@
+package com.jentfoo;
+
+/**
+ * A destination which sources are converted into, and the converter which produces its files.
+ * A run may have several targets (ie an avi folder and an mp4 folder), each source is then only
+ * waited on and probed once for all of them.
+ */
+public class ConversionTarget {
+  public final AbstractConverter converter;
+  public final DirectoryIndex destIndex;
+  public final EncodingProfile profile;
+  
+  public ConversionTarget(AbstractConverter converter, DirectoryIndex destIndex) {
+    this(converter, destIndex, null);
+  }
+  
+  /**
+   * Construct a new target.
+   * 
+   * @param profile Profile to always encode with, or {@code null} to let the converter choose
+   */
+  public ConversionTarget(AbstractConverter converter, DirectoryIndex destIndex, EncodingProfile profile) {
+    this.converter = converter;
+    this.destIndex = destIndex;
+    this.profile = profile;
+  }
+  
+  @Override
+  public String toString() {
+    return converter.getClass().getSimpleName() + (profile == null ? "" : " (" + profile.name + ")") + 
+             " -> " + destIndex.getFolder().getAbsolutePath();
+  }
+}
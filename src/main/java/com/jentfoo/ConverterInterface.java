@@ -1,16 +1,24 @@
 package com.jentfoo;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
-
-import org.threadly.concurrent.SubmitterScheduler;
 
 public interface ConverterInterface {
   public String getProducedExtesion();
 
-  public Map<File, Future<?>> submitJobs(SubmitterScheduler makeSubPool,
+  /**
+   * Submit a job for each source file which needs converting.  The returned handles complete 
+   * once each job is done, and can be used to cancel a job (killing any processes it started).
+   */
+  public Map<File, JobHandle> submitJobs(JobContext context,
                                          List<File> sourceFileList,
-                                         File destFolder);
+                                         DirectoryIndex destIndex);
+  
+  /**
+   * Decide how the source file would be converted, without converting it (ie probing the file).
+   */
+  public ConversionPlan planJob(JobContext context, 
+                                File sourceFile, File newFile) throws IOException, InterruptedException;
 }
@@ -0,0 +1,17 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Strategy for moving the bytes of a file which does not need to be converted.
+ */
+public interface CopyStrategy {
+  /**
+   * Copies the source to the destination, replacing any existing destination file.
+   * 
+   * @return {@code false} if this strategy can not be used for the provided files
+   * @throws IOException thrown if the strategy applied but failed to complete
+   */
+  public boolean copy(File sourceFile, File destFile) throws IOException;
+}
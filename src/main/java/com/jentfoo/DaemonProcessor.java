@@ -0,0 +1,309 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.threadly.concurrent.PrioritySchedulerService;
+import org.threadly.concurrent.SingleThreadScheduler;
+import org.threadly.concurrent.TaskPriority;
+import org.threadly.util.Clock;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Keeps the converter running, reacting to changes in the source folder as they happen rather
+ * than waiting for the next cron run.  A periodic full reconcile is still done in case any
+ * events are missed (or the watch queue overflows).
+ * 
+ * Sources are admitted to the pipeline from a thread of their own, since admitting blocks while
+ * the pipeline is full.  That way no thread the lanes need is ever held waiting for a lane to
+ * make room, and watch events are still handled while a large library is being admitted.
+ */
+public class DaemonProcessor {
+  private static final boolean VERBOSE = true;
+  private static final int EVENT_SETTLE_DELAY_IN_MILLIS = 1000 * 2;
+  private static final int RECONCILE_INTERVAL_IN_MILLIS = 1000 * 60 * 30;
+  
+  private final PrioritySchedulerService scheduler;
+  private final JobContext context;
+  private final SourceWalker sourceWalker;
+  private final ConverterInterface converter;
+  private final File sourceFolder;
+  private final File destFolder;
+  private final Map<File, JobHandle> inFlightJobs;
+  private final Map<File, Boolean> pendingSubmits;
+  private final Map<WatchKey, File> watchedFolders;
+  private final SingleThreadScheduler admissionScheduler;
+  private final DirectoryIndex destIndex;
+  
+  public DaemonProcessor(PrioritySchedulerService scheduler,
+                         JobContext context, SourceWalker sourceWalker, 
+                         ConverterInterface converter,
+                         File sourceFolder, File destFolder) {
+    this.scheduler = scheduler;
+    this.context = context;
+    this.sourceWalker = sourceWalker;
+    this.converter = converter;
+    this.sourceFolder = sourceFolder;
+    this.destFolder = destFolder;
+    this.inFlightJobs = new ConcurrentHashMap<File, JobHandle>();
+    this.pendingSubmits = new ConcurrentHashMap<File, Boolean>();
+    this.watchedFolders = new ConcurrentHashMap<WatchKey, File>();
+    this.admissionScheduler = new SingleThreadScheduler(true);
+    // filled by the first reconcile, and afterwards only ever updated in place since the jobs in 
+    // flight publish into this same index
+    this.destIndex = new DirectoryIndex(sourceWalker.isRecursive() ? sourceFolder : null, 
+                                        destFolder, converter.getProducedExtesion());
+  }
+  
+  /**
+   * Runs until the thread is interrupted or the watch service fails.
+   */
+  public void run() throws IOException {
+    MediaConverter.cleanupInterruptedJobs(context.getJournal(), context.getLeaseManager(), destIndex);
+    
+    WatchService watchService = FileSystems.getDefault().newWatchService();
+    try {
+      watchFolder(watchService, sourceFolder);
+      // the index must be filled before any events are handled, or converted files look missing
+      reconcile();
+      
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          reconcile();
+        }
+      }, RECONCILE_INTERVAL_IN_MILLIS, RECONCILE_INTERVAL_IN_MILLIS, TaskPriority.Low);
+      
+      while (! Thread.currentThread().isInterrupted()) {
+        WatchKey key;
+        try {
+          key = watchService.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch (ClosedWatchServiceException e) {
+          break;
+        }
+        
+        File folder = watchedFolders.get(key);
+        if (folder == null) {
+          key.cancel();
+          continue;
+        }
+        Iterator<WatchEvent<?>> it = key.pollEvents().iterator();
+        while (it.hasNext()) {
+          handleEvent(watchService, folder, it.next());
+        }
+        
+        if (! key.reset()) {
+          watchedFolders.remove(key);
+          if (folder.equals(sourceFolder)) {
+            System.err.println("Source folder is no longer accessible: " + sourceFolder.getAbsolutePath());
+            break;
+          }
+        }
+      }
+    } finally {
+      watchService.close();
+      admissionScheduler.shutdownNow();
+    }
+  }
+  
+  // watches the folder, and if recursive all the folders under it
+  private void watchFolder(WatchService watchService, File folder) throws IOException {
+    WatchKey key = folder.toPath().register(watchService,
+                                            StandardWatchEventKinds.ENTRY_CREATE,
+                                            StandardWatchEventKinds.ENTRY_MODIFY,
+                                            StandardWatchEventKinds.ENTRY_DELETE);
+    watchedFolders.put(key, folder);
+    
+    if (sourceWalker.isRecursive()) {
+      File[] children = folder.listFiles();
+      if (children != null) {
+        for (int i = 0; i < children.length; i++) {
+          if (children[i].isDirectory() && ! children[i].getName().startsWith(".") && 
+              ! Files.isSymbolicLink(children[i].toPath())) {
+            watchFolder(watchService, children[i]);
+          }
+        }
+      }
+    }
+  }
+  
+  private void handleEvent(WatchService watchService, File folder, WatchEvent<?> event) {
+    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+      // events were lost, only a full reconcile can tell us what changed
+      scheduler.execute(new Runnable() {
+        @Override
+        public void run() {
+          reconcile();
+        }
+      }, TaskPriority.Low);
+      
+      return;
+    }
+    
+    File sourceFile = new File(folder, ((Path)event.context()).toString());
+    if (sourceFile.getName().startsWith(".")) {
+      return;  // hidden files are never converted
+    } else if (sourceWalker.isRecursive() && 
+               event.kind() == StandardWatchEventKinds.ENTRY_CREATE && sourceFile.isDirectory()) {
+      // new folder (possibly moved in with files already in it)
+      try {
+        watchFolder(watchService, sourceFile);
+      } catch (IOException e) {
+        ExceptionUtils.handleException(e);
+      }
+      sourceWalker.walk(sourceFile, new SourceWalker.FileHandler() {
+        @Override
+        public void handleFile(File file) {
+          destIndex.addSourceFile(file);
+          scheduleSubmit(file);
+        }
+      });
+      
+      return;
+    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+      destIndex.removeSourceFile(sourceFile);
+      JobHandle job = inFlightJobs.remove(sourceFile);
+      if (job != null && job.cancel(true) && VERBOSE) {
+        // no point finishing a conversion for a source which is gone
+        System.out.println("Cancelled conversion of removed file: " + sourceFile.getAbsolutePath());
+      }
+      deleteConvertedFile(sourceFile);
+    } else {
+      destIndex.addSourceFile(sourceFile);
+      scheduleSubmit(sourceFile);
+    }
+  }
+  
+  private void scheduleSubmit(final File sourceFile) {
+    // files generate many modify events while being written, so coalesce them into one submit
+    // (the stability tracker will then wait for the file to finish being written)
+    if (pendingSubmits.put(sourceFile, Boolean.TRUE) != null) {
+      return;
+    }
+    
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        pendingSubmits.remove(sourceFile);
+        
+        if (sourceFile.isFile()) {
+          submitFiles(MediaConverter.makeValidSourceList(new File[] { sourceFile }, destIndex));
+        }
+      }
+    }, EVENT_SETTLE_DELAY_IN_MILLIS, TaskPriority.High);
+  }
+  
+  private void deleteConvertedFile(File sourceFile) {
+    File newFile = destIndex.makeDestFile(sourceFile);
+    if (destIndex.containsDestFile(newFile)) {
+      if (VERBOSE) {
+        System.out.println("Deleting file: " + newFile.getAbsolutePath());
+      }
+      long startTime = Clock.accurateForwardProgressingMillis();
+      if (newFile.delete()) {
+        destIndex.removeDestFile(newFile);
+      } else {
+        System.err.println("Failed to delete file: " + newFile.getAbsolutePath());
+      }
+      context.getRunMetrics().recordStage(RunMetrics.Stage.Delete, null, 
+                                          Clock.accurateForwardProgressingMillis() - startTime);
+    }
+  }
+  
+  private void reconcile() {
+    try {
+      pruneFinishedJobs();
+      
+      File[] sourceFileArray = sourceWalker.listFiles(sourceFolder);
+      // refresh the index from a fresh scan in case any events were missed
+      destIndex.setDestFiles(MediaConverter.listDestFiles(sourceWalker, destFolder));
+      destIndex.setSourceFiles(sourceFileArray);
+      
+      submitFiles(MediaConverter.makeValidSourceList(sourceFileArray, destIndex));
+      
+      MediaConverter.deleteRemovedFiles(destIndex, context.getRunMetrics());
+    } catch (Exception e) {
+      ExceptionUtils.handleException(e);
+    }
+  }
+  
+  // queues the sources to be admitted, never blocks
+  private void submitFiles(final List<File> sourceFileList) {
+    if (sourceFileList.isEmpty()) {
+      return;
+    }
+    
+    admissionScheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        admitFiles(sourceFileList);
+      }
+    });
+  }
+  
+  // only run on the admission thread, which blocks for each source while the pipeline is full
+  private void admitFiles(List<File> sourceFileList) {
+    int submittedCount = 0;
+    Iterator<File> it = sourceFileList.iterator();
+    while (it.hasNext() && ! Thread.currentThread().isInterrupted()) {
+      File sourceFile = it.next();
+      JobHandle currentJob = inFlightJobs.get(sourceFile);
+      if (currentJob != null) {
+        if (currentJob.isDone()) {
+          inFlightJobs.remove(sourceFile);
+        } else {
+          continue;  // already being converted
+        }
+      }
+      
+      Map<File, JobHandle> jobs = converter.submitJobs(context, Collections.singletonList(sourceFile), 
+                                                       destIndex);
+      inFlightJobs.putAll(jobs);
+      submittedCount += jobs.size();
+    }
+    
+    if (VERBOSE && submittedCount > 0) {
+      System.out.println("Submitted " + submittedCount + " new conversions, " +
+                           inFlightJobs.size() + " in progress");
+    }
+  }
+  
+  private void pruneFinishedJobs() {
+    Iterator<Map.Entry<File, JobHandle>> it = inFlightJobs.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<File, JobHandle> entry = it.next();
+      if (entry.getValue().isDone()) {
+        it.remove();
+        try {
+          entry.getValue().get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (CancellationException e) {
+          // timed out or cancelled, already logged
+        } catch (ExecutionException e) {
+          System.out.println("Exception processing file: " + entry.getKey());
+          e.printStackTrace(System.err);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Index of the files in a destination folder, and which source file each one was (or will be)
+ * produced from.  This is built once per folder scan so that lookups and reconciliation are hash
+ * lookups rather than scanning (and canonicalizing) every file in the folder for each source.
+ * 
+ * If a source folder is provided the destination mirrors its folder structure, and files are 
+ * keyed by their path relative to the destination folder.  Otherwise every source produces a 
+ * file directly in the destination folder.
+ */
+public class DirectoryIndex {
+  private static final char KEY_SEPARATOR = '/';
+  
+  private final File sourceFolder;
+  private final File folder;
+  private final String canonicalFolderPath;
+  private final String producedExtension;
+  private final Map<String, File> destFiles;
+  private volatile Map<String, File> sourceFiles;
+  
+  public DirectoryIndex(File folder, String producedExtension) {
+    this(null, folder, producedExtension);
+  }
+  
+  /**
+   * Construct a new index.
+   * 
+   * @param sourceFolder Root of the source tree to mirror, or {@code null} for a flat destination
+   */
+  public DirectoryIndex(File sourceFolder, File folder, String producedExtension) {
+    this.sourceFolder = sourceFolder == null ? null : sourceFolder.getAbsoluteFile();
+    this.folder = folder.getAbsoluteFile();
+    this.canonicalFolderPath = canonicalPath(folder);
+    this.producedExtension = producedExtension;
+    this.destFiles = new ConcurrentHashMap<String, File>();
+    this.sourceFiles = new ConcurrentHashMap<String, File>();
+  }
+  
+  /**
+   * Builds a new index from the current listing of the destination folder and the provided source
+   * files.
+   */
+  public static DirectoryIndex build(File destFolder, String producedExtension,
+                                     File[] destFileArray, File[] sourceFileArray) {
+    DirectoryIndex result = new DirectoryIndex(destFolder, producedExtension);
+    if (destFileArray != null) {
+      for (int i = 0; i < destFileArray.length; i++) {
+        // hidden files are our own work in progress (ie segments), never a converted file
+        if (! destFileArray[i].getName().startsWith(".")) {
+          result.destFiles.put(destFileArray[i].getName(), destFileArray[i]);
+        }
+      }
+    }
+    result.setSourceFiles(sourceFileArray);
+    
+    return result;
+  }
+  
+  /**
+   * Builds a new index for a destination which mirrors the folder structure of the source.  The 
+   * file arrays should include the files of all sub folders.
+   */
+  public static DirectoryIndex buildMirrored(File sourceFolder, File destFolder, String producedExtension, 
+                                             File[] destFileArray, File[] sourceFileArray) {
+    DirectoryIndex result = new DirectoryIndex(sourceFolder, destFolder, producedExtension);
+    if (destFileArray != null) {
+      for (int i = 0; i < destFileArray.length; i++) {
+        result.addDestFile(destFileArray[i]);
+      }
+    }
+    result.setSourceFiles(sourceFileArray);
+    
+    return result;
+  }
+  
+  private static String canonicalPath(File file) {
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException e) {
+      ExceptionUtils.handleException(e);
+      
+      return file.getAbsolutePath();
+    }
+  }
+  
+  public File getFolder() {
+    return folder;
+  }
+  
+  public String getProducedExtension() {
+    return producedExtension;
+  }
+  
+  public boolean isMirrored() {
+    return sourceFolder != null;
+  }
+  
+  // returns the folder path of the source relative to the source folder, or null if not under it
+  private String relativeSourceFolder(File sourceFile) {
+    StringBuilder result = new StringBuilder();
+    File parent = sourceFile.getAbsoluteFile().getParentFile();
+    while (parent != null) {
+      if (parent.equals(sourceFolder)) {
+        return result.toString();
+      }
+      result.insert(0, KEY_SEPARATOR).insert(0, parent.getName());
+      parent = parent.getParentFile();
+    }
+    
+    return null;
+  }
+  
+  public File makeDestFile(File sourceFile) {
+    if (sourceFolder != null) {
+      String relativeFolder = relativeSourceFolder(sourceFile);
+      if (relativeFolder != null && ! relativeFolder.isEmpty()) {
+        return FileUtils.makeNewFile(new File(folder, relativeFolder), sourceFile, producedExtension);
+      }
+    }
+    
+    return FileUtils.makeNewFile(folder, sourceFile, producedExtension);
+  }
+  
+  // same as the key of makeDestFile, without needing to make the file
+  private String makeSourceKey(File sourceFile) {
+    String newName = FileUtils.maybeReplaceExt(sourceFile.getName(), producedExtension);
+    if (sourceFolder != null) {
+      String relativeFolder = relativeSourceFolder(sourceFile);
+      if (relativeFolder != null) {
+        return relativeFolder + newName;
+      }
+    }
+    
+    return newName;
+  }
+  
+  // returns the key for a file in this folder, or null if the file is not in this folder
+  private String makeKey(File destFile) {
+    File parent = destFile.getAbsoluteFile().getParentFile();
+    StringBuilder key = new StringBuilder(destFile.getName());
+    while (parent != null) {
+      if (parent.equals(folder)) {
+        return key.toString();
+      } else if (sourceFolder == null) {
+        break;  // flat destination, only direct children can be in the index
+      }
+      key.insert(0, KEY_SEPARATOR).insert(0, parent.getName());
+      parent = parent.getParentFile();
+    }
+    
+    // may have been referenced through a link, so check the real location
+    File canonicalParent = new File(canonicalPath(destFile.getAbsoluteFile().getParentFile()));
+    if (canonicalParent.getPath().equals(canonicalFolderPath)) {
+      return destFile.getName();
+    } else if (sourceFolder != null && 
+               canonicalParent.getPath().startsWith(canonicalFolderPath + File.separatorChar)) {
+      String relativeFolder = canonicalParent.getPath().substring(canonicalFolderPath.length() + 1);
+      
+      return relativeFolder.replace(File.separatorChar, KEY_SEPARATOR) + KEY_SEPARATOR + destFile.getName();
+    } else {
+      return null;
+    }
+  }
+  
+  public boolean containsDestFile(File destFile) {
+    String key = makeKey(destFile);
+    
+    return key != null && destFiles.containsKey(key);
+  }
+  
+  public void addDestFile(File destFile) {
+    String key = makeKey(destFile);
+    if (key != null) {
+      destFiles.put(key, destFile);
+    }
+  }
+  
+  public void removeDestFile(File destFile) {
+    String key = makeKey(destFile);
+    if (key != null) {
+      destFiles.remove(key);
+    }
+  }
+  
+  /**
+   * Refreshes the known destination files from a new listing of the folder.  A file missing from 
+   * the listing is only dropped if it no longer exists, so a file published while the listing was 
+   * being made is not forgotten.
+   */
+  public void setDestFiles(File[] destFileArray) {
+    Map<String, File> listedFiles = new HashMap<String, File>();
+    if (destFileArray != null) {
+      for (int i = 0; i < destFileArray.length; i++) {
+        // hidden files are our own work in progress (ie segments), never a converted file
+        if (! destFileArray[i].getName().startsWith(".")) {
+          String key = makeKey(destFileArray[i]);
+          if (key != null) {
+            listedFiles.put(key, destFileArray[i]);
+          }
+        }
+      }
+    }
+    
+    destFiles.putAll(listedFiles);
+    Iterator<Map.Entry<String, File>> it = destFiles.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, File> entry = it.next();
+      if (! listedFiles.containsKey(entry.getKey()) && ! entry.getValue().exists()) {
+        it.remove();
+      }
+    }
+  }
+  
+  /**
+   * Replaces the known source files with the provided listing.
+   */
+  public void setSourceFiles(File[] sourceFileArray) {
+    Map<String, File> newSourceFiles;
+    if (sourceFileArray == null) {
+      newSourceFiles = new ConcurrentHashMap<String, File>();
+    } else {
+      newSourceFiles = new ConcurrentHashMap<String, File>(sourceFileArray.length);
+      for (int i = 0; i < sourceFileArray.length; i++) {
+        newSourceFiles.put(makeSourceKey(sourceFileArray[i]), sourceFileArray[i]);
+      }
+    }
+    
+    sourceFiles = newSourceFiles;
+  }
+  
+  public void addSourceFile(File sourceFile) {
+    sourceFiles.put(makeSourceKey(sourceFile), sourceFile);
+  }
+  
+  public void removeSourceFile(File sourceFile) {
+    sourceFiles.remove(makeSourceKey(sourceFile));
+  }
+  
+  /**
+   * Returns the files in the destination which no longer have a source that would produce them.
+   */
+  public List<File> getOrphanedDestFiles() {
+    Map<String, File> currentSourceFiles = sourceFiles;
+    List<File> result = new ArrayList<File>();
+    Iterator<Map.Entry<String, File>> it = destFiles.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, File> entry = it.next();
+      if (! currentSourceFiles.containsKey(entry.getKey())) {
+        result.add(entry.getValue());
+      }
+    }
+    
+    return result;
+  }
+}
@@ -0,0 +1,89 @@
+package com.jentfoo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Named settings for encoding with libx264 and ac3.  Profiles trade encode time for quality, the
+ * relative cost is how long a profile takes to encode compared to {@link #BALANCED}.
+ */
+public class EncodingProfile {
+  public static final EncodingProfile FASTEST = new EncodingProfile("fastest", "ultrafast", 23, -1, 384, .2);
+  public static final EncodingProfile FAST = new EncodingProfile("fast", "veryfast", 22, -1, 448, .45);
+  public static final EncodingProfile BALANCED = new EncodingProfile("balanced", "medium", 21, -1, 512, 1);
+  public static final EncodingProfile QUALITY = new EncodingProfile("quality", "slow", 19, -1, 640, 1.6);
+  /**
+   * Standard profiles, ordered from the fastest to the best quality.
+   */
+  public static final List<EncodingProfile> STANDARD_PROFILES = 
+      Collections.unmodifiableList(Arrays.asList(FASTEST, FAST, BALANCED, QUALITY));
+  
+  /**
+   * Returns the standard profile with the name, ignoring case.
+   * 
+   * @throws IllegalArgumentException If there is no profile with the name
+   */
+  public static EncodingProfile parse(String name) {
+    Iterator<EncodingProfile> it = STANDARD_PROFILES.iterator();
+    while (it.hasNext()) {
+      EncodingProfile profile = it.next();
+      if (profile.name.equalsIgnoreCase(name.trim())) {
+        return profile;
+      }
+    }
+    
+    throw new IllegalArgumentException("Unknown encoding profile: " + name);
+  }
+  
+  public final String name;
+  public final String preset;
+  public final int crf;
+  public final int videoBitrateKbps;
+  public final int audioBitrateKbps;
+  public final double relativeCost;
+  
+  /**
+   * Construct a new profile.
+   * 
+   * @param preset libx264 preset (ie "veryfast")
+   * @param crf Constant rate factor, only used if no video bitrate is provided
+   * @param videoBitrateKbps Target video bitrate, or {@code -1} to use the crf
+   * @param audioBitrateKbps Bitrate for encoded ac3 audio
+   * @param relativeCost Encode time compared to the balanced profile
+   */
+  public EncodingProfile(String name, String preset, int crf, 
+                         int videoBitrateKbps, int audioBitrateKbps, double relativeCost) {
+    this.name = name;
+    this.preset = preset;
+    this.crf = crf;
+    this.videoBitrateKbps = videoBitrateKbps;
+    this.audioBitrateKbps = audioBitrateKbps;
+    this.relativeCost = relativeCost;
+  }
+  
+  /**
+   * Returns the avconv flags to encode the video stream.
+   */
+  public String getVideoFlags() {
+    if (videoBitrateKbps > 0) {
+      return "-vcodec libx264 -preset " + preset + " -b:v " + videoBitrateKbps + "k";
+    } else {
+      return "-vcodec libx264 -preset " + preset + " -crf " + crf;
+    }
+  }
+  
+  /**
+   * Returns the avconv flags to encode the audio stream.
+   */
+  public String getAudioFlags() {
+    return "-acodec ac3 -ab " + audioBitrateKbps + "k";
+  }
+  
+  @Override
+  public String toString() {
+    return name + " (" + preset + (videoBitrateKbps > 0 ? ", " + videoBitrateKbps + "k" : ", crf " + crf) + 
+             ", audio " + audioBitrateKbps + "k)";
+  }
+}
@@ -0,0 +1,129 @@
+package com.jentfoo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses the encoding profile for each encode from how much encoding is waiting.  The best
+ * quality profile which is expected to finish the backlog before the deadline is used, so a
+ * large backlog is encoded with faster presets, and when there is little waiting the slower (and
+ * better) presets are used.  How long encodes actually take is learned as they finish, so the
+ * estimates adjust to the machine.
+ * 
+ * The policy can be configured with system properties:
+ *   xboxMediaProcessor.encodeProfile=fast  (always use this profile)
+ *   xboxMediaProcessor.encodeDeadlineHours=12  (how long the backlog may take to encode)
+ */
+public class EncodingProfilePolicy {
+  public static final String PROFILE_PROPERTY = "xboxMediaProcessor.encodeProfile";
+  public static final String DEADLINE_HOURS_PROPERTY = "xboxMediaProcessor.encodeDeadlineHours";
+  public static final double DEFAULT_DEADLINE_HOURS = 12;
+  // weight of the newest encode in the learned speed
+  private static final double SPEED_SMOOTHING = .2;
+  
+  /**
+   * Construct the policy described by the system properties.
+   * 
+   * @throws IllegalArgumentException If a property can not be parsed
+   */
+  public static EncodingProfilePolicy fromSystemProperties() {
+    String profile = System.getProperty(PROFILE_PROPERTY);
+    if (profile != null && ! profile.trim().isEmpty()) {
+      return new EncodingProfilePolicy(EncodingProfile.parse(profile));
+    }
+    String deadlineHours = System.getProperty(DEADLINE_HOURS_PROPERTY);
+    double deadline = deadlineHours == null ? DEFAULT_DEADLINE_HOURS : Double.parseDouble(deadlineHours);
+    if (deadline <= 0) {
+      throw new IllegalArgumentException("Encode deadline must be positive: " + deadlineHours);
+    }
+    
+    return new EncodingProfilePolicy(EncodingProfile.STANDARD_PROFILES, (long)(deadline * 60 * 60 * 1000));
+  }
+  
+  private final List<EncodingProfile> profiles;
+  private final long deadlineMillis;
+  // wall seconds to encode one second of estimated cost with the balanced profile
+  private double secondsPerCost;  // guarded by this
+  
+  /**
+   * Construct a policy which always uses the same profile.
+   */
+  public EncodingProfilePolicy(EncodingProfile profile) {
+    this(Collections.singletonList(profile), Long.MAX_VALUE);
+  }
+  
+  /**
+   * Construct a new policy.
+   * 
+   * @param profiles Profiles to choose from, ordered from the fastest to the best quality
+   * @param deadlineMillis How long the backlog should take to encode at most
+   */
+  public EncodingProfilePolicy(List<EncodingProfile> profiles, long deadlineMillis) {
+    if (profiles.isEmpty()) {
+      throw new IllegalArgumentException("Must have at least one profile");
+    }
+    this.profiles = new ArrayList<EncodingProfile>(profiles);
+    this.deadlineMillis = deadlineMillis;
+    this.secondsPerCost = 1;  // same assumption as ConversionPlan until we have measured
+  }
+  
+  /**
+   * Choose the profile for an encode starting now.
+   * 
+   * @param remainingEncodeCost Estimated cost of all the encodes not yet finished (including this one)
+   * @param encodeSlots How many encodes may run at once
+   */
+  public EncodingProfile choose(double remainingEncodeCost, int encodeSlots) {
+    if (profiles.size() == 1) {
+      return profiles.get(0);
+    }
+    
+    double deadlineSeconds = deadlineMillis / 1000d;
+    for (int i = profiles.size() - 1; i > 0; i--) {
+      EncodingProfile profile = profiles.get(i);
+      if (estimateDrainSeconds(profile, remainingEncodeCost, encodeSlots) <= deadlineSeconds) {
+        return profile;
+      }
+    }
+    
+    return profiles.get(0);  // nothing fits, go as fast as we can
+  }
+  
+  /**
+   * Returns the estimated seconds for the backlog to be encoded with the profile.
+   */
+  public double estimateDrainSeconds(EncodingProfile profile, double remainingEncodeCost, int encodeSlots) {
+    return remainingEncodeCost * getSecondsPerCost() * profile.relativeCost / Math.max(1, encodeSlots);
+  }
+  
+  public synchronized double getSecondsPerCost() {
+    return secondsPerCost;
+  }
+  
+  /**
+   * Record how long an encode took, so future estimates reflect how fast this machine is.
+   * 
+   * @param estimatedCost Estimated cost of the job from its plan
+   * @param wallMillis How long the encode took
+   */
+  public void recordEncode(EncodingProfile profile, double estimatedCost, long wallMillis) {
+    if (estimatedCost <= 0 || wallMillis <= 0) {
+      return;
+    }
+    
+    double measured = (wallMillis / 1000d) / estimatedCost / profile.relativeCost;
+    synchronized (this) {
+      secondsPerCost = secondsPerCost * (1 - SPEED_SMOOTHING) + measured * SPEED_SMOOTHING;
+    }
+  }
+  
+  @Override
+  public String toString() {
+    if (profiles.size() == 1) {
+      return "EncodingProfilePolicy - fixed: " + profiles.get(0);
+    }
+    return String.format("EncodingProfilePolicy - deadline: %s, seconds per cost: %.2f", 
+                         RunProgress.formatMillis(deadlineMillis), getSecondsPerCost());
+  }
+}
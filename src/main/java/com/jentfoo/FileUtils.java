@@ -1,18 +1,18 @@
 package com.jentfoo;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.file.FileSystemException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.threadly.util.Clock;
-import org.threadly.util.ExceptionUtils;
 
 public class FileUtils {
-  private static final int BUFFER_SIZE = 8192;
-  private static final int FILE_SIZE_STABILITY_TIME_IN_MILLIS = 1000 * 10;
+  private static final String PARTIAL_SUFFIX = ".partial";
+  private static volatile String workerTag = null;
   
   public static File makeNewFile(File destFolder, File sourceFile, 
                                  String desiredExtension) {
@@ -39,6 +39,64 @@ public class FileUtils {
     }
   }
   
+  /**
+   * Returns the hidden file which should be written to while producing the new file.  It is in 
+   * the same folder (so it can be atomically moved into place), and keeps the extension (so 
+   * encoders can still pick the container from it).  The name includes the worker id, so
+   * workers sharing a destination never write to the same partial file.
+   */
+  public static File makePartialFile(File newFile) {
+    String name = newFile.getName();
+    String extension = getExtension(name);
+    String baseName = name.substring(0, name.length() - extension.length());
+    
+    return new File(newFile.getAbsoluteFile().getParentFile(), 
+                    '.' + baseName + PARTIAL_SUFFIX + '-' + getWorkerTag() + extension);
+  }
+  
+  /**
+   * Returns the partial files (and segment folders) any worker has left for the new file.
+   */
+  public static File[] findPartialFiles(File newFile) {
+    String name = newFile.getName();
+    String extension = getExtension(name);
+    final String prefix = '.' + name.substring(0, name.length() - extension.length()) + PARTIAL_SUFFIX + '-';
+    File[] result = newFile.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(prefix);
+      }
+    });
+    
+    return result == null ? new File[0] : result;
+  }
+  
+  /**
+   * Deletes the file, or if it is a folder (ie of segments) the files in it and then the folder.
+   * 
+   * @return {@code true} if nothing is left
+   */
+  public static boolean deleteFileOrFolder(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        children[i].delete();
+      }
+    }
+    
+    return file.delete() || ! file.exists();
+  }
+  
+  private static String getWorkerTag() {
+    String tag = workerTag;
+    if (tag == null) {
+      // only characters which are safe in a file name on any share
+      workerTag = tag = LeaseManager.makeWorkerId().replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+    
+    return tag;
+  }
+  
   public static String getExtension(String name) {
     int index = name.lastIndexOf('.');
     if (index > 0) {
@@ -48,75 +106,80 @@ public class FileUtils {
     }
   }
 
-  public static boolean fileInArray(File[] fileArray, File searchFile) {
-    for (int i = 0; i < fileArray.length; i++) {
+  public static CopyResult copyFile(File sourceFile, 
+                                    File destFile) throws IOException {
+    return copyFile(sourceFile, destFile, StandardCopyStrategy.DEFAULT_ORDER);
+  }
+  
+  /**
+   * Copies the file with the first strategy which applies.  A strategy is only skipped if it can 
+   * not be used for these files (it returns {@code false}, is unsupported, or the files are on 
+   * different devices), any other failure is thrown right away rather than repeating the copy 
+   * with the next strategy.
+   */
+  public static CopyResult copyFile(File sourceFile, File destFile, 
+                                    CopyStrategy[] strategies) throws IOException {
+    long startTime = Clock.accurateForwardProgressingMillis();
+    List<Exception> skippedFailures = new ArrayList<Exception>(0);
+    for (int i = 0; i < strategies.length; i++) {
       try {
-        if (fileArray[i].getCanonicalPath().equals(searchFile.getCanonicalPath())) {
-          return true;
+        if (strategies[i].copy(sourceFile, destFile)) {
+          return new CopyResult(strategies[i], destFile.length(), 
+                                Clock.accurateForwardProgressingMillis() - startTime);
         }
+      } catch (UnsupportedOperationException e) {
+        skippedFailures.add(e);
       } catch (IOException e) {
-        ExceptionUtils.handleException(e);
-        
-        if (fileArray[i].getAbsolutePath().equals(searchFile.getAbsolutePath())) {
-          return true;
+        if (! isCrossDevice(e)) {
+          addSuppressed(e, skippedFailures);
+          throw e;
         }
+        skippedFailures.add(e);
       }
     }
     
-    return false;
+    IOException failure = new IOException("No copy strategy could copy " + sourceFile.getAbsolutePath() + 
+                                            " to " + destFile.getAbsolutePath());
+    addSuppressed(failure, skippedFailures);
+    throw failure;
   }
   
-  public static boolean sizeStable(File file, 
-                                   long originalSize, 
-                                   long sizeCaptureTime) {
-    long sizeAtStart = file.length();
-    if (sizeAtStart != originalSize) {
-      return sizeStable(file, sizeAtStart, Clock.lastKnownTimeMillis());
-    }
-    
-    long elapsedTime = Clock.lastKnownTimeMillis() - sizeCaptureTime;
-    if (elapsedTime < FILE_SIZE_STABILITY_TIME_IN_MILLIS - 10) {  // only sleep if we need to wait at least 10ms
-      try {
-        Thread.sleep(FILE_SIZE_STABILITY_TIME_IN_MILLIS - elapsedTime);
-      } catch (InterruptedException e1) {
-        Thread.currentThread().interrupt();
-      }
+  private static boolean isCrossDevice(IOException e) {
+    if (! (e instanceof FileSystemException)) {
+      return false;
     }
+    String reason = ((FileSystemException)e).getReason();
     
-    long newSize = file.length();
-    if (newSize != originalSize) {
-      System.out.println("Filesize changed for file: " + file + 
-                           "..." + originalSize + "/" + newSize);
-      
-      return false;
-    } else {
-      return true;
+    return reason != null && (reason.contains("cross-device") || reason.contains("EXDEV"));
+  }
+  
+  private static void addSuppressed(Exception e, List<Exception> earlierFailures) {
+    Iterator<Exception> it = earlierFailures.iterator();
+    while (it.hasNext()) {
+      e.addSuppressed(it.next());
     }
   }
-
-  public static void copyFile(File sourceFile, 
-                              File destFile) throws IOException {
-    InputStream in = null;
-    OutputStream out = null;
-    try {
-      in = new FileInputStream(sourceFile);
-      try {
-        out = new FileOutputStream(destFile);
   
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0){
-          out.write(buf, 0, len);
-        }
-      } finally {
-        if (out != null) {
-          out.close();
-        }
-      }
-    } finally {
-      if (in != null) {
-        in.close();
-      }
+  public static class CopyResult {
+    public final CopyStrategy strategy;
+    public final long bytes;
+    public final long durationMillis;
+    
+    public CopyResult(CopyStrategy strategy, long bytes, long durationMillis) {
+      this.strategy = strategy;
+      this.bytes = bytes;
+      this.durationMillis = durationMillis;
+    }
+    
+    public double getBytesPerSecond() {
+      return bytes / (Math.max(1, durationMillis) / 1000d);
+    }
+    
+    @Override
+    public String toString() {
+      return "copied " + bytes + " bytes using " + strategy + 
+               " in " + durationMillis + "ms (" + 
+               String.format("%.1f", getBytesPerSecond() / (1024 * 1024)) + " MB/s)";
     }
   }
 }
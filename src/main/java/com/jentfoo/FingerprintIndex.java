@@ -0,0 +1,189 @@
+package com.jentfoo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Persistent index of the content fingerprint of each source to the new file produced from it.
+ * When a source turns up with the same content as one already converted (ie renamed, or
+ * downloaded again), the existing new file can be linked or copied instead of converting again.
+ * An entry is only used if its new file still exists with the size it had when it was produced.
+ */
+public class FingerprintIndex {
+  private static final int FILE_FORMAT_VERSION = 1;
+  
+  private final File indexFile;
+  private final Map<ContentFingerprint, IndexEntry> index;
+  private final AtomicLong hitCount;
+  private boolean dirty;
+  
+  public FingerprintIndex(File indexFile) {
+    this.indexFile = indexFile;
+    this.index = new HashMap<ContentFingerprint, IndexEntry>();
+    this.hitCount = new AtomicLong();
+    this.dirty = false;
+  }
+  
+  public File getIndexFile() {
+    return indexFile;
+  }
+  
+  public long getHitCount() {
+    return hitCount.get();
+  }
+  
+  public synchronized int size() {
+    return index.size();
+  }
+  
+  /**
+   * Returns an existing new file which was produced from a source with the same content, or
+   * {@code null} if there is none.  Only files with the same extension as the new file being
+   * asked for are returned, and never the new file itself.
+   */
+  public File findExisting(ContentFingerprint fingerprint, File newFile) {
+    IndexEntry entry;
+    synchronized (this) {
+      entry = index.get(fingerprint);
+    }
+    if (entry == null) {
+      return null;
+    }
+    
+    File existingFile = new File(entry.path);
+    if (! existingFile.exists() || existingFile.length() != entry.size) {
+      // removed or replaced since it was recorded
+      synchronized (this) {
+        if (index.get(fingerprint) == entry) {
+          index.remove(fingerprint);
+          dirty = true;
+        }
+      }
+      
+      return null;
+    } else if (existingFile.equals(newFile.getAbsoluteFile()) || 
+               ! FileUtils.getExtension(existingFile.getName())
+                          .equalsIgnoreCase(FileUtils.getExtension(newFile.getName()))) {
+      return null;
+    }
+    
+    hitCount.incrementAndGet();
+    
+    return existingFile;
+  }
+  
+  /**
+   * Record that the new file was produced from a source with the provided fingerprint.
+   */
+  public void put(ContentFingerprint fingerprint, File newFile) {
+    IndexEntry entry = new IndexEntry(newFile.getAbsolutePath(), newFile.length());
+    synchronized (this) {
+      index.put(fingerprint, entry);
+      dirty = true;
+    }
+  }
+  
+  /**
+   * Loads any entries stored in the index file.  If the file does not exist, or can not be read,
+   * the index will just start empty.
+   */
+  public void load() {
+    if (! indexFile.exists()) {
+      return;
+    }
+    
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (in.readInt() != FILE_FORMAT_VERSION) {
+          System.err.println("Ignoring fingerprint index with unknown version: " + indexFile.getAbsolutePath());
+          return;
+        }
+        int count = in.readInt();
+        synchronized (this) {
+          for (int i = 0; i < count; i++) {
+            ContentFingerprint fingerprint = ContentFingerprint.parse(in.readUTF());
+            String path = in.readUTF();
+            long size = in.readLong();
+            
+            index.put(fingerprint, new IndexEntry(path, size));
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (EOFException e) {
+      System.err.println("Fingerprint index truncated, continuing with partial index: " + indexFile.getAbsolutePath());
+    } catch (IOException e) {
+      ExceptionUtils.handleException(e);
+    }
+  }
+  
+  /**
+   * Writes the index to disk if it has changed since it was loaded.  The index is written to a
+   * temporary file and then moved into place so a crash never leaves a corrupt index behind.
+   */
+  public void save() throws IOException {
+    Map<ContentFingerprint, IndexEntry> toWrite;
+    synchronized (this) {
+      if (! dirty) {
+        return;
+      }
+      toWrite = new HashMap<ContentFingerprint, IndexEntry>(index);
+      dirty = false;
+    }
+    
+    File parent = indexFile.getAbsoluteFile().getParentFile();
+    if (! parent.exists() && ! parent.mkdirs()) {
+      throw new IOException("Could not make index folder: " + parent.getAbsolutePath());
+    }
+    File tmpFile = new File(parent, indexFile.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(FILE_FORMAT_VERSION);
+      out.writeInt(toWrite.size());
+      Iterator<Map.Entry<ContentFingerprint, IndexEntry>> it = toWrite.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<ContentFingerprint, IndexEntry> e = it.next();
+        out.writeUTF(e.getKey().toString());
+        out.writeUTF(e.getValue().path);
+        out.writeLong(e.getValue().size);
+      }
+    } finally {
+      out.close();
+    }
+    
+    Files.move(tmpFile.toPath(), indexFile.toPath(), 
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  @Override
+  public String toString() {
+    return "FingerprintIndex - entries: " + size() + ", duplicates found: " + hitCount.get();
+  }
+  
+  private static class IndexEntry {
+    private final String path;
+    private final long size;
+    
+    private IndexEntry(String path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.threadly.util.Clock;
+
+/**
+ * Copies a source which may still be being written (ie downloading).  Whatever has been written
+ * so far is copied, then new bytes are appended as they arrive, so the copy finishes shortly
+ * after the source does rather than only starting once it is done.  The copy is only complete
+ * once the source has stopped changing for the stable time, and its final size and modification
+ * time match what was copied.  Since time waiting for the source does not count towards the job
+ * timeout, a source which keeps changing without growing for {@link #NO_PROGRESS_TIMEOUT_IN_MILLIS}
+ * fails the copy instead.  Only appending to the source is supported, if it is modified without 
+ * growing after bytes were copied (ie it was preallocated, or a header was rewritten) the copy is 
+ * abandoned with a {@link SourceRewrittenException}.
+ */
+public class FollowCopy implements CopyStrategy {
+  private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+  private static final int POLL_INTERVAL_IN_MILLIS = 1000;
+  public static final long NO_PROGRESS_TIMEOUT_IN_MILLIS = JobHandle.MIN_TIMEOUT_IN_MILLIS;
+  
+  /**
+   * Thrown when the source was modified somewhere other than its end, so what was copied may be 
+   * stale.  It should be copied again once it has stopped changing.
+   */
+  public static class SourceRewrittenException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    public SourceRewrittenException(String message) {
+      super(message);
+    }
+  }
+  
+  /**
+   * Returns {@code true} if following is worth it for the files.  On the same filesystem the
+   * source is hard linked once it is done, which is instant, so there is nothing to gain.
+   */
+  public static boolean isWorthwhile(File sourceFile, File destFile) {
+    try {
+      File destFolder = destFile.getAbsoluteFile().getParentFile();
+      while (destFolder != null && ! destFolder.exists()) {
+        // not yet created when mirroring a source tree
+        destFolder = destFolder.getParentFile();
+      }
+      if (destFolder == null) {
+        return false;
+      }
+      
+      return ! Files.getFileStore(sourceFile.toPath()).equals(Files.getFileStore(destFolder.toPath()));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+  
+  private final long stableTimeMillis;
+  private final BandwidthGovernor bandwidthGovernor;
+  private final JobProgress progress;
+  
+  /**
+   * Construct a new copy.
+   * 
+   * @param stableTimeMillis How long the source must not change for before it is considered done
+   * @param progress Progress of the job, time waiting for the source is added to it
+   */
+  public FollowCopy(long stableTimeMillis, BandwidthGovernor bandwidthGovernor, JobProgress progress) {
+    this.stableTimeMillis = stableTimeMillis;
+    this.bandwidthGovernor = bandwidthGovernor;
+    this.progress = progress;
+  }
+  
+  @Override
+  public boolean copy(File sourceFile, File destFile) throws IOException {
+    try {
+      follow(sourceFile, destFile);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted copying: " + sourceFile.getAbsolutePath(), e);
+    }
+    
+    return true;
+  }
+  
+  private void follow(File sourceFile, File destFile) throws IOException, InterruptedException {
+    Files.deleteIfExists(destFile.toPath());
+    FileChannel in = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+    try {
+      FileChannel out = FileChannel.open(destFile.toPath(), 
+                                         StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      try {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_CHUNK_SIZE);
+        long position = 0;
+        long lastSize = -1;
+        long lastModifiedTime = -1;
+        long lastChangeTime = Clock.accurateForwardProgressingMillis();
+        long lastGrowthTime = lastChangeTime;
+        while (true) {
+          long size = in.size();
+          if (size < position) {
+            throw new IOException("Source was truncated while copying: " + sourceFile.getAbsolutePath());
+          } else if (position < size) {
+            int chunkSize = (int)Math.min(COPY_CHUNK_SIZE, size - position);
+            progress.addThrottledMillis(bandwidthGovernor.awaitBandwidth(chunkSize, chunkSize));
+            buffer.clear();
+            buffer.limit(chunkSize);
+            int read = in.read(buffer, position);
+            if (read > 0) {
+              buffer.flip();
+              while (buffer.hasRemaining()) {
+                out.write(buffer);
+              }
+              position += read;
+              lastGrowthTime = Clock.accurateForwardProgressingMillis();
+              progress.setReportedPercent(position * 100d / size);
+            }
+            continue;
+          }
+          
+          // caught up, done once the source has stopped changing
+          long modifiedTime = sourceFile.lastModified();
+          long now = Clock.accurateForwardProgressingMillis();
+          if (size == lastSize && modifiedTime != lastModifiedTime && position > 0) {
+            if (in.size() > size) {
+              continue;  // appended to since we looked at the size
+            }
+            throw new SourceRewrittenException("Source was modified without growing: " + 
+                                                 sourceFile.getAbsolutePath());
+          } else if (size != lastSize || modifiedTime != lastModifiedTime) {
+            lastSize = size;
+            lastModifiedTime = modifiedTime;
+            lastChangeTime = now;
+          } else if (now - lastChangeTime >= stableTimeMillis) {
+            // verify nothing was written since we last looked
+            if (in.size() == position && sourceFile.lastModified() == modifiedTime) {
+              out.force(true);
+              break;
+            }
+            continue;
+          }
+          if (now - lastGrowthTime >= NO_PROGRESS_TIMEOUT_IN_MILLIS) {
+            // still being touched, but nothing is being added to it
+            throw new IOException("Source has not grown for " + RunProgress.formatMillis(now - lastGrowthTime) + 
+                                    ": " + sourceFile.getAbsolutePath());
+          }
+          Thread.sleep(POLL_INTERVAL_IN_MILLIS);
+          progress.addSourceWaitMillis(Clock.accurateForwardProgressingMillis() - now);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+  
+  @Override
+  public String toString() {
+    return "FollowCopy";
+  }
+}
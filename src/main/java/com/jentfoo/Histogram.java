@@ -0,0 +1,92 @@
+package com.jentfoo;
+
+import java.util.Arrays;
+
+/**
+ * Records durations into fixed buckets (for Prometheus style output), and keeps a bounded sample 
+ * of the values so percentiles can be reported.
+ */
+public class Histogram {
+  // bucket upper bounds in seconds, from a quick probe up to a multi hour encode
+  public static final double[] BUCKET_BOUNDS = { .001, .01, .1, .5, 1, 5, 10, 30, 60, 300, 
+                                                 600, 1800, 3600, 7200, 14400, 28800 };
+  private static final int MAX_SAMPLES = 4096;
+  
+  private final long[] bucketCounts;
+  private final double[] samples;
+  private long count;
+  private double sum;
+  private double max;
+  
+  public Histogram() {
+    bucketCounts = new long[BUCKET_BOUNDS.length];
+    samples = new double[MAX_SAMPLES];
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+  
+  public synchronized void record(double seconds) {
+    for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+      if (seconds <= BUCKET_BOUNDS[i]) {
+        bucketCounts[i]++;
+        break;
+      }
+    }
+    if (count < MAX_SAMPLES) {
+      samples[(int)count] = seconds;
+    } else {
+      // reservoir sample so percentiles stay representative of the whole run
+      long index = (long)(Math.random() * (count + 1));
+      if (index < MAX_SAMPLES) {
+        samples[(int)index] = seconds;
+      }
+    }
+    count++;
+    sum += seconds;
+    max = Math.max(max, seconds);
+  }
+  
+  public synchronized long getCount() {
+    return count;
+  }
+  
+  public synchronized double getSum() {
+    return sum;
+  }
+  
+  public synchronized double getMax() {
+    return max;
+  }
+  
+  /**
+   * Returns the cumulative count of values less than or equal to each bucket bound.
+   */
+  public synchronized long[] getCumulativeBucketCounts() {
+    long[] result = new long[bucketCounts.length];
+    long total = 0;
+    for (int i = 0; i < bucketCounts.length; i++) {
+      total += bucketCounts[i];
+      result[i] = total;
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Returns the value at the given percentile (ie {@code 90} for p90), or {@code 0} if nothing 
+   * has been recorded.
+   */
+  public synchronized double getPercentile(double percentile) {
+    int sampleCount = (int)Math.min(count, MAX_SAMPLES);
+    if (sampleCount == 0) {
+      return 0;
+    }
+    
+    double[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    int index = (int)Math.ceil((percentile / 100) * sampleCount) - 1;
+    
+    return sorted[Math.max(0, Math.min(sampleCount - 1, index))];
+  }
+}
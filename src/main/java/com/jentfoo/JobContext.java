@@ -0,0 +1,258 @@
+package com.jentfoo;
+
+import java.util.concurrent.Semaphore;
+
+import org.threadly.concurrent.SubmitterScheduler;
+
+/**
+ * Resources shared by all the jobs of a run.  Jobs move through a pipeline of stages: waiting for 
+ * the source to be stable, probing in the probe lane, converting in the copy or encode lane, and 
+ * publishing the new file in the publish lane.  Each lane has its own limit of running jobs, and 
+ * the number of jobs which have been found but not yet started converting is limited, so a huge 
+ * folder is fed through a little at a time instead of all being queued at once.
+ */
+public class JobContext {
+  public static final int DEFAULT_PROBE_PARALLEL_COUNT = 2;
+  public static final int DEFAULT_PUBLISH_PARALLEL_COUNT = 1;
+  public static final int DEFAULT_FOLLOW_PARALLEL_COUNT = 2;
+  public static final int DEFAULT_MAX_PENDING_JOBS = 256;
+  
+  private final SubmitterScheduler scheduler;
+  private final PriorityLane probeLane;
+  private final PriorityLane copyLane;
+  private final PriorityLane encodeLane;
+  private final PriorityLane publishLane;
+  private final PriorityLane followLane;
+  private final Semaphore pendingJobs;
+  private final StabilityTracker stabilityTracker;
+  private final AdaptiveConcurrencyController concurrencyController;
+  private final JobJournal journal;
+  private final FingerprintIndex fingerprintIndex;
+  private final RunProgress runProgress;
+  private final RunMetrics runMetrics;
+  private final ProcessLauncher processLauncher;
+  private final JobWatchdog jobWatchdog;
+  private final BandwidthGovernor bandwidthGovernor;
+  private final LeaseManager leaseManager;
+  private final ThroughputHistory throughputHistory;
+  
+  public JobContext(SubmitterScheduler scheduler, 
+                    int copyParallelCount, int encodeParallelCount) {
+    this(scheduler, new PriorityLane("probe", scheduler, DEFAULT_PROBE_PARALLEL_COUNT), 
+         new PriorityLane("copy", scheduler, copyParallelCount), 
+         new PriorityLane("encode", scheduler, encodeParallelCount), 
+         new StabilityTracker(scheduler), null, new JobJournal(), null, new BandwidthGovernor(), null, null);
+  }
+  
+  /**
+   * Construct a new context.
+   * 
+   * @param concurrencyController Controller for the encode lane, or {@code null} to use fixed limits
+   * @param journal Journal to record the state of each job to
+   * @param fingerprintIndex Index to find duplicate sources with, or {@code null} to always convert
+   * @param bandwidthGovernor Governor which copies and encoders must keep to the limits of
+   * @param leaseManager Manager to claim files from before converting, or {@code null} if this is the only worker
+   * @param throughputHistory History to record how fast jobs ran to, or {@code null} to not record
+   */
+  public JobContext(SubmitterScheduler scheduler, PriorityLane probeLane, 
+                    PriorityLane copyLane, PriorityLane encodeLane, 
+                    StabilityTracker stabilityTracker, 
+                    AdaptiveConcurrencyController concurrencyController, 
+                    JobJournal journal, FingerprintIndex fingerprintIndex, 
+                    BandwidthGovernor bandwidthGovernor, LeaseManager leaseManager, 
+                    ThroughputHistory throughputHistory) {
+    this.scheduler = scheduler;
+    this.probeLane = probeLane;
+    this.copyLane = copyLane;
+    this.encodeLane = encodeLane;
+    this.publishLane = new PriorityLane("publish", scheduler, DEFAULT_PUBLISH_PARALLEL_COUNT);
+    this.followLane = new PriorityLane("follow", scheduler, DEFAULT_FOLLOW_PARALLEL_COUNT);
+    this.pendingJobs = new Semaphore(DEFAULT_MAX_PENDING_JOBS);
+    this.stabilityTracker = stabilityTracker;
+    this.concurrencyController = concurrencyController;
+    this.journal = journal;
+    this.fingerprintIndex = fingerprintIndex;
+    this.runProgress = new RunProgress();
+    this.runMetrics = new RunMetrics();
+    this.processLauncher = new ProcessLauncher(runMetrics);
+    this.jobWatchdog = new JobWatchdog(scheduler, runMetrics);
+    this.bandwidthGovernor = bandwidthGovernor;
+    this.leaseManager = leaseManager;
+    this.throughputHistory = throughputHistory;
+    
+    runMetrics.registerLane(probeLane);
+    runMetrics.registerLane(copyLane);
+    runMetrics.registerLane(encodeLane);
+    runMetrics.registerLane(publishLane);
+    runMetrics.registerLane(followLane);
+    runMetrics.registerGauge("pending_jobs", "Jobs found but not yet started converting.", 
+                             new RunMetrics.Gauge() {
+      @Override
+      public double getValue() {
+        return getPendingJobCount();
+      }
+    });
+    runMetrics.registerGauge("stability_waiting_files", "Sources waiting to stop changing.", 
+                             new RunMetrics.Gauge() {
+      @Override
+      public double getValue() {
+        return JobContext.this.stabilityTracker.getTrackedCount();
+      }
+    });
+    runMetrics.registerGauge("watched_jobs", "Jobs converting with a timeout.", 
+                             new RunMetrics.Gauge() {
+      @Override
+      public double getValue() {
+        return jobWatchdog.getWatchedCount();
+      }
+    });
+  }
+  
+  /**
+   * Scheduler for light weight tasks, this is not limited by the encode parallel count.
+   */
+  public SubmitterScheduler getScheduler() {
+    return scheduler;
+  }
+  
+  /**
+   * Lane for inspecting source files before deciding how they will be converted.
+   */
+  public PriorityLane getProbeLane() {
+    return probeLane;
+  }
+  
+  /**
+   * Lane for jobs which are limited by disk rather than CPU (copies and remuxes).
+   */
+  public PriorityLane getCopyLane() {
+    return copyLane;
+  }
+  
+  /**
+   * Lane for CPU intensive encodes, this should be limited to what the CPU can handle.
+   */
+  public PriorityLane getEncodeLane() {
+    return encodeLane;
+  }
+  
+  /**
+   * Lane for moving finished files into place and recording them, so that a conversion lane 
+   * permit is released as soon as the conversion is done.
+   */
+  public PriorityLane getPublishLane() {
+    return publishLane;
+  }
+  
+  /**
+   * Lane for copying sources which are still being written.  These spend most of their time 
+   * waiting for the source to grow, so they are kept out of the copy lane where they would hold 
+   * a permit copies and remuxes need.
+   */
+  public PriorityLane getFollowLane() {
+    return followLane;
+  }
+  
+  /**
+   * Returns {@code true} if the follow lane can start another copy without it queuing.
+   */
+  public boolean hasFollowRoom() {
+    return followLane.getRunningCount() + followLane.getQueuedCount() < followLane.getMaxConcurrency();
+  }
+  
+  /**
+   * Blocks until another job may be started through the pipeline.  Each call must be matched 
+   * with a call to {@link #releasePendingJob()} once the job starts converting (or ends).  Never
+   * call this from a lane thread, or while holding a lock, since the lanes must keep running to
+   * release a place.
+   */
+  public void acquirePendingJob() throws InterruptedException {
+    pendingJobs.acquire();
+  }
+  
+  public void releasePendingJob() {
+    pendingJobs.release();
+  }
+  
+  /**
+   * Returns how many jobs are waiting to be stable, being probed, or queued in a lane.
+   */
+  public int getPendingJobCount() {
+    return DEFAULT_MAX_PENDING_JOBS - pendingJobs.availablePermits();
+  }
+  
+  public PriorityLane getLane(JobType jobType) {
+    if (jobType.isCpuIntensive()) {
+      return encodeLane;
+    } else {
+      return copyLane;
+    }
+  }
+  
+  public StabilityTracker getStabilityTracker() {
+    return stabilityTracker;
+  }
+  
+  public RunProgress getRunProgress() {
+    return runProgress;
+  }
+  
+  public RunMetrics getRunMetrics() {
+    return runMetrics;
+  }
+  
+  public JobJournal getJournal() {
+    return journal;
+  }
+  
+  /**
+   * Returns the index of converted content, or {@code null} if duplicates are not looked for.
+   */
+  public FingerprintIndex getFingerprintIndex() {
+    return fingerprintIndex;
+  }
+  
+  /**
+   * Launcher which all external processes (ie encoders) should be started from.
+   */
+  public ProcessLauncher getProcessLauncher() {
+    return processLauncher;
+  }
+  
+  /**
+   * Watchdog which kills jobs that run past their timeout.
+   */
+  public JobWatchdog getJobWatchdog() {
+    return jobWatchdog;
+  }
+  
+  public BandwidthGovernor getBandwidthGovernor() {
+    return bandwidthGovernor;
+  }
+  
+  /**
+   * Returns the manager files must be claimed from before converting them, or {@code null} if 
+   * this is the only worker converting into the destination.
+   */
+  public LeaseManager getLeaseManager() {
+    return leaseManager;
+  }
+  
+  /**
+   * Returns the history finished jobs should be recorded to, or {@code null} if not recorded.
+   */
+  public ThroughputHistory getThroughputHistory() {
+    return throughputHistory;
+  }
+  
+  /**
+   * Returns how many threads an encode process being started now should use.
+   */
+  public int getEncodeThreadCount() {
+    if (concurrencyController == null) {
+      return AdaptiveConcurrencyController.DEFAULT_THREADS_PER_ENCODE;
+    } else {
+      return concurrencyController.getThreadsPerEncode();
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.concurrent.future.SettableListenableFuture;
+import org.threadly.util.Clock;
+
+/**
+ * Handle to a submitted job, which completes once the job is done.  The handle owns any processes
+ * the job starts, so cancelling it kills them, and releases the lane permit the job holds.  While
+ * converting, the job is given a timeout from how long it is expected to take, which shrinks to
+ * fit the media left once the encoder reports its speed, and a job whose progress stops advancing
+ * is timed out too, so a hung encoder is killed without affecting any other jobs.  The job is also cancelled if another worker
+ * reclaims the lease on one of its new files.
+ */
+public class JobHandle implements Future<Object>, ProcessLauncher.ProcessOwner, 
+                                  LeaseManager.LeaseHolder {
+  public static final long MIN_TIMEOUT_IN_MILLIS = 1000 * 60 * 15;
+  // how many times longer than expected a job may take before it is considered stuck
+  public static final double TIMEOUT_MULTIPLIER = 4;
+  // how long a job which has reported progress may go without advancing
+  public static final long NO_PROGRESS_TIMEOUT_IN_MILLIS = 1000 * 60 * 5;
+  
+  private final File sourceFile;
+  private final SettableListenableFuture<Object> resultFuture;
+  private final Set<ProcessLauncher.RunningProcess> processes;
+  private volatile ConversionPlan plan;
+  private volatile long runStartTime;
+  private volatile long initialTimeoutMillis;
+  private double lastPosition;  // guarded by this
+  private double lastFractionDone;  // guarded by this
+  private long lastAdvanceActiveMillis;  // guarded by this
+  private volatile boolean cancelled;
+  private volatile boolean timedOut;
+  private Thread runningThread;  // guarded by this
+  
+  public JobHandle(File sourceFile, SettableListenableFuture<Object> resultFuture) {
+    this.sourceFile = sourceFile;
+    this.resultFuture = resultFuture;
+    this.processes = ConcurrentHashMap.newKeySet();
+    this.plan = null;
+    this.runStartTime = -1;
+    this.initialTimeoutMillis = MIN_TIMEOUT_IN_MILLIS;
+    this.lastPosition = 0;
+    this.lastFractionDone = 0;
+    this.lastAdvanceActiveMillis = 0;
+    this.cancelled = false;
+    this.timedOut = false;
+    this.runningThread = null;
+  }
+  
+  public File getSourceFile() {
+    return sourceFile;
+  }
+  
+  /**
+   * Returns the plan of the job, or {@code null} if it has not started converting.
+   */
+  public ConversionPlan getPlan() {
+    return plan;
+  }
+  
+  /**
+   * Future which completes once the job is done (or cancelled).
+   */
+  public ListenableFuture<Object> getFuture() {
+    return resultFuture;
+  }
+  
+  /**
+   * Invoked by the job once it starts converting, which is when the timeout starts.  A source
+   * with several targets starts again for each converter it is converted with.
+   */
+  protected synchronized void runStarted(ConversionPlan plan) {
+    this.plan = plan;
+    this.runStartTime = Clock.accurateForwardProgressingMillis();
+    this.initialTimeoutMillis = 
+        MIN_TIMEOUT_IN_MILLIS + (long)(plan.getEstimatedCost() * 1000 * TIMEOUT_MULTIPLIER);
+    this.lastPosition = 0;
+    this.lastFractionDone = 0;
+    this.lastAdvanceActiveMillis = 0;
+    this.runningThread = Thread.currentThread();
+  }
+  
+  /**
+   * Invoked by the job once it is no longer converting.  Any interrupt from cancelling the job is
+   * cleared, so it does not affect the next task run on the thread.
+   */
+  protected void runFinished() {
+    synchronized (this) {
+      runningThread = null;
+    }
+    if (cancelled) {
+      Thread.interrupted();
+    }
+  }
+  
+  @Override
+  public void processStarted(ProcessLauncher.RunningProcess process) {
+    processes.add(process);
+    if (cancelled) {
+      // cancelled while it was starting
+      process.kill();
+    }
+  }
+  
+  @Override
+  public void processEnded(ProcessLauncher.RunningProcess process) {
+    processes.remove(process);
+  }
+  
+  @Override
+  public void leaseLost(File newFile) {
+    // the worker which reclaimed it is converting it now, so we must not write or publish it
+    if (cancel(true)) {
+      System.err.println("Cancelled conversion after losing the lease for: " + newFile.getAbsolutePath());
+    }
+  }
+  
+  /**
+   * Returns how long the job may convert for before it is killed.  This starts from the estimate
+   * made when the job started, and is never extended past it.  Once the encoder reports progress
+   * the deadline is instead measured from when that progress last advanced: the time for the
+   * media left at the reported speed, and at most {@link #NO_PROGRESS_TIMEOUT_IN_MILLIS} until
+   * the job is done.
+   */
+  public long getTimeoutMillis() {
+    ConversionPlan p = plan;
+    if (p == null) {
+      return MIN_TIMEOUT_IN_MILLIS;
+    }
+    
+    long timeout = initialTimeoutMillis;
+    double position = p.progress.getPositionSeconds();
+    double fractionDone = p.progress.getFractionDone();
+    long lastAdvanceMillis = updateLastAdvance(position, fractionDone);
+    if (position <= 0 && fractionDone <= 0) {
+      return timeout;  // nothing reported yet
+    }
+    
+    if (fractionDone < 1) {
+      // once all the media is done the job may still be muxing or joining without reporting
+      timeout = Math.min(timeout, lastAdvanceMillis + NO_PROGRESS_TIMEOUT_IN_MILLIS);
+    }
+    double durationSeconds = p.progress.getDurationSeconds();
+    double speedFactor = p.progress.getSpeedFactor();
+    if (speedFactor > 0 && durationSeconds > 0) {
+      double remainingSeconds = Math.max(0, durationSeconds - position) / speedFactor;
+      timeout = Math.min(timeout, lastAdvanceMillis + MIN_TIMEOUT_IN_MILLIS + 
+                                    (long)(remainingSeconds * 1000 * TIMEOUT_MULTIPLIER));
+    }
+    
+    return timeout;
+  }
+  
+  // returns the active millis at which the progress last moved forward
+  private synchronized long updateLastAdvance(double position, double fractionDone) {
+    if (position > lastPosition || fractionDone > lastFractionDone) {
+      lastPosition = Math.max(lastPosition, position);
+      lastFractionDone = Math.max(lastFractionDone, fractionDone);
+      lastAdvanceActiveMillis = getActiveMillis();
+    }
+    
+    return lastAdvanceActiveMillis;
+  }
+  
+  /**
+   * Returns the milliseconds the job has spent converting, not counting time it was waiting for
+   * bandwidth (when a paused encoder would otherwise look stuck), or for the source to be written.
+   */
+  public long getActiveMillis() {
+    long startTime = runStartTime;
+    ConversionPlan p = plan;
+    if (startTime < 0 || p == null) {
+      return 0;
+    }
+    
+    long throttledMillis = p.progress.getThrottledMillis() + p.progress.getSourceWaitMillis();
+    Iterator<ProcessLauncher.RunningProcess> it = processes.iterator();
+    while (it.hasNext()) {
+      throttledMillis += it.next().getThrottledMillis();
+    }
+    
+    return Clock.accurateForwardProgressingMillis() - startTime - throttledMillis;
+  }
+  
+  public boolean isOverdue() {
+    long timeout = getTimeoutMillis();  // first, so progress seen now is not counted as stalled
+    
+    return getActiveMillis() > timeout;
+  }
+  
+  /**
+   * Cancels the job because it has taken too long, this is counted as a failure of the job.
+   * 
+   * @return {@code true} if the job was cancelled, {@code false} if it was already done
+   */
+  public boolean timeout() {
+    timedOut = true;
+    
+    return cancel(true);
+  }
+  
+  public boolean isTimedOut() {
+    return cancelled && timedOut;
+  }
+  
+  /**
+   * Cancels the job, killing any processes it has running.  A job cancelled this way is not
+   * counted as failed, and will be tried again on the next run.
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (resultFuture.isDone()) {
+      return false;
+    }
+    // set first, so the job sees it as soon as it is no longer running
+    cancelled = true;
+    if (! resultFuture.cancel(false)) {
+      cancelled = false;  // finished while we were cancelling
+      return false;
+    }
+    
+    List<ProcessLauncher.RunningProcess> toKill = new ArrayList<ProcessLauncher.RunningProcess>(processes);
+    Iterator<ProcessLauncher.RunningProcess> it = toKill.iterator();
+    while (it.hasNext()) {
+      it.next().kill();
+    }
+    if (mayInterruptIfRunning) {
+      // for jobs blocked outside of a process, ie copying
+      synchronized (this) {
+        if (runningThread != null) {
+          runningThread.interrupt();
+        }
+      }
+    }
+    
+    return true;
+  }
+  
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+  
+  @Override
+  public boolean isDone() {
+    return resultFuture.isDone();
+  }
+  
+  @Override
+  public Object get() throws InterruptedException, ExecutionException {
+    return resultFuture.get();
+  }
+  
+  @Override
+  public Object get(long timeout, TimeUnit unit) throws InterruptedException, 
+                                                        ExecutionException, TimeoutException {
+    return resultFuture.get(timeout, unit);
+  }
+  
+  @Override
+  public String toString() {
+    ConversionPlan p = plan;
+    if (p == null) {
+      return "JobHandle - " + sourceFile.getName();
+    }
+    return "JobHandle - " + sourceFile.getName() + ", converting for " + 
+             RunProgress.formatMillis(getActiveMillis()) + " of " + RunProgress.formatMillis(getTimeoutMillis());
+  }
+}
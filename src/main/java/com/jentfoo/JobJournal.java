@@ -0,0 +1,239 @@
+package com.jentfoo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.threadly.util.Clock;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Append only log of the state of each job, so a run which was killed can tell which jobs were
+ * left unfinished, and which sources keep failing.  Each line is the time, state, number of
+ * failures since the last success, and the source path, separated by tabs.  The journal is
+ * compacted to only the latest state of each source when it is opened.
+ */
+public class JobJournal {
+  private static final int MAX_FAILED_ATTEMPTS = 3;
+  private static final char SEPARATOR = '\t';
+  
+  public enum JobState {
+    Queued, Probing, Encoding, Done, Failed;
+    
+    /**
+     * Returns {@code true} if a job left in this state was interrupted before it could finish.
+     */
+    public boolean isInterrupted() {
+      return this == Probing || this == Encoding;
+    }
+  }
+  
+  private final File journalFile;
+  private final Map<String, JournalEntry> lastEntries;
+  private FileOutputStream out;  // guarded by this
+  private Writer writer;  // guarded by this
+  
+  /**
+   * Construct a journal which is only kept in memory.
+   */
+  public JobJournal() {
+    this(null);
+  }
+  
+  private JobJournal(File journalFile) {
+    this.journalFile = journalFile;
+    this.lastEntries = new ConcurrentHashMap<String, JournalEntry>();
+    this.out = null;
+    this.writer = null;
+  }
+  
+  /**
+   * Loads the journal file (if it exists), compacts it, and opens it to append new states.
+   */
+  public static JobJournal open(File journalFile) throws IOException {
+    JobJournal result = new JobJournal(journalFile);
+    result.load();
+    result.compact();
+    synchronized (result) {
+      result.out = new FileOutputStream(journalFile, true);
+      result.writer = new OutputStreamWriter(result.out, StandardCharsets.UTF_8);
+    }
+    
+    return result;
+  }
+  
+  private static String makeKey(File sourceFile) {
+    return sourceFile.getAbsolutePath();
+  }
+  
+  private void load() throws IOException {
+    if (! journalFile.exists()) {
+      return;
+    }
+    
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), 
+                                                                     StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(String.valueOf(SEPARATOR), 4);
+        if (parts.length != 4) {
+          continue;  // last line may be partial if we were killed while writing it
+        }
+        try {
+          lastEntries.put(parts[3], new JournalEntry(Long.parseLong(parts[0]), 
+                                                     JobState.valueOf(parts[1]), 
+                                                     Integer.parseInt(parts[2])));
+        } catch (IllegalArgumentException e) {
+          // ignore corrupt line
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+  
+  private void compact() throws IOException {
+    File parent = journalFile.getAbsoluteFile().getParentFile();
+    if (! parent.exists() && ! parent.mkdirs()) {
+      throw new IOException("Could not make journal folder: " + parent.getAbsolutePath());
+    }
+    File tmpFile = new File(parent, journalFile.getName() + ".tmp");
+    Writer tmpWriter = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8);
+    try {
+      Iterator<Map.Entry<String, JournalEntry>> it = lastEntries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, JournalEntry> e = it.next();
+        if (new File(e.getKey()).exists()) {
+          writeLine(tmpWriter, e.getKey(), e.getValue());
+        } else {
+          it.remove();  // source is gone, no need to remember it
+        }
+      }
+    } finally {
+      tmpWriter.close();
+    }
+    
+    Files.move(tmpFile.toPath(), journalFile.toPath(), 
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  private static void writeLine(Writer writer, String key, JournalEntry entry) throws IOException {
+    writer.write(Long.toString(entry.time));
+    writer.write(SEPARATOR);
+    writer.write(entry.state.name());
+    writer.write(SEPARATOR);
+    writer.write(Integer.toString(entry.failureCount));
+    writer.write(SEPARATOR);
+    writer.write(key);
+    writer.write('\n');
+  }
+  
+  /**
+   * Record the new state of the job for the provided source.
+   */
+  public void record(File sourceFile, JobState state) {
+    String key = makeKey(sourceFile);
+    JournalEntry entry;
+    synchronized (this) {
+      JournalEntry lastEntry = lastEntries.get(key);
+      int failureCount;
+      if (state == JobState.Done) {
+        failureCount = 0;
+      } else if (lastEntry == null) {
+        failureCount = state == JobState.Failed ? 1 : 0;
+      } else {
+        failureCount = lastEntry.failureCount + (state == JobState.Failed ? 1 : 0);
+      }
+      entry = new JournalEntry(Clock.accurateTimeMillis(), state, failureCount);
+      lastEntries.put(key, entry);
+      
+      if (writer != null) {
+        try {
+          writeLine(writer, key, entry);
+          writer.flush();
+          if (state == JobState.Done || state == JobState.Failed) {
+            // make sure the end of a job survives a crash of the machine, not just the jvm
+            out.getFD().sync();
+          }
+        } catch (IOException e) {
+          ExceptionUtils.handleException(e);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Returns the last recorded state for the source, or {@code null} if there is none.
+   */
+  public JobState getLastState(File sourceFile) {
+    JournalEntry entry = lastEntries.get(makeKey(sourceFile));
+    
+    return entry == null ? null : entry.state;
+  }
+  
+  /**
+   * Returns {@code true} if the source has failed too many times to try again.  If the source is
+   * modified after the last failure it will be tried again.
+   */
+  public boolean shouldSkip(File sourceFile) {
+    JournalEntry entry = lastEntries.get(makeKey(sourceFile));
+    
+    return entry != null && entry.state == JobState.Failed && 
+             entry.failureCount >= MAX_FAILED_ATTEMPTS && 
+             sourceFile.lastModified() < entry.time;
+  }
+  
+  /**
+   * Returns the sources whose jobs were still being worked on when the journal was last written.
+   */
+  public List<File> getInterruptedSources() {
+    List<File> result = new ArrayList<File>();
+    Iterator<Map.Entry<String, JournalEntry>> it = lastEntries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, JournalEntry> e = it.next();
+      if (e.getValue().state.isInterrupted()) {
+        result.add(new File(e.getKey()));
+      }
+    }
+    
+    return result;
+  }
+  
+  public synchronized void close() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        ExceptionUtils.handleException(e);
+      }
+      writer = null;
+      out = null;
+    }
+  }
+  
+  private static class JournalEntry {
+    private final long time;
+    private final JobState state;
+    private final int failureCount;
+    
+    private JournalEntry(long time, JobState state, int failureCount) {
+      this.time = time;
+      this.state = state;
+      this.failureCount = failureCount;
+    }
+  }
+}
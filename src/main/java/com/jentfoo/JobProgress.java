@@ -0,0 +1,177 @@
+package com.jentfoo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.threadly.util.Clock;
+
+/**
+ * Progress of a single running job, as reported by the encoder output.
+ */
+public class JobProgress {
+  private volatile double durationSeconds;
+  private volatile double positionSeconds;
+  private volatile double reportedPercent;
+  private volatile double fps;
+  private volatile long frame;
+  private volatile long startTime;
+  private volatile boolean finished;
+  private volatile long childCpuMillis;
+  private final AtomicLong throttledMillis;
+  private final AtomicLong sourceWaitMillis;
+  
+  public JobProgress(double durationSeconds) {
+    this.durationSeconds = durationSeconds;
+    this.positionSeconds = 0;
+    this.reportedPercent = -1;
+    this.fps = 0;
+    this.frame = 0;
+    this.startTime = -1;
+    this.finished = false;
+    this.childCpuMillis = 0;
+    this.throttledMillis = new AtomicLong();
+    this.sourceWaitMillis = new AtomicLong();
+  }
+  
+  public void started() {
+    startTime = Clock.accurateForwardProgressingMillis();
+  }
+  
+  public void finished() {
+    finished = true;
+  }
+  
+  public boolean isStarted() {
+    return startTime >= 0;
+  }
+  
+  public boolean isFinished() {
+    return finished;
+  }
+  
+  /**
+   * Play time of the source in seconds, or a negative number if not known.
+   */
+  public double getDurationSeconds() {
+    return durationSeconds;
+  }
+  
+  public void setDurationSeconds(double durationSeconds) {
+    this.durationSeconds = durationSeconds;
+  }
+  
+  public double getPositionSeconds() {
+    return positionSeconds;
+  }
+  
+  public double getFps() {
+    return fps;
+  }
+  
+  public long getFrame() {
+    return frame;
+  }
+  
+  public void update(double positionSeconds, double fps, long frame) {
+    this.positionSeconds = positionSeconds;
+    this.fps = fps;
+    this.frame = frame;
+  }
+  
+  /**
+   * CPU time used by the encoder process(es) for this job, as last sampled.
+   */
+  public long getChildCpuMillis() {
+    return childCpuMillis;
+  }
+  
+  public void setChildCpuMillis(long childCpuMillis) {
+    this.childCpuMillis = childCpuMillis;
+  }
+  
+  /**
+   * Milliseconds this job has spent waiting to keep within the bandwidth limits.
+   */
+  public long getThrottledMillis() {
+    return throttledMillis.get();
+  }
+  
+  public void addThrottledMillis(long millis) {
+    if (millis > 0) {
+      throttledMillis.addAndGet(millis);
+    }
+  }
+  
+  /**
+   * Milliseconds this job has spent waiting for a source which is still being written.
+   */
+  public long getSourceWaitMillis() {
+    return sourceWaitMillis.get();
+  }
+  
+  public void addSourceWaitMillis(long millis) {
+    if (millis > 0) {
+      sourceWaitMillis.addAndGet(millis);
+    }
+  }
+  
+  /**
+   * For encoders which report their own percent complete (ie mencoder).
+   */
+  public void setReportedPercent(double reportedPercent) {
+    this.reportedPercent = reportedPercent;
+  }
+  
+  /**
+   * Returns the fraction of the job completed, from {@code 0} to {@code 1}.
+   */
+  public double getFractionDone() {
+    if (finished) {
+      return 1;
+    } else if (durationSeconds > 0) {
+      return Math.min(1, positionSeconds / durationSeconds);
+    } else if (reportedPercent >= 0) {
+      return Math.min(1, reportedPercent / 100);
+    } else {
+      return 0;
+    }
+  }
+  
+  public long getElapsedMillis() {
+    long start = startTime;
+    if (start < 0) {
+      return 0;
+    }
+    
+    return Clock.lastKnownForwardProgressingMillis() - start;
+  }
+  
+  /**
+   * Returns how many seconds of media are processed per second of wall time, or {@code 0} if not 
+   * yet known.
+   */
+  public double getSpeedFactor() {
+    long elapsed = getElapsedMillis();
+    if (elapsed <= 0) {
+      return 0;
+    }
+    
+    return positionSeconds / (elapsed / 1000d);
+  }
+  
+  /**
+   * Returns estimated millis until this job completes, or {@code -1} if not yet known.
+   */
+  public long getEstimatedRemainingMillis() {
+    double fraction = getFractionDone();
+    if (fraction <= 0) {
+      return -1;
+    }
+    
+    return (long)(getElapsedMillis() * ((1 - fraction) / fraction));
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("%.1f%% - %.1f fps, %.2fx", getFractionDone() * 100, fps, getSpeedFactor());
+  }
+}
@@ -0,0 +1,19 @@
+package com.jentfoo;
+
+public enum JobType {
+  Copy(false), CodecCopy(false), AudioEncode(true), VideoEncode(true), FullEncode(true);
+  
+  private final boolean cpuIntensive;
+  
+  private JobType(boolean cpuIntensive) {
+    this.cpuIntensive = cpuIntensive;
+  }
+  
+  /**
+   * Returns {@code true} if this job is limited by CPU rather than disk.  CPU intensive jobs run 
+   * in the encode lane, everything else in the copy lane.
+   */
+  public boolean isCpuIntensive() {
+    return cpuIntensive;
+  }
+}
@@ -0,0 +1,84 @@
+package com.jentfoo;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Watches the jobs which are converting, and kills any which run past their timeout.  All jobs are
+ * checked from a single scheduled task, which only runs while there are jobs to watch.
+ */
+public class JobWatchdog {
+  private static final int POLL_INTERVAL_IN_MILLIS = 1000 * 10;
+  
+  private final SubmitterScheduler scheduler;
+  private final RunMetrics runMetrics;
+  private final Set<JobHandle> watchedJobs;
+  private final AtomicBoolean pollScheduled;
+  private final Runnable pollTask;
+  
+  public JobWatchdog(SubmitterScheduler scheduler, RunMetrics runMetrics) {
+    this.scheduler = scheduler;
+    this.runMetrics = runMetrics;
+    this.watchedJobs = ConcurrentHashMap.newKeySet();
+    this.pollScheduled = new AtomicBoolean(false);
+    this.pollTask = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          poll();
+        } catch (Throwable t) {
+          ExceptionUtils.handleException(t);
+        } finally {
+          pollScheduled.set(false);
+          if (! watchedJobs.isEmpty()) {
+            schedulePoll();
+          }
+        }
+      }
+    };
+  }
+  
+  public int getWatchedCount() {
+    return watchedJobs.size();
+  }
+  
+  /**
+   * Start watching a job which has started converting.
+   */
+  public void watch(JobHandle job) {
+    watchedJobs.add(job);
+    schedulePoll();
+  }
+  
+  public void unwatch(JobHandle job) {
+    watchedJobs.remove(job);
+  }
+  
+  private void schedulePoll() {
+    if (pollScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(pollTask, POLL_INTERVAL_IN_MILLIS);
+    }
+  }
+  
+  private void poll() {
+    Iterator<JobHandle> it = watchedJobs.iterator();
+    while (it.hasNext()) {
+      JobHandle job = it.next();
+      if (job.isOverdue()) {
+        it.remove();
+        System.err.println("Killing stuck job for: " + job.getSourceFile().getAbsolutePath() + 
+                             ", converting for " + RunProgress.formatMillis(job.getActiveMillis()) + 
+                             " with a timeout of " + RunProgress.formatMillis(job.getTimeoutMillis()));
+        if (job.timeout()) {
+          ConversionPlan plan = job.getPlan();
+          runMetrics.recordTimeout(plan == null ? null : plan.jobType);
+        }
+      }
+    }
+  }
+}
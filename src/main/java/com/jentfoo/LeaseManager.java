@@ -0,0 +1,336 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Lets several workers (ie on different hosts which mount the same share) convert into one
+ * destination without doing the same file twice.  Before converting, a worker claims the new file
+ * by creating a lease file in a shared folder, which only one worker can do.  While it holds the
+ * lease the modification time is touched as a heartbeat, and a lease which has not been touched
+ * for {@link #LEASE_TIMEOUT_IN_MILLIS} is assumed to belong to a worker which died, so may be
+ * reclaimed.  Since the heartbeat is compared to the local clock, hosts must have their clocks
+ * kept in sync (ie with NTP).  A worker which finds its lease was reclaimed (because it stalled)
+ * tells the holder of the lease, so it can stop converting the file.
+ */
+public class LeaseManager {
+  private static final boolean VERBOSE = true;
+  public static final String LEASE_FOLDER_PROPERTY = "xboxMediaProcessor.leaseFolder";
+  public static final int HEARTBEAT_INTERVAL_IN_MILLIS = 1000 * 30;
+  public static final int LEASE_TIMEOUT_IN_MILLIS = 1000 * 60 * 3;
+  private static final String LEASE_EXTENSION = ".lease";
+  
+  /**
+   * Told if a lease it holds is lost to another worker.
+   */
+  public interface LeaseHolder {
+    public void leaseLost(File newFile);
+  }
+  
+  /**
+   * Returns a lease manager for the folder set with the system property, or {@code null} if not
+   * set (and so this is the only worker).
+   */
+  public static LeaseManager fromSystemProperties(List<File> destFolders) {
+    String leaseFolder = System.getProperty(LEASE_FOLDER_PROPERTY);
+    if (leaseFolder == null || leaseFolder.trim().isEmpty()) {
+      return null;
+    }
+    
+    return new LeaseManager(new File(leaseFolder), destFolders, makeWorkerId());
+  }
+  
+  /**
+   * Returns an id unique to this process, made from the host name and pid.
+   */
+  public static String makeWorkerId() {
+    String host;
+    try {
+      host = InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      host = "unknown";
+    }
+    // name is in the form pid@host
+    String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+    int atIndex = runtimeName.indexOf('@');
+    
+    return host + ':' + (atIndex > 0 ? runtimeName.substring(0, atIndex) : runtimeName);
+  }
+  
+  private final File leaseFolder;
+  private final List<File> destFolders;
+  private final String workerId;
+  private final long leaseTimeoutMillis;
+  private final Map<File, HeldLease> heldLeases;
+  
+  public LeaseManager(File leaseFolder, File destFolder, String workerId) {
+    this(leaseFolder, Collections.singletonList(destFolder), workerId, LEASE_TIMEOUT_IN_MILLIS);
+  }
+  
+  public LeaseManager(File leaseFolder, List<File> destFolders, String workerId) {
+    this(leaseFolder, destFolders, workerId, LEASE_TIMEOUT_IN_MILLIS);
+  }
+  
+  public LeaseManager(File leaseFolder, List<File> destFolders, String workerId, long leaseTimeoutMillis) {
+    this.leaseFolder = leaseFolder;
+    this.destFolders = new ArrayList<File>(destFolders.size());
+    Iterator<File> it = destFolders.iterator();
+    while (it.hasNext()) {
+      this.destFolders.add(it.next().getAbsoluteFile());
+    }
+    this.workerId = workerId;
+    this.leaseTimeoutMillis = leaseTimeoutMillis;
+    this.heldLeases = new ConcurrentHashMap<File, HeldLease>();
+  }
+  
+  public String getWorkerId() {
+    return workerId;
+  }
+  
+  public int getHeldCount() {
+    return heldLeases.size();
+  }
+  
+  /**
+   * Starts touching every held lease so that other workers know we are still working on them.
+   */
+  public void start(final SubmitterScheduler scheduler) {
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          heartbeat();
+        } catch (Throwable t) {
+          ExceptionUtils.handleException(t);
+        } finally {
+          scheduler.schedule(this, HEARTBEAT_INTERVAL_IN_MILLIS);
+        }
+      }
+    }, HEARTBEAT_INTERVAL_IN_MILLIS);
+  }
+  
+  /**
+   * Touches every held lease, telling the holder of any which another worker has reclaimed.
+   */
+  protected void heartbeat() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<File, HeldLease>> it = heldLeases.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<File, HeldLease> e = it.next();
+      if (! workerId.equals(readOwner(e.getKey())) || ! e.getKey().setLastModified(now)) {
+        // we stalled long enough for someone else to reclaim it, they will finish the file
+        HeldLease lease = e.getValue();
+        System.err.println("Lost lease for: " + lease.newFile.getAbsolutePath());
+        it.remove();
+        if (lease.holder != null) {
+          try {
+            lease.holder.leaseLost(lease.newFile);
+          } catch (Throwable t) {
+            ExceptionUtils.handleException(t);
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Try to claim the new file for this worker.
+   * 
+   * @return {@code true} if we now hold the lease, {@code false} if another worker holds it
+   */
+  public boolean tryAcquire(File newFile) throws IOException {
+    return tryAcquire(newFile, null);
+  }
+  
+  /**
+   * Try to claim the new file for this worker.
+   * 
+   * @param holder Told if the lease is later lost to another worker, or {@code null}
+   * @return {@code true} if we now hold the lease, {@code false} if another worker holds it
+   */
+  public boolean tryAcquire(File newFile, LeaseHolder holder) throws IOException {
+    File leaseFile = makeLeaseFile(newFile);
+    if (heldLeases.containsKey(leaseFile)) {
+      return true;
+    }
+    Files.createDirectories(leaseFolder.toPath());
+    
+    if (create(leaseFile, newFile, holder)) {
+      return true;
+    }
+    long lastModified = leaseFile.lastModified();
+    if (lastModified == 0 || System.currentTimeMillis() - lastModified < leaseTimeoutMillis) {
+      return false;  // held, or was just released and the other worker will skip it
+    }
+    
+    // expired, move it aside so only one worker can reclaim it
+    String staleOwner = readOwner(leaseFile);
+    File staleFile = new File(leaseFolder, leaseFile.getName() + '.' + workerId.replace(':', '_') + ".stale");
+    try {
+      Files.move(leaseFile.toPath(), staleFile.toPath());
+    } catch (NoSuchFileException e) {
+      return false;  // someone else reclaimed it
+    }
+    if (System.currentTimeMillis() - staleFile.lastModified() < leaseTimeoutMillis) {
+      // another worker reclaimed it between our check and the move, give it back
+      try {
+        Files.move(staleFile.toPath(), leaseFile.toPath());
+      } catch (FileAlreadyExistsException e) {
+        Files.deleteIfExists(staleFile.toPath());
+      }
+      return false;
+    }
+    Files.deleteIfExists(staleFile.toPath());
+    if (VERBOSE) {
+      System.out.println("Reclaiming expired lease from " + staleOwner + " for: " + newFile.getAbsolutePath());
+    }
+    
+    return create(leaseFile, newFile, holder);
+  }
+  
+  private boolean create(File leaseFile, File newFile, LeaseHolder holder) throws IOException {
+    try {
+      Files.write(leaseFile.toPath(), 
+                  (workerId + '\n' + newFile.getAbsolutePath() + '\n').getBytes(StandardCharsets.UTF_8), 
+                  StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    }
+    heldLeases.put(leaseFile, new HeldLease(newFile, holder));
+    
+    return true;
+  }
+  
+  /**
+   * Returns {@code true} if we still hold the lease for the new file, checked against the lease
+   * file itself in case it was reclaimed since the last heartbeat.
+   */
+  public boolean isHeld(File newFile) {
+    File leaseFile = makeLeaseFile(newFile);
+    
+    return heldLeases.containsKey(leaseFile) && workerId.equals(readOwner(leaseFile));
+  }
+  
+  /**
+   * Releases the lease for the new file if we hold it, letting other workers take it.
+   */
+  public void release(File newFile) {
+    File leaseFile = makeLeaseFile(newFile);
+    if (heldLeases.remove(leaseFile) != null) {
+      delete(leaseFile);
+    }
+  }
+  
+  /**
+   * Releases every held lease, ie when shutting down.
+   */
+  public void releaseAll() {
+    List<File> leaseFiles = new ArrayList<File>(heldLeases.keySet());
+    heldLeases.clear();
+    Iterator<File> it = leaseFiles.iterator();
+    while (it.hasNext()) {
+      delete(it.next());
+    }
+  }
+  
+  private void delete(File leaseFile) {
+    // only remove it if it is still ours, it may have been reclaimed while we were stalled
+    if (workerId.equals(readOwner(leaseFile)) && ! leaseFile.delete()) {
+      System.err.println("Failed to delete lease: " + leaseFile.getAbsolutePath());
+    }
+  }
+  
+  /**
+   * Returns {@code true} if a worker other than this one holds an unexpired lease for the file.
+   */
+  public boolean isHeldByOther(File newFile) {
+    File leaseFile = makeLeaseFile(newFile);
+    long lastModified = leaseFile.lastModified();
+    
+    return lastModified > 0 && System.currentTimeMillis() - lastModified < leaseTimeoutMillis && 
+             ! workerId.equals(readOwner(leaseFile));
+  }
+  
+  // returns the worker id from the lease, or null if it is gone (or still being written)
+  private static String readOwner(File leaseFile) {
+    try {
+      List<String> lines = Files.readAllLines(leaseFile.toPath(), StandardCharsets.UTF_8);
+      
+      return lines.isEmpty() ? null : lines.get(0);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Returns the lease file for a new file.  It is named from the name of the destination it is in 
+   * and the path relative to that, so workers which mount the share at different paths still 
+   * agree, while the same file in two destinations gets a lease each.
+   */
+  protected File makeLeaseFile(File newFile) {
+    String path = newFile.getAbsolutePath();
+    File destFolder = null;
+    Iterator<File> it = destFolders.iterator();
+    while (it.hasNext()) {
+      File folder = it.next();
+      // most nested wins, in case one destination is inside another
+      if (path.startsWith(folder.getPath() + File.separatorChar) && 
+          (destFolder == null || folder.getPath().length() > destFolder.getPath().length())) {
+        destFolder = folder;
+      }
+    }
+    if (destFolder != null) {
+      path = destFolder.getName() + File.separatorChar + 
+               path.substring(destFolder.getPath().length() + 1);
+    }
+    
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);  // every jvm must provide SHA-1
+    }
+    byte[] hash = digest.digest(path.getBytes(StandardCharsets.UTF_8));
+    StringBuilder sb = new StringBuilder(hash.length * 2 + LEASE_EXTENSION.length());
+    for (int i = 0; i < hash.length; i++) {
+      sb.append(Character.forDigit((hash[i] >> 4) & 0xF, 16))
+        .append(Character.forDigit(hash[i] & 0xF, 16));
+    }
+    
+    return new File(leaseFolder, sb.append(LEASE_EXTENSION).toString());
+  }
+  
+  @Override
+  public String toString() {
+    return "LeaseManager - worker: " + workerId + ", held: " + heldLeases.size() + 
+             ", folder: " + leaseFolder.getAbsolutePath();
+  }
+  
+  private static class HeldLease {
+    private final File newFile;
+    private final LeaseHolder holder;
+    
+    private HeldLease(File newFile, LeaseHolder holder) {
+      this.newFile = newFile;
+      this.holder = holder;
+    }
+  }
+}
@@ -2,236 +2,458 @@ package com.jentfoo;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import org.threadly.concurrent.SubmitterScheduler;
 import org.threadly.util.Clock;
-import org.threadly.util.ExceptionUtils;
 
-public class LibavConverter implements ConverterInterface {
+public class LibavConverter extends AbstractConverter {
   private static final boolean VERBOSE = true;
-  private static final String AVCONV_ENCODE_GLOBAL_FLAGS = "-threads 2";
-  private static final String AVCONV_ENCODE_ALL_FLAGS = AVCONV_ENCODE_GLOBAL_FLAGS + " -vcodec libx264 -acodec ac3 -ab 512k";
-  private static final String AVCONV_ENCODE_VIDEO_FLAGS = AVCONV_ENCODE_GLOBAL_FLAGS + " -vcodec libx264 -acodec copy";
-  private static final String AVCONV_ENCODE_AUDIO_FLAGS = AVCONV_ENCODE_GLOBAL_FLAGS + " -vcodec copy -acodec ac3 -ab 512k";
-  private static final String AVCONV_COPY_FLAGS = AVCONV_ENCODE_GLOBAL_FLAGS + " -vcodec copy -acodec copy";
+  private static final String AVCONV_THREADS_FLAG = "-threads ";
+  private static final String AVCONV_COPY_VIDEO_FLAGS = "-vcodec copy ";
+  private static final String AVCONV_COPY_AUDIO_FLAGS = " -acodec copy";
+  private static final String AVCONV_COPY_FLAGS = "-vcodec copy -acodec copy";
   private static final String DESIRED_EXTENSION = ".mp4";
+  private static final int MAX_PROBE_OUTPUT_BYTES = 1024 * 64;
+  private static final int ERROR_OUTPUT_BYTES = 1024 * 4;
+  private static final String DESIRED_VIDEO_CODEC = "h264";
+  private static final String DESIRED_AUDIO_CODEC = "ac3";
   
-  private static final File LIBAV_EXECUTABLE;
+  public static final String AVCONV_PROPERTY = "xboxMediaProcessor.avconv";
+  public static final String AVPROBE_PROPERTY = "xboxMediaProcessor.avprobe";
+  private static final File LIBAV_EXECUTABLE = findExecutable(AVCONV_PROPERTY, "avconv");
+  private static final File AVPROBE_EXECUTABLE = findExecutable(AVPROBE_PROPERTY, "avprobe");
   
-  static {
-    File executable = new File("/usr/bin/avconv");
+  // the system property can point to another build, or a stand in for testing
+  private static File findExecutable(String property, String name) {
+    String path = System.getProperty(property);
+    if (path != null && ! path.trim().isEmpty()) {
+      return new File(path.trim());
+    }
+    File executable = new File("/usr/bin", name);
     if (executable.exists() && executable.canExecute()) {
-      LIBAV_EXECUTABLE = executable;
-    } else {
-      executable = new File("/usr/local/bin/avconv");
-      if (executable.exists() && executable.canExecute()) {
-        LIBAV_EXECUTABLE = executable;
-      } else {
-        LIBAV_EXECUTABLE = null; // could not find it
-      }
+      return executable;
     }
+    executable = new File("/usr/local/bin", name);
+    if (executable.exists() && executable.canExecute()) {
+      return executable;
+    }
+    
+    return null; // could not find it
   }
   
   public static File getAvconvExecutable() {
     return LIBAV_EXECUTABLE;
   }
   
+  private final ProbeCache probeCache;
+  private final EncodingProfilePolicy profilePolicy;
+  
+  public LibavConverter() {
+    this(null, new EncodingProfilePolicy(EncodingProfile.BALANCED));
+  }
+  
+  /**
+   * Construct a new converter.
+   * 
+   * @param probeCache Cache of probe results, or {@code null} to always probe
+   * @param profilePolicy Policy to choose the encoding profile of each encode
+   */
+  public LibavConverter(ProbeCache probeCache, EncodingProfilePolicy profilePolicy) {
+    this.probeCache = probeCache;
+    this.profilePolicy = profilePolicy;
+  }
+  
   @Override
   public String getProducedExtesion() {
     return DESIRED_EXTENSION;
   }
   
   @Override
-  public Map<File, Future<?>> submitJobs(SubmitterScheduler scheduler, 
-                                         List<File> sourceFileList, 
-                                         File destFolder) {
-    File[] origDestFileArray = destFolder.listFiles();
-    Map<File, Future<?>> result = new HashMap<File, Future<?>>();
-    AtomicInteger processedCount = new AtomicInteger();
-    
-    Iterator<File> it = sourceFileList.iterator();
-    while (it.hasNext()) {
-      File sourceFile = it.next();
-
-      if (sourceFile.isDirectory()) {  // don't try and recursively copy/encode directories
-        continue;
+  protected ConversionPlan makePlan(JobContext context, 
+                                    File sourceFile, File newFile) throws IOException, 
+                                                                          InterruptedException {
+    MediaInfo mediaInfo = probe(context.getProcessLauncher(), probeCache, sourceFile);
+    boolean desiredVideoCodec = isDesiredVideoCodec(mediaInfo);
+    boolean desiredAudioCodec = isDesiredAudioCodec(mediaInfo);
+    JobType jobType;
+    if (desiredVideoCodec && desiredAudioCodec) {
+      String extension = FileUtils.getExtension(sourceFile.getName());
+      if (extension.equalsIgnoreCase(DESIRED_EXTENSION)) {
+        jobType = JobType.Copy;
+      } else {
+        jobType = JobType.CodecCopy;
       }
-      
-      File newFile = FileUtils.makeNewFile(destFolder, sourceFile, DESIRED_EXTENSION);
-      
-      if (FileUtils.fileInArray(origDestFileArray, newFile)) {
-        // skip file, already added to processedFiles
-        processedCount.incrementAndGet();
+    } else if (desiredVideoCodec) {
+      jobType = JobType.AudioEncode;
+    } else if (desiredAudioCodec) {
+      jobType = JobType.VideoEncode;
+    } else {
+      jobType = JobType.FullEncode;
+    }
+    
+    return new ConversionPlan(sourceFile, newFile, jobType, mediaInfo);
+  }
+  
+  @Override
+  protected boolean mayFollowCopy(File sourceFile) {
+    // only an mp4 is copied as is, the probe will tell if its streams can be
+    return FileUtils.getExtension(sourceFile.getName()).equalsIgnoreCase(DESIRED_EXTENSION);
+  }
+  
+  @Override
+  protected void convert(JobContext context, ConversionPlan plan, 
+                         ProcessLauncher launcher) throws IOException, InterruptedException {
+    File sourceFile = plan.sourceFile;
+    File newFile = plan.tempFile;
+    String globalFlags = makeGlobalFlags(context);
+    switch (plan.jobType) {
+      case Copy:
+        // copy the file
+        if (VERBOSE) {
+          System.out.println("Copying file to: " + newFile.getAbsolutePath());
+        }
         
-        continue;
-      }
+        CopyStrategy[] copyStrategies = context.getBandwidthGovernor().makeCopyStrategies(plan.progress);
+        FileUtils.CopyResult copyResult = FileUtils.copyFile(sourceFile, newFile, copyStrategies);
+        if (VERBOSE) {
+          System.out.println(sourceFile.getName() + " " + copyResult);
+        }
+        break;
+      case CodecCopy:
+        if (VERBOSE) {
+          System.out.println("Copying codec data for " + FileUtils.getExtension(sourceFile.getName()) + 
+                               " file to: " + newFile.getAbsolutePath());
+        }
+        
+        encodeFile(launcher, sourceFile, newFile, 
+                   globalFlags + AVCONV_COPY_FLAGS, plan.progress);
+        break;
+      case AudioEncode:
+        if (VERBOSE) {
+          System.out.println("Encoding audio from " + sourceFile + " to: " + newFile.getAbsolutePath());
+        }
+        
+        EncodingProfile audioProfile = chooseProfile(context, plan);
+        List<ConversionPlan> audioExtraEncodes = findExtraEncodes(plan, audioProfile);
+        long audioStartTime = Clock.accurateForwardProgressingMillis();
+        encodeWithExtras(context, launcher, plan, audioProfile, audioExtraEncodes);
+        if (audioExtraEncodes.isEmpty()) {
+          // counted in the encode backlog, so its speed must be measured like any other encode
+          profilePolicy.recordEncode(audioProfile, plan.getEstimatedCost(), 
+                                     Clock.accurateForwardProgressingMillis() - audioStartTime);
+        }
+        break;
+      case VideoEncode:
+        if (VERBOSE) {
+          System.out.println("Encoding video from " + sourceFile + " to: " + newFile.getAbsolutePath());
+        }
+        
+        EncodingProfile videoProfile = chooseProfile(context, plan);
+        encodeWithProfile(context, launcher, plan, videoProfile);
+        break;
+      case FullEncode:
+        if (VERBOSE) {
+          System.out.println("Encoding " + sourceFile + " to: " + newFile.getAbsolutePath());
+        }
+        
+        EncodingProfile profile = chooseProfile(context, plan);
+        encodeWithProfile(context, launcher, plan, profile);
+        break;
+      default:
+        throw new UnsupportedOperationException("Unhandled job type: " + plan.jobType);
+    }
+  }
+  
+  /**
+   * Chooses the encoding profile for the job from the current backlog, and records the choice.
+   * A plan whose target has a fixed profile is always encoded with that.
+   */
+  private EncodingProfile chooseProfile(JobContext context, ConversionPlan plan) {
+    EncodingProfile targetProfile = plan.getEncodingProfile();
+    if (targetProfile != null) {
+      // the target always encodes with this profile
+      context.getRunMetrics().recordEncodingProfile(plan.jobType, targetProfile);
       
-      Future<?> future = scheduler.submit(new ConverterWorker(processedCount, 
-                                                              sourceFileList.size(), 
-                                                              sourceFile, newFile));
-      result.put(sourceFile, future);
+      return targetProfile;
+    }
+    double remainingCost = context.getRunProgress().getRemainingEncodeCost();
+    int encodeSlots = context.getEncodeLane().getMaxConcurrency();
+    EncodingProfile profile = profilePolicy.choose(remainingCost, encodeSlots);
+    plan.setEncodingProfile(profile);
+    context.getRunMetrics().recordEncodingProfile(plan.jobType, profile);
+    if (VERBOSE) {
+      long drainMillis = (long)(profilePolicy.estimateDrainSeconds(profile, remainingCost, encodeSlots) * 1000);
+      System.out.println("Encoding " + plan.sourceFile.getName() + " with profile " + profile + 
+                           ", encode backlog estimated to take " + RunProgress.formatMillis(drainMillis));
     }
     
-    return result;
+    return profile;
   }
   
-  private static class ConverterWorker implements Runnable {
-    private final long creationTime;
-    private final long originalSize;
-    private final AtomicInteger processedCount;
-    private final int totalProcessCount;
-    private final File sourceFile;
-    private final File newFile;
+  private void encodeWithProfile(JobContext context, ProcessLauncher launcher, ConversionPlan plan, 
+                                 EncodingProfile profile) throws IOException, InterruptedException {
+    List<ConversionPlan> extraEncodes = findExtraEncodes(plan, profile);
+    if (! extraEncodes.isEmpty()) {
+      // not segmented or recorded, the outputs share one encoder process
+      encodeWithExtras(context, launcher, plan, profile, extraEncodes);
+      return;
+    }
     
-    private ConverterWorker(AtomicInteger processedCount, 
-                            int totalProcessCount, 
-                            File sourceFile, File newFile) {
-      originalSize = sourceFile.length();
-      creationTime = Clock.lastKnownTimeMillis();
-      
-      this.processedCount = processedCount;
-      this.totalProcessCount = totalProcessCount;
-      this.sourceFile = sourceFile;
-      this.newFile = newFile;
+    long startTime = Clock.accurateForwardProgressingMillis();
+    if (! encodeMaybeSegmented(context, launcher, plan, makeEncodeFlags(plan.jobType, profile))) {
+      // segmented encodes use several slots at once, so only whole encodes tell us our speed
+      profilePolicy.recordEncode(profile, plan.getEstimatedCost(), 
+                                 Clock.accurateForwardProgressingMillis() - startTime);
+    }
+  }
+  
+  private static String makeEncodeFlags(JobType jobType, EncodingProfile profile) {
+    switch (jobType) {
+      case AudioEncode:
+        return AVCONV_COPY_VIDEO_FLAGS + profile.getAudioFlags();
+      case VideoEncode:
+        return profile.getVideoFlags() + AVCONV_COPY_AUDIO_FLAGS;
+      case FullEncode:
+        return profile.getVideoFlags() + ' ' + profile.getAudioFlags();
+      default:
+        throw new UnsupportedOperationException("Unhandled job type: " + jobType);
+    }
+  }
+  
+  /**
+   * Returns the extra outputs of the plan which need a profile different from the plan and each 
+   * other, so must be encoded alongside it.  The rest have the same content as one of those, and 
+   * take the profile of the plan if their target does not fix one.
+   */
+  private static List<ConversionPlan> findExtraEncodes(ConversionPlan plan, EncodingProfile profile) {
+    List<ConversionPlan> result = new ArrayList<ConversionPlan>(plan.getExtraOutputs().size());
+    List<EncodingProfile> profiles = new ArrayList<EncodingProfile>(plan.getExtraOutputs().size() + 1);
+    profiles.add(profile);
+    Iterator<ConversionPlan> it = plan.getExtraOutputs().iterator();
+    while (it.hasNext()) {
+      ConversionPlan extraPlan = it.next();
+      if (extraPlan.getEncodingProfile() == null) {
+        extraPlan.setEncodingProfile(profile);
+      } else if (! profiles.contains(extraPlan.getEncodingProfile())) {
+        profiles.add(extraPlan.getEncodingProfile());
+        result.add(extraPlan);
+      }
     }
     
-    @Override
-    public void run() {
-      // verify file is not still growing before continuing
-      if (! FileUtils.sizeStable(sourceFile, originalSize, creationTime)) {
-        processedCount.incrementAndGet();
-        
-        return;
+    return result;
+  }
+  
+  /**
+   * Encodes the plan and its extra encodes from a single decode of the source.  Extra outputs 
+   * which share a profile with an extra encode are copied from it, any left are produced from 
+   * the plan's new file once the job returns.
+   */
+  private static void encodeWithExtras(JobContext context, ProcessLauncher launcher, 
+                                       ConversionPlan plan, EncodingProfile profile, 
+                                       List<ConversionPlan> extraEncodes) throws IOException, 
+                                                                                 InterruptedException {
+    String globalFlags = makeGlobalFlags(context);
+    Map<File, String> outputFlags = new LinkedHashMap<File, String>();
+    outputFlags.put(plan.tempFile, globalFlags + makeEncodeFlags(plan.jobType, profile));
+    Iterator<ConversionPlan> it = extraEncodes.iterator();
+    while (it.hasNext()) {
+      ConversionPlan extraPlan = it.next();
+      if (VERBOSE) {
+        System.out.println("Also encoding with profile " + extraPlan.getEncodingProfile() + 
+                             " to: " + extraPlan.tempFile.getAbsolutePath());
+      }
+      outputFlags.put(extraPlan.tempFile, 
+                      globalFlags + makeEncodeFlags(plan.jobType, extraPlan.getEncodingProfile()));
+    }
+    encodeFile(launcher, plan.sourceFile.getAbsolutePath(), outputFlags, plan.progress);
+    
+    it = plan.getExtraOutputs().iterator();
+    while (it.hasNext()) {
+      ConversionPlan extraPlan = it.next();
+      if (extraEncodes.contains(extraPlan) || extraPlan.getEncodingProfile() == profile) {
+        continue;
+      }
+      Iterator<ConversionPlan> encodedIt = extraEncodes.iterator();
+      while (encodedIt.hasNext()) {
+        ConversionPlan encodedPlan = encodedIt.next();
+        if (encodedPlan.getEncodingProfile() == extraPlan.getEncodingProfile()) {
+          CopyStrategy[] copyStrategies = context.getBandwidthGovernor().makeCopyStrategies(extraPlan.progress);
+          FileUtils.copyFile(encodedPlan.tempFile, extraPlan.tempFile, copyStrategies);
+          break;
+        }
       }
+    }
+  }
+  
+  /**
+   * Encodes the plan, in segments if worth it.
+   * 
+   * @return {@code true} if the encode was segmented
+   */
+  private static boolean encodeMaybeSegmented(JobContext context, ProcessLauncher launcher, 
+                                              ConversionPlan plan, String encodeFlags) throws IOException, 
+                                                                         InterruptedException {
+    int segmentCount = SegmentedEncode.chooseSegmentCount(plan, context.getEncodeLane());
+    if (segmentCount > 1) {
+      plan.setSegmentCount(segmentCount);
+      new SegmentedEncode(context, launcher, plan, encodeFlags, segmentCount).encode();
       
-      try {
-        String fileInfo = getFileInfo(sourceFile);
-        boolean desiredVideoCodec = isDesiredVideoCodec(fileInfo);
-        boolean desiredAudioCodec = isDesiredAudioCodec(fileInfo);
-        if (desiredVideoCodec && desiredAudioCodec) {
-          String extension = FileUtils.getExtension(sourceFile.getName());
-          if (extension.equalsIgnoreCase(DESIRED_EXTENSION)) {
-            // copy the file
-            if (VERBOSE) {
-              System.out.println("Copying file to: " + newFile.getAbsolutePath());
-            }
-            
-            FileUtils.copyFile(sourceFile, newFile);
-          } else {
-            if (VERBOSE) {
-              System.out.println("Copying codec data for " + extension + " file to: " + newFile.getAbsolutePath());
-            }
-            
-            encodeFile(sourceFile, newFile, 
-                       AVCONV_COPY_FLAGS);
-          }
-        } else if (desiredVideoCodec) {
-          if (VERBOSE) {
-            System.out.println("Encoding audio from " + sourceFile + " to: " + newFile.getAbsolutePath());
-          }
-          
-          encodeFile(sourceFile, newFile, 
-                     AVCONV_ENCODE_AUDIO_FLAGS);
-        } else if (desiredAudioCodec) {
-          if (VERBOSE) {
-            System.out.println("Encoding video from " + sourceFile + " to: " + newFile.getAbsolutePath());
-          }
-          
-          encodeFile(sourceFile, newFile, 
-                     AVCONV_ENCODE_VIDEO_FLAGS);
-        } else {
+      return true;
+    } else {
+      encodeFile(launcher, plan.sourceFile, plan.tempFile, 
+                 makeGlobalFlags(context) + encodeFlags, plan.progress);
+      
+      return false;
+    }
+  }
+  
+  // thread count decided at start so it reflects the current load
+  protected static String makeGlobalFlags(JobContext context) {
+    return AVCONV_THREADS_FLAG + context.getEncodeThreadCount() + " ";
+  }
+  
+  public static boolean isDesiredVideoCodec(MediaInfo info) {
+    return info.hasCodec(MediaInfo.StreamType.Video, DESIRED_VIDEO_CODEC);
+  }
+  
+  public static boolean isDesiredAudioCodec(MediaInfo info) {
+    return info.hasCodec(MediaInfo.StreamType.Audio, DESIRED_AUDIO_CODEC);
+  }
+  
+  /**
+   * Probes the source, using the cached probe result if the source has not changed.
+   */
+  protected static MediaInfo probe(ProcessLauncher launcher, ProbeCache probeCache, 
+                                   File sourceFile) throws IOException, InterruptedException {
+    if (probeCache != null) {
+      MediaInfo cachedInfo = probeCache.get(sourceFile);
+      if (cachedInfo != null) {
+        return cachedInfo;
+      }
+    }
+    // read before probing, so a source still being written is not cached as it is now
+    long size = sourceFile.length();
+    long modifiedTime = sourceFile.lastModified();
+    
+    MediaInfo result = null;
+    if (AVPROBE_EXECUTABLE != null) {
+      String output = getProbeJson(launcher, sourceFile);
+      if (output != null) {
+        try {
+          result = MediaInfoParser.parseJson(output);
+        } catch (IllegalArgumentException e) {
           if (VERBOSE) {
-            System.out.println("Encoding " + sourceFile + " to: " + newFile.getAbsolutePath());
+            System.err.println("Could not parse avprobe output for " + sourceFile.getName() + 
+                                 ": " + e.getMessage());
           }
-          
-          encodeFile(sourceFile, newFile, 
-                     AVCONV_ENCODE_ALL_FLAGS);
         }
-      } catch (IOException e) {
-        throw ExceptionUtils.makeRuntime(e);
-      } catch (InterruptedException e) {
-        ExceptionUtils.handleException(e);
-        return;
-      }
-
-      int count = processedCount.incrementAndGet();
-         
-      if (VERBOSE) {
-        String percent = Double.toString(((count / (double)totalProcessCount)) * 100);
-        System.out.println("Estimated % done: " + 
-                             percent.substring(0, Math.min(percent.length() - 1, 5)) + "%" + 
-                             " - ( " + count + " out of " + totalProcessCount + " )\n");
       }
     }
-    
-    public static boolean isDesiredVideoCodec(String info) {
-      Matcher m = Pattern.compile("Video: h264").matcher(info);
-      
-      return m.find();
+    if (result == null) {
+      result = MediaInfoParser.parseText(getFileInfo(launcher, sourceFile));
     }
     
-    public static boolean isDesiredAudioCodec(String info) {
-      Matcher m = Pattern.compile("Audio: ac3").matcher(info);
-      
-      return m.find();
+    if (probeCache != null) {
+      probeCache.put(sourceFile, size, modifiedTime, result);
     }
     
-    private static String getFileInfo(File sourceFile) throws IOException {
-      String command[] = {ShellUtils.getDefaultShell(), 
-                          ShellUtils.getDefaultShellCommandFlag(), 
-                          LIBAV_EXECUTABLE.getAbsolutePath() + " -i '" + 
-                            sourceFile.getAbsolutePath() + "\' 2>&1"
-                         };
-      
-      Process p = Runtime.getRuntime().exec(command);
-      StringBuilder sb = new StringBuilder();
-
-      InputStream stdOutIs = p.getInputStream();
-      try {
-        byte[] buf = new byte[2048];
-        int c;
-        while ((c = stdOutIs.read(buf)) > -1) {
-          sb.append(new String(buf, 0, c));
-        }
-      } finally {
-        stdOutIs.close();
-      }
-      
-      return sb.toString();
+    return result;
+  }
+  
+  // returns null if avprobe fails
+  private static String getProbeJson(ProcessLauncher launcher, 
+                                     File sourceFile) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<String>(8);
+    command.add(AVPROBE_EXECUTABLE.getAbsolutePath());
+    command.add("-v");
+    command.add("quiet");
+    command.add("-of");
+    command.add("json");
+    command.add("-show_format");
+    command.add("-show_streams");
+    command.add(sourceFile.getAbsolutePath());
+    
+    OutputRingBuffer output = new OutputRingBuffer(MAX_PROBE_OUTPUT_BYTES);
+    if (launcher.launch(command, output).waitFor() != 0 || output.isTruncated()) {
+      return null;
     }
     
-    private static void encodeFile(File sourceFile, File destFile, 
-                                   String flags) throws IOException, 
+    return output.toString();
+  }
+  
+  private static String getFileInfo(ProcessLauncher launcher, 
+                                    File sourceFile) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<String>(3);
+    command.add(LIBAV_EXECUTABLE.getAbsolutePath());
+    command.add("-i");
+    command.add(sourceFile.getAbsolutePath());
+    
+    // exit code is not checked, avconv always fails since no output file is given
+    OutputRingBuffer output = new OutputRingBuffer(MAX_PROBE_OUTPUT_BYTES);
+    launcher.launch(command, output).waitFor();
+    
+    return output.toString();
+  }
+  
+  protected static void encodeFile(ProcessLauncher launcher, 
+                                   File sourceFile, File destFile, String flags, 
+                                   JobProgress progress) throws IOException, 
                                                         InterruptedException {
-      String command[] = {ShellUtils.getDefaultShell(), 
-                          ShellUtils.getDefaultShellCommandFlag(), 
-                          LIBAV_EXECUTABLE.getAbsolutePath() + " -i '" + sourceFile.getAbsolutePath() + '\'' + 
-                            " "  + flags + " '" + destFile.getAbsolutePath() + "\' 2>&1"
-                         };
-      Process p = Runtime.getRuntime().exec(command);
-
-      byte[] buf = new byte[2048];
-      InputStream stdOutIs = p.getInputStream();
-      try {
-        while (stdOutIs.read(buf) > -1) { 
-          // consume
-        }
-      } finally {
-        stdOutIs.close();
-      }
-      
-      if (p.waitFor() != 0) {
-        throw new IllegalStateException("non-zero exit code for command: " + command[2]);
-      }
+    encodeFile(launcher, sourceFile.getAbsolutePath(), destFile, flags, progress);
+  }
+  
+  /**
+   * Runs avconv with the provided input, which may be a path or a protocol url (ie 
+   * "concat:a.ts|b.ts").
+   */
+  protected static void encodeFile(ProcessLauncher launcher, 
+                                   String input, File destFile, String flags, 
+                                   JobProgress progress) throws IOException, 
+                                                        InterruptedException {
+    encodeFile(launcher, input, Collections.singletonMap(destFile, flags), progress);
+  }
+  
+  /**
+   * Runs avconv once for several outputs, so the input is only decoded a single time.
+   * 
+   * @param outputFlags Flags for each output file, in the order they are written
+   */
+  protected static void encodeFile(ProcessLauncher launcher, 
+                                   String input, Map<File, String> outputFlags, 
+                                   JobProgress progress) throws IOException, 
+                                                        InterruptedException {
+    List<String> command = new ArrayList<String>();
+    command.add(LIBAV_EXECUTABLE.getAbsolutePath());
+    command.add("-i");
+    command.add(input);
+    Iterator<Map.Entry<File, String>> it = outputFlags.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<File, String> e = it.next();
+      command.addAll(Arrays.asList(e.getValue().trim().split("\\s+")));
+      command.add(e.getKey().getAbsolutePath());
+    }
+    
+    ProgressParser progressParser = new ProgressParser(progress);
+    OutputRingBuffer outputTail = new OutputRingBuffer(ERROR_OUTPUT_BYTES);
+    ProcessLauncher.RunningProcess p = 
+        launcher.launch(command, new ProcessLauncher.TeeConsumer(progressParser, outputTail));
+    progressParser.setPid(p.getPid());
+    
+    int exitCode;
+    try {
+      exitCode = p.waitFor();
+    } finally {
+      progress.addThrottledMillis(p.getThrottledMillis());
+    }
+    if (exitCode != 0) {
+      throw new IllegalStateException("exit code " + exitCode + " for command: " + command + 
+                                        "\n" + outputTail);
     }
   }
 }
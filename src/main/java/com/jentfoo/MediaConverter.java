@@ -1,32 +1,50 @@
 package com.jentfoo;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.threadly.concurrent.PriorityScheduler;
 import org.threadly.concurrent.PrioritySchedulerService;
-import org.threadly.concurrent.SchedulerService;
 import org.threadly.concurrent.TaskPriority;
-import org.threadly.concurrent.wrapper.limiter.SchedulerServiceLimiter;
+import org.threadly.util.Clock;
 
 public class MediaConverter {
   private static final boolean VERBOSE = true;
   private static final short THREAD_COUNT = 16;
   private static final short DEFAULT_ENCODE_PARALLEL_COUNT = 4;
-  private static final long MAX_RUN_TIME = 1000 * 60 * 60 * 24 * 2; // 2 days in millis
+  private static final short DEFAULT_COPY_PARALLEL_COUNT = 2;
+  private static final int PROGRESS_REPORT_INTERVAL_IN_MILLIS = 1000 * 60;
+  public static final String STATE_FOLDER_PROPERTY = "xboxMediaProcessor.stateFolder";
+  private static final String DEFAULT_STATE_FOLDER_NAME = ".xboxMediaProcessor";
+  private static final String PROBE_CACHE_FILE_NAME = "probeCache.bin";
+  private static final String JOURNAL_FILE_NAME = "journal.log";
+  private static final String FINGERPRINT_INDEX_FILE_NAME = "fingerprints.bin";
+  private static final String THROUGHPUT_HISTORY_FILE_NAME = "throughput.bin";
+  private static final String RUN_REPORT_FILE_NAME = "runReport.json";
+  private static final String PROMETHEUS_FOLDER_PROPERTY = "xboxMediaProcessor.textfileFolder";
+  private static final String PROMETHEUS_FILE_NAME = "xbox_media_processor.prom";
+  private static final int METRICS_WRITE_INTERVAL_IN_MILLIS = 1000 * 60;
+  private static final String DAEMON_FLAG = "--daemon";
+  private static final String RECURSIVE_FLAG = "--recursive";
+  private static final String PLAN_FLAG = "--plan";
+  private static final String TARGET_FLAG = "--target";
+  private static final int RECONCILE_INTERVAL_IN_MILLIS = 1000 * 60 * 10;
   
   public enum ConverterType { 
     Libav, Mencoder;
-
+    
     public static ConverterType parse(String type) {
       if (Libav.name().equalsIgnoreCase(type)) {
         return Libav;
@@ -46,115 +64,584 @@ public class MediaConverter {
       System.err.println("Usage: ");
       System.err.println("java -cp XboxMediaProcessor.jar " + 
                            MediaConverter.class.getName() + 
-                           " <source folder> <destination folder> [mencoder|libav]");
+                           " [--daemon|--plan] [--recursive] <source folder> <destination folder> [mencoder|libav] [encode parallel count]");
+      System.err.println("java -cp XboxMediaProcessor.jar " + 
+                           MediaConverter.class.getName() + 
+                           " [--plan] [--recursive] --target <mencoder|libav>[/<profile>]:<destination folder> " + 
+                           "[--target ...] <source folder> [encode parallel count]");
       
       System.exit(1);
     }
   }
   
-  private static void parseArgsAndRun(String args[]) {
-    if (args.length < 2) {
-      throw new IllegalArgumentException("Must supply at least two arguments");
-    } else if (args.length > 4) {
-      throw new IllegalArgumentException("Only 4 valid arguments are permitted");
+  private static void parseArgsAndRun(String rawArgs[]) {
+    boolean daemon = false;
+    boolean recursive = false;
+    boolean plan = false;
+    List<String> targetArgs = new ArrayList<String>(2);
+    List<String> argList = new ArrayList<String>(rawArgs.length);
+    for (int i = 0; i < rawArgs.length; i++) {
+      if (rawArgs[i].startsWith("--")) {
+        if (TARGET_FLAG.equals(rawArgs[i])) {
+          if (++i == rawArgs.length) {
+            throw new IllegalArgumentException("Missing value for option: " + TARGET_FLAG);
+          }
+          targetArgs.add(rawArgs[i]);
+        } else if (DAEMON_FLAG.equals(rawArgs[i])) {
+          daemon = true;
+        } else if (RECURSIVE_FLAG.equals(rawArgs[i])) {
+          recursive = true;
+        } else if (PLAN_FLAG.equals(rawArgs[i])) {
+          plan = true;
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + rawArgs[i]);
+        }
+      } else {
+        argList.add(rawArgs[i]);
+      }
+    }
+    String[] args = argList.toArray(new String[argList.size()]);
+    
+    if (daemon && plan) {
+      throw new IllegalArgumentException("Can not both plan and run as a daemon");
+    }
+    
+    File sourceFolder;
+    int encodeParallelCount = DEFAULT_ENCODE_PARALLEL_COUNT;
+    List<TargetSpec> targetSpecs = new ArrayList<TargetSpec>(Math.max(1, targetArgs.size()));
+    if (targetArgs.isEmpty()) {
+      if (args.length < 2) {
+        throw new IllegalArgumentException("Must supply at least two arguments");
+      } else if (args.length > 4) {
+        throw new IllegalArgumentException("Only 4 valid arguments are permitted");
+      }
+      
+      sourceFolder = new File(args[0]);
+      ConverterType converterType;
+      if (LibavConverter.getAvconvExecutable() != null) {
+        converterType = ConverterType.Libav;
+      } else {
+        converterType = ConverterType.Mencoder;
+      }
+      if (args.length > 2) {
+        converterType = ConverterType.parse(args[2]);
+      }
+      if (args.length > 3) {
+        encodeParallelCount = Integer.parseInt(args[3]);
+      }
+      targetSpecs.add(new TargetSpec(converterType, null, new File(args[1]), null));
+    } else {
+      if (args.length < 1) {
+        throw new IllegalArgumentException("Must supply a source folder");
+      } else if (args.length > 2) {
+        throw new IllegalArgumentException("Only a source folder and encode parallel count are permitted with targets");
+      } else if (daemon && targetArgs.size() > 1) {
+        throw new IllegalArgumentException("Only a single target is supported when running as a daemon");
+      }
+      
+      sourceFolder = new File(args[0]);
+      if (args.length > 1) {
+        encodeParallelCount = Integer.parseInt(args[1]);
+      }
+      Iterator<String> it = targetArgs.iterator();
+      while (it.hasNext()) {
+        TargetSpec targetSpec = TargetSpec.parse(it.next());
+        if (daemon && targetSpec.profile != null) {
+          throw new IllegalArgumentException("Target profiles are not supported when running as a daemon");
+        }
+        targetSpecs.add(targetSpec);
+      }
     }
     
-    File sourceFolder = new File(args[0]);
-    File destFolder = new File(args[1]);
     if (! sourceFolder.exists()) {
       throw new IllegalStateException("Source folder does not exist");
     } else if (! sourceFolder.isDirectory()) {
       throw new IllegalStateException("Source folder is not a folder");
-    } else if (! destFolder.exists()) {
-      if (! destFolder.mkdirs()) {
-        throw new IllegalStateException("Could not make destination folder");
+    }
+    Iterator<TargetSpec> specIt = targetSpecs.iterator();
+    while (specIt.hasNext()) {
+      File destFolder = specIt.next().destFolder;
+      if (! destFolder.exists()) {
+        if (! destFolder.mkdirs()) {
+          throw new IllegalStateException("Could not make destination folder: " + destFolder.getAbsolutePath());
+        }
+      } else if (! destFolder.isDirectory()) {
+        throw new IllegalStateException("Destination folder is not a folder: " + destFolder.getAbsolutePath());
+      }
+    }
+    
+    ProbeCache probeCache = null;
+    EncodingProfilePolicy profilePolicy = null;
+    // targets of the same type share a converter, so their outputs can be produced together
+    Map<ConverterType, AbstractConverter> converters = new HashMap<ConverterType, AbstractConverter>();
+    List<TargetSpec> targets = new ArrayList<TargetSpec>(targetSpecs.size());
+    List<File> destFolders = new ArrayList<File>(targetSpecs.size());
+    specIt = targetSpecs.iterator();
+    while (specIt.hasNext()) {
+      TargetSpec targetSpec = specIt.next();
+      AbstractConverter converter = converters.get(targetSpec.converterType);
+      if (converter == null) {
+        switch (targetSpec.converterType) {
+          case Mencoder:
+            converter = new MencoderConverter();
+            break;
+          case Libav:
+            probeCache = new ProbeCache(new File(getStateFolder(), PROBE_CACHE_FILE_NAME));
+            probeCache.load();
+            profilePolicy = EncodingProfilePolicy.fromSystemProperties();
+            converter = new LibavConverter(probeCache, profilePolicy);
+            break;
+          default:
+            throw new UnsupportedOperationException("Unhandled converter type: " + targetSpec.converterType);
+        }
+        converters.put(targetSpec.converterType, converter);
+      }
+      targets.add(targetSpec.withConverter(converter));
+      destFolders.add(targetSpec.destFolder);
+    }
+    
+    final ThroughputHistory throughputHistory = 
+        new ThroughputHistory(new File(getStateFolder(), THROUGHPUT_HISTORY_FILE_NAME));
+    throughputHistory.load();
+    
+    if (plan) {
+      try {
+        printPlan(encodeParallelCount, throughputHistory, profilePolicy, 
+                  new SourceWalker(recursive), targets, sourceFolder);
+      } finally {
+        if (probeCache != null) {
+          // probes are reused by the run which follows
+          saveProbeCache(probeCache);
+        }
       }
-    } else if (! destFolder.isDirectory()) {
-      throw new IllegalStateException("Destination folder is not a folder");
+      return;
+    }
+    
+    // parsed before anything is opened, so a bad limit is reported with the usage
+    BandwidthGovernor bandwidthGovernor = BandwidthGovernor.fromSystemProperties();
+    LeaseManager leaseManager = LeaseManager.fromSystemProperties(destFolders);
+    if (leaseManager != null && VERBOSE) {
+      System.out.println("Sharing work with other workers as " + leaseManager.getWorkerId());
+    }
+    
+    JobJournal journal;
+    try {
+      journal = JobJournal.open(new File(getStateFolder(), JOURNAL_FILE_NAME));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not open job journal in: " + getStateFolder().getAbsolutePath(), e);
     }
     
-    ConverterType converterType;
-    if (LibavConverter.getAvconvExecutable() != null) {
-      converterType = ConverterType.Libav;
+    final FingerprintIndex fingerprintIndex = 
+        new FingerprintIndex(new File(getStateFolder(), FINGERPRINT_INDEX_FILE_NAME));
+    fingerprintIndex.load();
+    
+    if (daemon) {
+      final JobJournal fJournal = journal;
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          fJournal.close();
+        }
+      });
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          saveFingerprintIndex(fingerprintIndex);
+          saveThroughputHistory(throughputHistory);
+        }
+      });
+      if (probeCache != null) {
+        // daemon is normally stopped by a signal, so save on the way out
+        final ProbeCache fProbeCache = probeCache;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+          @Override
+          public void run() {
+            saveProbeCache(fProbeCache);
+          }
+        });
+      }
+      
+      // the daemon only supports a single target, checked with the arguments
+      TargetSpec target = targets.get(0);
+      startDaemon(encodeParallelCount, journal, fingerprintIndex, throughputHistory, 
+                  bandwidthGovernor, leaseManager, 
+                  new SourceWalker(recursive), target.converter, target.destFolder, sourceFolder);
     } else {
-      converterType = ConverterType.Mencoder;
+      try {
+        startProcessingFiles(encodeParallelCount, journal, fingerprintIndex, throughputHistory, 
+                             bandwidthGovernor, leaseManager, 
+                             new SourceWalker(recursive), targets, sourceFolder);
+      } finally {
+        journal.close();
+        saveFingerprintIndex(fingerprintIndex);
+        saveThroughputHistory(throughputHistory);
+        if (probeCache != null) {
+          saveProbeCache(probeCache);
+        }
+      }
     }
-    if (args.length > 2) {
-      converterType = ConverterType.parse(args[2]);
+  }
+  
+  public static File getStateFolder() {
+    String stateFolder = System.getProperty(STATE_FOLDER_PROPERTY);
+    if (stateFolder != null) {
+      return new File(stateFolder);
+    } else {
+      return new File(System.getProperty("user.home"), DEFAULT_STATE_FOLDER_NAME);
     }
-    int encodeParallelCount = DEFAULT_ENCODE_PARALLEL_COUNT;
-    if (args.length > 3) {
-      encodeParallelCount = Integer.parseInt(args[3]);
+  }
+  
+  /**
+   * Writes the JSON run report to the state folder, and the Prometheus file to the node_exporter 
+   * textfile folder (or the state folder if one is not configured).
+   */
+  private static void writeRunReports(RunMetrics runMetrics) {
+    File stateFolder = getStateFolder();
+    String prometheusFolder = System.getProperty(PROMETHEUS_FOLDER_PROPERTY);
+    File prometheusFile = new File(prometheusFolder == null ? stateFolder : new File(prometheusFolder), 
+                                   PROMETHEUS_FILE_NAME);
+    try {
+      runMetrics.writeReports(new File(stateFolder, RUN_REPORT_FILE_NAME), prometheusFile);
+    } catch (IOException e) {
+      System.err.println("Failed to write run reports to: " + stateFolder.getAbsolutePath());
+      e.printStackTrace(System.err);
+    }
+  }
+  
+  private static void scheduleRunReports(PrioritySchedulerService scheduler, 
+                                         final RunMetrics runMetrics) {
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        writeRunReports(runMetrics);
+      }
+    }, METRICS_WRITE_INTERVAL_IN_MILLIS, METRICS_WRITE_INTERVAL_IN_MILLIS, TaskPriority.Low);
+  }
+  
+  private static void saveProbeCache(ProbeCache probeCache) {
+    if (VERBOSE) {
+      System.out.println(probeCache);
+    }
+    try {
+      probeCache.save();
+    } catch (IOException e) {
+      System.err.println("Failed to save probe cache: " + probeCache.getCacheFile().getAbsolutePath());
+      e.printStackTrace(System.err);
     }
+  }
+  
+  private static void saveFingerprintIndex(FingerprintIndex fingerprintIndex) {
+    if (VERBOSE) {
+      System.out.println(fingerprintIndex);
+    }
+    try {
+      fingerprintIndex.save();
+    } catch (IOException e) {
+      System.err.println("Failed to save fingerprint index: " + fingerprintIndex.getIndexFile().getAbsolutePath());
+      e.printStackTrace(System.err);
+    }
+  }
+  
+  private static void saveThroughputHistory(ThroughputHistory throughputHistory) {
+    try {
+      throughputHistory.save();
+    } catch (IOException e) {
+      System.err.println("Failed to save throughput history: " + throughputHistory.getHistoryFile().getAbsolutePath());
+      e.printStackTrace(System.err);
+    }
+  }
+  
+  private static PriorityScheduler makeScheduler(int encodeParallelCount) {
+    // enough threads for every lane to be fully busy, with room left for probing and maintenance
+    int maxThreadCount = Math.max(encodeParallelCount + DEFAULT_COPY_PARALLEL_COUNT + 
+                                    JobContext.DEFAULT_PROBE_PARALLEL_COUNT + 
+                                    JobContext.DEFAULT_PUBLISH_PARALLEL_COUNT + 
+                                    JobContext.DEFAULT_FOLLOW_PARALLEL_COUNT + 1, 
+                                  THREAD_COUNT);
     
-    ConverterInterface converter;
-    switch (converterType) {
-      case Mencoder:
-        converter = new MencoderConverter();
-        break;
-      case Libav:
-        converter = new LibavConverter();
-        break;
-      default:
-        throw new UnsupportedOperationException("Unhandled converter type: " + converterType);
+    return new PriorityScheduler(maxThreadCount, TaskPriority.High, 10 * 1000, true);
+  }
+  
+  private static JobContext makeJobContext(PriorityScheduler scheduler, int encodeParallelCount, 
+                                           JobJournal journal, FingerprintIndex fingerprintIndex, 
+                                           ThroughputHistory throughputHistory, 
+                                           BandwidthGovernor bandwidthGovernor, 
+                                           final LeaseManager leaseManager) {
+    PriorityLane copyLane = new PriorityLane("copy", scheduler, DEFAULT_COPY_PARALLEL_COUNT);
+    PriorityLane encodeLane = new PriorityLane("encode", scheduler, encodeParallelCount);
+    AdaptiveConcurrencyController concurrencyController = null;
+    if (AdaptiveConcurrencyController.isSupported()) {
+      // encode parallel count becomes the ceiling, the controller will decide what we can run
+      concurrencyController = new AdaptiveConcurrencyController(encodeLane, encodeParallelCount);
+      concurrencyController.start(scheduler);
     }
     
-    startProcessingFiles(encodeParallelCount, 
-                         converter, destFolder, sourceFolder);
+    final JobContext result = 
+        new JobContext(scheduler, 
+                       new PriorityLane("probe", scheduler, JobContext.DEFAULT_PROBE_PARALLEL_COUNT), 
+                       copyLane, encodeLane, StabilityTracker.fromSystemProperties(scheduler), 
+                       concurrencyController, journal, fingerprintIndex, 
+                       bandwidthGovernor, leaseManager, throughputHistory);
+    bandwidthGovernor.start(scheduler, result.getProcessLauncher());
+    if (leaseManager != null) {
+      leaseManager.start(scheduler);
+    }
+    // don't leave encoders running if we are stopped or killed by a timeout
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        result.getProcessLauncher().killAll();
+        if (leaseManager != null) {
+          // let other workers take our files now, rather than once the leases expire
+          leaseManager.releaseAll();
+        }
+      }
+    });
+    
+    return result;
+  }
+  
+  /**
+   * Builds the index of the destination folder, mirroring the source folder structure if the 
+   * walker is recursive.
+   * 
+   * @param sourceFileArray Known source files, or {@code null} if they will be added later
+   */
+  protected static DirectoryIndex buildDestIndex(SourceWalker sourceWalker, 
+                                                 ConverterInterface converter, 
+                                                 File sourceFolder, File destFolder, 
+                                                 File[] sourceFileArray) {
+    if (sourceWalker.isRecursive()) {
+      return DirectoryIndex.buildMirrored(sourceFolder, destFolder, converter.getProducedExtesion(), 
+                                          listDestFiles(sourceWalker, destFolder), sourceFileArray);
+    } else {
+      return DirectoryIndex.build(destFolder, converter.getProducedExtesion(), 
+                                  listDestFiles(sourceWalker, destFolder), sourceFileArray);
+    }
   }
   
-  private static void startProcessingFiles(int encodeParallelCount, 
-                                           final ConverterInterface converter, 
-                                           final File destFolder, final File sourceFolder) {
-    int maxThreadCount = Math.max(encodeParallelCount + 1, THREAD_COUNT);
-    PriorityScheduler scheduler = new PriorityScheduler(maxThreadCount, TaskPriority.High, 10 * 1000, true);
+  /**
+   * Lists the files of the destination folder, including sub folders if the walker is recursive.
+   */
+  protected static File[] listDestFiles(SourceWalker sourceWalker, File destFolder) {
+    if (sourceWalker.isRecursive()) {
+      return sourceWalker.listFiles(destFolder);
+    } else {
+      return destFolder.listFiles();
+    }
+  }
+  
+  private static void startProcessingFiles(int encodeParallelCount, JobJournal journal, 
+                                           FingerprintIndex fingerprintIndex, 
+                                           ThroughputHistory throughputHistory, 
+                                           BandwidthGovernor bandwidthGovernor, 
+                                           LeaseManager leaseManager, 
+                                           final SourceWalker sourceWalker, 
+                                           List<TargetSpec> targetSpecs, 
+                                           final File sourceFolder) {
+    PriorityScheduler scheduler = makeScheduler(encodeParallelCount);
+    final JobContext context = makeJobContext(scheduler, encodeParallelCount, 
+                                              journal, fingerprintIndex, throughputHistory, 
+                                              bandwidthGovernor, leaseManager);
+    final RunMetrics runMetrics = context.getRunMetrics();
     
     try {
-      final File[] origDestFileArray = destFolder.listFiles();
-      final File[] sourceFileArray = sourceFolder.listFiles();
+      // sources are added to the indexes as the walk finds them
+      final List<ConversionTarget> targets = new ArrayList<ConversionTarget>(targetSpecs.size());
+      final List<DirectoryIndex> destIndexes = new ArrayList<DirectoryIndex>(targetSpecs.size());
+      Iterator<TargetSpec> specIt = targetSpecs.iterator();
+      while (specIt.hasNext()) {
+        TargetSpec targetSpec = specIt.next();
+        DirectoryIndex destIndex = buildDestIndex(sourceWalker, targetSpec.converter, 
+                                                  sourceFolder, targetSpec.destFolder, null);
+        cleanupInterruptedJobs(journal, context.getLeaseManager(), destIndex);
+        targets.add(new ConversionTarget(targetSpec.converter, destIndex, targetSpec.profile));
+        destIndexes.add(destIndex);
+        if (VERBOSE && targetSpecs.size() > 1) {
+          System.out.println("Converting to target: " + targets.get(targets.size() - 1));
+        }
+      }
       
-      List<File> sourceFileList = makeValidSourceList(converter, 
-                                                      sourceFileArray, 
-                                                      destFolder, 
-                                                      origDestFileArray);
+      final Map<File, JobHandle> jobs = new ConcurrentHashMap<File, JobHandle>();
+      scheduleProgressReporting(scheduler, context);
+      scheduleRunReports(scheduler, runMetrics);
       
-      SchedulerService converterPool = new SchedulerServiceLimiter(scheduler, encodeParallelCount);
-      Map<File, Future<?>> jobs = converter.submitJobs(converterPool, sourceFileList, destFolder);
+      // jobs are submitted as they are found, so conversions start before the walk finishes
+      sourceWalker.walk(sourceFolder, new SourceWalker.FileHandler() {
+        @Override
+        public void handleFile(File sourceFile) {
+          Iterator<DirectoryIndex> it = destIndexes.iterator();
+          while (it.hasNext()) {
+            it.next().addSourceFile(sourceFile);
+          }
+          List<File> sourceFileList = makeValidSourceList(new File[] { sourceFile }, destIndexes);
+          if (! sourceFileList.isEmpty()) {
+            // one job per source for every target, so it is only probed and decoded once
+            jobs.putAll(AbstractConverter.submitJobs(context, sourceFileList, targets));
+          }
+        }
+      });
       
-      if (jobs.isEmpty()) {
-        deleteRemovedFiles(converter, origDestFileArray, 
-                           sourceFileArray,
-                           destFolder);
-      } else {
-        scheduleKillTask(scheduler, converter, jobs, destFolder);
-        
+      // only now that every source is known can we tell which files were removed
+      Iterator<ConversionTarget> targetIt = targets.iterator();
+      while (targetIt.hasNext()) {
+        deleteRemovedFiles(targetIt.next().destIndex, runMetrics);
+      }
+      
+      if (! jobs.isEmpty()) {
         scheduler.scheduleWithFixedDelay(new Runnable() {
           @Override
           public void run() {
-            deleteRemovedFiles(converter, origDestFileArray, 
-                               sourceFolder.listFiles(),
-                               destFolder);
+            File[] sourceFileArray = sourceWalker.listFiles(sourceFolder);
+            Iterator<ConversionTarget> it = targets.iterator();
+            while (it.hasNext()) {
+              DirectoryIndex destIndex = it.next().destIndex;
+              destIndex.setSourceFiles(sourceFileArray);
+              deleteRemovedFiles(destIndex, runMetrics);
+            }
           }
-        }, 0, 1000 * 60 * 10, TaskPriority.Low);
+        }, RECONCILE_INTERVAL_IN_MILLIS, RECONCILE_INTERVAL_IN_MILLIS, TaskPriority.Low);
         
         // wait for all running processes to finish
         waitForJobs(jobs);
       }
     } finally {
       scheduler.shutdown();
+      context.getProcessLauncher().shutdown();
+      writeRunReports(runMetrics);
+    }
+  }
+  
+  private static void startDaemon(int encodeParallelCount, JobJournal journal, 
+                                  FingerprintIndex fingerprintIndex, 
+                                  ThroughputHistory throughputHistory, 
+                                  BandwidthGovernor bandwidthGovernor, 
+                                  LeaseManager leaseManager, 
+                                  SourceWalker sourceWalker, 
+                                  ConverterInterface converter, 
+                                  File destFolder, File sourceFolder) {
+    PriorityScheduler scheduler = makeScheduler(encodeParallelCount);
+    
+    try {
+      final JobContext context = makeJobContext(scheduler, encodeParallelCount, 
+                                                journal, fingerprintIndex, throughputHistory, 
+                                                bandwidthGovernor, leaseManager);
+      scheduleRunReports(scheduler, context.getRunMetrics());
+      // the daemon is normally stopped by a signal, so write the final numbers on the way out
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          writeRunReports(context.getRunMetrics());
+        }
+      });
+      new DaemonProcessor(scheduler, context, sourceWalker, 
+                          converter, sourceFolder, destFolder).run();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not watch source folder: " + sourceFolder.getAbsolutePath(), e);
+    } finally {
+      scheduler.shutdownNow();
     }
   }
   
-  private static void scheduleKillTask(PrioritySchedulerService scheduler, 
-                                       ConverterInterface converter, 
-                                       Map<File, Future<?>> jobs, 
-                                       File destFolder) {
-    scheduler.schedule(new TimeoutKiller(converter, jobs, destFolder), 
-                       MAX_RUN_TIME, TaskPriority.Low);
+  /**
+   * Prints what a run would do, and how long it is expected to take, without converting anything.
+   */
+  private static void printPlan(int encodeParallelCount, ThroughputHistory throughputHistory, 
+                                EncodingProfilePolicy profilePolicy, SourceWalker sourceWalker, 
+                                List<TargetSpec> targets, File sourceFolder) {
+    FingerprintIndex fingerprintIndex = 
+        new FingerprintIndex(new File(getStateFolder(), FINGERPRINT_INDEX_FILE_NAME));
+    fingerprintIndex.load();
+    PriorityScheduler scheduler = makeScheduler(encodeParallelCount);
+    // nothing is recorded, so the journal of a run in progress is left alone
+    JobContext context = 
+        new JobContext(scheduler, new PriorityLane("probe", scheduler, JobContext.DEFAULT_PROBE_PARALLEL_COUNT), 
+                       new PriorityLane("copy", scheduler, DEFAULT_COPY_PARALLEL_COUNT), 
+                       new PriorityLane("encode", scheduler, encodeParallelCount), 
+                       new StabilityTracker(scheduler), null, new JobJournal(), fingerprintIndex, 
+                       new BandwidthGovernor(), null, null);
+    try {
+      Iterator<TargetSpec> it = targets.iterator();
+      while (it.hasNext()) {
+        TargetSpec target = it.next();
+        if (targets.size() > 1) {
+          System.out.println("Plan for " + target + ":");
+        }
+        new RunPlanner(context, sourceWalker, target.converter, throughputHistory, 
+                       profilePolicy, sourceFolder, target.destFolder).run();
+        if (it.hasNext()) {
+          System.out.println();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      scheduler.shutdown();
+      context.getProcessLauncher().shutdown();
+    }
   }
   
-  private static List<File> makeValidSourceList(ConverterInterface converter, File[] sourceFileArray, 
-                                                File destFolder, File[] origDestFileArray) {
+  private static void scheduleProgressReporting(PrioritySchedulerService scheduler, 
+                                                final JobContext context) {
+    if (! VERBOSE) {
+      return;
+    }
+    
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        String runningSummary = context.getRunProgress().getRunningJobsSummary();
+        if (! runningSummary.isEmpty()) {
+          System.out.println(runningSummary);
+        }
+        System.out.println("Pipeline - pending: " + context.getPendingJobCount() + 
+                             ", waiting to be stable: " + 
+                             context.getStabilityTracker().getTrackedCount());
+        System.out.println("  " + context.getProbeLane());
+        System.out.println("  " + context.getCopyLane());
+        System.out.println("  " + context.getEncodeLane());
+        System.out.println("  " + context.getPublishLane());
+        System.out.println("  " + context.getFollowLane());
+      }
+    }, PROGRESS_REPORT_INTERVAL_IN_MILLIS, PROGRESS_REPORT_INTERVAL_IN_MILLIS, TaskPriority.Low);
+  }
+  
+  /**
+   * Removes the partial files left by jobs which were still running when the last run was killed.  
+   * Those jobs will then be started again as if they were new.
+   */
+  protected static void cleanupInterruptedJobs(JobJournal journal, LeaseManager leaseManager, 
+                                               DirectoryIndex destIndex) {
+    Iterator<File> it = journal.getInterruptedSources().iterator();
+    while (it.hasNext()) {
+      File sourceFile = it.next();
+      File newFile = destIndex.makeDestFile(sourceFile);
+      if (leaseManager != null && leaseManager.isHeldByOther(newFile)) {
+        // another worker took it over since we were stopped, the partial file is theirs
+        continue;
+      }
+      if (VERBOSE) {
+        System.out.println("Resuming interrupted job: " + sourceFile.getAbsolutePath());
+      }
+      // no other worker holds it, so any partial file (ours from before a restart) is abandoned
+      File[] partialFiles = FileUtils.findPartialFiles(newFile);
+      for (int i = 0; i < partialFiles.length; i++) {
+        if (! FileUtils.deleteFileOrFolder(partialFiles[i])) {
+          System.err.println("Failed to delete partial file: " + partialFiles[i].getAbsolutePath());
+        }
+      }
+    }
+  }
+  
+  protected static List<File> makeValidSourceList(File[] sourceFileArray, DirectoryIndex destIndex) {
+    return makeValidSourceList(sourceFileArray, Collections.singletonList(destIndex));
+  }
+  
+  /**
+   * Returns the sources which can be read.  A source which can not be read is still returned if 
+   * any of the destinations already has it converted, so that file is not removed as an orphan.
+   */
+  protected static List<File> makeValidSourceList(File[] sourceFileArray, List<DirectoryIndex> destIndexes) {
     List<File> sourceFileList = new ArrayList<File>(sourceFileArray.length);
     for (int i = 0; i < sourceFileArray.length; i++) {
       File sourceFile = sourceFileArray[i]; 
@@ -164,14 +651,20 @@ public class MediaConverter {
         } else {
           System.err.print("Can not read file: " + sourceFile.getAbsolutePath());
           
-          File newFile = FileUtils.makeNewFile(destFolder, sourceFile, converter.getProducedExtesion());
-          if (FileUtils.fileInArray(origDestFileArray, newFile)) {
-            System.err.println("...will not remove already converted file: " + newFile.getAbsolutePath());
-            
-            // add so the already converted file is not removed
+          boolean converted = false;
+          Iterator<DirectoryIndex> it = destIndexes.iterator();
+          while (it.hasNext()) {
+            DirectoryIndex destIndex = it.next();
+            File newFile = destIndex.makeDestFile(sourceFile);
+            if (destIndex.containsDestFile(newFile)) {
+              System.err.print("...will not remove already converted file: " + newFile.getAbsolutePath());
+              converted = true;
+            }
+          }
+          System.err.println();
+          if (converted) {
+            // add so the already converted files are not removed
             sourceFileList.add(sourceFile);
-          } else {
-            System.err.println();
           }
         }
       }
@@ -180,12 +673,12 @@ public class MediaConverter {
     return sourceFileList;
   }
   
-  private static void waitForJobs(Map<File, Future<?>> jobs) {
-    jobs = new HashMap<File, Future<?>>(jobs);  // make copy so we can modify
+  private static void waitForJobs(Map<File, JobHandle> jobs) {
+    jobs = new HashMap<File, JobHandle>(jobs);  // make copy so we can modify
     
-    Iterator<Entry<File, Future<?>>> futureIt = jobs.entrySet().iterator();
+    Iterator<Entry<File, JobHandle>> futureIt = jobs.entrySet().iterator();
     while (futureIt.hasNext()) {
-      Entry<File, Future<?>> futureEntry = futureIt.next();
+      Entry<File, JobHandle> futureEntry = futureIt.next();
       try {
         try {
           futureEntry.getValue().get(1000, TimeUnit.MILLISECONDS);
@@ -200,6 +693,8 @@ public class MediaConverter {
         }
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
+      } catch (CancellationException e) {
+        // timed out or cancelled, already logged
       } catch (ExecutionException e) {
         System.out.println("Exception processing file: " + futureEntry.getKey());
         e.printStackTrace(System.err);
@@ -209,69 +704,87 @@ public class MediaConverter {
     }
   }
   
-  // TODO - do we want to move this functionality into another class
-  private static void deleteRemovedFiles(ConverterInterface converter, 
-                                         File[] origDestFileList, 
-                                         File[] sourceFileArray, 
-                                         File destFolder) {
-    for (int i = 0; i < origDestFileList.length; i++) {
-      boolean stillExists = false;
-      for (int j = 0; j < sourceFileArray.length; j++) {
-        String destFilePath = FileUtils.makeNewFile(destFolder, sourceFileArray[j], 
-                                                    converter.getProducedExtesion()).getAbsolutePath();
-        if (destFilePath.equals(origDestFileList[i].getAbsolutePath())) {
-          stillExists = true;
-          break;
-        }
+  protected static void deleteRemovedFiles(DirectoryIndex destIndex, RunMetrics runMetrics) {
+    Iterator<File> it = destIndex.getOrphanedDestFiles().iterator();
+    while (it.hasNext()) {
+      File destFile = it.next();
+      if (VERBOSE) {
+        System.out.println("Deleting file: " + destFile.getAbsolutePath());
       }
-      
-      if (! stillExists) {
-        if (VERBOSE) {
-          System.out.println("Deleting file: " + origDestFileList[i].getAbsolutePath());
-        }
-        if (! origDestFileList[i].delete()) {
-          System.err.println("Failed to delete file: " + origDestFileList[i].getAbsolutePath());
+      long startTime = Clock.accurateForwardProgressingMillis();
+      if (destFile.delete()) {
+        destIndex.removeDestFile(destFile);
+        if (destIndex.isMirrored()) {
+          deleteEmptyFolders(destFile.getAbsoluteFile().getParentFile(), destIndex.getFolder());
         }
+      } else {
+        System.err.println("Failed to delete file: " + destFile.getAbsolutePath());
+      }
+      runMetrics.recordStage(RunMetrics.Stage.Delete, null, 
+                             Clock.accurateForwardProgressingMillis() - startTime);
+    }
+  }
+  
+  // removes the folder, and any parent folders below the stop folder, if they are empty
+  private static void deleteEmptyFolders(File folder, File stopFolder) {
+    while (folder != null && ! folder.equals(stopFolder)) {
+      String[] contents = folder.list();
+      if (contents == null || contents.length > 0 || ! folder.delete()) {
+        return;
       }
+      folder = folder.getParentFile();
     }
   }
   
-  private static class TimeoutKiller implements Runnable {
-    private final ConverterInterface converter;
-    private final Map<File, Future<?>> jobs;
+  /**
+   * A destination folder given on the command line, and what converts into it.
+   */
+  private static class TargetSpec {
+    private final ConverterType converterType;
+    private final EncodingProfile profile;
     private final File destFolder;
+    private final AbstractConverter converter;
     
-    private TimeoutKiller(ConverterInterface converter, 
-                          Map<File, Future<?>> jobs, 
-                          File destFolder) {
-      this.converter = converter;
-      this.jobs = jobs;
+    /**
+     * Parses a target in the form "{@code <type>[/<profile>]:<destination folder>}", ie 
+     * "libav/fast:/media/mp4".
+     */
+    private static TargetSpec parse(String target) {
+      int folderIndex = target.indexOf(':');
+      if (folderIndex < 1 || folderIndex == target.length() - 1) {
+        throw new IllegalArgumentException("Target must be <mencoder|libav>[/<profile>]:<destination folder>, not: " + target);
+      }
+      String type = target.substring(0, folderIndex);
+      EncodingProfile profile = null;
+      int profileIndex = type.indexOf('/');
+      if (profileIndex >= 0) {
+        profile = EncodingProfile.parse(type.substring(profileIndex + 1));
+        type = type.substring(0, profileIndex);
+      }
+      ConverterType converterType = ConverterType.parse(type);
+      if (profile != null && converterType != ConverterType.Libav) {
+        throw new IllegalArgumentException("Only libav targets can have an encoding profile: " + target);
+      }
+      
+      return new TargetSpec(converterType, profile, new File(target.substring(folderIndex + 1)), null);
+    }
+    
+    private TargetSpec(ConverterType converterType, EncodingProfile profile, 
+                       File destFolder, AbstractConverter converter) {
+      this.converterType = converterType;
+      this.profile = profile;
       this.destFolder = destFolder;
+      this.converter = converter;
+    }
+    
+    private TargetSpec withConverter(AbstractConverter converter) {
+      return new TargetSpec(converterType, profile, destFolder, converter);
     }
     
     @Override
-    public void run() {
-      Iterator<Entry<File, Future<?>>> it = jobs.entrySet().iterator();
-      while (it.hasNext()) {
-        Entry<File, Future<?>> entry = it.next();
-        try {
-          entry.getValue().get(1000, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-        } catch (ExecutionException e) {
-          // ignored
-        } catch (TimeoutException e) {
-          // still running, so remove failed file
-          File newFile = FileUtils.makeNewFile(destFolder, entry.getKey(), converter.getProducedExtesion());
-          if (! newFile.delete()) {
-            System.err.println("Could not delete in progress file: " + newFile.getAbsolutePath());
-          } else {
-            System.err.println("Deleted in progress file: " + newFile.getAbsolutePath());
-          }
-        }
-      }
-      
-      System.exit(1);
+    public String toString() {
+      return converterType + (profile == null ? "" : "/" + profile.name) + 
+               " -> " + destFolder.getAbsolutePath();
     }
   }
 }
@@ -0,0 +1,120 @@
+package com.jentfoo;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * What probing a source found out about it, the container and each of its streams.  Values
+ * which could not be found are {@code null} for strings, and {@code -1} for numbers.
+ */
+public class MediaInfo {
+  public enum StreamType {
+    Video, Audio, Subtitle, Data, Other;
+    
+    public static StreamType parse(String type) {
+      if (type.equalsIgnoreCase("video")) {
+        return Video;
+      } else if (type.equalsIgnoreCase("audio")) {
+        return Audio;
+      } else if (type.equalsIgnoreCase("subtitle")) {
+        return Subtitle;
+      } else if (type.equalsIgnoreCase("data")) {
+        return Data;
+      } else {
+        return Other;
+      }
+    }
+  }
+  
+  public final String container;
+  public final double durationSeconds;
+  public final int bitrateKbps;
+  public final List<StreamInfo> streams;
+  
+  public MediaInfo(String container, double durationSeconds, 
+                   int bitrateKbps, List<StreamInfo> streams) {
+    this.container = container;
+    this.durationSeconds = durationSeconds;
+    this.bitrateKbps = bitrateKbps;
+    this.streams = Collections.unmodifiableList(streams);
+  }
+  
+  /**
+   * Returns the first stream of the type, which is the one converted by default, or
+   * {@code null} if there is none.
+   */
+  public StreamInfo getFirstStream(StreamType type) {
+    Iterator<StreamInfo> it = streams.iterator();
+    while (it.hasNext()) {
+      StreamInfo stream = it.next();
+      if (stream.type == type) {
+        return stream;
+      }
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Returns {@code true} if the first stream of the type uses the codec.
+   */
+  public boolean hasCodec(StreamType type, String codec) {
+    StreamInfo stream = getFirstStream(type);
+    
+    return stream != null && codec.equalsIgnoreCase(stream.codec);
+  }
+  
+  @Override
+  public String toString() {
+    return container + ", duration: " + durationSeconds + "s, bitrate: " + bitrateKbps + 
+             " kb/s, streams: " + streams;
+  }
+  
+  /**
+   * A single stream within the container.  Resolution is only known for video streams, and
+   * channels for audio streams.
+   */
+  public static class StreamInfo {
+    public final int index;
+    public final StreamType type;
+    public final String codec;
+    public final String profile;
+    public final int width;
+    public final int height;
+    public final int bitrateKbps;
+    public final int channels;
+    
+    public StreamInfo(int index, StreamType type, String codec, String profile, 
+                      int width, int height, int bitrateKbps, int channels) {
+      this.index = index;
+      this.type = type;
+      this.codec = codec;
+      this.profile = profile;
+      this.width = width;
+      this.height = height;
+      this.bitrateKbps = bitrateKbps;
+      this.channels = channels;
+    }
+    
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append('#').append(index).append(' ').append(type).append(": ").append(codec);
+      if (profile != null) {
+        sb.append(" (").append(profile).append(')');
+      }
+      if (width > 0) {
+        sb.append(' ').append(width).append('x').append(height);
+      }
+      if (channels > 0) {
+        sb.append(' ').append(channels).append("ch");
+      }
+      if (bitrateKbps > 0) {
+        sb.append(' ').append(bitrateKbps).append(" kb/s");
+      }
+      
+      return sb.toString();
+    }
+  }
+}
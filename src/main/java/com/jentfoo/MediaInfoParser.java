@@ -0,0 +1,533 @@
+package com.jentfoo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a {@link MediaInfo} from probe output.  Both the JSON from {@code avprobe -of json
+ * -show_format -show_streams} and the text dump from {@code avconv -i} are understood.  Each is
+ * read in a single pass by position, without any regular expressions, and only the values kept
+ * in the model are copied out of the output.
+ */
+public class MediaInfoParser {
+  private static final String STREAM_PREFIX = "Stream #";
+  private static final String DURATION_PREFIX = "Duration: ";
+  private static final String BITRATE_PREFIX = "bitrate: ";
+  private static final String INPUT_PREFIX = "Input #";
+  private static final String INPUT_FROM = ", from ";
+  private static final String KBPS_SUFFIX = " kb/s";
+  
+  /**
+   * Parses either form of probe output, deciding which it is from the first character.
+   * 
+   * @throws IllegalArgumentException If the output looks like JSON, but is not valid
+   */
+  public static MediaInfo parse(String output) {
+    int pos = 0;
+    while (pos < output.length() && Character.isWhitespace(output.charAt(pos))) {
+      pos++;
+    }
+    if (pos < output.length() && output.charAt(pos) == '{') {
+      return parseJson(output);
+    } else {
+      return parseText(output);
+    }
+  }
+  
+  /**
+   * Parses the text printed by {@code avconv -i} (or {@code ffmpeg -i}).  Lines which are not
+   * understood are ignored.
+   */
+  public static MediaInfo parseText(String output) {
+    String container = null;
+    double durationSeconds = -1;
+    int bitrateKbps = -1;
+    List<MediaInfo.StreamInfo> streams = new ArrayList<MediaInfo.StreamInfo>(4);
+    
+    int length = output.length();
+    int lineStart = 0;
+    while (lineStart < length) {
+      int lineEnd = output.indexOf('\n', lineStart);
+      if (lineEnd < 0) {
+        lineEnd = length;
+      }
+      int pos = lineStart;
+      while (pos < lineEnd && output.charAt(pos) == ' ') {
+        pos++;
+      }
+      
+      if (output.startsWith(STREAM_PREFIX, pos)) {
+        MediaInfo.StreamInfo stream = parseTextStream(output, pos + STREAM_PREFIX.length(), 
+                                                      lineEnd, streams.size());
+        if (stream != null) {
+          streams.add(stream);
+        }
+      } else if (output.startsWith(DURATION_PREFIX, pos)) {
+        durationSeconds = parseClock(output, pos + DURATION_PREFIX.length(), lineEnd);
+        int bitratePos = indexOf(output, BITRATE_PREFIX, pos, lineEnd);
+        if (bitratePos >= 0) {
+          bitrateKbps = (int)parseNumber(output, bitratePos + BITRATE_PREFIX.length(), lineEnd);
+        }
+      } else if (container == null && output.startsWith(INPUT_PREFIX, pos)) {
+        // Input #0, matroska,webm, from 'video.mkv':
+        int containerStart = indexOf(output, ", ", pos, lineEnd);
+        int containerEnd = indexOf(output, INPUT_FROM, pos, lineEnd);
+        if (containerStart >= 0 && containerEnd > containerStart) {
+          container = output.substring(containerStart + 2, containerEnd);
+        }
+      }
+      
+      lineStart = lineEnd + 1;
+    }
+    
+    return new MediaInfo(container, durationSeconds, bitrateKbps, streams);
+  }
+  
+  // Stream #0.0(eng): Video: h264 (High), yuv420p, 1920x800, PAR 1:1 DAR 12:5, 23.98 fps
+  private static MediaInfo.StreamInfo parseTextStream(String line, int pos, int end, int index) {
+    int typeStart = indexOf(line, ": ", pos, end);
+    if (typeStart < 0) {
+      return null;
+    }
+    typeStart += 2;
+    int typeEnd = indexOf(line, ": ", typeStart, end);
+    if (typeEnd < 0) {
+      return null;
+    }
+    MediaInfo.StreamType type = parseStreamType(line, typeStart, typeEnd);
+    
+    int codecStart = typeEnd + 2;
+    int codecEnd = codecStart;
+    while (codecEnd < end && line.charAt(codecEnd) != ' ' && line.charAt(codecEnd) != ',') {
+      codecEnd++;
+    }
+    String codec = line.substring(codecStart, codecEnd);
+    
+    String profile = null;
+    pos = codecEnd;
+    if (pos + 1 < end && line.charAt(pos) == ' ' && line.charAt(pos + 1) == '(') {
+      int profileEnd = line.indexOf(')', pos);
+      if (profileEnd > 0 && profileEnd < end) {
+        // ffmpeg also prints the codec tag in brackets, ie "(avc1 / 0x31637661)"
+        if (indexOf(line, " / ", pos, profileEnd) < 0) {
+          profile = line.substring(pos + 2, profileEnd);
+        }
+        pos = profileEnd + 1;
+      }
+    }
+    
+    int width = -1;
+    int height = -1;
+    int bitrateKbps = -1;
+    int channels = -1;
+    // the remaining details are separated by commas, but commas inside brackets are not separators
+    while (pos < end) {
+      while (pos < end && (line.charAt(pos) == ',' || line.charAt(pos) == ' ')) {
+        pos++;
+      }
+      int fieldEnd = pos;
+      int depth = 0;
+      while (fieldEnd < end) {
+        char c = line.charAt(fieldEnd);
+        if (c == '(' || c == '[') {
+          depth++;
+        } else if (c == ')' || c == ']') {
+          depth--;
+        } else if (c == ',' && depth <= 0) {
+          break;
+        }
+        fieldEnd++;
+      }
+      if (fieldEnd == pos) {
+        break;
+      }
+      
+      // bitrate may be followed by flags, ie "1536 kb/s (default)"
+      if (Character.isDigit(line.charAt(pos)) && indexOf(line, KBPS_SUFFIX, pos, fieldEnd) > 0) {
+        bitrateKbps = (int)parseNumber(line, pos, fieldEnd);
+      } else if (type == MediaInfo.StreamType.Video && width < 0 && 
+                 Character.isDigit(line.charAt(pos))) {
+        int x = pos;
+        while (x < fieldEnd && Character.isDigit(line.charAt(x))) {
+          x++;
+        }
+        if (x + 1 < fieldEnd && line.charAt(x) == 'x' && Character.isDigit(line.charAt(x + 1))) {
+          width = (int)parseNumber(line, pos, x);
+          height = (int)parseNumber(line, x + 1, fieldEnd);
+        }
+      } else if (type == MediaInfo.StreamType.Audio && channels < 0) {
+        channels = parseChannels(line, pos, fieldEnd);
+      }
+      
+      pos = fieldEnd;
+    }
+    
+    return new MediaInfo.StreamInfo(index, type, codec, profile, 
+                                    width, height, bitrateKbps, channels);
+  }
+  
+  private static MediaInfo.StreamType parseStreamType(String str, int start, int end) {
+    MediaInfo.StreamType[] types = MediaInfo.StreamType.values();
+    for (int i = 0; i < types.length; i++) {
+      String name = types[i].name();
+      if (name.length() == end - start && str.regionMatches(true, start, name, 0, name.length())) {
+        return types[i];
+      }
+    }
+    
+    return MediaInfo.StreamType.Other;
+  }
+  
+  // mono, stereo, 5.1, 5.1(side), 7.1, 6 channels
+  private static int parseChannels(String str, int start, int end) {
+    if (str.startsWith("mono", start)) {
+      return 1;
+    } else if (str.startsWith("stereo", start)) {
+      return 2;
+    } else if (indexOf(str, "channels", start, end) > 0) {
+      return (int)parseNumber(str, start, end);
+    } else if (start + 2 < end && Character.isDigit(str.charAt(start)) && 
+               str.charAt(start + 1) == '.' && Character.isDigit(str.charAt(start + 2))) {
+      return (str.charAt(start) - '0') + (str.charAt(start + 2) - '0');
+    } else {
+      return -1;
+    }
+  }
+  
+  // HH:MM:SS.ss, or -1 if not available (ie "N/A")
+  private static double parseClock(String str, int start, int end) {
+    int firstColon = indexOf(str, ":", start, end);
+    int secondColon = firstColon < 0 ? -1 : indexOf(str, ":", firstColon + 1, end);
+    if (secondColon < 0) {
+      return -1;
+    }
+    double hours = parseNumber(str, start, firstColon);
+    double minutes = parseNumber(str, firstColon + 1, secondColon);
+    double seconds = parseNumber(str, secondColon + 1, end);
+    if (hours < 0 || minutes < 0 || seconds < 0) {
+      return -1;
+    }
+    
+    return hours * 60 * 60 + minutes * 60 + seconds;
+  }
+  
+  /**
+   * Parses the decimal number at the start of the range, ignoring anything after it.
+   * 
+   * @return The number, or {@code -1} if the range does not start with one
+   */
+  protected static double parseNumber(String str, int start, int end) {
+    long whole = 0;
+    long fraction = 0;
+    long fractionDivisor = 1;
+    boolean inFraction = false;
+    int pos = start;
+    for (; pos < end; pos++) {
+      char c = str.charAt(pos);
+      if (c >= '0' && c <= '9') {
+        if (inFraction) {
+          if (fractionDivisor < 1000000000L) {
+            fraction = fraction * 10 + (c - '0');
+            fractionDivisor *= 10;
+          }
+        } else {
+          whole = whole * 10 + (c - '0');
+        }
+      } else if (c == '.' && ! inFraction) {
+        inFraction = true;
+      } else {
+        break;
+      }
+    }
+    if (pos == start || (inFraction && pos == start + 1)) {
+      return -1;
+    }
+    
+    return whole + fraction / (double)fractionDivisor;
+  }
+  
+  private static int indexOf(String str, String search, int start, int end) {
+    int result = str.indexOf(search, start);
+    
+    return result + search.length() > end ? -1 : result;
+  }
+  
+  /**
+   * Parses the JSON printed by {@code avprobe -of json -show_format -show_streams} (or
+   * {@code ffprobe} with the same arguments).  Only the {@code format} and {@code streams}
+   * sections are read, everything else is skipped over.
+   * 
+   * @throws IllegalArgumentException If the output is not valid JSON (ie it was cut short)
+   */
+  public static MediaInfo parseJson(String output) {
+    return new JsonReader(output).readTop();
+  }
+  
+  private static class JsonReader {
+    private final String json;
+    private int pos;
+    private String container;
+    private double durationSeconds;
+    private int bitrateKbps;
+    private List<MediaInfo.StreamInfo> streams;
+    
+    private JsonReader(String json) {
+      this.json = json;
+      this.pos = 0;
+      this.container = null;
+      this.durationSeconds = -1;
+      this.bitrateKbps = -1;
+      this.streams = new ArrayList<MediaInfo.StreamInfo>(4);
+    }
+    
+    private MediaInfo readTop() {
+      expect('{');
+      if (! tryConsume('}')) {
+        do {
+          String key = readString();
+          expect(':');
+          if (key.equals("streams") && peek() == '[') {
+            readStreams();
+          } else if (key.equals("format") && peek() == '{') {
+            readFormat();
+          } else {
+            skipValue();
+          }
+        } while (tryConsume(','));
+        expect('}');
+      }
+      
+      return new MediaInfo(container, durationSeconds, bitrateKbps, streams);
+    }
+    
+    private void readStreams() {
+      expect('[');
+      if (tryConsume(']')) {
+        return;
+      }
+      do {
+        readStream();
+      } while (tryConsume(','));
+      expect(']');
+    }
+    
+    private void readStream() {
+      int index = streams.size();
+      MediaInfo.StreamType type = MediaInfo.StreamType.Other;
+      String codec = null;
+      String profile = null;
+      int width = -1;
+      int height = -1;
+      int bitrateKbps = -1;
+      int channels = -1;
+      
+      expect('{');
+      if (! tryConsume('}')) {
+        do {
+          String key = readString();
+          expect(':');
+          char c = peek();
+          if (c == '{' || c == '[') {
+            skipValue();  // tags and disposition
+            continue;
+          }
+          String value = readScalar();
+          if (value == null) {
+            continue;
+          } else if (key.equals("index")) {
+            index = (int)parseNumber(value, 0, value.length());
+          } else if (key.equals("codec_type")) {
+            type = MediaInfo.StreamType.parse(value);
+          } else if (key.equals("codec_name")) {
+            codec = value;
+          } else if (key.equals("profile") && ! value.equals("unknown")) {
+            profile = value;
+          } else if (key.equals("width")) {
+            width = (int)parseNumber(value, 0, value.length());
+          } else if (key.equals("height")) {
+            height = (int)parseNumber(value, 0, value.length());
+          } else if (key.equals("bit_rate")) {
+            bitrateKbps = toKbps(value);
+          } else if (key.equals("channels")) {
+            channels = (int)parseNumber(value, 0, value.length());
+          }
+        } while (tryConsume(','));
+        expect('}');
+      }
+      
+      streams.add(new MediaInfo.StreamInfo(index, type, codec, profile, 
+                                           width, height, bitrateKbps, channels));
+    }
+    
+    private void readFormat() {
+      expect('{');
+      if (tryConsume('}')) {
+        return;
+      }
+      do {
+        String key = readString();
+        expect(':');
+        char c = peek();
+        if (c == '{' || c == '[') {
+          skipValue();
+          continue;
+        }
+        String value = readScalar();
+        if (value == null) {
+          continue;
+        } else if (key.equals("format_name")) {
+          container = value;
+        } else if (key.equals("duration")) {
+          durationSeconds = parseNumber(value, 0, value.length());
+        } else if (key.equals("bit_rate")) {
+          bitrateKbps = toKbps(value);
+        }
+      } while (tryConsume(','));
+      expect('}');
+    }
+    
+    private static int toKbps(String bitsPerSecond) {
+      double bps = parseNumber(bitsPerSecond, 0, bitsPerSecond.length());
+      
+      return bps < 0 ? -1 : (int)(bps / 1000);
+    }
+    
+    private char peek() {
+      skipWhitespace();
+      if (pos >= json.length()) {
+        throw new IllegalArgumentException("Unexpected end of JSON");
+      }
+      
+      return json.charAt(pos);
+    }
+    
+    private boolean tryConsume(char c) {
+      if (peek() == c) {
+        pos++;
+        return true;
+      } else {
+        return false;
+      }
+    }
+    
+    private void expect(char c) {
+      if (! tryConsume(c)) {
+        throw new IllegalArgumentException("Expected '" + c + "' at position " + pos);
+      }
+    }
+    
+    private void skipWhitespace() {
+      while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+        pos++;
+      }
+    }
+    
+    // string, number, true, false, or null (which is returned as null)
+    private String readScalar() {
+      if (peek() == '"') {
+        return readString();
+      }
+      int start = pos;
+      while (pos < json.length()) {
+        char c = json.charAt(pos);
+        if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+          break;
+        }
+        pos++;
+      }
+      if (pos == start) {
+        throw new IllegalArgumentException("Expected value at position " + pos);
+      } else if (json.startsWith("null", start) && pos - start == 4) {
+        return null;
+      }
+      
+      return json.substring(start, pos);
+    }
+    
+    private String readString() {
+      expect('"');
+      int start = pos;
+      StringBuilder sb = null;  // only needed if the string has escapes
+      while (pos < json.length()) {
+        char c = json.charAt(pos);
+        if (c == '"') {
+          String result;
+          if (sb == null) {
+            result = json.substring(start, pos);
+          } else {
+            result = sb.toString();
+          }
+          pos++;
+          return result;
+        } else if (c == '\\') {
+          if (sb == null) {
+            sb = new StringBuilder(json.substring(start, pos));
+          }
+          pos++;
+          if (pos >= json.length()) {
+            break;
+          }
+          char escaped = json.charAt(pos);
+          switch (escaped) {
+            case 'n':
+              sb.append('\n');
+              break;
+            case 't':
+              sb.append('\t');
+              break;
+            case 'r':
+              sb.append('\r');
+              break;
+            case 'b':
+              sb.append('\b');
+              break;
+            case 'f':
+              sb.append('\f');
+              break;
+            case 'u':
+              if (pos + 4 >= json.length()) {
+                throw new IllegalArgumentException("Invalid escape at position " + pos);
+              }
+              sb.append((char)Integer.parseInt(json.substring(pos + 1, pos + 5), 16));
+              pos += 4;
+              break;
+            default:
+              sb.append(escaped);
+          }
+        } else if (sb != null) {
+          sb.append(c);
+        }
+        pos++;
+      }
+      
+      throw new IllegalArgumentException("Unterminated string at position " + start);
+    }
+    
+    private void skipValue() {
+      char c = peek();
+      if (c == '{') {
+        pos++;
+        if (tryConsume('}')) {
+          return;
+        }
+        do {
+          readString();
+          expect(':');
+          skipValue();
+        } while (tryConsume(','));
+        expect('}');
+      } else if (c == '[') {
+        pos++;
+        if (tryConsume(']')) {
+          return;
+        }
+        do {
+          skipValue();
+        } while (tryConsume(','));
+        expect(']');
+      } else {
+        readScalar();
+      }
+    }
+  }
+}
@@ -2,24 +2,20 @@ package com.jentfoo;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import org.threadly.concurrent.SubmitterScheduler;
-import org.threadly.util.Clock;
-import org.threadly.util.ExceptionUtils;
-
-public class MencoderConverter implements ConverterInterface {
+public class MencoderConverter extends AbstractConverter {
   private static final boolean VERBOSE = true;
+  public static final String MENCODER_PROPERTY = "xboxMediaProcessor.mencoder";
   //private static final String FLAGS = "-oac mp3lame -lameopts vol=5.5 " +
-  private static final String FLAGS = "-oac mp3lame -ovc xvid -xvidencopts fixed_quant=2 -sws 8";
+  private static final String FLAGS = "-oac mp3lame -ovc xvid -sws 8 -xvidencopts fixed_quant=2";
   //private static final String FLAGS = "-oac mp3lame -ovc lavc -lavcopts vcodec=mpeg4:vhq:vbitrate=8000";
   private static final String DESIRED_EXTENSION = ".avi";
+  private static final int ERROR_OUTPUT_BYTES = 1024 * 4;
+  // found on the path unless set
+  private static final String MENCODER_EXECUTABLE = System.getProperty(MENCODER_PROPERTY, "mencoder");
   
   @Override
   public String getProducedExtesion() {
@@ -27,130 +23,76 @@ public class MencoderConverter implements ConverterInterface {
   }
   
   @Override
-  public Map<File, Future<?>> submitJobs(SubmitterScheduler scheduler, 
-                                         List<File> sourceFileList, 
-                                         File destFolder) {
-    File[] origDestFileArray = destFolder.listFiles();
-    Map<File, Future<?>> result = new HashMap<File, Future<?>>();
-    AtomicInteger processedCount = new AtomicInteger();
-    
-    Iterator<File> it = sourceFileList.iterator();
-    while (it.hasNext()) {
-      File sourceFile = it.next();
-
-      if (sourceFile.isDirectory()) {  // don't try and recursively copy/encode directories
-        continue;
-      }
-      
-      File newFile = FileUtils.makeNewFile(destFolder, sourceFile, DESIRED_EXTENSION);
-      
-      if (FileUtils.fileInArray(origDestFileArray, newFile)) {
-        // skip file, already added to processedFiles
-        processedCount.incrementAndGet();
-        
-        continue;
-      }
-      
-      Future<?> future = scheduler.submit(new ConverterWorker(processedCount, 
-                                                              sourceFileList.size(), 
-                                                              sourceFile, newFile));
-      result.put(sourceFile, future);
+  protected ConversionPlan makePlan(JobContext context, File sourceFile, File newFile) {
+    String extension = FileUtils.getExtension(sourceFile.getName());
+    if (extension.equalsIgnoreCase(DESIRED_EXTENSION)) {
+      return new ConversionPlan(sourceFile, newFile, JobType.Copy);
+    } else {
+      return new ConversionPlan(sourceFile, newFile, JobType.FullEncode);
     }
-    
-    return result;
   }
   
-  private static class ConverterWorker implements Runnable {
-    private final long creationTime;
-    private final long originalSize;
-    private final AtomicInteger processedCount;
-    private final int totalProcessCount;
-    private final File sourceFile;
-    private final File newFile;
-    
-    private ConverterWorker(AtomicInteger processedCount, 
-                            int totalProcessCount, 
-                            File sourceFile, File newFile) {
-      originalSize = sourceFile.length();
-      creationTime = Clock.lastKnownTimeMillis();
-      
-      this.processedCount = processedCount;
-      this.totalProcessCount = totalProcessCount;
-      this.sourceFile = sourceFile;
-      this.newFile = newFile;
-    }
+  @Override
+  protected boolean mayFollowCopy(File sourceFile) {
+    return FileUtils.getExtension(sourceFile.getName()).equalsIgnoreCase(DESIRED_EXTENSION);
+  }
+  
+  @Override
+  protected void convert(JobContext context, ConversionPlan plan, 
+                         ProcessLauncher launcher) throws IOException, InterruptedException {
+    File sourceFile = plan.sourceFile;
+    File newFile = plan.tempFile;
+    String extension = FileUtils.getExtension(sourceFile.getName());
     
-    @Override
-    public void run() {
-      // verify file is not still growing before continuing
-      if (! FileUtils.sizeStable(sourceFile, originalSize, creationTime)) {
-        processedCount.incrementAndGet();
-        
-        return;
+    if (plan.jobType != JobType.Copy) {
+      // convert
+      if (VERBOSE) {
+        /*System.out.println("Running: " + "mencoder " + sourceFile.getAbsolutePath() + 
+                             " "  + FLAGS + " -o " + newFile.getAbsolutePath());*/
+        System.out.println("Encoding " + extension + " file to: " + newFile.getAbsolutePath());
       }
       
-      String extension = FileUtils.getExtension(sourceFile.getName());
-      
-      if (! extension.equalsIgnoreCase(DESIRED_EXTENSION)) {
-        // convert
-        if (VERBOSE) {
-          /*System.out.println("Running: " + "mencoder " + sourceFile.getAbsolutePath() + 
-                               " "  + FLAGS + " -o " + newFile.getAbsolutePath());*/
-          System.out.println("Encoding " + extension + " file to: " + newFile.getAbsolutePath());
-        }
-        
-        try {
-          encodeFile(sourceFile, newFile);
-        } catch (IOException e) {
-          throw ExceptionUtils.makeRuntime(e);
-        } catch (InterruptedException e) {
-          ExceptionUtils.handleException(e);
-          return;
-        }
-      } else {
-        // copy the file
-        if (VERBOSE) {
-          System.out.println("Copying file to: " + newFile.getAbsolutePath());
-        }
-        
-        try {
-          FileUtils.copyFile(sourceFile, newFile);
-        } catch (IOException e) {
-          throw ExceptionUtils.makeRuntime(e);
-        }
+      encodeFile(launcher, sourceFile, newFile, 
+                 context.getEncodeThreadCount(), plan.progress);
+    } else {
+      // copy the file
+      if (VERBOSE) {
+        System.out.println("Copying file to: " + newFile.getAbsolutePath());
       }
-
-      int count = processedCount.incrementAndGet();
-         
+      
+      CopyStrategy[] copyStrategies = context.getBandwidthGovernor().makeCopyStrategies(plan.progress);
+      FileUtils.CopyResult copyResult = FileUtils.copyFile(sourceFile, newFile, copyStrategies);
       if (VERBOSE) {
-        String percent = Double.toString(((count / (double)totalProcessCount)) * 100);
-        System.out.println("Estimated % done: " + 
-                             percent.substring(0, Math.min(percent.length() - 1, 5)) + "%" + 
-                             " - ( " + count + " out of " + totalProcessCount + " )\n");
+        System.out.println(sourceFile.getName() + " " + copyResult);
       }
     }
+  }
+  
+  private static void encodeFile(ProcessLauncher launcher, 
+                                 File sourceFile, File destFile, int threadCount, 
+                                 JobProgress progress) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<String>();
+    command.add(MENCODER_EXECUTABLE);
+    command.add(sourceFile.getAbsolutePath());
+    command.addAll(Arrays.asList((FLAGS + ":threads=" + threadCount).split(" ")));
+    command.add("-o");
+    command.add(destFile.getAbsolutePath());
     
-    private static void encodeFile(File sourceFile, File destFile) throws IOException, InterruptedException {
-      String command[] = {ShellUtils.getDefaultShell(), 
-                          ShellUtils.getDefaultShellCommandFlag(), 
-                          "mencoder '" + sourceFile.getAbsolutePath() + '\'' + 
-                            " "  + FLAGS + " -o '" + destFile.getAbsolutePath() + "\' 2>&1"
-                         };
-      Process p = Runtime.getRuntime().exec(command);
-
-      byte[] buf = new byte[2048];
-      InputStream stdOutIs = p.getInputStream();
-      try {
-        while (stdOutIs.read(buf) > -1) { 
-          // consume
-        }
-      } finally {
-        stdOutIs.close();
-      }
-      
-      if (p.waitFor() != 0) {
-        throw new IllegalStateException("non-zero exit code for command: " + command[2]);
-      }
+    ProgressParser progressParser = new ProgressParser(progress);
+    OutputRingBuffer outputTail = new OutputRingBuffer(ERROR_OUTPUT_BYTES);
+    ProcessLauncher.RunningProcess p = 
+        launcher.launch(command, new ProcessLauncher.TeeConsumer(progressParser, outputTail));
+    progressParser.setPid(p.getPid());
+    
+    int exitCode;
+    try {
+      exitCode = p.waitFor();
+    } finally {
+      progress.addThrottledMillis(p.getThrottledMillis());
+    }
+    if (exitCode != 0) {
+      throw new IllegalStateException("exit code " + exitCode + " for command: " + command + 
+                                        "\n" + outputTail);
     }
   }
 }
@@ -0,0 +1,73 @@
+package com.jentfoo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps only the most recent output of a process, up to a fixed number of bytes.  Useful for 
+ * including the end of the output in an error, without holding the output of a multi hour encode 
+ * in memory.
+ */
+public class OutputRingBuffer implements ProcessLauncher.OutputConsumer {
+  private final byte[] buffer;
+  private int position;  // guarded by this
+  private boolean wrapped;  // guarded by this
+  
+  public OutputRingBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1");
+    }
+    
+    this.buffer = new byte[capacity];
+    this.position = 0;
+    this.wrapped = false;
+  }
+  
+  @Override
+  public synchronized void consume(byte[] buf, int offset, int length) {
+    if (length >= buffer.length) {
+      // only the end will fit
+      System.arraycopy(buf, offset + length - buffer.length, buffer, 0, buffer.length);
+      position = 0;
+      wrapped = true;
+      return;
+    }
+    
+    int firstLength = Math.min(length, buffer.length - position);
+    System.arraycopy(buf, offset, buffer, position, firstLength);
+    if (firstLength < length) {
+      System.arraycopy(buf, offset + firstLength, buffer, 0, length - firstLength);
+      wrapped = true;
+    }
+    position = (position + length) % buffer.length;
+    if (position == 0 && length > 0) {
+      wrapped = true;
+    }
+  }
+  
+  /**
+   * Returns {@code true} if output was dropped because the buffer filled.
+   */
+  public synchronized boolean isTruncated() {
+    return wrapped;
+  }
+  
+  public synchronized byte[] toByteArray() {
+    if (! wrapped) {
+      byte[] result = new byte[position];
+      System.arraycopy(buffer, 0, result, 0, position);
+      
+      return result;
+    }
+    
+    byte[] result = new byte[buffer.length];
+    System.arraycopy(buffer, position, result, 0, buffer.length - position);
+    System.arraycopy(buffer, 0, result, buffer.length - position, position);
+    
+    return result;
+  }
+  
+  @Override
+  public String toString() {
+    return new String(toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,201 @@
+package com.jentfoo;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.concurrent.future.SettableListenableFuture;
+import org.threadly.util.Clock;
+
+/**
+ * Limits how many jobs run at once on a shared executor, starting queued jobs in order of lowest 
+ * estimated cost first.  Unlike a FIFO limiter this means a quick job is never stuck waiting 
+ * behind a queue of long ones.
+ */
+public class PriorityLane {
+  private final String name;
+  private final Executor executor;
+  private final PriorityQueue<LaneTask> queue;
+  private volatile int maxConcurrency;
+  private int runningCount;  // guarded by queue
+  private long submitCount;  // guarded by queue
+  private final long createdTime;
+  private long busyMillis;  // guarded by queue, only includes finished tasks
+  private long runningStartTimeSum;  // guarded by queue
+  
+  public PriorityLane(String name, Executor executor, int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("Must allow at least one concurrent job");
+    }
+    
+    this.name = name;
+    this.executor = executor;
+    this.queue = new PriorityQueue<LaneTask>();
+    this.maxConcurrency = maxConcurrency;
+    this.runningCount = 0;
+    this.submitCount = 0;
+    this.createdTime = Clock.accurateForwardProgressingMillis();
+    this.busyMillis = 0;
+    this.runningStartTimeSum = 0;
+  }
+  
+  public String getName() {
+    return name;
+  }
+  
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+  
+  /**
+   * Changes how many jobs may run at once.  If reduced, running jobs are allowed to finish, new 
+   * jobs just won't be started until below the new limit.
+   */
+  public void setMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("Must allow at least one concurrent job");
+    }
+    
+    this.maxConcurrency = maxConcurrency;
+    
+    startQueuedTasks();
+  }
+  
+  public int getRunningCount() {
+    synchronized (queue) {
+      return runningCount;
+    }
+  }
+  
+  public int getQueuedCount() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+  
+  /**
+   * Returns the total time tasks have spent running in this lane, including the time so far of 
+   * the tasks running now.
+   */
+  public long getBusyMillis() {
+    long now = Clock.accurateForwardProgressingMillis();
+    synchronized (queue) {
+      return busyMillis + (runningCount * now) - runningStartTimeSum;
+    }
+  }
+  
+  /**
+   * Returns the fraction of the lane's capacity which has been used since it was created.  This 
+   * is measured against the current max concurrency, so is only approximate if it has changed.
+   */
+  public double getUtilization() {
+    long elapsedMillis = Clock.accurateForwardProgressingMillis() - createdTime;
+    if (elapsedMillis <= 0) {
+      return 0;
+    }
+    
+    return Math.min(1, getBusyMillis() / ((double)elapsedMillis * maxConcurrency));
+  }
+  
+  /**
+   * Submit a task to the lane.  Tasks with a lower estimated cost are started first, tasks of 
+   * equal cost are started in the order submitted.
+   */
+  public ListenableFuture<?> submit(Runnable task, double estimatedCost) {
+    LaneTask laneTask;
+    synchronized (queue) {
+      laneTask = new LaneTask(task, estimatedCost, submitCount++);
+      queue.add(laneTask);
+    }
+    
+    startQueuedTasks();
+    
+    return laneTask.future;
+  }
+  
+  private void startQueuedTasks() {
+    while (true) {
+      LaneTask toRun;
+      synchronized (queue) {
+        if (runningCount >= maxConcurrency || queue.isEmpty()) {
+          return;
+        }
+        toRun = queue.poll();
+        runningCount++;
+        toRun.startTime = Clock.accurateForwardProgressingMillis();
+        runningStartTimeSum += toRun.startTime;
+      }
+      
+      try {
+        executor.execute(toRun);
+      } catch (RuntimeException e) {
+        synchronized (queue) {
+          runningCount--;
+          runningStartTimeSum -= toRun.startTime;
+        }
+        toRun.future.setFailure(e);
+      }
+    }
+  }
+  
+  private void taskFinished(LaneTask task) {
+    long now = Clock.accurateForwardProgressingMillis();
+    synchronized (queue) {
+      runningCount--;
+      runningStartTimeSum -= task.startTime;
+      busyMillis += now - task.startTime;
+    }
+    
+    startQueuedTasks();
+  }
+  
+  @Override
+  public String toString() {
+    synchronized (queue) {
+      return name + " lane - running: " + runningCount + "/" + maxConcurrency + 
+               ", queued: " + queue.size() + 
+               ", utilization: " + Math.round(getUtilization() * 100) + "%";
+    }
+  }
+  
+  private class LaneTask implements Runnable, Comparable<LaneTask> {
+    private final Runnable task;
+    private final double estimatedCost;
+    private final long order;
+    private final SettableListenableFuture<Object> future;
+    private long startTime;  // guarded by queue
+    
+    private LaneTask(Runnable task, double estimatedCost, long order) {
+      this.task = task;
+      this.estimatedCost = estimatedCost;
+      this.order = order;
+      this.future = new SettableListenableFuture<Object>(false);
+      this.startTime = -1;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        if (future.isCancelled()) {
+          return;
+        }
+        task.run();
+        future.setResult(null);
+      } catch (Throwable t) {
+        future.setFailure(t);
+      } finally {
+        taskFinished(this);
+      }
+    }
+    
+    @Override
+    public int compareTo(LaneTask o) {
+      int result = Double.compare(estimatedCost, o.estimatedCost);
+      if (result == 0) {
+        result = Long.compare(order, o.order);
+      }
+      
+      return result;
+    }
+  }
+}
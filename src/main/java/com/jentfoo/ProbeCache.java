@@ -0,0 +1,284 @@
+package com.jentfoo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Persistent cache of probe results, stored as the parsed {@link MediaInfo} so a hit needs no
+ * parsing.  Entries are keyed by the canonical path of the source, and are only considered valid
+ * if the size and modification time still match what was probed.  The least recently used
+ * entries are evicted once the max size is reached.
+ */
+public class ProbeCache {
+  private static final int FILE_FORMAT_VERSION = 2;
+  public static final int DEFAULT_MAX_ENTRIES = 50000;
+  
+  private final File cacheFile;
+  private final int maxEntries;
+  private final LinkedHashMap<String, CacheEntry> cache;
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private boolean dirty;
+  
+  public ProbeCache(File cacheFile) {
+    this(cacheFile, DEFAULT_MAX_ENTRIES);
+  }
+  
+  public ProbeCache(File cacheFile, final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("Must allow at least one entry");
+    }
+    
+    this.cacheFile = cacheFile;
+    this.maxEntries = maxEntries;
+    this.cache = new LinkedHashMap<String, CacheEntry>(16, .75f, true) {
+      private static final long serialVersionUID = -1908458315346371262L;
+      
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    this.hitCount = new AtomicLong();
+    this.missCount = new AtomicLong();
+    this.dirty = false;
+  }
+  
+  public File getCacheFile() {
+    return cacheFile;
+  }
+  
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+  
+  public long getHitCount() {
+    return hitCount.get();
+  }
+  
+  public long getMissCount() {
+    return missCount.get();
+  }
+  
+  public synchronized int size() {
+    return cache.size();
+  }
+  
+  /**
+   * Returns the cached probe result for the file, or {@code null} if it has not been probed or has
+   * changed since it was.
+   */
+  public MediaInfo get(File sourceFile) {
+    String key = makeKey(sourceFile);
+    long size = sourceFile.length();
+    long modifiedTime = sourceFile.lastModified();
+    
+    CacheEntry entry;
+    synchronized (this) {
+      entry = cache.get(key);
+    }
+    if (entry != null && entry.size == size && entry.modifiedTime == modifiedTime) {
+      hitCount.incrementAndGet();
+      
+      return entry.info;
+    } else {
+      missCount.incrementAndGet();
+      
+      return null;
+    }
+  }
+  
+  /**
+   * Stores the probe result for the file.  The size and modification time must be read before
+   * the file was probed, and the result is only stored if the file has not changed since then,
+   * so a source which is still being written is never cached with what it probed as so far.
+   * 
+   * @return {@code true} if the result was stored
+   */
+  public boolean put(File sourceFile, long size, long modifiedTime, MediaInfo info) {
+    if (sourceFile.length() != size || sourceFile.lastModified() != modifiedTime) {
+      return false;
+    }
+    CacheEntry entry = new CacheEntry(size, modifiedTime, info);
+    String key = makeKey(sourceFile);
+    synchronized (this) {
+      cache.put(key, entry);
+      dirty = true;
+    }
+    
+    return true;
+  }
+  
+  private static String makeKey(File sourceFile) {
+    try {
+      return sourceFile.getCanonicalPath();
+    } catch (IOException e) {
+      ExceptionUtils.handleException(e);
+      
+      return sourceFile.getAbsolutePath();
+    }
+  }
+  
+  /**
+   * Loads any entries stored in the cache file.  If the file does not exist, or can not be read,
+   * the cache will just start empty.
+   */
+  public void load() {
+    if (! cacheFile.exists()) {
+      return;
+    }
+    
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+      try {
+        if (in.readInt() != FILE_FORMAT_VERSION) {
+          System.err.println("Ignoring probe cache with unknown version: " + cacheFile.getAbsolutePath());
+          return;
+        }
+        int count = in.readInt();
+        synchronized (this) {
+          // entries are stored eldest first, so insertion order restores the LRU order
+          for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            long size = in.readLong();
+            long modifiedTime = in.readLong();
+            
+            cache.put(key, new CacheEntry(size, modifiedTime, readInfo(in)));
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (EOFException e) {
+      System.err.println("Probe cache truncated, continuing with partial cache: " + cacheFile.getAbsolutePath());
+    } catch (IOException e) {
+      ExceptionUtils.handleException(e);
+    }
+  }
+  
+  /**
+   * Writes the cache to disk if it has changed since it was loaded.  The cache is written to a
+   * temporary file and then moved into place so a crash never leaves a corrupt cache behind.
+   */
+  public void save() throws IOException {
+    Map<String, CacheEntry> toWrite;
+    synchronized (this) {
+      if (! dirty) {
+        return;
+      }
+      toWrite = new LinkedHashMap<String, CacheEntry>(cache);
+      dirty = false;
+    }
+    
+    File parent = cacheFile.getAbsoluteFile().getParentFile();
+    if (! parent.exists() && ! parent.mkdirs()) {
+      throw new IOException("Could not make cache folder: " + parent.getAbsolutePath());
+    }
+    File tmpFile = new File(parent, cacheFile.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(FILE_FORMAT_VERSION);
+      out.writeInt(toWrite.size());
+      Iterator<Map.Entry<String, CacheEntry>> it = toWrite.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, CacheEntry> e = it.next();
+        out.writeUTF(e.getKey());
+        out.writeLong(e.getValue().size);
+        out.writeLong(e.getValue().modifiedTime);
+        writeInfo(out, e.getValue().info);
+      }
+    } finally {
+      out.close();
+    }
+    
+    Files.move(tmpFile.toPath(), cacheFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  private static void writeInfo(DataOutputStream out, MediaInfo info) throws IOException {
+    writeNullableString(out, info.container);
+    out.writeDouble(info.durationSeconds);
+    out.writeInt(info.bitrateKbps);
+    out.writeInt(info.streams.size());
+    Iterator<MediaInfo.StreamInfo> it = info.streams.iterator();
+    while (it.hasNext()) {
+      MediaInfo.StreamInfo stream = it.next();
+      out.writeInt(stream.index);
+      out.writeByte(stream.type.ordinal());
+      writeNullableString(out, stream.codec);
+      writeNullableString(out, stream.profile);
+      out.writeInt(stream.width);
+      out.writeInt(stream.height);
+      out.writeInt(stream.bitrateKbps);
+      out.writeInt(stream.channels);
+    }
+  }
+  
+  private static MediaInfo readInfo(DataInputStream in) throws IOException {
+    String container = readNullableString(in);
+    double durationSeconds = in.readDouble();
+    int bitrateKbps = in.readInt();
+    int streamCount = in.readInt();
+    MediaInfo.StreamType[] types = MediaInfo.StreamType.values();
+    List<MediaInfo.StreamInfo> streams = new ArrayList<MediaInfo.StreamInfo>(streamCount);
+    for (int i = 0; i < streamCount; i++) {
+      int index = in.readInt();
+      int type = in.readByte();
+      if (type < 0 || type >= types.length) {
+        throw new IOException("Unknown stream type: " + type);
+      }
+      streams.add(new MediaInfo.StreamInfo(index, types[type], 
+                                           readNullableString(in), readNullableString(in), 
+                                           in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+    }
+    
+    return new MediaInfo(container, durationSeconds, bitrateKbps, streams);
+  }
+  
+  private static void writeNullableString(DataOutputStream out, String str) throws IOException {
+    out.writeBoolean(str != null);
+    if (str != null) {
+      out.writeUTF(str);
+    }
+  }
+  
+  private static String readNullableString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+  
+  @Override
+  public String toString() {
+    long hits = hitCount.get();
+    long misses = missCount.get();
+    return "ProbeCache - entries: " + size() + ", hits: " + hits + ", misses: " + misses;
+  }
+  
+  private static class CacheEntry {
+    private final long size;
+    private final long modifiedTime;
+    private final MediaInfo info;
+    
+    private CacheEntry(long size, long modifiedTime, MediaInfo info) {
+      this.size = size;
+      this.modifiedTime = modifiedTime;
+      this.info = info;
+    }
+  }
+}
@@ -0,0 +1,495 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.concurrent.TaskPriority;
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.concurrent.future.SettableListenableFuture;
+import org.threadly.util.Clock;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Starts external processes directly from an argument list (no shell is involved, so there is no
+ * extra process, and no quoting of file names).  Instead of a thread blocking on the output of
+ * each process, a small set of shared threads poll all running processes for available output.
+ * Every running process is tracked so they can all be killed if we are stopped.
+ */
+public class ProcessLauncher {
+  public static final int DEFAULT_PUMP_THREAD_COUNT = 2;
+  private static final int POLL_INTERVAL_IN_MILLIS = 50;
+  private static final int MAX_READ_PER_POLL = 1024 * 64;
+  private static final int KILL_WAIT_IN_MILLIS = 1000 * 5;
+  private static final File NULL_FILE = new File("/dev/null");
+  
+  /**
+   * Receives output from a process.  This is always invoked from one thread at a time.
+   */
+  public interface OutputConsumer {
+    public void consume(byte[] buf, int offset, int length);
+  }
+  
+  /**
+   * Told about each process started from a launcher returned by {@link #forOwner(ProcessOwner)}, 
+   * ie so a job can kill its processes if it is cancelled.
+   */
+  public interface ProcessOwner {
+    public void processStarted(RunningProcess process);
+    
+    public void processEnded(RunningProcess process);
+  }
+  
+  private final RunMetrics runMetrics;
+  private final PriorityScheduler pumpScheduler;
+  private final Set<RunningProcess> runningProcesses;
+  private final ProcessOwner owner;
+  
+  public ProcessLauncher(RunMetrics runMetrics) {
+    this(runMetrics, DEFAULT_PUMP_THREAD_COUNT);
+  }
+  
+  public ProcessLauncher(RunMetrics runMetrics, int pumpThreadCount) {
+    this.runMetrics = runMetrics;
+    this.pumpScheduler = new PriorityScheduler(pumpThreadCount, TaskPriority.High, 1000, true);
+    this.runningProcesses = ConcurrentHashMap.newKeySet();
+    this.owner = null;
+    
+    for (int i = 0; i < pumpThreadCount; i++) {
+      pumpScheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          pumpAll();
+        }
+      }, 0, POLL_INTERVAL_IN_MILLIS);
+    }
+  }
+  
+  private ProcessLauncher(ProcessLauncher parent, ProcessOwner owner) {
+    this.runMetrics = parent.runMetrics;
+    this.pumpScheduler = parent.pumpScheduler;
+    this.runningProcesses = parent.runningProcesses;
+    this.owner = parent.owner == null ? owner : new ChainedOwner(parent.owner, owner);
+  }
+  
+  /**
+   * Returns a launcher which shares the pump threads (and running processes) of this one, but 
+   * also tells the owner about each process started from it.  If this launcher already has an 
+   * owner it is still told as well.
+   */
+  public ProcessLauncher forOwner(ProcessOwner owner) {
+    return new ProcessLauncher(this, owner);
+  }
+  
+  /**
+   * Start the command, with stderr merged into stdout.
+   * 
+   * @param command Executable followed by its arguments
+   * @param outputConsumer Consumer for the output, or {@code null} to discard it
+   */
+  public RunningProcess launch(List<String> command, OutputConsumer outputConsumer) throws IOException {
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectErrorStream(true);
+    // encoders will wait on stdin for commands if they think it is interactive
+    pb.redirectInput(ProcessBuilder.Redirect.from(NULL_FILE));
+    
+    long startTime = System.nanoTime();
+    Process process = pb.start();
+    runMetrics.recordStageSeconds(RunMetrics.Stage.Launch, null, 
+                                  (System.nanoTime() - startTime) / 1000000000d);
+    
+    RunningProcess result = new RunningProcess(command, process, outputConsumer, owner);
+    runningProcesses.add(result);
+    if (owner != null) {
+      owner.processStarted(result);
+    }
+    
+    return result;
+  }
+  
+  public int getRunningCount() {
+    return runningProcesses.size();
+  }
+  
+  /**
+   * Returns a snapshot of the processes which are currently running.
+   */
+  public List<RunningProcess> getRunningProcesses() {
+    return new ArrayList<RunningProcess>(runningProcesses);
+  }
+  
+  /**
+   * Kills every running process, waiting a short time for them to exit.
+   */
+  public void killAll() {
+    List<RunningProcess> toKill = new ArrayList<RunningProcess>(runningProcesses);
+    Iterator<RunningProcess> it = toKill.iterator();
+    while (it.hasNext()) {
+      it.next().process.destroy();
+    }
+    it = toKill.iterator();
+    while (it.hasNext()) {
+      it.next().kill();
+    }
+  }
+  
+  /**
+   * Stop the output pump threads.  Any processes still running will no longer have their output
+   * read.
+   */
+  public void shutdown() {
+    pumpScheduler.shutdownNow();
+  }
+  
+  private void pumpAll() {
+    boolean readAny;
+    do {
+      readAny = false;
+      Iterator<RunningProcess> it = runningProcesses.iterator();
+      while (it.hasNext()) {
+        RunningProcess rp = it.next();
+        // another pump thread may already be handling this process
+        if (rp.pumping.compareAndSet(false, true)) {
+          try {
+            readAny |= rp.pump();
+          } finally {
+            rp.pumping.set(false);
+          }
+        }
+      }
+    } while (readAny);  // keep going while there is output, only sleep once everyone is quiet
+  }
+  
+  /**
+   * Pauses (SIGSTOP) each of the processes which is not already paused.  A single {@code kill}
+   * is used for all of them, so pausing many processes does not fork once for each.
+   * 
+   * @return The processes which were paused
+   */
+  public static List<RunningProcess> pauseAll(List<RunningProcess> processes) {
+    List<Integer> pids = new ArrayList<Integer>(processes.size());
+    List<RunningProcess> toPause = new ArrayList<RunningProcess>(processes.size());
+    Iterator<RunningProcess> it = processes.iterator();
+    while (it.hasNext()) {
+      RunningProcess rp = it.next();
+      if (! rp.isPaused() && rp.pid >= 0) {
+        pids.add(rp.pid);
+        toPause.add(rp);
+      }
+    }
+    if (toPause.isEmpty()) {
+      return toPause;
+    } else if (! ProcessUtils.sendSignal(pids, "STOP")) {
+      // one of them must have exited, signal them alone so we know which were paused
+      List<RunningProcess> result = new ArrayList<RunningProcess>(toPause.size());
+      it = toPause.iterator();
+      while (it.hasNext()) {
+        RunningProcess rp = it.next();
+        if (rp.pause()) {
+          result.add(rp);
+        }
+      }
+      
+      return result;
+    }
+    
+    long now = Clock.accurateForwardProgressingMillis();
+    it = toPause.iterator();
+    while (it.hasNext()) {
+      it.next().markPaused(now);
+    }
+    
+    return toPause;
+  }
+  
+  /**
+   * Continues each of the processes which is paused, with a single {@code kill} for all of them.
+   */
+  public static void resumeAll(List<RunningProcess> processes) {
+    long now = Clock.accurateForwardProgressingMillis();
+    List<Integer> pids = new ArrayList<Integer>(processes.size());
+    Iterator<RunningProcess> it = processes.iterator();
+    while (it.hasNext()) {
+      RunningProcess rp = it.next();
+      if (rp.markResumed(now)) {
+        pids.add(rp.pid);
+      }
+    }
+    if (! pids.isEmpty()) {
+      ProcessUtils.sendSignal(pids, "CONT");
+    }
+  }
+  
+  /**
+   * A process started by the launcher.
+   */
+  public class RunningProcess {
+    private final List<String> command;
+    private final Process process;
+    private final int pid;
+    private final OutputConsumer outputConsumer;
+    private final ProcessOwner owner;
+    private final InputStream outputStream;
+    private final byte[] buffer;
+    private final AtomicBoolean pumping;
+    private final SettableListenableFuture<Integer> exitFuture;
+    private final AtomicLong throttledMillis;
+    private volatile long pausedTime;
+    
+    private RunningProcess(List<String> command, Process process, 
+                           OutputConsumer outputConsumer, ProcessOwner owner) {
+      this.command = command;
+      this.process = process;
+      this.pid = ProcessUtils.getPid(process);
+      this.outputConsumer = outputConsumer;
+      this.owner = owner;
+      this.outputStream = process.getInputStream();
+      this.buffer = new byte[2048];
+      this.pumping = new AtomicBoolean();
+      this.exitFuture = new SettableListenableFuture<Integer>(false);
+      this.throttledMillis = new AtomicLong();
+      this.pausedTime = -1;
+    }
+    
+    public List<String> getCommand() {
+      return command;
+    }
+    
+    /**
+     * Returns the pid of the process, or {@code -1} if it is not known.
+     */
+    public int getPid() {
+      return pid;
+    }
+    
+    /**
+     * Future which completes with the exit code once the process has exited and all of its
+     * output has been consumed.
+     */
+    public ListenableFuture<Integer> getExitFuture() {
+      return exitFuture;
+    }
+    
+    /**
+     * Blocks until the process has exited and all of its output has been consumed.  If
+     * interrupted while waiting the process is killed.
+     * 
+     * @return Exit code of the process
+     */
+    public int waitFor() throws InterruptedException {
+      try {
+        return exitFuture.get();
+      } catch (InterruptedException e) {
+        kill();
+        throw e;
+      } catch (ExecutionException e) {
+        throw ExceptionUtils.makeRuntime(e.getCause());
+      }
+    }
+    
+    /**
+     * Stops the process from running (SIGSTOP) until {@link #resume()} is invoked.
+     * 
+     * @return {@code true} if the process was paused
+     */
+    public synchronized boolean pause() {
+      if (pausedTime >= 0 || ! ProcessUtils.sendSignal(pid, "STOP")) {
+        return false;
+      }
+      pausedTime = Clock.accurateForwardProgressingMillis();
+      
+      return true;
+    }
+    
+    /**
+     * Continues a process which was paused, adding the time it was paused to the throttled time.
+     */
+    public synchronized void resume() {
+      if (pausedTime >= 0) {
+        ProcessUtils.sendSignal(pid, "CONT");
+        throttledMillis.addAndGet(Clock.accurateForwardProgressingMillis() - pausedTime);
+        pausedTime = -1;
+      }
+    }
+    
+    // for a process the signal was already sent to
+    private synchronized void markPaused(long now) {
+      if (pausedTime < 0) {
+        pausedTime = now;
+      }
+    }
+    
+    // returns true if the process was paused, and so needs to be sent the signal to continue
+    private synchronized boolean markResumed(long now) {
+      if (pausedTime < 0) {
+        return false;
+      }
+      throttledMillis.addAndGet(now - pausedTime);
+      pausedTime = -1;
+      
+      return true;
+    }
+    
+    public boolean isPaused() {
+      return pausedTime >= 0;
+    }
+    
+    /**
+     * Returns the milliseconds this process has spent paused to keep within bandwidth limits.
+     */
+    public long getThrottledMillis() {
+      return throttledMillis.get();
+    }
+    
+    /**
+     * Kills the process, forcibly if it does not exit shortly after being asked to.
+     */
+    public void kill() {
+      process.destroy();
+      resume();  // a stopped process will not act on the signal until continued
+      try {
+        if (! process.waitFor(KILL_WAIT_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+          process.destroyForcibly();
+        }
+      } catch (InterruptedException e) {
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+    
+    // reads any available output, returning true if anything was read
+    private boolean pump() {
+      if (exitFuture.isDone()) {
+        return false;
+      }
+      
+      try {
+        int totalRead = 0;
+        int available;
+        while (totalRead < MAX_READ_PER_POLL && 
+               (available = outputStream.available()) > 0) {
+          int c = outputStream.read(buffer, 0, Math.min(available, buffer.length));
+          if (c < 0) {
+            break;
+          }
+          consume(c);
+          totalRead += c;
+        }
+        
+        if (totalRead == 0 && ! process.isAlive()) {
+          // only read what is already there, a child of the process may have inherited the pipe 
+          // and keep it open long after, so reading to the end of stream could block this thread
+          int drained = 0;
+          while (drained < MAX_READ_PER_POLL && 
+                 (available = outputStream.available()) > 0) {
+            int c = outputStream.read(buffer, 0, Math.min(available, buffer.length));
+            if (c < 0) {
+              break;
+            }
+            consume(c);
+            drained += c;
+          }
+          finish(process.waitFor());
+        }
+        
+        return totalRead > 0;
+      } catch (IOException e) {
+        // stream closed under us (ie process was killed), still report how it exited
+        try {
+          finish(process.exitValue());
+        } catch (IllegalThreadStateException stillRunning) {
+          ended();
+          exitFuture.setFailure(e);
+        }
+        
+        return false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        
+        return false;
+      }
+    }
+    
+    private void consume(int length) {
+      if (outputConsumer != null) {
+        try {
+          outputConsumer.consume(buffer, 0, length);
+        } catch (Throwable t) {
+          ExceptionUtils.handleException(t);
+        }
+      }
+    }
+    
+    private void finish(int exitCode) {
+      try {
+        outputStream.close();
+      } catch (IOException e) {
+        // ignored, we are done with it
+      }
+      ended();
+      exitFuture.setResult(exitCode);
+    }
+    
+    private void ended() {
+      runningProcesses.remove(this);
+      if (owner != null) {
+        owner.processEnded(this);
+      }
+    }
+    
+    @Override
+    public String toString() {
+      return pid + ": " + command;
+    }
+  }
+  
+  /**
+   * Consumer which passes the output to several other consumers.
+   */
+  public static class TeeConsumer implements OutputConsumer {
+    private final OutputConsumer[] consumers;
+    
+    public TeeConsumer(OutputConsumer ... consumers) {
+      this.consumers = consumers;
+    }
+    
+    @Override
+    public void consume(byte[] buf, int offset, int length) {
+      for (int i = 0; i < consumers.length; i++) {
+        consumers[i].consume(buf, offset, length);
+      }
+    }
+  }
+  
+  private static class ChainedOwner implements ProcessOwner {
+    private final ProcessOwner first;
+    private final ProcessOwner second;
+    
+    private ChainedOwner(ProcessOwner first, ProcessOwner second) {
+      this.first = first;
+      this.second = second;
+    }
+    
+    @Override
+    public void processStarted(RunningProcess process) {
+      first.processStarted(process);
+      second.processStarted(process);
+    }
+    
+    @Override
+    public void processEnded(RunningProcess process) {
+      first.processEnded(process);
+      second.processEnded(process);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.jentfoo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class ProcessUtils {
+  // USER_HZ, which is 100 on every linux platform we care about
+  private static final int CLOCK_TICKS_PER_SECOND = 100;
+  
+  /**
+   * Returns the pid of the process, or {@code -1} if it can not be determined on this jvm.
+   */
+  public static int getPid(Process process) {
+    try {
+      // java 9+
+      Method pidMethod = Process.class.getMethod("pid");
+      return ((Number)pidMethod.invoke(process)).intValue();
+    } catch (NoSuchMethodException e) {
+      // java 8, use the UNIXProcess field
+      try {
+        Field pidField = process.getClass().getDeclaredField("pid");
+        pidField.setAccessible(true);
+        return pidField.getInt(process);
+      } catch (Exception e1) {
+        return -1;
+      }
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+  
+  /**
+   * Returns the user + system CPU time consumed by the process and its waited for children, or 
+   * {@code -1} if the process is gone (or this is not linux).
+   */
+  public static long readCpuMillis(int pid) {
+    if (pid < 0) {
+      return -1;
+    }
+    File statFile = new File("/proc/" + pid + "/stat");
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(statFile));
+      String line;
+      try {
+        line = reader.readLine();
+      } finally {
+        reader.close();
+      }
+      if (line == null) {
+        return -1;
+      }
+      
+      // command may contain spaces, so start parsing after the closing paren
+      String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+      // fields are offset by 3 from the proc(5) numbering: utime(14) stime(15) cutime(16) cstime(17)
+      long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]) + 
+                     Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+      
+      return ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+    } catch (IOException e) {
+      return -1;
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+  
+  /**
+   * Returns the bytes the process has read and written (rchar and wchar from 
+   * {@code /proc/<pid>/io}), or {@code null} if the process is gone (or this is not linux).
+   */
+  public static long[] readIoBytes(int pid) {
+    if (pid < 0) {
+      return null;
+    }
+    File ioFile = new File("/proc/" + pid + "/io");
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(ioFile));
+      try {
+        long[] result = new long[] { -1, -1 };
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith("rchar: ")) {
+            result[0] = Long.parseLong(line.substring(7).trim());
+          } else if (line.startsWith("wchar: ")) {
+            result[1] = Long.parseLong(line.substring(7).trim());
+          }
+        }
+        
+        return result[0] < 0 || result[1] < 0 ? null : result;
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      return null;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Sends a signal (ie "STOP" or "CONT") to the process using {@code kill}.
+   * 
+   * @return {@code true} if the signal was sent
+   */
+  public static boolean sendSignal(int pid, String signal) {
+    if (pid < 0) {
+      return false;
+    }
+    
+    return sendSignal(Collections.singletonList(pid), signal);
+  }
+  
+  /**
+   * Sends a signal to each of the processes with a single {@code kill}.
+   * 
+   * @return {@code true} if the signal was sent to all of them
+   */
+  public static boolean sendSignal(List<Integer> pids, String signal) {
+    List<String> command = new ArrayList<String>(pids.size() + 2);
+    command.add("kill");
+    command.add("-" + signal);
+    Iterator<Integer> it = pids.iterator();
+    while (it.hasNext()) {
+      command.add(it.next().toString());
+    }
+    try {
+      Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+      p.getInputStream().close();
+      
+      return p.waitFor() == 0;
+    } catch (IOException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      
+      return false;
+    }
+  }
+}
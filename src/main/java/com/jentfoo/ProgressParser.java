@@ -0,0 +1,186 @@
+package com.jentfoo;
+
+import org.threadly.util.Clock;
+
+/**
+ * Parses encoder output as it is read, updating a {@link JobProgress}.  Both the avconv
+ * {@code frame= fps= time=} status lines and the mencoder {@code Pos:} lines are understood.
+ * Only the current line is buffered (and only up to a fixed length), so the output stream is 
+ * never held in memory.
+ */
+public class ProgressParser implements ProcessLauncher.OutputConsumer {
+  private static final int MAX_LINE_LENGTH = 512;
+  private static final int CPU_SAMPLE_INTERVAL_IN_MILLIS = 1000;
+  
+  private final JobProgress progress;
+  private final char[] line;
+  private int lineLength;
+  private int pid;
+  private long lastCpuSampleTime;
+  
+  public ProgressParser(JobProgress progress) {
+    this.progress = progress;
+    this.line = new char[MAX_LINE_LENGTH];
+    this.lineLength = 0;
+    this.pid = -1;
+    this.lastCpuSampleTime = 0;
+  }
+  
+  /**
+   * Set the pid of the process producing the output, so its CPU usage can be sampled as output is 
+   * consumed.
+   */
+  public void setPid(int pid) {
+    this.pid = pid;
+  }
+  
+  private void maybeSampleCpu() {
+    if (pid < 0) {
+      return;
+    }
+    long now = Clock.lastKnownForwardProgressingMillis();
+    if (now - lastCpuSampleTime >= CPU_SAMPLE_INTERVAL_IN_MILLIS) {
+      lastCpuSampleTime = now;
+      long cpuMillis = ProcessUtils.readCpuMillis(pid);
+      if (cpuMillis >= 0) {
+        progress.setChildCpuMillis(cpuMillis);
+      }
+    }
+  }
+  
+  @Override
+  public void consume(byte[] buf, int offset, int length) {
+    maybeSampleCpu();
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      byte b = buf[i];
+      // status lines are rewritten in place with \r, so treat it like a new line
+      if (b == '\r' || b == '\n') {
+        if (lineLength > 0) {
+          parseLine(new String(line, 0, lineLength));
+          lineLength = 0;
+        }
+      } else if (lineLength < MAX_LINE_LENGTH) {
+        line[lineLength++] = (char)(b & 0xFF);
+      }
+    }
+  }
+  
+  protected void parseLine(String line) {
+    if (line.startsWith("frame=")) {
+      parseAvconvStatus(line);
+    } else if (line.startsWith("Pos:")) {
+      parseMencoderStatus(line);
+    } else if (progress.getDurationSeconds() <= 0) {
+      int index = line.indexOf("Duration: ");
+      if (index >= 0) {
+        double duration = parseTime(valueAt(line, index + "Duration: ".length(), ','));
+        if (duration > 0) {
+          progress.setDurationSeconds(duration);
+        }
+      }
+    }
+  }
+  
+  // frame= 1234 fps= 56 q=28.0 size=   12345kB time=00:00:49.36 bitrate=2048.0kbits/s
+  private void parseAvconvStatus(String line) {
+    long frame = (long)parseNumber(fieldValue(line, "frame="));
+    double fps = parseNumber(fieldValue(line, "fps="));
+    double time = parseTime(fieldValue(line, "time="));
+    if (time >= 0) {
+      progress.update(time, Math.max(0, fps), Math.max(0, frame));
+    }
+  }
+  
+  // Pos:  49.4s   1234f (12%) 56.23fps Trem:   3min 234mb  A-V:0.000 [1500:128]
+  private void parseMencoderStatus(String line) {
+    String[] tokens = line.substring("Pos:".length()).trim().split("[\\s()]+");
+    double position = -1;
+    double fps = 0;
+    long frame = 0;
+    for (int i = 0; i < tokens.length; i++) {
+      String token = tokens[i];
+      if (token.isEmpty()) {
+        continue;
+      } else if (position < 0 && token.endsWith("s")) {
+        position = parseNumber(token.substring(0, token.length() - 1));
+      } else if (token.endsWith("fps")) {
+        fps = parseNumber(token.substring(0, token.length() - 3));
+      } else if (token.endsWith("f")) {
+        frame = (long)parseNumber(token.substring(0, token.length() - 1));
+      } else if (token.endsWith("%")) {
+        double percent = parseNumber(token.substring(0, token.length() - 1));
+        if (percent >= 0) {
+          progress.setReportedPercent(percent);
+        }
+      } else if (token.startsWith("Trem")) {
+        break;
+      }
+    }
+    if (position >= 0) {
+      progress.update(position, Math.max(0, fps), Math.max(0, frame));
+    }
+  }
+  
+  // returns the value following the key, up to the next space (skipping leading spaces)
+  private static String fieldValue(String line, String key) {
+    int index = line.indexOf(key);
+    if (index < 0) {
+      return null;
+    }
+    
+    return valueAt(line, index + key.length(), ' ');
+  }
+  
+  private static String valueAt(String line, int start, char terminator) {
+    while (start < line.length() && line.charAt(start) == ' ') {
+      start++;
+    }
+    int end = start;
+    while (end < line.length() && line.charAt(end) != terminator && line.charAt(end) != ' ') {
+      end++;
+    }
+    
+    return line.substring(start, end);
+  }
+  
+  private static double parseNumber(String value) {
+    if (value == null || value.isEmpty()) {
+      return -1;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+  
+  /**
+   * Parses either {@code HH:MM:SS.ss} or plain seconds.
+   * 
+   * @return time in seconds, or {@code -1} if it could not be parsed
+   */
+  public static double parseTime(String value) {
+    if (value == null || value.isEmpty()) {
+      return -1;
+    }
+    
+    double result = 0;
+    int start = 0;
+    int index;
+    while ((index = value.indexOf(':', start)) >= 0) {
+      double part = parseNumber(value.substring(start, index));
+      if (part < 0) {
+        return -1;
+      }
+      result = (result + part) * 60;
+      start = index + 1;
+    }
+    double seconds = parseNumber(value.substring(start));
+    if (seconds < 0) {
+      return -1;
+    }
+    
+    return result + seconds;
+  }
+}
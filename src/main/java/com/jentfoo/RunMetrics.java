@@ -0,0 +1,442 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.threadly.util.Clock;
+
+/**
+ * Collects timing and throughput for each stage of the jobs in a run, split by job type.  The 
+ * results can be written as a JSON report, and as a Prometheus text format file for the 
+ * node_exporter textfile collector.
+ */
+public class RunMetrics {
+  private static final String METRIC_PREFIX = "xbox_media_";
+  // used for stages which happen before the job type is known
+  private static final String UNKNOWN_JOB_TYPE = "unknown";
+  private static final String PROFILE_COUNTER_PREFIX = "profile_";
+  
+  public enum Stage {
+    StabilityWait, Probe, QueueWait, Copy, Encode, Publish, Split, Concat, Delete, Launch;
+    
+    public static Stage forJobType(JobType jobType) {
+      return jobType == JobType.Copy ? Copy : Encode;
+    }
+  }
+  
+  private final long startTime;
+  private final long startTimeMillis;
+  private final ConcurrentMap<String, Histogram> stageHistograms;
+  private final ConcurrentMap<String, AtomicLong> counters;
+  private final List<PriorityLane> lanes;
+  private final ConcurrentMap<String, GaugeEntry> gauges;
+  
+  /**
+   * A value which is read when the reports are written.
+   */
+  public interface Gauge {
+    public double getValue();
+  }
+  
+  public RunMetrics() {
+    this.startTime = Clock.accurateForwardProgressingMillis();
+    this.startTimeMillis = Clock.accurateTimeMillis();
+    // sorted so output is stable between runs
+    this.stageHistograms = new ConcurrentSkipListMap<String, Histogram>();
+    this.counters = new ConcurrentHashMap<String, AtomicLong>();
+    this.lanes = new CopyOnWriteArrayList<PriorityLane>();
+    this.gauges = new ConcurrentSkipListMap<String, GaugeEntry>();
+  }
+  
+  /**
+   * Include the queue depth, running count, and utilization of the lane in the reports.
+   */
+  public void registerLane(PriorityLane lane) {
+    lanes.add(lane);
+  }
+  
+  public void registerGauge(String name, String help, Gauge gauge) {
+    gauges.put(name, new GaugeEntry(help, gauge));
+  }
+  
+  private static String jobTypeName(JobType jobType) {
+    return jobType == null ? UNKNOWN_JOB_TYPE : jobType.name();
+  }
+  
+  public void recordStage(Stage stage, JobType jobType, long durationMillis) {
+    recordStageSeconds(stage, jobType, durationMillis / 1000d);
+  }
+  
+  public void recordStageSeconds(Stage stage, JobType jobType, double durationSeconds) {
+    String key = stage.name() + '|' + jobTypeName(jobType);
+    Histogram histogram = stageHistograms.get(key);
+    if (histogram == null) {
+      histogram = new Histogram();
+      Histogram existing = stageHistograms.putIfAbsent(key, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    histogram.record(durationSeconds);
+  }
+  
+  private void addToCounter(String name, JobType jobType, long value) {
+    String key = name + '|' + jobTypeName(jobType);
+    AtomicLong counter = counters.get(key);
+    if (counter == null) {
+      counter = new AtomicLong();
+      AtomicLong existing = counters.putIfAbsent(key, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    counter.addAndGet(value);
+  }
+  
+  public void recordBytes(JobType jobType, long bytesRead, long bytesWritten) {
+    addToCounter("bytes_read", jobType, bytesRead);
+    addToCounter("bytes_written", jobType, bytesWritten);
+  }
+  
+  public void recordChildCpuMillis(JobType jobType, long cpuMillis) {
+    if (cpuMillis > 0) {
+      addToCounter("child_cpu_millis", jobType, cpuMillis);
+    }
+  }
+  
+  /**
+   * Records a job which was killed for running past its timeout.
+   */
+  public void recordTimeout(JobType jobType) {
+    addToCounter("timeouts", jobType, 1);
+  }
+  
+  /**
+   * Records the encoding profile chosen for a job.
+   */
+  public void recordEncodingProfile(JobType jobType, EncodingProfile profile) {
+    addToCounter(PROFILE_COUNTER_PREFIX + profile.name, jobType, 1);
+  }
+  
+  /**
+   * Records time a job spent waiting (or with its encoder paused) to keep within bandwidth limits.
+   */
+  public void recordThrottledMillis(JobType jobType, long throttledMillis) {
+    if (throttledMillis > 0) {
+      addToCounter("throttled_millis", jobType, throttledMillis);
+    }
+  }
+  
+  /**
+   * Records a segmented encode, the wall time spent encoding the segments and the sum of the time 
+   * each segment took.  The ratio of the two is how many segments were encoding at once on
+   * average.  If the throughput history could estimate how long the source would have taken in a
+   * single process, the ratio of that to the total time (including the split and join) is the
+   * speedup.
+   * 
+   * @param totalMillis Time the whole segmented encode took, including the split and join
+   * @param estimatedSingleMillis Estimated time in a single process, or {@code -1} if unknown
+   */
+  public void recordSegmentedEncode(JobType jobType, long wallMillis, long segmentMillisSum, 
+                                    long totalMillis, long estimatedSingleMillis) {
+    addToCounter("segmented_wall_millis", jobType, wallMillis);
+    addToCounter("segment_encode_millis", jobType, segmentMillisSum);
+    if (estimatedSingleMillis > 0) {
+      // only encodes which could be compared, so the two sums give the speedup
+      addToCounter("segmented_compared_millis", jobType, totalMillis);
+      addToCounter("segmented_single_estimate_millis", jobType, estimatedSingleMillis);
+    }
+  }
+  
+  /**
+   * Records a source which was linked or copied from the new file of a source with the same 
+   * content, instead of being converted.
+   */
+  public void recordDuplicate(long sourceBytes) {
+    addToCounter("duplicates", null, 1);
+    addToCounter("duplicate_bytes", null, sourceBytes);
+  }
+  
+  public void recordJobResult(JobType jobType, boolean success) {
+    addToCounter(success ? "jobs_succeeded" : "jobs_failed", jobType, 1);
+  }
+  
+  public long getCounter(String name, JobType jobType) {
+    AtomicLong counter = counters.get(name + '|' + jobTypeName(jobType));
+    return counter == null ? 0 : counter.get();
+  }
+  
+  public Histogram getHistogram(Stage stage, JobType jobType) {
+    return stageHistograms.get(stage.name() + '|' + jobTypeName(jobType));
+  }
+  
+  public long getRunMillis() {
+    return Clock.accurateForwardProgressingMillis() - startTime;
+  }
+  
+  /**
+   * Write the JSON report and the Prometheus file.  Either file may be {@code null} to skip it.
+   * Files are written to a temporary name and moved into place so readers never see a partial 
+   * file.
+   */
+  public void writeReports(File jsonFile, File prometheusFile) throws IOException {
+    if (jsonFile != null) {
+      writeAtomically(jsonFile, toJson());
+    }
+    if (prometheusFile != null) {
+      writeAtomically(prometheusFile, toPrometheusText());
+    }
+  }
+  
+  private static void writeAtomically(File file, String content) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (! parent.exists() && ! parent.mkdirs()) {
+      throw new IOException("Could not make folder: " + parent.getAbsolutePath());
+    }
+    File tmpFile = new File(parent, '.' + file.getName() + ".tmp");
+    Writer out = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    Files.move(tmpFile.toPath(), file.toPath(), 
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  private static String formatDouble(double value) {
+    return String.format(Locale.US, "%.3f", value);
+  }
+  
+  public String toJson() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n");
+    sb.append("  \"startTimeMillis\": ").append(startTimeMillis).append(",\n");
+    sb.append("  \"runSeconds\": ").append(formatDouble(getRunMillis() / 1000d)).append(",\n");
+    sb.append("  \"stages\": [");
+    Iterator<Map.Entry<String, Histogram>> it = stageHistograms.entrySet().iterator();
+    boolean first = true;
+    while (it.hasNext()) {
+      Map.Entry<String, Histogram> e = it.next();
+      String[] keyParts = e.getKey().split("\\|");
+      Histogram h = e.getValue();
+      sb.append(first ? "\n" : ",\n");
+      first = false;
+      sb.append("    {\"stage\": \"").append(keyParts[0])
+        .append("\", \"jobType\": \"").append(keyParts[1])
+        .append("\", \"count\": ").append(h.getCount())
+        .append(", \"sumSeconds\": ").append(formatDouble(h.getSum()))
+        .append(", \"p50Seconds\": ").append(formatDouble(h.getPercentile(50)))
+        .append(", \"p90Seconds\": ").append(formatDouble(h.getPercentile(90)))
+        .append(", \"p99Seconds\": ").append(formatDouble(h.getPercentile(99)))
+        .append(", \"maxSeconds\": ").append(formatDouble(h.getMax())).append('}');
+    }
+    sb.append("\n  ],\n");
+    sb.append("  \"counters\": [");
+    Iterator<Map.Entry<String, AtomicLong>> counterIt = 
+        new ConcurrentSkipListMap<String, AtomicLong>(counters).entrySet().iterator();
+    first = true;
+    while (counterIt.hasNext()) {
+      Map.Entry<String, AtomicLong> e = counterIt.next();
+      String[] keyParts = e.getKey().split("\\|");
+      sb.append(first ? "\n" : ",\n");
+      first = false;
+      sb.append("    {\"name\": \"").append(keyParts[0])
+        .append("\", \"jobType\": \"").append(keyParts[1])
+        .append("\", \"value\": ").append(e.getValue().get()).append('}');
+    }
+    sb.append("\n  ],\n");
+    sb.append("  \"lanes\": [");
+    Iterator<PriorityLane> laneIt = lanes.iterator();
+    first = true;
+    while (laneIt.hasNext()) {
+      PriorityLane lane = laneIt.next();
+      sb.append(first ? "\n" : ",\n");
+      first = false;
+      sb.append("    {\"name\": \"").append(lane.getName())
+        .append("\", \"queued\": ").append(lane.getQueuedCount())
+        .append(", \"running\": ").append(lane.getRunningCount())
+        .append(", \"maxConcurrency\": ").append(lane.getMaxConcurrency())
+        .append(", \"busySeconds\": ").append(formatDouble(lane.getBusyMillis() / 1000d))
+        .append(", \"utilization\": ").append(formatDouble(lane.getUtilization())).append('}');
+    }
+    sb.append("\n  ],\n");
+    sb.append("  \"gauges\": {");
+    Iterator<Map.Entry<String, GaugeEntry>> gaugeIt = gauges.entrySet().iterator();
+    first = true;
+    while (gaugeIt.hasNext()) {
+      Map.Entry<String, GaugeEntry> e = gaugeIt.next();
+      sb.append(first ? "\n" : ",\n");
+      first = false;
+      sb.append("    \"").append(e.getKey()).append("\": ")
+        .append(formatDouble(e.getValue().gauge.getValue()));
+    }
+    sb.append("\n  }\n");
+    sb.append("}\n");
+    
+    return sb.toString();
+  }
+  
+  public String toPrometheusText() {
+    StringBuilder sb = new StringBuilder();
+    String stageMetric = METRIC_PREFIX + "stage_duration_seconds";
+    sb.append("# HELP ").append(stageMetric).append(" Time spent in each stage of a job.\n");
+    sb.append("# TYPE ").append(stageMetric).append(" histogram\n");
+    Iterator<Map.Entry<String, Histogram>> it = stageHistograms.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Histogram> e = it.next();
+      String[] keyParts = e.getKey().split("\\|");
+      String labels = "stage=\"" + keyParts[0] + "\",job_type=\"" + keyParts[1] + "\"";
+      Histogram h = e.getValue();
+      long[] cumulativeCounts = h.getCumulativeBucketCounts();
+      for (int i = 0; i < Histogram.BUCKET_BOUNDS.length; i++) {
+        sb.append(stageMetric).append("_bucket{").append(labels)
+          .append(",le=\"").append(Histogram.BUCKET_BOUNDS[i]).append("\"} ")
+          .append(cumulativeCounts[i]).append('\n');
+      }
+      sb.append(stageMetric).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+        .append(h.getCount()).append('\n');
+      sb.append(stageMetric).append("_sum{").append(labels).append("} ")
+        .append(formatDouble(h.getSum())).append('\n');
+      sb.append(stageMetric).append("_count{").append(labels).append("} ")
+        .append(h.getCount()).append('\n');
+    }
+    
+    appendCounter(sb, "bytes_read", "bytes_read_total", "Bytes read from source files.", 1);
+    appendCounter(sb, "bytes_written", "bytes_written_total", "Bytes written to new files.", 1);
+    appendCounter(sb, "child_cpu_millis", "child_cpu_seconds_total", 
+                  "CPU time used by encoder processes.", 1000);
+    appendCounter(sb, "throttled_millis", "throttled_seconds_total", 
+                  "Time jobs spent waiting to keep within bandwidth limits.", 1000);
+    appendCounter(sb, "segmented_wall_millis", "segmented_encode_wall_seconds_total", 
+                  "Wall time spent encoding segments of segmented encodes.", 1000);
+    appendCounter(sb, "segment_encode_millis", "segment_encode_seconds_total", 
+                  "Sum of the time each segment of segmented encodes took.", 1000);
+    appendCounter(sb, "segmented_compared_millis", "segmented_encode_compared_seconds_total", 
+                  "Total time of segmented encodes which had a single process estimate.", 1000);
+    appendCounter(sb, "segmented_single_estimate_millis", "segmented_encode_single_estimate_seconds_total", 
+                  "Estimated single process time of segmented encodes, from throughput history.", 1000);
+    appendCounter(sb, "duplicates", "duplicates_total", 
+                  "Sources reused from the new file of identical content.", 1);
+    appendCounter(sb, "duplicate_bytes", "duplicate_bytes_total", 
+                  "Bytes of sources which did not need to be converted since they were duplicates.", 1);
+    appendCounter(sb, "jobs_succeeded", "jobs_succeeded_total", "Jobs which completed.", 1);
+    appendCounter(sb, "jobs_failed", "jobs_failed_total", "Jobs which failed.", 1);
+    appendCounter(sb, "timeouts", "job_timeouts_total", "Jobs killed for running past their timeout.", 1);
+    appendProfileCounter(sb);
+    
+    appendLaneMetric(sb, "lane_queued_jobs", "gauge", "Jobs waiting in each lane.");
+    appendLaneMetric(sb, "lane_running_jobs", "gauge", "Jobs running in each lane.");
+    appendLaneMetric(sb, "lane_max_concurrency", "gauge", "How many jobs each lane may run at once.");
+    appendLaneMetric(sb, "lane_busy_seconds_total", "counter", 
+                     "Time jobs have spent running in each lane, divide the rate by the max " + 
+                       "concurrency for utilization.");
+    Iterator<Map.Entry<String, GaugeEntry>> gaugeIt = gauges.entrySet().iterator();
+    while (gaugeIt.hasNext()) {
+      Map.Entry<String, GaugeEntry> e = gaugeIt.next();
+      String metric = METRIC_PREFIX + e.getKey();
+      sb.append("# HELP ").append(metric).append(' ').append(e.getValue().help).append('\n');
+      sb.append("# TYPE ").append(metric).append(" gauge\n");
+      sb.append(metric).append(' ').append(formatDouble(e.getValue().gauge.getValue())).append('\n');
+    }
+    
+    String runMetric = METRIC_PREFIX + "run_duration_seconds";
+    sb.append("# HELP ").append(runMetric).append(" How long the current run has been going.\n");
+    sb.append("# TYPE ").append(runMetric).append(" gauge\n");
+    sb.append(runMetric).append(' ').append(formatDouble(getRunMillis() / 1000d)).append('\n');
+    String startMetric = METRIC_PREFIX + "run_start_time_seconds";
+    sb.append("# HELP ").append(startMetric).append(" Unix time the current run started.\n");
+    sb.append("# TYPE ").append(startMetric).append(" gauge\n");
+    sb.append(startMetric).append(' ').append(startTimeMillis / 1000).append('\n');
+    
+    return sb.toString();
+  }
+  
+  private void appendLaneMetric(StringBuilder sb, String metricName, String type, String help) {
+    if (lanes.isEmpty()) {
+      return;
+    }
+    String metric = METRIC_PREFIX + metricName;
+    sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    Iterator<PriorityLane> it = lanes.iterator();
+    while (it.hasNext()) {
+      PriorityLane lane = it.next();
+      sb.append(metric).append("{lane=\"").append(lane.getName()).append("\"} ");
+      if (metricName.equals("lane_queued_jobs")) {
+        sb.append(lane.getQueuedCount());
+      } else if (metricName.equals("lane_running_jobs")) {
+        sb.append(lane.getRunningCount());
+      } else if (metricName.equals("lane_max_concurrency")) {
+        sb.append(lane.getMaxConcurrency());
+      } else {
+        sb.append(formatDouble(lane.getBusyMillis() / 1000d));
+      }
+      sb.append('\n');
+    }
+  }
+  
+  private void appendCounter(StringBuilder sb, String counterName, String metricName, 
+                             String help, int divisor) {
+    String metric = METRIC_PREFIX + metricName;
+    sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(metric).append(" counter\n");
+    Iterator<Map.Entry<String, AtomicLong>> it = 
+        new ConcurrentSkipListMap<String, AtomicLong>(counters).entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, AtomicLong> e = it.next();
+      String[] keyParts = e.getKey().split("\\|");
+      if (keyParts[0].equals(counterName)) {
+        sb.append(metric).append("{job_type=\"").append(keyParts[1]).append("\"} ");
+        if (divisor == 1) {
+          sb.append(e.getValue().get());
+        } else {
+          sb.append(formatDouble(e.getValue().get() / (double)divisor));
+        }
+        sb.append('\n');
+      }
+    }
+  }
+  
+  private void appendProfileCounter(StringBuilder sb) {
+    String metric = METRIC_PREFIX + "encoding_profile_jobs_total";
+    sb.append("# HELP ").append(metric).append(" Encodes started with each encoding profile.\n");
+    sb.append("# TYPE ").append(metric).append(" counter\n");
+    Iterator<Map.Entry<String, AtomicLong>> it = 
+        new ConcurrentSkipListMap<String, AtomicLong>(counters).entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, AtomicLong> e = it.next();
+      String[] keyParts = e.getKey().split("\\|");
+      if (keyParts[0].startsWith(PROFILE_COUNTER_PREFIX)) {
+        sb.append(metric).append("{job_type=\"").append(keyParts[1])
+          .append("\",profile=\"").append(keyParts[0].substring(PROFILE_COUNTER_PREFIX.length()))
+          .append("\"} ").append(e.getValue().get()).append('\n');
+      }
+    }
+  }
+  
+  private static class GaugeEntry {
+    private final String help;
+    private final Gauge gauge;
+    
+    private GaugeEntry(String help, Gauge gauge) {
+      this.help = help;
+      this.gauge = gauge;
+    }
+  }
+}
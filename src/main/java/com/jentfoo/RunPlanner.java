@@ -0,0 +1,160 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Works out what a run would do without converting anything.  Each source which needs converting
+ * is probed and planned, and the action for it is printed with how much CPU and wall time it is
+ * expected to take, estimated from how fast jobs like it have run before.  The total shows when
+ * the run would be expected to finish.
+ */
+public class RunPlanner {
+  private final JobContext context;
+  private final SourceWalker sourceWalker;
+  private final ConverterInterface converter;
+  private final ThroughputHistory throughputHistory;
+  private final EncodingProfilePolicy profilePolicy;
+  private final File sourceFolder;
+  private final File destFolder;
+  
+  /**
+   * Construct a new planner.
+   * 
+   * @param profilePolicy Policy the converter chooses encoding profiles with, or {@code null} if it does not use profiles
+   */
+  public RunPlanner(JobContext context, SourceWalker sourceWalker, 
+                    ConverterInterface converter, ThroughputHistory throughputHistory, 
+                    EncodingProfilePolicy profilePolicy, 
+                    File sourceFolder, File destFolder) {
+    this.context = context;
+    this.sourceWalker = sourceWalker;
+    this.converter = converter;
+    this.throughputHistory = throughputHistory;
+    this.profilePolicy = profilePolicy;
+    this.sourceFolder = sourceFolder;
+    this.destFolder = destFolder;
+  }
+  
+  public void run() throws InterruptedException {
+    File[] sourceFileArray = sourceWalker.listFiles(sourceFolder);
+    Arrays.sort(sourceFileArray);
+    DirectoryIndex destIndex = MediaConverter.buildDestIndex(sourceWalker, converter, 
+                                                             sourceFolder, destFolder, sourceFileArray);
+    List<File> sourceFileList = MediaConverter.makeValidSourceList(sourceFileArray, destIndex);
+    
+    int convertedCount = 0;
+    List<ConversionPlan> plans = new ArrayList<ConversionPlan>(sourceFileList.size());
+    double encodeCost = 0;
+    Iterator<File> it = sourceFileList.iterator();
+    while (it.hasNext()) {
+      File sourceFile = it.next();
+      File newFile = destIndex.makeDestFile(sourceFile);
+      if (destIndex.containsDestFile(newFile)) {
+        convertedCount++;
+        continue;
+      }
+      
+      try {
+        ConversionPlan plan = converter.planJob(context, sourceFile, newFile);
+        plans.add(plan);
+        if (plan.jobType.isCpuIntensive()) {
+          encodeCost += plan.getEstimatedCost();
+        }
+      } catch (IOException e) {
+        System.err.println("Could not plan " + sourceFile.getAbsolutePath() + ": " + e.getMessage());
+      }
+    }
+    
+    int copySlots = context.getCopyLane().getMaxConcurrency();
+    int encodeSlots = context.getEncodeLane().getMaxConcurrency();
+    // the profile the first encode would use, later ones may use a slower one as the backlog drains
+    EncodingProfile profile = profilePolicy == null ? null : profilePolicy.choose(encodeCost, encodeSlots);
+    
+    double cpuSeconds = 0;
+    double copyWallSeconds = 0;
+    double encodeWallSeconds = 0;
+    double longestWallSeconds = 0;
+    int guessedCount = 0;
+    Iterator<ConversionPlan> planIt = plans.iterator();
+    while (planIt.hasNext()) {
+      ConversionPlan plan = planIt.next();
+      ThroughputHistory.Estimate estimate = 
+          throughputHistory.estimate(plan, plan.jobType.isCpuIntensive() ? profile : null, 
+                                     context.getEncodeThreadCount());
+      System.out.println(describe(estimate));
+      
+      cpuSeconds += estimate.cpuSeconds;
+      if (plan.jobType.isCpuIntensive()) {
+        encodeWallSeconds += estimate.wallSeconds;
+      } else {
+        copyWallSeconds += estimate.wallSeconds;
+      }
+      longestWallSeconds = Math.max(longestWallSeconds, estimate.wallSeconds);
+      if (! estimate.isFromHistory() && plan.duplicateOf == null) {
+        guessedCount++;
+      }
+    }
+    
+    // the copy and encode lanes run at the same time, so the busiest one decides when we finish
+    double runSeconds = Math.max(longestWallSeconds, 
+                                 Math.max(copyWallSeconds / copySlots, encodeWallSeconds / encodeSlots));
+    long runMillis = (long)(runSeconds * 1000);
+    System.out.println();
+    System.out.println(plans.size() + " files to convert, " + convertedCount + " already converted");
+    if (profile != null) {
+      System.out.println("Encoding profile: " + profile);
+    }
+    System.out.println("Total CPU time: " + RunProgress.formatMillis((long)(cpuSeconds * 1000)));
+    System.out.println("Total wall time: " + RunProgress.formatMillis(runMillis) + 
+                         " (" + copySlots + " copy slots, " + encodeSlots + " encode slots)");
+    System.out.println(String.format("Estimated finish: %1$ta %1$tH:%1$tM", 
+                                     new Date(System.currentTimeMillis() + runMillis)));
+    if (guessedCount > 0) {
+      System.out.println(guessedCount + " estimates are guesses, since nothing like them has been converted yet");
+    }
+  }
+  
+  private static String describe(ThroughputHistory.Estimate estimate) {
+    ConversionPlan plan = estimate.plan;
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-13s", describeAction(plan)))
+      .append(" cpu ").append(String.format("%8s", RunProgress.formatMillis((long)(estimate.cpuSeconds * 1000))))
+      .append("  wall ").append(String.format("%8s", RunProgress.formatMillis((long)(estimate.wallSeconds * 1000))))
+      .append("  ").append(plan.sourceFile.getName());
+    if (plan.duplicateOf != null) {
+      sb.append(" (of ").append(plan.duplicateOf.getName()).append(')');
+    } else if (estimate.rate == null) {
+      sb.append(" (guess)");
+    } else if (estimate.rate.fps > 0) {
+      sb.append(String.format(" (%.1f fps)", estimate.rate.fps));
+    }
+    
+    return sb.toString();
+  }
+  
+  private static String describeAction(ConversionPlan plan) {
+    if (plan.duplicateOf != null) {
+      return "duplicate";
+    }
+    switch (plan.jobType) {
+      case Copy:
+        return "copy";
+      case CodecCopy:
+        return "remux";
+      case AudioEncode:
+        return "audio encode";
+      case VideoEncode:
+        return "video encode";
+      case FullEncode:
+        return "full encode";
+      default:
+        throw new UnsupportedOperationException("Unhandled job type: " + plan.jobType);
+    }
+  }
+}
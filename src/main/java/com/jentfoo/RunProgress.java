@@ -0,0 +1,180 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.threadly.util.Clock;
+
+/**
+ * Tracks the progress of all the jobs in a run.  Each job is weighted by its estimated cost, so 
+ * a finished 40 minute encode counts for much more than a finished 1 second copy.
+ */
+public class RunProgress {
+  private final long startTime;
+  private final Map<File, TrackedJob> jobs;
+  
+  public RunProgress() {
+    this.startTime = Clock.accurateForwardProgressingMillis();
+    this.jobs = new ConcurrentHashMap<File, TrackedJob>();
+  }
+  
+  /**
+   * Register a job which has not been planned yet.
+   * 
+   * @param estimatedCost Estimate to use until the job is planned
+   */
+  public void jobSubmitted(File sourceFile, double estimatedCost) {
+    jobs.put(sourceFile, new TrackedJob(estimatedCost, null, null));
+  }
+  
+  public void jobPlanned(ConversionPlan plan) {
+    jobs.put(plan.sourceFile, new TrackedJob(plan.getEstimatedCost(), plan.jobType, plan.progress));
+  }
+  
+  public void jobFinished(File sourceFile) {
+    TrackedJob job = jobs.get(sourceFile);
+    if (job != null) {
+      job.finished = true;
+    }
+  }
+  
+  /**
+   * Remove a job which will not be run (ie the source was still changing).
+   */
+  public void jobRemoved(File sourceFile) {
+    jobs.remove(sourceFile);
+  }
+  
+  public int getTotalCount() {
+    return jobs.size();
+  }
+  
+  public int getFinishedCount() {
+    int result = 0;
+    Iterator<TrackedJob> it = jobs.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().finished) {
+        result++;
+      }
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Returns the fraction of the total estimated work which has been completed, from {@code 0} 
+   * to {@code 1}.
+   */
+  public double getFractionDone() {
+    double totalWeight = 0;
+    double doneWeight = 0;
+    Iterator<TrackedJob> it = jobs.values().iterator();
+    while (it.hasNext()) {
+      TrackedJob job = it.next();
+      totalWeight += job.weight;
+      doneWeight += job.weight * job.getFractionDone();
+    }
+    
+    if (totalWeight <= 0) {
+      return jobs.isEmpty() ? 1 : 0;
+    }
+    
+    return doneWeight / totalWeight;
+  }
+  
+  /**
+   * Returns the estimated cost of the encodes which have been planned but are not yet finished 
+   * (including the part of running encodes which is left).
+   */
+  public double getRemainingEncodeCost() {
+    double result = 0;
+    Iterator<TrackedJob> it = jobs.values().iterator();
+    while (it.hasNext()) {
+      TrackedJob job = it.next();
+      if (job.jobType != null && job.jobType.isCpuIntensive()) {
+        result += job.weight * (1 - job.getFractionDone());
+      }
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Returns the estimated millis until all jobs are done, based off the rate work has been 
+   * completed so far.  Returns {@code -1} if no progress has been made yet.
+   */
+  public long getEstimatedRemainingMillis() {
+    double fraction = getFractionDone();
+    if (fraction <= 0) {
+      return -1;
+    }
+    long elapsed = Clock.lastKnownForwardProgressingMillis() - startTime;
+    
+    return (long)(elapsed * ((1 - fraction) / fraction));
+  }
+  
+  /**
+   * Returns a summary line for each job currently running.
+   */
+  public String getRunningJobsSummary() {
+    StringBuilder sb = new StringBuilder();
+    Iterator<Map.Entry<File, TrackedJob>> it = jobs.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<File, TrackedJob> e = it.next();
+      JobProgress progress = e.getValue().progress;
+      if (! e.getValue().finished && progress != null && progress.isStarted()) {
+        if (sb.length() > 0) {
+          sb.append('\n');
+        }
+        sb.append("Progress: ").append(e.getKey().getName()).append(" - ").append(progress);
+        long remaining = progress.getEstimatedRemainingMillis();
+        if (remaining >= 0) {
+          sb.append(", ETA ").append(formatMillis(remaining));
+        }
+      }
+    }
+    
+    return sb.toString();
+  }
+  
+  public static String formatMillis(long millis) {
+    long seconds = millis / 1000;
+    return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+  }
+  
+  @Override
+  public String toString() {
+    String percent = Double.toString(getFractionDone() * 100);
+    long remaining = getEstimatedRemainingMillis();
+    return "Estimated % done: " + 
+             percent.substring(0, Math.min(percent.length() - 1, 5)) + "%" + 
+             " - ( " + getFinishedCount() + " out of " + getTotalCount() + " )" + 
+             (remaining >= 0 ? " - ETA " + formatMillis(remaining) : "");
+  }
+  
+  private static class TrackedJob {
+    private final double weight;
+    private final JobType jobType;  // null until planned
+    private final JobProgress progress;
+    private volatile boolean finished;
+    
+    private TrackedJob(double weight, JobType jobType, JobProgress progress) {
+      this.weight = weight;
+      this.jobType = jobType;
+      this.progress = progress;
+      this.finished = false;
+    }
+    
+    private double getFractionDone() {
+      if (finished) {
+        return 1;
+      } else if (progress == null) {
+        return 0;
+      } else {
+        return progress.getFractionDone();
+      }
+    }
+  }
+}
@@ -0,0 +1,455 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.concurrent.future.SettableListenableFuture;
+import org.threadly.util.Clock;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Encodes a long source as several segments at once so that a single large file can use the idle
+ * encode slots.  The source is split at keyframes (without re-encoding), each segment is encoded
+ * to MPEG-TS, and the encoded segments are then joined back together (again without
+ * re-encoding) into the new file.
+ * 
+ * The thread which starts the encode takes segments itself, and helpers are submitted to the
+ * encode lane to take the rest.  Since a segment is only ever waited on once something has
+ * started encoding it, this can not deadlock even if the lane fills up.  If any segment fails the
+ * encode is aborted: segments which have not started are failed, the encoders of those which
+ * have are killed, and the encode only returns once none are left running.
+ */
+public class SegmentedEncode {
+  private static final boolean VERBOSE = true;
+  public static final double MIN_SOURCE_DURATION_SECONDS = 60 * 45;
+  private static final double MIN_SEGMENT_DURATION_SECONDS = 60 * 10;
+  private static final int MAX_SEGMENTS = 8;
+  private static final String SPLIT_FLAGS = "-map 0 -c copy -f segment -segment_format matroska -segment_time ";
+  // keep the source timestamps so the segments join back without any discontinuities
+  private static final String SEGMENT_ENCODE_FLAGS = " -sn -copyts -f mpegts";
+  private static final String CONCAT_FLAGS = "-c copy";
+  private static final String SPLIT_PREFIX = "source-";
+  
+  /**
+   * Returns how many segments the plan should be encoded in, {@code 1} if it should be encoded
+   * normally.  Segments are only used for long encodes, and only when the encode lane has room to
+   * run them.
+   */
+  public static int chooseSegmentCount(ConversionPlan plan, PriorityLane encodeLane) {
+    if (! plan.jobType.isCpuIntensive() || plan.jobType == JobType.AudioEncode || 
+        plan.durationSeconds < MIN_SOURCE_DURATION_SECONDS) {
+      return 1;
+    }
+    // the running count includes the job asking
+    int spareSlots = encodeLane.getMaxConcurrency() - 
+                       encodeLane.getRunningCount() - encodeLane.getQueuedCount();
+    if (spareSlots < 1) {
+      return 1;
+    }
+    
+    int maxForDuration = (int)(plan.durationSeconds / MIN_SEGMENT_DURATION_SECONDS);
+    
+    return Math.max(1, Math.min(MAX_SEGMENTS, Math.min(spareSlots + 1, maxForDuration)));
+  }
+  
+  private final JobContext context;
+  private final ProcessLauncher launcher;
+  private final ConversionPlan plan;
+  private final String encodeFlags;
+  private final int segmentCount;
+  private final File workFolder;
+  private final ProcessLauncher segmentLauncher;
+  private final Set<ProcessLauncher.RunningProcess> segmentProcesses;
+  private final Object abortLock;
+  private int nextSegment;  // guarded by abortLock
+  private boolean aborted;  // guarded by abortLock
+  private Throwable abortCause;  // guarded by abortLock
+  private volatile List<Segment> segments;
+  
+  public SegmentedEncode(JobContext context, ProcessLauncher launcher, ConversionPlan plan, 
+                         String encodeFlags, int segmentCount) {
+    this.context = context;
+    this.launcher = launcher;
+    this.plan = plan;
+    this.encodeFlags = encodeFlags;
+    this.segmentCount = segmentCount;
+    // hidden, named for this worker, and next to the new file so the segments are on the same disk
+    this.workFolder = new File(plan.tempFile.getParentFile(), plan.tempFile.getName() + ".segments");
+    this.segmentLauncher = launcher.forOwner(new SegmentOwner());
+    this.segmentProcesses = ConcurrentHashMap.newKeySet();
+    this.abortLock = new Object();
+    this.nextSegment = 0;
+    this.aborted = false;
+    this.abortCause = null;
+    this.segments = null;
+  }
+  
+  public void encode() throws IOException, InterruptedException {
+    if (workFolder.exists()) {
+      deleteWorkFolder();  // left from a previous failed run
+    }
+    if (! workFolder.mkdirs()) {
+      throw new IOException("Could not make segment folder: " + workFolder.getAbsolutePath());
+    }
+    
+    try {
+      RunMetrics metrics = context.getRunMetrics();
+      long startTime = Clock.accurateForwardProgressingMillis();
+      File[] splitFiles = split();
+      long encodeStartTime = Clock.accurateForwardProgressingMillis();
+      metrics.recordStage(RunMetrics.Stage.Split, plan.jobType, encodeStartTime - startTime);
+      
+      if (splitFiles.length < 2) {
+        // source has too few keyframes to split, just encode it normally
+        LibavConverter.encodeFile(launcher, plan.sourceFile, plan.tempFile, 
+                                  LibavConverter.makeGlobalFlags(context) + encodeFlags, plan.progress);
+        return;
+      }
+      
+      List<Segment> segmentList = new ArrayList<Segment>(splitFiles.length);
+      for (int i = 0; i < splitFiles.length; i++) {
+        segmentList.add(new Segment(splitFiles[i], new File(workFolder, "encoded-" + i + ".ts")));
+      }
+      segments = segmentList;
+      
+      encodeSegments();
+      long concatStartTime = Clock.accurateForwardProgressingMillis();
+      long encodeWallMillis = concatStartTime - encodeStartTime;
+      
+      concat();
+      metrics.recordStage(RunMetrics.Stage.Concat, plan.jobType, 
+                          Clock.accurateForwardProgressingMillis() - concatStartTime);
+      
+      long segmentMillisSum = 0;
+      Iterator<Segment> it = segmentList.iterator();
+      while (it.hasNext()) {
+        segmentMillisSum += it.next().encodeMillis;
+      }
+      long totalMillis = Clock.accurateForwardProgressingMillis() - startTime;
+      long estimatedSingleMillis = estimateSingleProcessMillis();
+      metrics.recordSegmentedEncode(plan.jobType, encodeWallMillis, segmentMillisSum, 
+                                    totalMillis, estimatedSingleMillis);
+      if (VERBOSE) {
+        String speedup;
+        if (estimatedSingleMillis > 0) {
+          speedup = String.format("speedup: %.2fx over an estimated %s in one process", 
+                                  estimatedSingleMillis / (double)Math.max(1, totalMillis), 
+                                  RunProgress.formatMillis(estimatedSingleMillis));
+        } else {
+          speedup = "speedup: unknown (no history for a single process encode)";
+        }
+        System.out.println(String.format("Encoded %s in %d segments, segment encode time: %s, " + 
+                                           "wall time: %s (%s with split and join), " + 
+                                           "parallelism: %.2f, %s", 
+                                         plan.sourceFile.getName(), segmentList.size(), 
+                                         RunProgress.formatMillis(segmentMillisSum), 
+                                         RunProgress.formatMillis(encodeWallMillis), 
+                                         RunProgress.formatMillis(totalMillis), 
+                                         segmentMillisSum / (double)Math.max(1, encodeWallMillis), 
+                                         speedup));
+      }
+    } finally {
+      abort(null);
+      deleteWorkFolder();
+    }
+  }
+  
+  /**
+   * Estimates how long the source would have taken to encode in a single process, from how fast
+   * whole encodes like it have run.  Returns {@code -1} if nothing like it has been encoded whole
+   * before, a guess would not tell us anything about the speedup.
+   */
+  private long estimateSingleProcessMillis() {
+    ThroughputHistory throughputHistory = context.getThroughputHistory();
+    if (throughputHistory == null) {
+      return -1;
+    }
+    ThroughputHistory.Rate rate = throughputHistory.getRate(plan, plan.getEncodingProfile());
+    if (rate == null || rate.unitsPerSecond <= 0) {
+      return -1;
+    }
+    
+    return (long)(plan.durationSeconds / rate.unitsPerSecond * 1000);
+  }
+  
+  private File[] split() throws IOException, InterruptedException {
+    int segmentSeconds = (int)Math.ceil(plan.durationSeconds / segmentCount);
+    if (VERBOSE) {
+      System.out.println("Splitting " + plan.sourceFile.getName() + " into " + segmentCount + 
+                           " segments of " + segmentSeconds + " seconds");
+    }
+    
+    JobProgress splitProgress = new JobProgress(plan.durationSeconds);
+    try {
+      LibavConverter.encodeFile(launcher, 
+                                plan.sourceFile, new File(workFolder, SPLIT_PREFIX + "%03d.mkv"), 
+                                SPLIT_FLAGS + segmentSeconds, splitProgress);
+    } finally {
+      plan.progress.addThrottledMillis(splitProgress.getThrottledMillis());
+    }
+    
+    File[] result = workFolder.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SPLIT_PREFIX);
+      }
+    });
+    if (result == null) {
+      throw new IOException("Could not list segment folder: " + workFolder.getAbsolutePath());
+    }
+    Arrays.sort(result);  // names are zero padded
+    
+    return result;
+  }
+  
+  private void encodeSegments() throws IOException, InterruptedException {
+    List<Segment> segmentList = segments;
+    List<ListenableFuture<?>> helperFutures = new ArrayList<ListenableFuture<?>>(segmentList.size() - 1);
+    PriorityLane encodeLane = context.getEncodeLane();
+    for (int i = 1; i < segmentList.size(); i++) {
+      // lowest cost so the helpers start before any other queued encodes
+      helperFutures.add(encodeLane.submit(new Runnable() {
+        @Override
+        public void run() {
+          encodeAvailableSegments();
+        }
+      }, 0));
+    }
+    
+    try {
+      encodeAvailableSegments();
+      
+      Iterator<Segment> it = segmentList.iterator();
+      while (it.hasNext()) {
+        try {
+          it.next().future.get();
+        } catch (ExecutionException e) {
+          Throwable cause;
+          synchronized (abortLock) {
+            // segments killed by the abort fail too, report what caused it
+            cause = abortCause == null ? e.getCause() : abortCause;
+          }
+          if (cause instanceof IOException) {
+            throw (IOException)cause;
+          } else {
+            throw ExceptionUtils.makeRuntime(cause);
+          }
+        }
+      }
+    } finally {
+      // once done (or failed) any helpers which have not started yet have nothing to do
+      abort(null);
+      Iterator<ListenableFuture<?>> it = helperFutures.iterator();
+      while (it.hasNext()) {
+        it.next().cancel(false);
+      }
+      awaitStartedSegments();
+    }
+  }
+  
+  // returns the next segment to encode, already marked as started, or null if there are none left
+  private Segment claimSegment() {
+    synchronized (abortLock) {
+      List<Segment> segmentList = segments;
+      if (aborted || nextSegment >= segmentList.size()) {
+        return null;
+      }
+      Segment segment = segmentList.get(nextSegment++);
+      segment.progress.started();
+      
+      return segment;
+    }
+  }
+  
+  /**
+   * Stops any more segments from starting, fails those which have not, and kills the encoders of
+   * those which have.
+   * 
+   * @param cause Failure which caused the abort, or {@code null} if the encode is just finished
+   */
+  private void abort(Throwable cause) {
+    List<ProcessLauncher.RunningProcess> toKill;
+    synchronized (abortLock) {
+      if (abortCause == null) {
+        abortCause = cause;
+      }
+      if (aborted) {
+        return;
+      }
+      aborted = true;
+      
+      List<Segment> segmentList = segments;
+      if (segmentList != null) {
+        // fail any segments nobody will take, so the waiting thread is released
+        Iterator<Segment> it = segmentList.iterator();
+        while (it.hasNext()) {
+          Segment segment = it.next();
+          if (! segment.progress.isStarted()) {
+            segment.future.setFailure(new IllegalStateException("Segmented encode aborted", cause));
+          }
+        }
+      }
+      toKill = new ArrayList<ProcessLauncher.RunningProcess>(segmentProcesses);
+    }
+    
+    Iterator<ProcessLauncher.RunningProcess> it = toKill.iterator();
+    while (it.hasNext()) {
+      it.next().kill();
+    }
+  }
+  
+  // waits for the segments which were started to end, so nothing is writing to the work folder
+  private void awaitStartedSegments() {
+    Iterator<Segment> it = segments.iterator();
+    while (it.hasNext()) {
+      Segment segment = it.next();
+      if (! segment.progress.isStarted()) {
+        continue;
+      }
+      try {
+        segment.future.get();
+      } catch (ExecutionException e) {
+        // already reported
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+  
+  private void encodeAvailableSegments() {
+    Segment segment;
+    while ((segment = claimSegment()) != null) {
+      long startTime = Clock.accurateForwardProgressingMillis();
+      try {
+        LibavConverter.encodeFile(segmentLauncher, 
+                                  segment.splitFile, segment.encodedFile, 
+                                  LibavConverter.makeGlobalFlags(context) + encodeFlags + 
+                                    SEGMENT_ENCODE_FLAGS, 
+                                  segment.progress);
+        segment.progress.finished();
+        plan.progress.addThrottledMillis(segment.progress.getThrottledMillis());
+        segment.encodeMillis = Clock.accurateForwardProgressingMillis() - startTime;
+        segment.future.setResult(null);
+      } catch (InterruptedException e) {
+        abort(e);
+        segment.future.setFailure(e);
+        Thread.currentThread().interrupt();
+      } catch (Throwable t) {
+        abort(t);
+        segment.future.setFailure(t);
+      }
+    }
+  }
+  
+  private void concat() throws IOException, InterruptedException {
+    StringBuilder input = new StringBuilder("concat:");
+    Iterator<Segment> it = segments.iterator();
+    while (it.hasNext()) {
+      input.append(it.next().encodedFile.getAbsolutePath());
+      if (it.hasNext()) {
+        input.append('|');
+      }
+    }
+    
+    JobProgress concatProgress = new JobProgress(plan.durationSeconds);
+    try {
+      LibavConverter.encodeFile(launcher, 
+                                input.toString(), plan.tempFile, CONCAT_FLAGS, concatProgress);
+    } finally {
+      plan.progress.addThrottledMillis(concatProgress.getThrottledMillis());
+    }
+  }
+  
+  // combined progress of all segments, reported as the progress of the whole job
+  private void updateProgress() {
+    List<Segment> segmentList = segments;
+    double position = 0;
+    double fps = 0;
+    long frame = 0;
+    Iterator<Segment> it = segmentList.iterator();
+    while (it.hasNext()) {
+      Segment segment = it.next();
+      position += segment.progress.getPositionSeconds();
+      frame += segment.progress.getFrame();
+      if (segment.progress.isStarted() && ! segment.progress.isFinished()) {
+        fps += segment.progress.getFps();
+      }
+    }
+    
+    plan.progress.update(position, fps, frame);
+  }
+  
+  private void deleteWorkFolder() {
+    File[] files = workFolder.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        if (! files[i].delete()) {
+          System.err.println("Failed to delete segment file: " + files[i].getAbsolutePath());
+        }
+      }
+    }
+    if (workFolder.exists() && ! workFolder.delete()) {
+      System.err.println("Failed to delete segment folder: " + workFolder.getAbsolutePath());
+    }
+  }
+  
+  private class Segment {
+    private final File splitFile;
+    private final File encodedFile;
+    private final JobProgress progress;
+    private final SettableListenableFuture<Object> future;
+    private volatile long encodeMillis;
+    
+    private Segment(File splitFile, File encodedFile) {
+      this.splitFile = splitFile;
+      this.encodedFile = encodedFile;
+      // segment timestamps are kept from the source, so positions need the segment start removed
+      this.progress = new JobProgress(-1) {
+        private volatile double startPosition = -1;
+        
+        @Override
+        public void update(double positionSeconds, double fps, long frame) {
+          if (startPosition < 0) {
+            startPosition = positionSeconds;
+          }
+          super.update(positionSeconds - startPosition, fps, frame);
+          updateProgress();
+        }
+      };
+      this.future = new SettableListenableFuture<Object>(false);
+      this.encodeMillis = 0;
+    }
+  }
+  
+  /**
+   * Tracks the encoders of the segments, so they can be killed if the encode is aborted.
+   */
+  private class SegmentOwner implements ProcessLauncher.ProcessOwner {
+    @Override
+    public void processStarted(ProcessLauncher.RunningProcess process) {
+      synchronized (abortLock) {
+        if (! aborted) {
+          segmentProcesses.add(process);
+          return;
+        }
+      }
+      // claimed before the abort, but only started after it
+      process.kill();
+    }
+    
+    @Override
+    public void processEnded(ProcessLauncher.RunningProcess process) {
+      segmentProcesses.remove(process);
+    }
+  }
+}
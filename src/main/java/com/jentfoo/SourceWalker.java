@@ -0,0 +1,136 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the files in a folder, and if recursive all the folders under it.  Sub folders are
+ * listed in parallel on a work stealing pool, and each file is handed off as soon as it is found
+ * so work can start before the whole tree has been listed.  Hidden files and folders, and
+ * symbolic links to folders, are skipped.
+ */
+public class SourceWalker {
+  public static final int DEFAULT_PARALLELISM = 4;
+  
+  /**
+   * Receives the files found during a walk.  This may be invoked from several threads at once.
+   */
+  public interface FileHandler {
+    public void handleFile(File file);
+  }
+  
+  private final boolean recursive;
+  private final int parallelism;
+  
+  public SourceWalker(boolean recursive) {
+    this(recursive, DEFAULT_PARALLELISM);
+  }
+  
+  public SourceWalker(boolean recursive, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1");
+    }
+    
+    this.recursive = recursive;
+    this.parallelism = parallelism;
+  }
+  
+  public boolean isRecursive() {
+    return recursive;
+  }
+  
+  /**
+   * Walks the folder, blocking until every file has been provided to the handler.
+   */
+  public void walk(File folder, FileHandler handler) {
+    if (! recursive) {
+      File[] files = folder.listFiles();
+      if (files == null) {
+        System.err.println("Could not list folder: " + folder.getAbsolutePath());
+        return;
+      }
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].isFile() && ! isHidden(files[i])) {
+          handler.handleFile(files[i]);
+        }
+      }
+      
+      return;
+    }
+    
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new FolderTask(folder.getAbsoluteFile(), handler));
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  /**
+   * Walks the folder and returns all the files found.
+   */
+  public File[] listFiles(File folder) {
+    final Queue<File> result = new ConcurrentLinkedQueue<File>();
+    walk(folder, new FileHandler() {
+      @Override
+      public void handleFile(File file) {
+        result.add(file);
+      }
+    });
+    
+    return result.toArray(new File[result.size()]);
+  }
+  
+  private static boolean isHidden(File file) {
+    return file.getName().startsWith(".");
+  }
+  
+  private static class FolderTask extends RecursiveAction {
+    private static final long serialVersionUID = -1376211553062424906L;
+    
+    private final File folder;
+    private final FileHandler handler;
+    
+    private FolderTask(File folder, FileHandler handler) {
+      this.folder = folder;
+      this.handler = handler;
+    }
+    
+    @Override
+    protected void compute() {
+      File[] children = folder.listFiles();
+      if (children == null) {
+        System.err.println("Could not list folder: " + folder.getAbsolutePath());
+        return;
+      }
+      
+      // fork the sub folders first so idle workers can take them while we handle our files
+      List<FolderTask> subTasks = new ArrayList<FolderTask>();
+      for (int i = 0; i < children.length; i++) {
+        if (children[i].isDirectory() && ! isHidden(children[i]) && 
+            ! Files.isSymbolicLink(children[i].toPath())) {
+          FolderTask subTask = new FolderTask(children[i], handler);
+          subTask.fork();
+          subTasks.add(subTask);
+        }
+      }
+      for (int i = 0; i < children.length; i++) {
+        if (children[i].isFile() && ! isHidden(children[i])) {
+          handler.handleFile(children[i]);
+        }
+      }
+      
+      Iterator<FolderTask> it = subTasks.iterator();
+      while (it.hasNext()) {
+        it.next().join();
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.threadly.concurrent.SubmitterScheduler;
+import org.threadly.concurrent.future.ListenableFuture;
+import org.threadly.concurrent.future.SettableListenableFuture;
+import org.threadly.util.Clock;
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Watches files until their size and modification time have stopped changing.  All tracked files
+ * are polled from a single scheduled task, so no threads (or encode slots) are held while
+ * waiting for a file to finish being written.
+ */
+public class StabilityTracker {
+  public static final String STABLE_TIME_PROPERTY = "xboxMediaProcessor.stableTimeSeconds";
+  public static final int DEFAULT_STABLE_TIME_IN_MILLIS = 1000 * 10;
+  public static final int DEFAULT_MAX_WAIT_TIME_IN_MILLIS = 1000 * 60 * 10;
+  private static final int POLL_INTERVAL_IN_MILLIS = 1000;
+  
+  /**
+   * Returns a tracker using the stable time set with the system property, or the default if not 
+   * set.
+   * 
+   * @throws IllegalArgumentException If the property can not be parsed
+   */
+  public static StabilityTracker fromSystemProperties(SubmitterScheduler scheduler) {
+    String stableTime = System.getProperty(STABLE_TIME_PROPERTY);
+    if (stableTime == null || stableTime.trim().isEmpty()) {
+      return new StabilityTracker(scheduler);
+    }
+    double stableSeconds = Double.parseDouble(stableTime);
+    if (stableSeconds < 0) {
+      throw new IllegalArgumentException("Stable time can not be negative: " + stableTime);
+    }
+    
+    return new StabilityTracker(scheduler, (long)(stableSeconds * 1000), DEFAULT_MAX_WAIT_TIME_IN_MILLIS);
+  }
+  
+  private final SubmitterScheduler scheduler;
+  private final long stableTimeMillis;
+  private final long maxWaitTimeMillis;
+  private final Map<File, TrackedFile> trackedFiles;
+  private final AtomicBoolean pollScheduled;
+  private final Runnable pollTask;
+  
+  public StabilityTracker(SubmitterScheduler scheduler) {
+    this(scheduler, DEFAULT_STABLE_TIME_IN_MILLIS, DEFAULT_MAX_WAIT_TIME_IN_MILLIS);
+  }
+  
+  public StabilityTracker(SubmitterScheduler scheduler,
+                          long stableTimeMillis, long maxWaitTimeMillis) {
+    this.scheduler = scheduler;
+    this.stableTimeMillis = stableTimeMillis;
+    this.maxWaitTimeMillis = maxWaitTimeMillis;
+    this.trackedFiles = new ConcurrentHashMap<File, TrackedFile>();
+    this.pollScheduled = new AtomicBoolean(false);
+    this.pollTask = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          poll();
+        } catch (Throwable t) {
+          ExceptionUtils.handleException(t);
+        } finally {
+          pollScheduled.set(false);
+          if (! trackedFiles.isEmpty()) {
+            schedulePoll();
+          }
+        }
+      }
+    };
+  }
+  
+  /**
+   * Returns how long a file must not change for before it is considered stable.
+   */
+  public long getStableTimeMillis() {
+    return stableTimeMillis;
+  }
+  
+  public int getTrackedCount() {
+    return trackedFiles.size();
+  }
+  
+  /**
+   * Returns a future which will complete with {@code true} once the file has stopped changing for
+   * the stable time, or {@code false} if it was still changing after the max wait time.
+   */
+  public ListenableFuture<Boolean> awaitStable(File file) {
+    TrackedFile trackedFile = new TrackedFile(file);
+    TrackedFile existing = trackedFiles.putIfAbsent(file, trackedFile);
+    if (existing != null) {
+      return existing.future;
+    }
+    
+    schedulePoll();
+    
+    return trackedFile.future;
+  }
+  
+  private void schedulePoll() {
+    if (pollScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(pollTask, POLL_INTERVAL_IN_MILLIS);
+    }
+  }
+  
+  private void poll() {
+    long now = Clock.accurateForwardProgressingMillis();
+    Iterator<TrackedFile> it = trackedFiles.values().iterator();
+    while (it.hasNext()) {
+      TrackedFile trackedFile = it.next();
+      long size = trackedFile.file.length();
+      long modifiedTime = trackedFile.file.lastModified();
+      if (size != trackedFile.lastSize || modifiedTime != trackedFile.lastModifiedTime) {
+        trackedFile.lastSize = size;
+        trackedFile.lastModifiedTime = modifiedTime;
+        trackedFile.lastChangeTime = now;
+      }
+      
+      if (now - trackedFile.lastChangeTime >= stableTimeMillis) {
+        it.remove();
+        trackedFile.future.setResult(Boolean.TRUE);
+      } else if (now - trackedFile.startTime >= maxWaitTimeMillis) {
+        it.remove();
+        System.out.println("File still changing, skipping for now: " + trackedFile.file +
+                             "..." + trackedFile.lastSize);
+        trackedFile.future.setResult(Boolean.FALSE);
+      }
+    }
+  }
+  
+  private static class TrackedFile {
+    private final File file;
+    private final long startTime;
+    private final SettableListenableFuture<Boolean> future;
+    private long lastSize;
+    private long lastModifiedTime;
+    private long lastChangeTime;
+    
+    private TrackedFile(File file) {
+      this.file = file;
+      this.startTime = Clock.accurateForwardProgressingMillis();
+      this.future = new SettableListenableFuture<Boolean>(false);
+      this.lastSize = file.length();
+      this.lastModifiedTime = file.lastModified();
+      this.lastChangeTime = startTime;
+    }
+  }
+}
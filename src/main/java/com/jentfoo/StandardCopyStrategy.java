@@ -0,0 +1,112 @@
+package com.jentfoo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public enum StandardCopyStrategy implements CopyStrategy {
+  // only works when both files are on the same filesystem, but moves no data
+  HardLink {
+    @Override
+    public boolean copy(File sourceFile, File destFile) throws IOException {
+      Path sourcePath = sourceFile.toPath();
+      Path destPath = destFile.toPath();
+      Path destParent = destPath.toAbsolutePath().getParent();
+      if (destParent == null || 
+          ! Files.getFileStore(sourcePath).equals(Files.getFileStore(destParent))) {
+        return false;
+      }
+      
+      Files.deleteIfExists(destPath);
+      try {
+        Files.createLink(destPath, sourcePath);
+      } catch (UnsupportedOperationException e) {
+        return false;
+      } catch (FileSystemException e) {
+        // filesystem may not support links (ie some network mounts), fall back to a real copy
+        return false;
+      }
+      
+      return true;
+    }
+  }, 
+  // lets the kernel move the data (sendfile) without copying it into the jvm
+  TransferTo {
+    @Override
+    public boolean copy(File sourceFile, File destFile) throws IOException {
+      // destination may be a link to the source, never truncate it in place
+      Files.deleteIfExists(destFile.toPath());
+      FileInputStream in = new FileInputStream(sourceFile);
+      try {
+        FileOutputStream out = new FileOutputStream(destFile);
+        try {
+          FileChannel inChannel = in.getChannel();
+          FileChannel outChannel = out.getChannel();
+          long size = inChannel.size();
+          long position = 0;
+          while (position < size) {
+            long transfered = inChannel.transferTo(position, 
+                                                   Math.min(MAX_TRANSFER_SIZE, size - position), 
+                                                   outChannel);
+            if (transfered <= 0) {
+              // source may have been truncated, verify before we spin forever
+              if (position >= inChannel.size()) {
+                break;
+              }
+              throw new IOException("Unable to make progress copying: " + sourceFile.getAbsolutePath());
+            }
+            position += transfered;
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      
+      return true;
+    }
+  }, 
+  // fallback which works everywhere, just uses a large buffer outside of the heap
+  DirectBuffer {
+    @Override
+    public boolean copy(File sourceFile, File destFile) throws IOException {
+      // destination may be a link to the source, never truncate it in place
+      Files.deleteIfExists(destFile.toPath());
+      FileInputStream in = new FileInputStream(sourceFile);
+      try {
+        FileOutputStream out = new FileOutputStream(destFile);
+        try {
+          FileChannel inChannel = in.getChannel();
+          FileChannel outChannel = out.getChannel();
+          ByteBuffer buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+          while (inChannel.read(buffer) >= 0 || buffer.position() > 0) {
+            buffer.flip();
+            outChannel.write(buffer);
+            buffer.compact();
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      
+      return true;
+    }
+  };
+  
+  private static final long MAX_TRANSFER_SIZE = 1024L * 1024 * 64;
+  private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+  
+  /**
+   * Order strategies should be attempted in by default, cheapest first.
+   */
+  public static final CopyStrategy[] DEFAULT_ORDER = { HardLink, TransferTo, DirectBuffer };
+}
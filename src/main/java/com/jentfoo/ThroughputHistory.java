@@ -0,0 +1,315 @@
+package com.jentfoo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.threadly.util.ExceptionUtils;
+
+/**
+ * Persistent record of how fast jobs have actually run on this machine, kept by job type, video
+ * codec, resolution, and encoding profile.  Encodes are measured in seconds of media per second,
+ * so the time for a new source can be estimated from its duration, while copies and remuxes are
+ * measured in bytes per second.  Each rate is a moving average, so it follows changes to the
+ * machine (or encoder) over time.
+ */
+public class ThroughputHistory {
+  private static final int FILE_FORMAT_VERSION = 1;
+  // weight of the newest job in the average
+  private static final double SMOOTHING = .2;
+  private static final String ANY = "*";
+  
+  /**
+   * Returns the key the rate of the plan is recorded under, ie "FullEncode/mpeg4/720p/fast".
+   */
+  public static String makeKey(ConversionPlan plan, EncodingProfile profile) {
+    return makeKey(plan.jobType, getVideoCodec(plan.mediaInfo), 
+                   getResolution(plan.mediaInfo), profile);
+  }
+  
+  private static String makeKey(JobType jobType, String codec, String resolution, EncodingProfile profile) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(jobType.name()).append('/').append(codec).append('/').append(resolution);
+    if (profile != null) {
+      sb.append('/').append(profile.name);
+    }
+    
+    return sb.toString();
+  }
+  
+  private static String getVideoCodec(MediaInfo mediaInfo) {
+    MediaInfo.StreamInfo video = mediaInfo == null ? null : mediaInfo.getFirstStream(MediaInfo.StreamType.Video);
+    if (video == null || video.codec == null) {
+      return "unknown";
+    }
+    
+    return video.codec.toLowerCase();
+  }
+  
+  // bucketed so similar sources share a rate
+  private static String getResolution(MediaInfo mediaInfo) {
+    MediaInfo.StreamInfo video = mediaInfo == null ? null : mediaInfo.getFirstStream(MediaInfo.StreamType.Video);
+    if (video == null || video.height <= 0) {
+      return "unknown";
+    } else if (video.height <= 576) {
+      return "sd";
+    } else if (video.height <= 720) {
+      return "720p";
+    } else if (video.height <= 1080) {
+      return "1080p";
+    } else {
+      return "uhd";
+    }
+  }
+  
+  // encodes are measured by play time, everything else by bytes
+  private static boolean isMeasuredByDuration(JobType jobType) {
+    return jobType.isCpuIntensive();
+  }
+  
+  private final File historyFile;
+  private final Map<String, Rate> rates;
+  private boolean dirty;
+  
+  public ThroughputHistory(File historyFile) {
+    this.historyFile = historyFile;
+    this.rates = new HashMap<String, Rate>();
+    this.dirty = false;
+  }
+  
+  public File getHistoryFile() {
+    return historyFile;
+  }
+  
+  public synchronized int size() {
+    return rates.size();
+  }
+  
+  /**
+   * Record a job which finished converting.  Segmented encodes are not recorded, since they use
+   * several encode slots at once and would make a single encode look faster than it is.
+   * 
+   * @param activeMillis Wall time the conversion took, not counting time waiting for bandwidth
+   */
+  public void record(ConversionPlan plan, long activeMillis) {
+    if (plan.duplicateOf != null || plan.getSegmentCount() > 1 || activeMillis <= 0) {
+      return;
+    }
+    double units;
+    if (isMeasuredByDuration(plan.jobType)) {
+      units = plan.durationSeconds;
+    } else {
+      units = plan.sourceFile.length();
+    }
+    if (units <= 0) {
+      return;
+    }
+    
+    double wallSeconds = activeMillis / 1000d;
+    double unitsPerSecond = units / wallSeconds;
+    double cpuSecondsPerUnit = plan.progress.getChildCpuMillis() / 1000d / units;
+    long frame = plan.progress.getFrame();
+    double fps = frame > 0 ? frame / wallSeconds : -1;
+    EncodingProfile profile = plan.getEncodingProfile();
+    synchronized (this) {
+      // also recorded for any codec and resolution, for sources we have not seen the like of
+      update(makeKey(plan, profile), unitsPerSecond, cpuSecondsPerUnit, fps);
+      update(makeKey(plan.jobType, ANY, ANY, profile), unitsPerSecond, cpuSecondsPerUnit, fps);
+      dirty = true;
+    }
+  }
+  
+  // must hold the lock
+  private void update(String key, double unitsPerSecond, double cpuSecondsPerUnit, double fps) {
+    Rate rate = rates.get(key);
+    if (rate == null) {
+      rates.put(key, new Rate(1, unitsPerSecond, cpuSecondsPerUnit, fps));
+    } else {
+      rates.put(key, new Rate(rate.sampleCount + 1, 
+                              average(rate.unitsPerSecond, unitsPerSecond), 
+                              average(rate.cpuSecondsPerUnit, cpuSecondsPerUnit), 
+                              fps < 0 ? rate.fps : (rate.fps < 0 ? fps : average(rate.fps, fps))));
+    }
+  }
+  
+  private static double average(double current, double sample) {
+    return current * (1 - SMOOTHING) + sample * SMOOTHING;
+  }
+  
+  /**
+   * Returns the recorded rate for the plan, from the most specific key which has been recorded,
+   * or {@code null} if nothing like it has been converted before.
+   * 
+   * @param profile Profile the plan is expected to be encoded with, or {@code null} if none
+   */
+  public synchronized Rate getRate(ConversionPlan plan, EncodingProfile profile) {
+    Rate rate = rates.get(makeKey(plan, profile));
+    if (rate == null) {
+      rate = rates.get(makeKey(plan.jobType, ANY, ANY, profile));
+    }
+    
+    return rate;
+  }
+  
+  /**
+   * Estimate how long the plan will take to convert.  If nothing like it has been converted
+   * before, the rough estimate from the plan is used, assuming the encoder uses the provided
+   * number of threads.
+   * 
+   * @param profile Profile the plan is expected to be encoded with, or {@code null} if none
+   */
+  public Estimate estimate(ConversionPlan plan, EncodingProfile profile, int threadsPerEncode) {
+    double units;
+    if (isMeasuredByDuration(plan.jobType)) {
+      units = plan.durationSeconds;
+    } else {
+      units = plan.sourceFile.length();
+    }
+    Rate rate = plan.duplicateOf == null ? getRate(plan, profile) : null;
+    if (rate == null || units <= 0) {
+      double wallSeconds = plan.getEstimatedCost() * (profile == null ? 1 : profile.relativeCost);
+      double cpuSeconds = plan.jobType.isCpuIntensive() ? wallSeconds * threadsPerEncode : 0;
+      
+      return new Estimate(plan, wallSeconds, cpuSeconds, null);
+    }
+    
+    return new Estimate(plan, units / rate.unitsPerSecond, units * rate.cpuSecondsPerUnit, rate);
+  }
+  
+  /**
+   * Loads any rates stored in the history file.  If the file does not exist, or can not be read,
+   * the history will just start empty.
+   */
+  public void load() {
+    if (! historyFile.exists()) {
+      return;
+    }
+    
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile)));
+      try {
+        if (in.readInt() != FILE_FORMAT_VERSION) {
+          System.err.println("Ignoring throughput history with unknown version: " + historyFile.getAbsolutePath());
+          return;
+        }
+        int count = in.readInt();
+        synchronized (this) {
+          for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            int sampleCount = in.readInt();
+            double unitsPerSecond = in.readDouble();
+            double cpuSecondsPerUnit = in.readDouble();
+            double fps = in.readDouble();
+            
+            rates.put(key, new Rate(sampleCount, unitsPerSecond, cpuSecondsPerUnit, fps));
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (EOFException e) {
+      System.err.println("Throughput history truncated, continuing with partial history: " + historyFile.getAbsolutePath());
+    } catch (IOException e) {
+      ExceptionUtils.handleException(e);
+    }
+  }
+  
+  /**
+   * Writes the history to disk if it has changed since it was loaded.  The history is written to
+   * a temporary file and then moved into place so a crash never leaves a corrupt history behind.
+   */
+  public void save() throws IOException {
+    Map<String, Rate> toWrite;
+    synchronized (this) {
+      if (! dirty) {
+        return;
+      }
+      toWrite = new HashMap<String, Rate>(rates);
+      dirty = false;
+    }
+    
+    File parent = historyFile.getAbsoluteFile().getParentFile();
+    if (! parent.exists() && ! parent.mkdirs()) {
+      throw new IOException("Could not make history folder: " + parent.getAbsolutePath());
+    }
+    File tmpFile = new File(parent, historyFile.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(FILE_FORMAT_VERSION);
+      out.writeInt(toWrite.size());
+      Iterator<Map.Entry<String, Rate>> it = toWrite.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Rate> e = it.next();
+        out.writeUTF(e.getKey());
+        out.writeInt(e.getValue().sampleCount);
+        out.writeDouble(e.getValue().unitsPerSecond);
+        out.writeDouble(e.getValue().cpuSecondsPerUnit);
+        out.writeDouble(e.getValue().fps);
+      }
+    } finally {
+      out.close();
+    }
+    
+    Files.move(tmpFile.toPath(), historyFile.toPath(), 
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  @Override
+  public String toString() {
+    return "ThroughputHistory - rates: " + size();
+  }
+  
+  /**
+   * Observed rate for a kind of job.  Units are seconds of media for encodes, and bytes for
+   * everything else.
+   */
+  public static class Rate {
+    public final int sampleCount;
+    public final double unitsPerSecond;
+    public final double cpuSecondsPerUnit;
+    public final double fps;
+    
+    private Rate(int sampleCount, double unitsPerSecond, double cpuSecondsPerUnit, double fps) {
+      this.sampleCount = sampleCount;
+      this.unitsPerSecond = unitsPerSecond;
+      this.cpuSecondsPerUnit = cpuSecondsPerUnit;
+      this.fps = fps;
+    }
+  }
+  
+  /**
+   * Expected time for a single job, when run on its own in one lane slot.
+   */
+  public static class Estimate {
+    public final ConversionPlan plan;
+    public final double wallSeconds;
+    public final double cpuSeconds;
+    public final Rate rate;
+    
+    private Estimate(ConversionPlan plan, double wallSeconds, double cpuSeconds, Rate rate) {
+      this.plan = plan;
+      this.wallSeconds = wallSeconds;
+      this.cpuSeconds = cpuSeconds;
+      this.rate = rate;
+    }
+    
+    /**
+     * Returns {@code true} if the estimate is from jobs like it which actually ran, rather than
+     * a guess.
+     */
+    public boolean isFromHistory() {
+      return rate != null;
+    }
+  }
+}
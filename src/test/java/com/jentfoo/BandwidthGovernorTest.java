@@ -0,0 +1,74 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class BandwidthGovernorTest {
+  @Test
+  public void parseRate() {
+    assertEquals(512, BandwidthGovernor.parseRate("512"));
+    assertEquals(2048, BandwidthGovernor.parseRate("2k"));
+    assertEquals(20L * 1024 * 1024, BandwidthGovernor.parseRate(" 20M "));
+    assertEquals(1536L * 1024 * 1024, BandwidthGovernor.parseRate("1.5G"));
+    assertEquals(0, BandwidthGovernor.parseRate("0"));
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void parseEmptyRateFail() {
+    BandwidthGovernor.parseRate(" ");
+  }
+  
+  @Test (expected = NumberFormatException.class)
+  public void parseInvalidRateFail() {
+    BandwidthGovernor.parseRate("fast");
+  }
+  
+  @Test
+  public void parseWindows() {
+    List<BandwidthGovernor.LimitWindow> windows = 
+        BandwidthGovernor.parseWindows("08:00-18:30=10M/5M, 23:00-06:00=0/1K");
+    assertEquals(2, windows.size());
+    
+    BandwidthGovernor.LimitWindow day = windows.get(0);
+    assertEquals(8 * 60, day.startMinute);
+    assertEquals(18 * 60 + 30, day.endMinute);
+    assertEquals(10L * 1024 * 1024, day.readRate);
+    assertEquals(5L * 1024 * 1024, day.writeRate);
+    assertTrue(day.contains(8 * 60));
+    assertFalse(day.contains(18 * 60 + 30));
+    assertFalse(day.contains(0));
+    
+    // wraps past midnight
+    BandwidthGovernor.LimitWindow night = windows.get(1);
+    assertEquals(0, night.readRate);
+    assertEquals(1024, night.writeRate);
+    assertTrue(night.contains(23 * 60 + 59));
+    assertTrue(night.contains(0));
+    assertFalse(night.contains(6 * 60));
+    assertFalse(night.contains(12 * 60));
+  }
+  
+  @Test
+  public void parseNoWindows() {
+    assertTrue(BandwidthGovernor.parseWindows("").isEmpty());
+    assertTrue(BandwidthGovernor.parseWindows(" , ").isEmpty());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void parseWindowMissingRateFail() {
+    BandwidthGovernor.parseWindows("08:00-18:00=10M");
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void parseWindowMissingEndFail() {
+    BandwidthGovernor.parseWindows("08:00=10M/5M");
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void parseWindowBadTimeFail() {
+    BandwidthGovernor.parseWindows("8-18:00=10M/5M");
+  }
+}
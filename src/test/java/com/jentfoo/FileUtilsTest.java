@@ -0,0 +1,168 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileUtilsTest {
+  private File workFolder;
+  
+  @Before
+  public void setup() throws IOException {
+    workFolder = Files.createTempDirectory("fileUtilsTest").toFile();
+  }
+  
+  @After
+  public void cleanup() {
+    FileUtils.deleteFileOrFolder(workFolder);
+  }
+  
+  @Test
+  public void maybeReplaceExt() {
+    assertEquals("video.mp4", FileUtils.maybeReplaceExt("video.mkv", ".mp4"));
+    assertEquals("video.mp4", FileUtils.maybeReplaceExt("video.mkv", "mp4"));
+    assertEquals("video.MP4", FileUtils.maybeReplaceExt("video.MP4", ".mp4"));
+    assertEquals("my.video.avi", FileUtils.maybeReplaceExt("my.video.mkv", ".avi"));
+    assertEquals("video.mp4", FileUtils.maybeReplaceExt("video", ".mp4"));
+    assertEquals(".hidden.mp4", FileUtils.maybeReplaceExt(".hidden", ".mp4"));
+  }
+  
+  @Test
+  public void makeNewFile() {
+    File newFile = FileUtils.makeNewFile(workFolder, new File("/source/video.mkv"), ".avi");
+    assertEquals(new File(workFolder, "video.avi"), newFile);
+  }
+  
+  @Test
+  public void getExtension() {
+    assertEquals(".mkv", FileUtils.getExtension("video.mkv"));
+    assertEquals(".gz", FileUtils.getExtension("video.tar.gz"));
+    assertEquals("", FileUtils.getExtension("video"));
+    assertEquals("", FileUtils.getExtension(".hidden"));
+  }
+  
+  @Test
+  public void makePartialFile() {
+    File newFile = new File(workFolder, "video.mp4");
+    File partialFile = FileUtils.makePartialFile(newFile);
+    
+    assertEquals(workFolder.getAbsoluteFile(), partialFile.getParentFile());
+    String name = partialFile.getName();
+    assertTrue(name, name.startsWith(".video.partial-"));
+    // extension is kept so encoders can pick the container from it
+    assertTrue(name, name.endsWith(".mp4"));
+    assertTrue(name, name.substring(1, name.length() - 4).matches("[A-Za-z0-9._-]+"));
+    // the same worker always writes to the same partial file
+    assertEquals(partialFile, FileUtils.makePartialFile(newFile));
+  }
+  
+  @Test
+  public void findPartialFiles() throws IOException {
+    File newFile = new File(workFolder, "video.mp4");
+    File partialFile = FileUtils.makePartialFile(newFile);
+    assertTrue(partialFile.createNewFile());
+    File otherWorkerFile = new File(workFolder, ".video.partial-otherhost_123.mp4");
+    assertTrue(otherWorkerFile.createNewFile());
+    File segmentFolder = new File(workFolder, partialFile.getName() + ".segments");
+    assertTrue(segmentFolder.mkdir());
+    // not partial files of this new file
+    assertTrue(new File(workFolder, ".video2.partial-otherhost_123.mp4").createNewFile());
+    assertTrue(new File(workFolder, "video.mp4").createNewFile());
+    
+    Set<File> expected = new HashSet<File>(Arrays.asList(partialFile, otherWorkerFile, segmentFolder));
+    assertEquals(expected, new HashSet<File>(Arrays.asList(FileUtils.findPartialFiles(newFile))));
+  }
+  
+  @Test
+  public void findPartialFilesMissingFolder() {
+    File newFile = new File(new File(workFolder, "missing"), "video.mp4");
+    assertEquals(0, FileUtils.findPartialFiles(newFile).length);
+  }
+  
+  @Test
+  public void deleteFileOrFolder() throws IOException {
+    File folder = new File(workFolder, "segments");
+    assertTrue(folder.mkdir());
+    assertTrue(new File(folder, "segment-0.mp4").createNewFile());
+    assertTrue(new File(folder, "segment-1.mp4").createNewFile());
+    File file = new File(workFolder, "video.mp4");
+    assertTrue(file.createNewFile());
+    
+    assertTrue(FileUtils.deleteFileOrFolder(folder));
+    assertTrue(FileUtils.deleteFileOrFolder(file));
+    assertFalse(folder.exists());
+    assertFalse(file.exists());
+    // already gone is not a failure
+    assertTrue(FileUtils.deleteFileOrFolder(file));
+  }
+  
+  private static CopyStrategy makeStrategy(final boolean[] called, final Exception failure) {
+    return new CopyStrategy() {
+      @Override
+      public boolean copy(File sourceFile, File destFile) throws IOException {
+        called[0] = true;
+        if (failure instanceof IOException) {
+          throw (IOException)failure;
+        } else if (failure instanceof RuntimeException) {
+          throw (RuntimeException)failure;
+        }
+        return false;
+      }
+    };
+  }
+  
+  @Test
+  public void copyFileSkipsInapplicableStrategies() throws IOException {
+    File sourceFile = new File(workFolder, "video.mp4");
+    Files.write(sourceFile.toPath(), new byte[] { 1, 2, 3 });
+    File destFile = new File(workFolder, "copy.mp4");
+    boolean[] unsupportedCalled = new boolean[1];
+    boolean[] declinedCalled = new boolean[1];
+    
+    FileUtils.CopyResult result = 
+        FileUtils.copyFile(sourceFile, destFile, 
+                           new CopyStrategy[] { makeStrategy(unsupportedCalled, new UnsupportedOperationException()), 
+                                                makeStrategy(declinedCalled, null), 
+                                                StandardCopyStrategy.DirectBuffer });
+    
+    assertTrue(unsupportedCalled[0]);
+    assertTrue(declinedCalled[0]);
+    assertEquals(StandardCopyStrategy.DirectBuffer, result.strategy);
+    assertEquals(3, result.bytes);
+    assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(destFile.toPath()));
+  }
+  
+  @Test
+  public void copyFileFailureNotRetried() throws IOException {
+    File sourceFile = new File(workFolder, "video.mp4");
+    Files.write(sourceFile.toPath(), new byte[] { 1, 2, 3 });
+    File destFile = new File(workFolder, "copy.mp4");
+    UnsupportedOperationException skipped = new UnsupportedOperationException();
+    IOException failure = new IOException("No space left on device");
+    boolean[] skippedCalled = new boolean[1];
+    boolean[] failingCalled = new boolean[1];
+    boolean[] nextCalled = new boolean[1];
+    
+    try {
+      FileUtils.copyFile(sourceFile, destFile, 
+                         new CopyStrategy[] { makeStrategy(skippedCalled, skipped), 
+                                              makeStrategy(failingCalled, failure), 
+                                              makeStrategy(nextCalled, null) });
+      fail("Exception should have thrown");
+    } catch (IOException e) {
+      assertSame(failure, e);
+      assertEquals(Arrays.asList(skipped), Arrays.asList(e.getSuppressed()));
+    }
+    assertTrue(failingCalled[0]);
+    assertFalse(nextCalled[0]);
+  }
+}
@@ -0,0 +1,119 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FingerprintIndexTest {
+  private File workFolder;
+  private FingerprintIndex index;
+  
+  @Before
+  public void setup() throws IOException {
+    workFolder = Files.createTempDirectory("fingerprintIndexTest").toFile();
+    index = new FingerprintIndex(new File(workFolder, "state/fingerprints.bin"));
+  }
+  
+  @After
+  public void cleanup() {
+    FileUtils.deleteFileOrFolder(workFolder);
+  }
+  
+  private File writeFile(String name, int size, int value) throws IOException {
+    File file = new File(workFolder, name);
+    byte[] bytes = new byte[size];
+    Arrays.fill(bytes, (byte)value);
+    Files.write(file.toPath(), bytes);
+    
+    return file;
+  }
+  
+  @Test
+  public void sameContentSameFingerprint() throws IOException {
+    int size = ContentFingerprint.BLOCK_SIZE * 4;
+    ContentFingerprint fingerprint = ContentFingerprint.compute(writeFile("video.mkv", size, 1));
+    
+    assertEquals(fingerprint, ContentFingerprint.compute(writeFile("renamed.mkv", size, 1)));
+    assertEquals(fingerprint, ContentFingerprint.parse(fingerprint.toString()));
+    assertFalse(fingerprint.equals(ContentFingerprint.compute(writeFile("other.mkv", size, 2))));
+    assertFalse(fingerprint.equals(ContentFingerprint.compute(writeFile("longer.mkv", size + 1, 1))));
+  }
+  
+  @Test
+  public void findsExistingFile() throws IOException {
+    ContentFingerprint fingerprint = ContentFingerprint.compute(writeFile("video.mkv", 1024, 1));
+    File existingFile = writeFile("video.mp4", 512, 3);
+    index.put(fingerprint, existingFile);
+    
+    assertEquals(existingFile.getAbsoluteFile(), 
+                 index.findExisting(fingerprint, new File(workFolder, "renamed.mp4")));
+    assertEquals(1, index.getHitCount());
+  }
+  
+  @Test
+  public void neverFindsItselfOrOtherExtensions() throws IOException {
+    ContentFingerprint fingerprint = ContentFingerprint.compute(writeFile("video.mkv", 1024, 1));
+    File existingFile = writeFile("video.mp4", 512, 3);
+    index.put(fingerprint, existingFile);
+    
+    assertNull(index.findExisting(fingerprint, existingFile));
+    assertNull(index.findExisting(fingerprint, new File(workFolder, "renamed.avi")));
+    assertEquals(0, index.getHitCount());
+    assertEquals(1, index.size());
+  }
+  
+  @Test
+  public void removedFileInvalidatesEntry() throws IOException {
+    ContentFingerprint fingerprint = ContentFingerprint.compute(writeFile("video.mkv", 1024, 1));
+    File existingFile = writeFile("video.mp4", 512, 3);
+    index.put(fingerprint, existingFile);
+    assertTrue(existingFile.delete());
+    
+    assertNull(index.findExisting(fingerprint, new File(workFolder, "renamed.mp4")));
+    assertEquals(0, index.size());
+  }
+  
+  @Test
+  public void replacedFileInvalidatesEntry() throws IOException {
+    ContentFingerprint fingerprint = ContentFingerprint.compute(writeFile("video.mkv", 1024, 1));
+    File existingFile = writeFile("video.mp4", 512, 3);
+    index.put(fingerprint, existingFile);
+    // converted again with different settings
+    writeFile("video.mp4", 768, 4);
+    
+    assertNull(index.findExisting(fingerprint, new File(workFolder, "renamed.mp4")));
+    assertEquals(0, index.size());
+    // the file is not found again even once it is back to the recorded size
+    writeFile("video.mp4", 512, 3);
+    assertNull(index.findExisting(fingerprint, new File(workFolder, "renamed.mp4")));
+  }
+  
+  @Test
+  public void saveAndLoad() throws IOException {
+    ContentFingerprint fingerprint = ContentFingerprint.compute(writeFile("video.mkv", 1024, 1));
+    File existingFile = writeFile("video.mp4", 512, 3);
+    index.put(fingerprint, existingFile);
+    index.save();
+    
+    FingerprintIndex loadedIndex = new FingerprintIndex(index.getIndexFile());
+    loadedIndex.load();
+    
+    assertEquals(1, loadedIndex.size());
+    assertEquals(existingFile.getAbsoluteFile(), 
+                 loadedIndex.findExisting(fingerprint, new File(workFolder, "renamed.mp4")));
+  }
+  
+  @Test
+  public void loadMissingFileStartsEmpty() {
+    index.load();
+    
+    assertEquals(0, index.size());
+  }
+}
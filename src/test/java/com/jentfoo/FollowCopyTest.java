@@ -0,0 +1,141 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FollowCopyTest {
+  private static final long STABLE_TIME_IN_MILLIS = 1500;
+  private static final int CHUNK_SIZE = 64 * 1024;
+  
+  private File workFolder;
+  private File sourceFile;
+  private File destFile;
+  private JobProgress progress;
+  private ExecutorService executor;
+  
+  @Before
+  public void setup() throws IOException {
+    workFolder = Files.createTempDirectory("followCopyTest").toFile();
+    sourceFile = new File(workFolder, "source.avi");
+    destFile = new File(workFolder, "dest.avi");
+    progress = new JobProgress(-1);
+    executor = Executors.newSingleThreadExecutor();
+  }
+  
+  @After
+  public void cleanup() {
+    executor.shutdownNow();
+    FileUtils.deleteFileOrFolder(workFolder);
+  }
+  
+  private static byte[] makeChunk(int value) {
+    byte[] result = new byte[CHUNK_SIZE];
+    Arrays.fill(result, (byte)value);
+    
+    return result;
+  }
+  
+  private void append(byte[] bytes) throws IOException {
+    Files.write(sourceFile.toPath(), bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+  
+  private Future<Boolean> startCopy() {
+    return executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        return new FollowCopy(STABLE_TIME_IN_MILLIS, new BandwidthGovernor(), progress)
+                   .copy(sourceFile, destFile);
+      }
+    });
+  }
+  
+  // waits for the copy to catch up with the source, and then some so it notes the source as is
+  private void awaitCaughtUp() throws InterruptedException {
+    long size = sourceFile.length();
+    while (destFile.length() < size) {
+      Thread.sleep(20);
+    }
+    Thread.sleep(1200);
+  }
+  
+  @Test
+  public void copiesAppendedData() throws Exception {
+    append(makeChunk(1));
+    Future<Boolean> copy = startCopy();
+    for (int i = 2; i <= 4; i++) {
+      Thread.sleep(300);
+      append(makeChunk(i));
+    }
+    
+    assertTrue(copy.get());
+    assertTrue(Arrays.equals(Files.readAllBytes(sourceFile.toPath()), 
+                             Files.readAllBytes(destFile.toPath())));
+    assertEquals(100, progress.getFractionDone() * 100, 0.001);
+  }
+  
+  @Test
+  public void copiesSourceAlreadyDone() throws Exception {
+    append(makeChunk(1));
+    assertTrue(sourceFile.setLastModified(System.currentTimeMillis() - 1000 * 60));
+    
+    assertTrue(startCopy().get());
+    assertEquals(CHUNK_SIZE, destFile.length());
+  }
+  
+  @Test
+  public void rewrittenSourceAborts() throws Exception {
+    // ie preallocated by a torrent client, and filled in out of order
+    append(new byte[CHUNK_SIZE * 2]);
+    Future<Boolean> copy = startCopy();
+    awaitCaughtUp();
+    
+    RandomAccessFile raf = new RandomAccessFile(sourceFile, "rw");
+    try {
+      raf.write(makeChunk(1));
+    } finally {
+      raf.close();
+    }
+    // so the change is seen even on filesystems with coarse modification times
+    assertTrue(sourceFile.setLastModified(System.currentTimeMillis() + 1000));
+    
+    try {
+      copy.get();
+      fail("Exception should have thrown");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof FollowCopy.SourceRewrittenException);
+    }
+  }
+  
+  @Test
+  public void truncatedSourceFails() throws Exception {
+    append(makeChunk(1));
+    append(makeChunk(2));
+    Future<Boolean> copy = startCopy();
+    awaitCaughtUp();
+    
+    Files.write(sourceFile.toPath(), makeChunk(3));
+    
+    try {
+      copy.get();
+      fail("Exception should have thrown");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertFalse(e.getCause() instanceof FollowCopy.SourceRewrittenException);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.concurrent.future.SettableListenableFuture;
+
+public class JobHandleTest {
+  private static final double DURATION_SECONDS = 60 * 60;
+  private static final long MINUTE_IN_MILLIS = 1000 * 60;
+  
+  private TestJobHandle handle;
+  private ConversionPlan plan;
+  
+  @Before
+  public void setup() {
+    File sourceFile = new File("video.mkv");
+    handle = new TestJobHandle(sourceFile);
+    plan = new ConversionPlan(sourceFile, new File("video.mp4"), JobType.FullEncode, DURATION_SECONDS);
+    handle.runStarted(plan);
+    plan.progress.started();
+  }
+  
+  @Test
+  public void notOverdueBeforeStarting() {
+    TestJobHandle handle = new TestJobHandle(new File("video.mkv"));
+    assertEquals(JobHandle.MIN_TIMEOUT_IN_MILLIS, handle.getTimeoutMillis());
+    assertFalse(handle.isOverdue());
+  }
+  
+  @Test
+  public void overdueWithoutProgressAfterEstimate() {
+    long initialTimeout = handle.getTimeoutMillis();
+    assertTrue(initialTimeout > JobHandle.MIN_TIMEOUT_IN_MILLIS);
+    
+    handle.activeMillis = initialTimeout;
+    assertFalse(handle.isOverdue());
+    handle.activeMillis = initialTimeout + 1;
+    assertTrue(handle.isOverdue());
+  }
+  
+  @Test
+  public void advancingProgressNotOverdue() {
+    for (int i = 1; i <= 50; i++) {
+      handle.activeMillis = i * MINUTE_IN_MILLIS;
+      plan.progress.update(i * 60, 24, i * 60 * 24);
+      assertFalse(handle.isOverdue());
+    }
+  }
+  
+  @Test
+  public void stalledProgressOverdue() {
+    handle.activeMillis = 10 * MINUTE_IN_MILLIS;
+    plan.progress.update(600, 24, 600 * 24);
+    assertFalse(handle.isOverdue());
+    
+    // encoder is still alive, but has stopped advancing
+    handle.activeMillis += JobHandle.NO_PROGRESS_TIMEOUT_IN_MILLIS;
+    plan.progress.update(600, 0, 600 * 24);
+    assertFalse(handle.isOverdue());
+    handle.activeMillis += 1;
+    assertTrue(handle.isOverdue());
+  }
+  
+  @Test
+  public void timeoutNeverAboveInitialEstimate() {
+    long initialTimeout = handle.getTimeoutMillis();
+    handle.activeMillis = MINUTE_IN_MILLIS;
+    plan.progress.update(1, 1, 24);
+    
+    assertTrue(handle.getTimeoutMillis() <= initialTimeout);
+  }
+  
+  @Test
+  public void finishedMediaNotHeldToNoProgressTimeout() {
+    handle.activeMillis = 50 * MINUTE_IN_MILLIS;
+    plan.progress.update(DURATION_SECONDS, 24, (long)DURATION_SECONDS * 24);
+    assertFalse(handle.isOverdue());
+    
+    // ie joining segments, which does not report progress
+    handle.activeMillis += JobHandle.NO_PROGRESS_TIMEOUT_IN_MILLIS + 1;
+    assertFalse(handle.isOverdue());
+  }
+  
+  private static class TestJobHandle extends JobHandle {
+    private long activeMillis = 0;
+    
+    private TestJobHandle(File sourceFile) {
+      super(sourceFile, new SettableListenableFuture<Object>(false));
+    }
+    
+    @Override
+    public long getActiveMillis() {
+      return activeMillis;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobJournalTest {
+  private File workFolder;
+  private File journalFile;
+  private File sourceFile;
+  private JobJournal journal;
+  
+  @Before
+  public void setup() throws IOException {
+    workFolder = Files.createTempDirectory("jobJournalTest").toFile();
+    journalFile = new File(workFolder, "journal");
+    sourceFile = new File(workFolder, "video.avi");
+    assertTrue(sourceFile.createNewFile());
+    // older than anything recorded
+    assertTrue(sourceFile.setLastModified(System.currentTimeMillis() - 1000 * 60));
+    journal = null;
+  }
+  
+  @After
+  public void cleanup() {
+    if (journal != null) {
+      journal.close();
+    }
+    File[] files = workFolder.listFiles();
+    for (int i = 0; i < files.length; i++) {
+      files[i].delete();
+    }
+    workFolder.delete();
+  }
+  
+  private void writeJournal(String ... lines) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines.length; i++) {
+      sb.append(lines[i]);
+    }
+    Files.write(journalFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+  
+  private static String line(JobJournal.JobState state, int failureCount, File sourceFile) {
+    return System.currentTimeMillis() + "\t" + state.name() + '\t' + failureCount + '\t' + 
+             sourceFile.getAbsolutePath() + '\n';
+  }
+  
+  private List<String> readJournal() throws IOException {
+    return Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+  }
+  
+  @Test
+  public void recordedStateSurvivesReopen() throws IOException {
+    journal = JobJournal.open(journalFile);
+    assertNull(journal.getLastState(sourceFile));
+    journal.record(sourceFile, JobJournal.JobState.Probing);
+    journal.record(sourceFile, JobJournal.JobState.Done);
+    journal.close();
+    
+    journal = JobJournal.open(journalFile);
+    assertEquals(JobJournal.JobState.Done, journal.getLastState(sourceFile));
+    assertTrue(journal.getInterruptedSources().isEmpty());
+  }
+  
+  @Test
+  public void loadFindsInterruptedJobs() throws IOException {
+    File otherSourceFile = new File(workFolder, "other.avi");
+    assertTrue(otherSourceFile.createNewFile());
+    writeJournal(line(JobJournal.JobState.Queued, 0, sourceFile), 
+                 line(JobJournal.JobState.Encoding, 0, sourceFile), 
+                 line(JobJournal.JobState.Done, 0, otherSourceFile));
+    
+    journal = JobJournal.open(journalFile);
+    assertEquals(JobJournal.JobState.Encoding, journal.getLastState(sourceFile));
+    assertEquals(Collections.singletonList(sourceFile.getAbsoluteFile()), journal.getInterruptedSources());
+  }
+  
+  @Test
+  public void loadIgnoresCorruptLines() throws IOException {
+    writeJournal(line(JobJournal.JobState.Encoding, 0, sourceFile), 
+                 "not a journal line\n", 
+                 "123\tUnknown\t0\t" + sourceFile.getAbsolutePath() + '\n', 
+                 // killed while writing the last line
+                 System.currentTimeMillis() + "\tDone\t0");
+    
+    journal = JobJournal.open(journalFile);
+    assertEquals(JobJournal.JobState.Encoding, journal.getLastState(sourceFile));
+  }
+  
+  @Test
+  public void compactKeepsLastStateOfExistingSources() throws IOException {
+    File removedSourceFile = new File(workFolder, "removed.avi");
+    writeJournal(line(JobJournal.JobState.Queued, 0, sourceFile), 
+                 line(JobJournal.JobState.Probing, 0, sourceFile), 
+                 line(JobJournal.JobState.Failed, 1, sourceFile), 
+                 line(JobJournal.JobState.Done, 0, removedSourceFile));
+    
+    journal = JobJournal.open(journalFile);
+    List<String> lines = readJournal();
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0).endsWith("\tFailed\t1\t" + sourceFile.getAbsolutePath()));
+    assertNull(journal.getLastState(removedSourceFile));
+    assertFalse(new File(workFolder, journalFile.getName() + ".tmp").exists());
+  }
+  
+  @Test
+  public void shouldSkipAfterRepeatedFailures() throws IOException {
+    journal = JobJournal.open(journalFile);
+    journal.record(sourceFile, JobJournal.JobState.Failed);
+    journal.record(sourceFile, JobJournal.JobState.Queued);
+    journal.record(sourceFile, JobJournal.JobState.Failed);
+    assertFalse(journal.shouldSkip(sourceFile));
+    journal.record(sourceFile, JobJournal.JobState.Failed);
+    assertTrue(journal.shouldSkip(sourceFile));
+    journal.close();
+    
+    // failure count is kept through compaction
+    journal = JobJournal.open(journalFile);
+    assertTrue(journal.shouldSkip(sourceFile));
+  }
+  
+  @Test
+  public void shouldNotSkipModifiedSource() {
+    journal = new JobJournal();
+    for (int i = 0; i < 3; i++) {
+      journal.record(sourceFile, JobJournal.JobState.Failed);
+    }
+    assertTrue(journal.shouldSkip(sourceFile));
+    
+    assertTrue(sourceFile.setLastModified(System.currentTimeMillis() + 1000 * 60));
+    assertFalse(journal.shouldSkip(sourceFile));
+  }
+  
+  @Test
+  public void doneResetsFailures() {
+    journal = new JobJournal();
+    journal.record(sourceFile, JobJournal.JobState.Failed);
+    journal.record(sourceFile, JobJournal.JobState.Failed);
+    journal.record(sourceFile, JobJournal.JobState.Done);
+    journal.record(sourceFile, JobJournal.JobState.Failed);
+    
+    assertFalse(journal.shouldSkip(sourceFile));
+    assertEquals(JobJournal.JobState.Failed, journal.getLastState(sourceFile));
+  }
+}
@@ -0,0 +1,151 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.concurrent.future.SettableListenableFuture;
+
+public class LeaseManagerTest {
+  private static final long LEASE_TIMEOUT_IN_MILLIS = 1000 * 60;
+  
+  private File workFolder;
+  private File leaseFolder;
+  private File destFolder;
+  private File otherDestFolder;
+  private File newFile;
+  private LeaseManager workerA;
+  private LeaseManager workerB;
+  
+  @Before
+  public void setup() throws IOException {
+    workFolder = Files.createTempDirectory("leaseManagerTest").toFile();
+    leaseFolder = new File(workFolder, "leases");
+    destFolder = new File(workFolder, "dest");
+    otherDestFolder = new File(workFolder, "otherDest");
+    newFile = new File(destFolder, "video.mp4");
+    workerA = new LeaseManager(leaseFolder, Arrays.asList(destFolder, otherDestFolder), 
+                               "hostA:1", LEASE_TIMEOUT_IN_MILLIS);
+    workerB = new LeaseManager(leaseFolder, Arrays.asList(destFolder, otherDestFolder), 
+                               "hostB:1", LEASE_TIMEOUT_IN_MILLIS);
+  }
+  
+  @After
+  public void cleanup() {
+    File[] leaseFiles = leaseFolder.listFiles();
+    if (leaseFiles != null) {
+      for (int i = 0; i < leaseFiles.length; i++) {
+        leaseFiles[i].delete();
+      }
+    }
+    leaseFolder.delete();
+    workFolder.delete();
+  }
+  
+  // makes the lease look like its holder stopped touching it
+  private void expireLease() {
+    File leaseFile = workerA.makeLeaseFile(newFile);
+    assertTrue(leaseFile.setLastModified(System.currentTimeMillis() - LEASE_TIMEOUT_IN_MILLIS * 2));
+  }
+  
+  @Test
+  public void lostLeaseCancelsHolder() throws IOException {
+    JobHandle handle = new JobHandle(new File("video.avi"), new SettableListenableFuture<Object>(false));
+    assertTrue(workerA.tryAcquire(newFile, handle));
+    expireLease();
+    assertTrue(workerB.tryAcquire(newFile));
+    
+    assertFalse(workerA.isHeld(newFile));
+    workerA.heartbeat();
+    
+    assertTrue(handle.isCancelled());
+    assertEquals(0, workerA.getHeldCount());
+    assertTrue(workerB.isHeld(newFile));
+  }
+  
+  @Test
+  public void heartbeatKeepsHeldLease() throws IOException {
+    JobHandle handle = new JobHandle(new File("video.avi"), new SettableListenableFuture<Object>(false));
+    assertTrue(workerA.tryAcquire(newFile, handle));
+    workerA.heartbeat();
+    
+    assertFalse(handle.isCancelled());
+    assertTrue(workerA.isHeld(newFile));
+    assertFalse(workerB.tryAcquire(newFile));
+  }
+  
+  @Test
+  public void acquireIsExclusive() throws IOException {
+    assertTrue(workerA.tryAcquire(newFile));
+    assertTrue(workerA.tryAcquire(newFile));
+    assertEquals(1, workerA.getHeldCount());
+    
+    assertFalse(workerB.tryAcquire(newFile));
+    assertTrue(workerB.isHeldByOther(newFile));
+    assertFalse(workerA.isHeldByOther(newFile));
+    assertEquals(0, workerB.getHeldCount());
+  }
+  
+  @Test
+  public void releaseLetsOtherAcquire() throws IOException {
+    assertTrue(workerA.tryAcquire(newFile));
+    workerA.release(newFile);
+    assertEquals(0, workerA.getHeldCount());
+    assertFalse(workerA.makeLeaseFile(newFile).exists());
+    
+    assertTrue(workerB.tryAcquire(newFile));
+  }
+  
+  @Test
+  public void staleLeaseReclaimed() throws IOException {
+    assertTrue(workerA.tryAcquire(newFile));
+    expireLease();
+    assertFalse(workerB.isHeldByOther(newFile));
+    
+    assertTrue(workerB.tryAcquire(newFile));
+    assertTrue(workerA.isHeldByOther(newFile));
+    // nothing is left from moving the stale lease aside
+    assertEquals(1, leaseFolder.listFiles().length);
+    
+    // the old holder must not remove the lease it lost
+    workerA.release(newFile);
+    assertTrue(workerB.isHeld(newFile));
+  }
+  
+  @Test
+  public void releaseAll() throws IOException {
+    File otherNewFile = new File(destFolder, "other.mp4");
+    assertTrue(workerA.tryAcquire(newFile));
+    assertTrue(workerA.tryAcquire(otherNewFile));
+    workerA.releaseAll();
+    
+    assertEquals(0, workerA.getHeldCount());
+    assertEquals(0, leaseFolder.listFiles().length);
+  }
+  
+  @Test
+  public void leaseNamedRelativeToDestination() throws IOException {
+    // another worker which mounts the share somewhere else
+    File mountFolder = new File(new File(workFolder, "mount"), destFolder.getName());
+    LeaseManager workerC = new LeaseManager(leaseFolder, mountFolder, "hostC:1");
+    
+    assertEquals(workerA.makeLeaseFile(newFile), 
+                 workerC.makeLeaseFile(new File(mountFolder, newFile.getName())));
+  }
+  
+  @Test
+  public void leasePerDestination() throws IOException {
+    File otherNewFile = new File(otherDestFolder, newFile.getName());
+    assertTrue(workerA.tryAcquire(newFile));
+    assertTrue(workerB.tryAcquire(otherNewFile));
+    
+    assertFalse(workerB.tryAcquire(newFile));
+    assertFalse(workerA.tryAcquire(otherNewFile));
+  }
+}
@@ -0,0 +1,136 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MediaInfoParserTest {
+  private static final String PROBE_OUTPUT = 
+      "avconv version 9.20-6:9.20-0ubuntu0.14.04.1, Copyright (c) 2000-2014 the Libav developers\n" + 
+      "Input #0, matroska,webm, from 'video.mkv':\n" + 
+      "  Metadata:\n" + 
+      "    ENCODER         : libebml v1.3.0 + libmatroska v1.4.1\n" + 
+      "  Duration: 01:42:17.28, start: 0.000000, bitrate: 11853 kb/s\n" + 
+      "    Chapter #0.0: start 0.000000, end 612.069000\n" + 
+      "    Stream #0.0(eng): Video: h264 (High), yuv420p, 1920x800, PAR 1:1 DAR 12:5, 23.98 fps, 1k tbn, 47.95 tbc (default)\n" + 
+      "    Stream #0.1(eng): Audio: dca, 48000 Hz, 5.1(side), s16, 1536 kb/s (default)\n" + 
+      "    Stream #0.2(eng): Subtitle: subrip\n" + 
+      "At least one output file must be specified\n";
+  private static final String PROBE_JSON = 
+      "{\n" + 
+      "  \"streams\": [\n" + 
+      "    {\n" + 
+      "      \"index\": 0,\n" + 
+      "      \"codec_name\": \"h264\",\n" + 
+      "      \"profile\": \"High\",\n" + 
+      "      \"codec_type\": \"video\",\n" + 
+      "      \"width\": 1920,\n" + 
+      "      \"height\": 800,\n" + 
+      "      \"disposition\": { \"default\": 1, \"forced\": 0 },\n" + 
+      "      \"tags\": { \"language\": \"eng\" }\n" + 
+      "    },\n" + 
+      "    {\n" + 
+      "      \"index\": 1,\n" + 
+      "      \"codec_name\": \"dca\",\n" + 
+      "      \"profile\": \"unknown\",\n" + 
+      "      \"codec_type\": \"audio\",\n" + 
+      "      \"channels\": 6,\n" + 
+      "      \"bit_rate\": \"1536000\"\n" + 
+      "    },\n" + 
+      "    {\n" + 
+      "      \"index\": 2,\n" + 
+      "      \"codec_name\": \"subrip\",\n" + 
+      "      \"codec_type\": \"subtitle\"\n" + 
+      "    }\n" + 
+      "  ],\n" + 
+      "  \"format\": {\n" + 
+      "    \"filename\": \"video.mkv\",\n" + 
+      "    \"format_name\": \"matroska,webm\",\n" + 
+      "    \"duration\": \"6137.280000\",\n" + 
+      "    \"bit_rate\": \"11853000\",\n" + 
+      "    \"tags\": { \"title\": \"a \\\"quoted\\\" title, with [brackets]\" }\n" + 
+      "  }\n" + 
+      "}\n";
+  
+  private static void verifyMkvInfo(MediaInfo info) {
+    assertEquals("matroska,webm", info.container);
+    assertEquals(6137.28, info.durationSeconds, 0.001);
+    assertEquals(11853, info.bitrateKbps);
+    assertEquals(3, info.streams.size());
+    
+    MediaInfo.StreamInfo video = info.getFirstStream(MediaInfo.StreamType.Video);
+    assertEquals(0, video.index);
+    assertEquals("h264", video.codec);
+    assertEquals("High", video.profile);
+    assertEquals(1920, video.width);
+    assertEquals(800, video.height);
+    
+    MediaInfo.StreamInfo audio = info.getFirstStream(MediaInfo.StreamType.Audio);
+    assertEquals(1, audio.index);
+    assertEquals("dca", audio.codec);
+    assertNull(audio.profile);
+    assertEquals(6, audio.channels);
+    assertEquals(1536, audio.bitrateKbps);
+    
+    assertTrue(info.hasCodec(MediaInfo.StreamType.Subtitle, "subrip"));
+  }
+  
+  @Test
+  public void parseText() {
+    verifyMkvInfo(MediaInfoParser.parseText(PROBE_OUTPUT));
+  }
+  
+  @Test
+  public void parseJson() {
+    verifyMkvInfo(MediaInfoParser.parseJson(PROBE_JSON));
+  }
+  
+  @Test
+  public void parseDetectsForm() {
+    verifyMkvInfo(MediaInfoParser.parse(PROBE_OUTPUT));
+    verifyMkvInfo(MediaInfoParser.parse("  " + PROBE_JSON));
+  }
+  
+  @Test
+  public void parseTextUnknownDuration() {
+    MediaInfo info = MediaInfoParser.parseText("  Duration: N/A, bitrate: N/A\n" + 
+                                                 "    Stream #0:0: Audio: mp3, 44100 Hz, stereo, s16p, 128 kb/s\n");
+    assertNull(info.container);
+    assertEquals(-1, info.durationSeconds, 0);
+    assertEquals(-1, info.bitrateKbps);
+    assertEquals(2, info.getFirstStream(MediaInfo.StreamType.Audio).channels);
+    assertEquals(128, info.getFirstStream(MediaInfo.StreamType.Audio).bitrateKbps);
+  }
+  
+  @Test
+  public void parseTextIgnoresCodecTag() {
+    MediaInfo info = 
+        MediaInfoParser.parseText("    Stream #0:0(und): Video: h264 (avc1 / 0x31637661), yuv420p, 1280x720, 2000 kb/s\n");
+    MediaInfo.StreamInfo video = info.getFirstStream(MediaInfo.StreamType.Video);
+    assertEquals("h264", video.codec);
+    assertNull(video.profile);
+    assertEquals(1280, video.width);
+    assertEquals(720, video.height);
+    assertEquals(2000, video.bitrateKbps);
+  }
+  
+  @Test
+  public void parseEmptyJson() {
+    MediaInfo info = MediaInfoParser.parseJson("{ }");
+    assertNull(info.container);
+    assertTrue(info.streams.isEmpty());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void parseTruncatedJsonFail() {
+    MediaInfoParser.parseJson(PROBE_JSON.substring(0, PROBE_JSON.length() / 2));
+  }
+  
+  @Test
+  public void parseNumber() {
+    assertEquals(23.98, MediaInfoParser.parseNumber("23.98 fps", 0, 9), 0.0001);
+    assertEquals(12, MediaInfoParser.parseNumber("x12y", 1, 4), 0);
+    assertEquals(-1, MediaInfoParser.parseNumber("N/A", 0, 3), 0);
+    assertEquals(-1, MediaInfoParser.parseNumber(".", 0, 1), 0);
+  }
+}
@@ -0,0 +1,75 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProgressParserTest {
+  private JobProgress progress;
+  private ProgressParser parser;
+  
+  @Before
+  public void setup() {
+    progress = new JobProgress(-1);
+    parser = new ProgressParser(progress);
+  }
+  
+  private void consume(String output) {
+    byte[] bytes = output.getBytes(StandardCharsets.US_ASCII);
+    parser.consume(bytes, 0, bytes.length);
+  }
+  
+  @Test
+  public void avconvStatus() {
+    consume("  Duration: 00:02:00.00, start: 0.000000, bitrate: 1024 kb/s\n");
+    assertEquals(120, progress.getDurationSeconds(), 0);
+    
+    consume("frame= 1200 fps= 48 q=28.0 size=    8192kB time=50.04 bitrate=1341.2kbits/s    \r" + 
+              "frame= 1440 fps= 47 q=28.0 size=    9216kB time=00:01:00.00 bitrate=1329.7kbits/s    \r");
+    assertEquals(60, progress.getPositionSeconds(), 0.001);
+    assertEquals(47, progress.getFps(), 0);
+    assertEquals(1440, progress.getFrame());
+    assertEquals(0.5, progress.getFractionDone(), 0.001);
+  }
+  
+  @Test
+  public void statusSplitAcrossReads() {
+    consume("frame=  240 fps= 24 q=28.0 size=    1024kB ti");
+    assertEquals(0, progress.getFrame());
+    
+    consume("me=10.00 bitrate=838.9kbits/s    \r");
+    assertEquals(10, progress.getPositionSeconds(), 0.001);
+    assertEquals(240, progress.getFrame());
+  }
+  
+  @Test
+  public void mencoderStatus() {
+    consume("Pos:  49.4s   1234f (12%) 56.23fps Trem:   3min 234mb  A-V:0.000 [1500:128]\r");
+    assertEquals(49.4, progress.getPositionSeconds(), 0.001);
+    assertEquals(56.23, progress.getFps(), 0.001);
+    assertEquals(1234, progress.getFrame());
+    // no duration is known, so the reported percent is used
+    assertEquals(0.12, progress.getFractionDone(), 0.001);
+  }
+  
+  @Test
+  public void ignoresOtherLines() {
+    consume("Press ctrl-c to stop encoding\n" + 
+              "frame=  100 fps=0.0 q=0.0 size=       0kB time=N/A bitrate=N/A\r");
+    assertEquals(0, progress.getPositionSeconds(), 0);
+    assertEquals(0, progress.getFrame());
+  }
+  
+  @Test
+  public void parseTime() {
+    assertEquals(3723.5, ProgressParser.parseTime("01:02:03.50"), 0.001);
+    assertEquals(49.36, ProgressParser.parseTime("49.36"), 0.001);
+    assertEquals(-1, ProgressParser.parseTime("N/A"), 0);
+    assertEquals(-1, ProgressParser.parseTime("01:xx:03"), 0);
+    assertEquals(-1, ProgressParser.parseTime(""), 0);
+    assertEquals(-1, ProgressParser.parseTime(null), 0);
+  }
+}
@@ -0,0 +1,127 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.threadly.concurrent.PriorityScheduler;
+import org.threadly.util.Clock;
+
+public class SegmentedEncodeTest {
+  private static final int SEGMENT_COUNT = 3;
+  private static final double DURATION_SECONDS = 3600;
+  private static final String ENCODE_FLAGS = "-c:v libx264 -c:a aac";
+  
+  private static File binFolder;
+  
+  // the avconv executable is resolved once per jvm, so the fake must be installed before it is
+  @BeforeClass
+  public static void setupClass() throws IOException {
+    binFolder = Files.createTempDirectory("segmentedEncodeTestBin").toFile();
+    File executable = new File(binFolder, "avconv");
+    InputStream in = SegmentedEncodeTest.class.getResourceAsStream("/fake-encoder.sh");
+    assertNotNull("fake-encoder.sh not on the classpath", in);
+    try {
+      Files.copy(in, executable.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      in.close();
+    }
+    assertTrue(executable.setExecutable(true));
+    System.setProperty(LibavConverter.AVCONV_PROPERTY, executable.getAbsolutePath());
+    
+    assertEquals("avconv resolved before the fake was installed", 
+                 executable.getAbsoluteFile(), LibavConverter.getAvconvExecutable().getAbsoluteFile());
+  }
+  
+  @AfterClass
+  public static void cleanupClass() {
+    FileUtils.deleteFileOrFolder(binFolder);
+  }
+  
+  private File workFolder;
+  private PriorityScheduler scheduler;
+  private JobContext context;
+  
+  @Before
+  public void setup() throws IOException {
+    workFolder = Files.createTempDirectory("segmentedEncodeTest").toFile();
+    scheduler = new PriorityScheduler(SEGMENT_COUNT + 1);
+    context = new JobContext(scheduler, 1, SEGMENT_COUNT);
+  }
+  
+  @After
+  public void cleanup() {
+    context.getProcessLauncher().killAll();
+    context.getProcessLauncher().shutdown();
+    scheduler.shutdownNow();
+    FileUtils.deleteFileOrFolder(workFolder);
+  }
+  
+  private ConversionPlan makePlan(String header) throws IOException {
+    File sourceFile = new File(workFolder, "video.mkv");
+    Files.write(sourceFile.toPath(), (header + "\n").getBytes(StandardCharsets.UTF_8));
+    
+    return new ConversionPlan(sourceFile, new File(workFolder, "video.mp4"), 
+                              JobType.FullEncode, DURATION_SECONDS);
+  }
+  
+  private static File getWorkFolder(ConversionPlan plan) {
+    return new File(plan.tempFile.getParentFile(), plan.tempFile.getName() + ".segments");
+  }
+  
+  @Test
+  public void encodesSegmentsTogether() throws IOException, InterruptedException {
+    // each segment takes 2 seconds, the split and join a fraction of that
+    ConversionPlan plan = makePlan("FAKE duration=3600 vcodec=mpeg4 acodec=mp3 speed=600 size=3000");
+    SegmentedEncode encode = new SegmentedEncode(context, context.getProcessLauncher(), 
+                                                 plan, ENCODE_FLAGS, SEGMENT_COUNT);
+    
+    long startTime = Clock.accurateForwardProgressingMillis();
+    encode.encode();
+    long elapsedMillis = Clock.accurateForwardProgressingMillis() - startTime;
+    
+    assertTrue(plan.tempFile.isFile());
+    String header = new String(Files.readAllBytes(plan.tempFile.toPath()), StandardCharsets.UTF_8);
+    // the segment durations are summed by the join
+    assertTrue(header, header.startsWith("FAKE duration=3600 "));
+    assertFalse(getWorkFolder(plan).exists());
+    assertEquals(0, context.getProcessLauncher().getRunningCount());
+    // one after another the segments alone would take 6 seconds
+    assertTrue("took " + elapsedMillis + "ms", elapsedMillis < 5000);
+  }
+  
+  @Test
+  public void failedSegmentAbortsOthers() throws IOException, InterruptedException {
+    // the last segment fails after a fraction of a second, the others would take 6 seconds
+    ConversionPlan plan = makePlan("FAKE duration=3600 vcodec=mpeg4 acodec=mp3 speed=200 size=3000 " +
+                                     "failsegment=" + (SEGMENT_COUNT - 1));
+    SegmentedEncode encode = new SegmentedEncode(context, context.getProcessLauncher(), 
+                                                 plan, ENCODE_FLAGS, SEGMENT_COUNT);
+    
+    long startTime = Clock.accurateForwardProgressingMillis();
+    try {
+      encode.encode();
+      fail("Exception should have thrown");
+    } catch (IllegalStateException e) {
+      // the failed segment is reported, not the segments killed because of it
+      assertTrue(e.getMessage(), e.getMessage().startsWith("exit code 1 "));
+    }
+    long elapsedMillis = Clock.accurateForwardProgressingMillis() - startTime;
+    
+    // returns only once the killed encoders are gone, and their segments cleaned up
+    assertEquals(0, context.getProcessLauncher().getRunningCount());
+    assertFalse(getWorkFolder(plan).exists());
+    assertFalse(plan.tempFile.exists());
+    assertTrue("took " + elapsedMillis + "ms", elapsedMillis < 4000);
+  }
+}
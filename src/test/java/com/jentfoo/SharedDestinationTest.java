@@ -0,0 +1,169 @@
+package com.jentfoo;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs several worker processes at once against one destination and lease folder, with the fake
+ * encoders standing in for libav, to check each file is converted by exactly one of them.
+ */
+public class SharedDestinationTest {
+  private static final int WORKER_COUNT = 3;
+  private static final int SOURCE_COUNT = 12;
+  private static final int OUTPUT_SIZE = 4096;
+  private static final int RUN_TIMEOUT_IN_SECONDS = 120;
+  
+  private File workFolder;
+  private File binFolder;
+  private File sourceFolder;
+  private File destFolder;
+  private File leaseFolder;
+  private File encodeLog;
+  
+  @Before
+  public void setup() throws IOException {
+    workFolder = Files.createTempDirectory("sharedDestinationTest").toFile();
+    binFolder = new File(workFolder, "bin");
+    sourceFolder = new File(workFolder, "source");
+    destFolder = new File(workFolder, "dest");
+    leaseFolder = new File(workFolder, "leases");
+    encodeLog = new File(workFolder, "encodes.log");
+    assertTrue(binFolder.mkdir() && sourceFolder.mkdir() && destFolder.mkdir());
+    installFakeEncoders();
+    
+    // a full encode each, which takes the fake encoder half a second, the id keeps the sources
+    // from being found to be duplicates of each other
+    long modifiedTime = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+    for (int i = 0; i < SOURCE_COUNT; i++) {
+      File sourceFile = new File(sourceFolder, "video-" + i + ".avi");
+      Files.write(sourceFile.toPath(), 
+                  ("FAKE duration=60 vcodec=mpeg4 acodec=mp3 speed=120 size=" + OUTPUT_SIZE + 
+                     " id=" + i + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+      assertTrue(sourceFile.setLastModified(modifiedTime));
+    }
+  }
+  
+  @After
+  public void cleanup() {
+    deleteRecursively(workFolder);
+  }
+  
+  private void installFakeEncoders() throws IOException {
+    String[] names = { "avconv", "avprobe" };
+    for (int i = 0; i < names.length; i++) {
+      File executable = new File(binFolder, names[i]);
+      InputStream in = SharedDestinationTest.class.getResourceAsStream("/fake-encoder.sh");
+      assertNotNull("fake-encoder.sh not on the classpath", in);
+      try {
+        Files.copy(in, executable.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        in.close();
+      }
+      assertTrue(executable.setExecutable(true));
+    }
+  }
+  
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        deleteRecursively(children[i]);
+      }
+    }
+    file.delete();
+  }
+  
+  private Process startWorker(int index) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+    Iterator<String> it = ManagementFactory.getRuntimeMXBean().getInputArguments().iterator();
+    while (it.hasNext()) {
+      String arg = it.next();
+      if (arg.startsWith("--add-opens")) {
+        command.add(arg);
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("-D" + MediaConverter.STATE_FOLDER_PROPERTY + '=' + 
+                  new File(workFolder, "state-" + index).getAbsolutePath());
+    command.add("-D" + LeaseManager.LEASE_FOLDER_PROPERTY + '=' + leaseFolder.getAbsolutePath());
+    command.add("-D" + LibavConverter.AVCONV_PROPERTY + '=' + new File(binFolder, "avconv").getAbsolutePath());
+    command.add("-D" + LibavConverter.AVPROBE_PROPERTY + '=' + new File(binFolder, "avprobe").getAbsolutePath());
+    command.add("-D" + StabilityTracker.STABLE_TIME_PROPERTY + "=1");
+    command.add(MediaConverter.class.getName());
+    command.add(sourceFolder.getAbsolutePath());
+    command.add(destFolder.getAbsolutePath());
+    command.add("libav");
+    command.add("2");
+    
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.environment().put("FAKE_LOG", encodeLog.getAbsolutePath());
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(new File(workFolder, "worker-" + index + ".log"));
+    
+    return pb.start();
+  }
+  
+  @Test
+  public void eachFileConvertedOnce() throws IOException, InterruptedException {
+    List<Process> workers = new ArrayList<Process>(WORKER_COUNT);
+    for (int i = 0; i < WORKER_COUNT; i++) {
+      workers.add(startWorker(i));
+    }
+    for (int i = 0; i < workers.size(); i++) {
+      Process worker = workers.get(i);
+      if (! worker.waitFor(RUN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS)) {
+        worker.destroyForcibly();
+        fail("Worker " + i + " did not finish");
+      }
+      assertEquals("Worker " + i + " exit code", 0, worker.exitValue());
+    }
+    
+    for (int i = 0; i < SOURCE_COUNT; i++) {
+      File newFile = new File(destFolder, "video-" + i + ".mp4");
+      assertTrue("Missing: " + newFile.getName(), newFile.isFile());
+      assertEquals(OUTPUT_SIZE, newFile.length());
+    }
+    File[] destFiles = destFolder.listFiles();
+    for (int i = 0; i < destFiles.length; i++) {
+      assertFalse("Partial file left: " + destFiles[i].getName(), destFiles[i].getName().startsWith("."));
+    }
+    File[] leaseFiles = leaseFolder.listFiles();
+    assertTrue("Leases left", leaseFiles == null || leaseFiles.length == 0);
+    
+    // every encode wrote its own partial file, and each new file came from exactly one of them
+    Map<String, Integer> encodeCounts = new HashMap<String, Integer>();
+    Iterator<String> it = Files.readAllLines(encodeLog.toPath(), StandardCharsets.UTF_8).iterator();
+    while (it.hasNext()) {
+      String name = new File(it.next()).getName();
+      String newName = name.substring(1, name.indexOf(".partial-")) + ".mp4";
+      Integer count = encodeCounts.get(newName);
+      encodeCounts.put(newName, count == null ? 1 : count + 1);
+    }
+    assertEquals(SOURCE_COUNT, encodeCounts.size());
+    Iterator<Map.Entry<String, Integer>> countIt = encodeCounts.entrySet().iterator();
+    while (countIt.hasNext()) {
+      Map.Entry<String, Integer> e = countIt.next();
+      assertEquals("Times encoded: " + e.getKey(), 1, e.getValue().intValue());
+    }
+  }
+}